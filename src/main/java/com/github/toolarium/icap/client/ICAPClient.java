@@ -5,13 +5,25 @@
  */
 package com.github.toolarium.icap.client;
 
+import com.github.toolarium.icap.client.dto.ICAPBatchInformation;
 import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
 import com.github.toolarium.icap.client.dto.ICAPMode;
 import com.github.toolarium.icap.client.dto.ICAPRemoteServiceConfiguration;
 import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
 import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPScanResult;
 import com.github.toolarium.icap.client.exception.ContentBlockedException;
+import com.github.toolarium.icap.client.util.ICAPAsyncExecutor;
+import com.github.toolarium.icap.client.util.ICAPFingerprint;
+import com.github.toolarium.icap.client.util.ICAPScanPublisher;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.stream.Stream;
 
 
 /**
@@ -64,6 +76,105 @@ public interface ICAPClient {
      */
     ICAPHeaderInformation validateResource(ICAPMode mode, ICAPRequestInformation requestInformation, ICAPResource resource) throws IOException, ContentBlockedException;
 
+
+    /**
+     * Get the ICAP options asynchronously. The request runs on the executor of the client, by default the blocking 
+     * {@link #options(ICAPRequestInformation)} runs on the default executor.
+     *
+     * @param requestInformation the ICAP request information
+     * @return the future of the ICAP remote service configuration, it's completed exceptionally with an IOException in case of an I/O error
+     */
+    default CompletableFuture<ICAPRemoteServiceConfiguration> optionsAsync(ICAPRequestInformation requestInformation) {
+        return supplyAsync(() -> options(requestInformation));
+    }
+
+
+    /**
+     * Validate a resource asynchronously. The request runs on the executor of the client, by default the blocking 
+     * {@link #validateResource(ICAPMode, ICAPRequestInformation, ICAPResource)} runs on the default executor.
+     *
+     * @param mode the ICAP mode
+     * @param requestInformation the ICAP request information
+     * @param resource the ICAP resource
+     * @return the future of the ICAP header information, it's completed exceptionally with an IOException in case of an I/O error 
+     * or a ContentBlockedException in case the content is blocked
+     */
+    default CompletableFuture<ICAPHeaderInformation> validateResourceAsync(ICAPMode mode, ICAPRequestInformation requestInformation, ICAPResource resource) {
+        return supplyAsync(() -> validateResource(mode, requestInformation, resource));
+    }
+
+
+    /**
+     * Validate the resources of a publisher. The resources are requested only as fast as the subscriber requests the results
+     * and the limits of the batch information allow; every resource is validated asynchronously and results in an 
+     * {@link ICAPScanResult}, e.g. a blocked or failed resource doesn't terminate the stream. The returned publisher supports 
+     * one subscriber. By default the resources are validated by {@link #validateResourceAsync(ICAPMode, ICAPRequestInformation, ICAPResource)}
+     * and the in-flight scans and bytes are only counted by the returned publisher.
+     *
+     * @param mode the ICAP mode
+     * @param requestInformation the ICAP request information
+     * @param resources the publisher of the resources
+     * @param batchInformation the limits of the in-flight scans and bytes and the order of the results or null for the defaults
+     * @return the publisher of the scan results
+     */
+    default Flow.Publisher<ICAPScanResult> validateResources(ICAPMode mode, ICAPRequestInformation requestInformation, Flow.Publisher<? extends ICAPResource> resources, ICAPBatchInformation batchInformation) {
+        return new ICAPScanPublisher(resources, resource -> validateResourceAsync(mode, requestInformation, resource), batchInformation);
+    }
+
+
+    /**
+     * Validate a batch of resources and wait for all results. The resources are validated concurrently up to the limits of the 
+     * batch information over the pooled connections of the service; a blocked or failed resource doesn't fail the batch. By default 
+     * the resources are validated by {@link #validateResources(ICAPMode, ICAPRequestInformation, java.util.concurrent.Flow.Publisher, ICAPBatchInformation)}.
+     *
+     * @param mode the ICAP mode
+     * @param requestInformation the ICAP request information
+     * @param resources the resources
+     * @param batchInformation the limits of the in-flight scans and bytes or null for the defaults
+     * @return the scan results in the order of the resources
+     * @throws IOException In case the thread is interrupted while waiting for the results
+     */
+    default List<ICAPScanResult> validateResources(ICAPMode mode, ICAPRequestInformation requestInformation, Collection<? extends ICAPResource> resources, ICAPBatchInformation batchInformation) throws IOException {
+        if (resources == null) {
+            throw new IOException("Invalid resources!");
+        }
+        
+        return ICAPScanPublisher.collect(validateResources(mode, requestInformation, ICAPScanPublisher.publisher(resources.iterator()), batchInformation));
+    }
+
+
+    /**
+     * Validate a stream of resources and wait for all results. The stream is consumed lazily, e.g. a resource is only taken from
+     * the stream if the limits of the batch information allow a further scan. By default the resources are validated by 
+     * {@link #validateResources(ICAPMode, ICAPRequestInformation, java.util.concurrent.Flow.Publisher, ICAPBatchInformation)}.
+     *
+     * @param mode the ICAP mode
+     * @param requestInformation the ICAP request information
+     * @param resources the stream of the resources
+     * @param batchInformation the limits of the in-flight scans and bytes or null for the defaults
+     * @return the scan results in the order of the resources
+     * @throws IOException In case the thread is interrupted while waiting for the results or the stream could not be read
+     */
+    default List<ICAPScanResult> validateResources(ICAPMode mode, ICAPRequestInformation requestInformation, Stream<? extends ICAPResource> resources, ICAPBatchInformation batchInformation) throws IOException {
+        if (resources == null) {
+            throw new IOException("Invalid resources!");
+        }
+        
+        return ICAPScanPublisher.collect(validateResources(mode, requestInformation, ICAPScanPublisher.publisher(resources.iterator()), batchInformation));
+    }
+
+
+    /**
+     * Define the executor of the asynchronous requests. By default the executor is not supported and the asynchronous requests 
+     * run on the default executor.
+     *
+     * @param executor the executor or null to use the default executor (virtual threads if available) 
+     * @return this client
+     */
+    default ICAPClient executor(Executor executor) {
+        return this;
+    }
+
     
     /**
      * Define if the client support verify and compare input and output content
@@ -72,4 +183,42 @@ public interface ICAPClient {
      * @return this client
      */
     ICAPClient supportCompareVerifyIdenticalContent(boolean supportCompareVerifyIdenticalContent);
+
+
+    /**
+     * Define the fingerprint of the request and response content. The fingerprints are added to a modified response and compared in 
+     * case the client supports to verify and compare the content. They are only calculated for a fraction of the requests. By default 
+     * the fingerprint is not supported and the client is returned unchanged.
+     *
+     * @param fingerprint the fingerprint, by default SHA-256; {@link ICAPFingerprint#NONE} disables the fingerprints
+     * @param sampleRate the fraction of the requests between 0 and 1 of which the fingerprints are calculated, by default 1
+     * @return this client
+     */
+    default ICAPClient fingerprint(ICAPFingerprint fingerprint, double sampleRate) {
+        return this;
+    }
+
+
+    /**
+     * Run a blocking request on the default executor
+     *
+     * @param <T> the type of the result
+     * @param request the request
+     * @return the future of the result, it's completed exceptionally with the exception of the request
+     */
+    private static <T> CompletableFuture<T> supplyAsync(final Callable<T> request) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        try {
+            ICAPAsyncExecutor.getInstance().getExecutor().execute(() -> {
+                try {
+                    future.complete(request.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
 }
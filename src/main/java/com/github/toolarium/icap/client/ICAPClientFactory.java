@@ -8,14 +8,27 @@ package com.github.toolarium.icap.client;
 import com.github.toolarium.icap.client.dto.ICAPRemoteServiceConfiguration;
 import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
 import com.github.toolarium.icap.client.impl.ICAPClientImpl;
-import com.github.toolarium.icap.client.impl.ICAPConnectionManagerImpl;
+import com.github.toolarium.icap.client.impl.ICAPConnectionLimiter;
+import com.github.toolarium.icap.client.impl.ICAPHashFilter;
+import com.github.toolarium.icap.client.impl.ICAPKnownHashes;
+import com.github.toolarium.icap.client.impl.ICAPPooledConnectionManagerImpl;
+import com.github.toolarium.icap.client.impl.ICAPRemoteServiceConfigurationCache;
+import com.github.toolarium.icap.client.impl.ICAPRescanJournal;
+import com.github.toolarium.icap.client.impl.ICAPResponseBuffer;
+import com.github.toolarium.icap.client.impl.ICAPScanDeduplicator;
+import com.github.toolarium.icap.client.impl.ICAPSignaturePrefilter;
+import com.github.toolarium.icap.client.impl.ICAPVerdictCache;
+import com.github.toolarium.icap.client.impl.ICAPVerdictStore;
+import com.github.toolarium.icap.client.util.ICAPAsyncExecutor;
 import java.io.IOException;
 import java.net.MalformedURLException;
-import java.time.Instant;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 
 /**
@@ -25,9 +38,11 @@ import org.slf4j.LoggerFactory;
  */
 public final class ICAPClientFactory {
     private static final int DEFAULT_MAX_CACHE_AGE = 12 * 60 * 60;
-    private static final Logger LOG = LoggerFactory.getLogger(ICAPClientFactory.class);
-    private Map<ICAPServiceInformation, ICAPRemoteServiceConfiguration> serviceCache;
+    private ICAPRemoteServiceConfigurationCache serviceCache;
+    private Map<ICAPServiceInformation, ICAPConnectionLimiter> connectionLimiters;
+    private Map<ICAPServiceInformation, ICAPEndpoint> endpoints;
     private ICAPConnectionManager connectionManager;
+    private int maxServices;
     
     
     /**
@@ -44,8 +59,15 @@ public final class ICAPClientFactory {
      * Constructor
      */
     private ICAPClientFactory() {
-        serviceCache = new ConcurrentHashMap<ICAPServiceInformation, ICAPRemoteServiceConfiguration>();
-        connectionManager = new ICAPConnectionManagerImpl();
+        serviceCache = new ICAPRemoteServiceConfigurationCache(Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "icap-options-refresh");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        connectionLimiters = new HashMap<ICAPServiceInformation, ICAPConnectionLimiter>();
+        endpoints = new LinkedHashMap<ICAPServiceInformation, ICAPEndpoint>(16, 0.75f, true);
+        connectionManager = new ICAPPooledConnectionManagerImpl();
+        maxServices = ICAPRemoteServiceConfigurationCache.DEFAULT_MAX_SIZE;
     }
 
     
@@ -81,9 +103,147 @@ public final class ICAPClientFactory {
         }
         
         this.connectionManager = connectionManager;
+        
+        // the clients are bound to the connection manager
+        synchronized (endpoints) {
+            for (ICAPEndpoint endpoint : endpoints.values()) {
+                endpoint.setICAPClient(null);
+            }
+        }
     }
     
     
+    /**
+     * Sets the max number of services of which the remote service configuration is cached. The least recently used service is evicted,
+     * the endpoints and connection limiters of the services are bounded by it as well.
+     *
+     * @param serviceCacheSize the max number of cached services
+     */
+    public void setServiceCacheSize(int serviceCacheSize) {
+        serviceCache.setMaxSize(serviceCacheSize);
+        synchronized (endpoints) {
+            maxServices = Math.max(1, serviceCacheSize);
+            evictEndpoints();
+        }
+    }
+
+
+    /**
+     * Sets the directory where a snapshot of the last OPTIONS result per service is kept. After a restart the snapshot is used
+     * until the OPTIONS request, which runs in the background, is answered.
+     *
+     * @param snapshotDirectory the snapshot directory or null to disable the snapshots
+     */
+    public void setSnapshotDirectory(Path snapshotDirectory) {
+        serviceCache.setSnapshotDirectory(snapshotDirectory);
+    }
+
+
+    /**
+     * Sets the threshold up to which a modified response is kept in memory, a larger response is spilled to a temporary file.
+     *
+     * @param threshold the threshold in bytes, by default 256 KiB
+     */
+    public void setResponseBufferThreshold(int threshold) {
+        ICAPResponseBuffer.setDefaultThreshold(threshold);
+    }
+
+
+    /**
+     * Sets the directory of the temporary files of the spilled responses.
+     *
+     * @param directory the directory or null to use the default temporary directory
+     */
+    public void setResponseBufferDirectory(Path directory) {
+        ICAPResponseBuffer.setDefaultDirectory(directory);
+    }
+
+
+    /**
+     * Sets the max number of cached verdicts. The verdict of a re-readable resource is cached by its content digest and the ISTag
+     * of the service, a changed ISTag invalidates the cached verdicts of the service.
+     *
+     * @param verdictCacheSize the max number of cached verdicts, by default 0 which disables the cache
+     */
+    public void setVerdictCacheSize(int verdictCacheSize) {
+        ICAPVerdictCache.getInstance().setMaxSize(verdictCacheSize);
+    }
+
+
+    /**
+     * Sets the file of the persistent verdict store. The store is memory-mapped and can be shared by the processes of a host,
+     * e.g. the verdicts survive a restart. An existing file keeps its capacity.
+     *
+     * @param verdictStoreFile the file of the verdict store or null to close the verdict store
+     * @param capacity the number of verdicts of a new file
+     * @throws IOException In case the file could not be opened
+     */
+    public void setVerdictStore(Path verdictStoreFile, int capacity) throws IOException {
+        if (verdictStoreFile == null) {
+            ICAPVerdictStore.getInstance().close();
+        } else {
+            ICAPVerdictStore.getInstance().open(verdictStoreFile, capacity);
+        }
+    }
+
+
+    /**
+     * Sets the filter file of the known good content, e.g. a list of known software. A re-readable resource with a known good digest 
+     * is valid without a scan. The file is created by the ICAPHashFilterImporter.
+     *
+     * @param knownGoodHashes the filter file or null to remove the filter
+     * @throws IOException In case the filter file could not be opened
+     */
+    public void setKnownGoodHashes(Path knownGoodHashes) throws IOException {
+        ICAPKnownHashes.getInstance().setKnownGood((knownGoodHashes != null) ? ICAPHashFilter.open(knownGoodHashes) : null);
+    }
+
+
+    /**
+     * Sets the filter file of the known bad content. A re-readable resource with a known bad digest is blocked without a scan.
+     * The file is created by the ICAPHashFilterImporter.
+     *
+     * @param knownBadHashes the filter file or null to remove the filter
+     * @throws IOException In case the filter file could not be opened
+     */
+    public void setKnownBadHashes(Path knownBadHashes) throws IOException {
+        ICAPKnownHashes.getInstance().setKnownBad((knownBadHashes != null) ? ICAPHashFilter.open(knownBadHashes) : null);
+    }
+
+
+    /**
+     * Sets the local signatures: a content which contains a signature is blocked before it's sent to the ICAP server. The file 
+     * contains a signature per line as name and hex encoded bytes, separated by a semicolon.
+     *
+     * @param signatureFile the signature file or null to remove the signatures
+     * @throws IOException In case the signature file could not be read
+     */
+    public void setSignatureFile(Path signatureFile) throws IOException {
+        ICAPSignaturePrefilter.getInstance().load(signatureFile);
+    }
+
+
+    /**
+     * Enables the deduplication of concurrent scans: as long as a re-readable resource is scanned, the scans of the same content 
+     * against the same service wait for it and receive the same result.
+     *
+     * @param scanDeduplication true to share the concurrent scans of identical content, by default false
+     */
+    public void setScanDeduplication(boolean scanDeduplication) {
+        ICAPScanDeduplicator.getInstance().setEnabled(scanDeduplication);
+    }
+
+
+    /**
+     * Sets the executor of the asynchronous requests of all clients which don't define their own executor.
+     *
+     * @param executor the executor or null to use the default executor, which uses virtual threads if they are available
+     */
+    public void setAsyncExecutor(Executor executor) {
+        ICAPAsyncExecutor.getInstance().setExecutor(executor);
+    }
+
+    
     /**
      * Get the ICAP client
      *
@@ -136,7 +296,101 @@ public final class ICAPClientFactory {
      * @throws IOException In case of an I/O error
      */
     public ICAPClient getICAPClient(String icapUrl, int cacheMaxAgeInSeconds) throws MalformedURLException, IOException {
+        return getICAPClient(getICAPEndpoint(icapUrl, cacheMaxAgeInSeconds));
+    }
+    
+
+    /**
+     * Get the ICAP client
+     *
+     * @param hostName the host name
+     * @param servicePort the service port
+     * @param serviceName the service name
+     * @param secureConnection true to use icaps connection (secured SSLSocket connection)
+     * @param cacheMaxAgeInSeconds the max age in seconds of the cache
+     * @return the ICAP client
+     * @throws IOException In case of an I/O error
+     */
+    public ICAPClient getICAPClient(String hostName, int servicePort, String serviceName, boolean secureConnection, int cacheMaxAgeInSeconds) throws IOException {
+        return getICAPClient(getICAPEndpoint(new ICAPServiceInformation(hostName, servicePort, secureConnection, serviceName, cacheMaxAgeInSeconds)));
+    }
+
+
+    /**
+     * Get the ICAP client of an endpoint. The client is shared between all threads, a refreshed configuration is published as new snapshot.
+     *
+     * @param endpoint the ICAP endpoint
+     * @return the ICAP client
+     * @throws IOException In case of an I/O error
+     */
+    public ICAPClient getICAPClient(ICAPEndpoint endpoint) throws IOException {
+        final ICAPServiceInformation serviceInformation = endpoint.getServiceInformation();
+        final ICAPConnectionLimiter connectionLimiter = getConnectionLimiter(endpoint);
+        final ICAPConnectionManager icapConnectionManager = getICAPConnectionManager();
+        ICAPRemoteServiceConfiguration remoteServiceConfiguration = serviceCache.get(serviceInformation, 
+                                                                                   () -> new ICAPClientImpl(icapConnectionManager, endpoint, null, connectionLimiter).options());
+
+        ICAPClientImpl client;
+        synchronized (endpoint) {
+            client = (ICAPClientImpl)endpoint.getCurrentICAPClient();
+            if (client == null || client.getConnectionManager() != icapConnectionManager) {
+                client = new ICAPClientImpl(icapConnectionManager, endpoint, null, connectionLimiter);
+            }
+            
+            if (client.getRemoteServiceConfiguration() != remoteServiceConfiguration) {
+                client.updateRemoteServiceConfiguration(remoteServiceConfiguration);
+            }
+            endpoint.setICAPClient(client);
+        }
         
+        return client;
+    }
+
+
+    /**
+     * Create the rescan journal of an endpoint and start its worker. The cleared resources which are added to the journal are rescanned
+     * in the background as soon as the ISTag of the service changes; the rescan is rate-limited and only uses free connections.
+     *
+     * @param endpoint the ICAP endpoint
+     * @param journalFile the journal file, the checkpoint is kept beside it
+     * @param resourceResolver the resolver of the resource locators or null to resolve them as file paths
+     * @return the started rescan journal, it's closed by the caller
+     * @throws IOException In case the journal could not be opened
+     */
+    public ICAPRescanJournal createRescanJournal(ICAPEndpoint endpoint, Path journalFile, ICAPRescanJournal.ResourceResolver resourceResolver) throws IOException {
+        final ICAPServiceInformation serviceInformation = endpoint.getServiceInformation();
+        final ICAPConnectionLimiter connectionLimiter = getConnectionLimiter(endpoint);
+        final ICAPRescanJournal rescanJournal;
+        if (resourceResolver == null) {
+            rescanJournal = new ICAPRescanJournal(journalFile, serviceInformation, () -> getICAPClient(endpoint), connectionLimiter);
+        } else {
+            rescanJournal = new ICAPRescanJournal(journalFile, serviceInformation, () -> getICAPClient(endpoint), connectionLimiter, resourceResolver);
+        }
+        return rescanJournal.start();
+    }
+
+
+    /**
+     * Get the ICAP endpoint. The endpoint should be kept by the caller, it's parsed only once and gives access to the ICAP client without any parsing. 
+     *
+     * @param icapUrl the icap url, e.g. icap://localhost:1344/srv_clamav or icaps://localhost:1344/srv_clamav
+     * @return the ICAP endpoint
+     * @throws MalformedURLException In case of an invalid URL
+     */
+    public ICAPEndpoint getICAPEndpoint(String icapUrl) throws MalformedURLException {
+        return getICAPEndpoint(icapUrl, DEFAULT_MAX_CACHE_AGE);
+    }
+
+    
+    /**
+     * Get the ICAP endpoint. The endpoint should be kept by the caller, it's parsed only once and gives access to the ICAP client without any parsing. 
+     *
+     * @param icapUrl the icap url, e.g. icap://localhost:1344/srv_clamav or icaps://localhost:1344/srv_clamav
+     * @param cacheMaxAgeInSeconds the max age in seconds of the cache
+     * @return the ICAP endpoint
+     * @throws MalformedURLException In case of an invalid URL
+     */
+    public ICAPEndpoint getICAPEndpoint(String icapUrl, int cacheMaxAgeInSeconds) throws MalformedURLException {
         if (icapUrl == null || icapUrl.isBlank()) {
             throw new MalformedURLException("Invalid icap url!");
         }
@@ -168,49 +422,57 @@ public final class ICAPClientFactory {
         }
         
         boolean secureConnection = icapUrl.toLowerCase().trim().startsWith("icaps:");
-        return getICAPClient(hostName, servicePort, serviceName, secureConnection, cacheMaxAgeInSeconds);
+        return getICAPEndpoint(new ICAPServiceInformation(hostName, servicePort, secureConnection, serviceName, cacheMaxAgeInSeconds));
     }
-    
+
 
     /**
-     * Get the ICAP client
+     * Get the ICAP endpoint
      *
-     * @param hostName the host name
-     * @param servicePort the service port
-     * @param serviceName the service name
-     * @param secureConnection true to use icaps connection (secured SSLSocket connection)
-     * @param cacheMaxAgeInSeconds the max age in seconds of the cache
-     * @return the ICAP client
-     * @throws IOException In case of an I/O error
+     * @param serviceInformation the service information
+     * @return the ICAP endpoint
      */
-    public ICAPClient getICAPClient(String hostName, int servicePort, String serviceName, boolean secureConnection, int cacheMaxAgeInSeconds) throws IOException {
-        ICAPServiceInformation serviceInformation = new ICAPServiceInformation(hostName, servicePort, secureConnection, serviceName, cacheMaxAgeInSeconds);
-        
-        ICAPRemoteServiceConfiguration remoteServiceConfiguration = serviceCache.get(serviceInformation);
-
-        if (remoteServiceConfiguration == null 
-                || remoteServiceConfiguration.getTimestamp() == null 
-                || ((Instant.now().getEpochSecond() - remoteServiceConfiguration.getTimestamp().getEpochSecond()) > serviceInformation.getCacheMaxAgeInSeconds())) { 
-            try {
-                ICAPClientImpl clientImpl = new ICAPClientImpl(getICAPConnectionManager(), serviceInformation, remoteServiceConfiguration);
-                remoteServiceConfiguration = clientImpl.options();
-                serviceCache.put(serviceInformation, remoteServiceConfiguration);
-                LOG.debug("Set remote service configuration cache: " + serviceInformation);
-            } catch (IOException e) {
-                LOG.debug("Could not get options from remote icap-server: " + e.getMessage(), e);
-                throw e;
+    public ICAPEndpoint getICAPEndpoint(ICAPServiceInformation serviceInformation) {
+        synchronized (endpoints) {
+            ICAPEndpoint endpoint = endpoints.get(serviceInformation);
+            if (endpoint == null) {
+                endpoint = new ICAPEndpoint(serviceInformation);
+                endpoints.put(serviceInformation, endpoint);
+                evictEndpoints();
             }
-        } else {
-            String logCacheDuration = "";
-            Long diff = null;
-            if (remoteServiceConfiguration.getTimestamp() != null) {
-                diff = serviceInformation.getCacheMaxAgeInSeconds() + (Instant.now().getEpochSecond() - remoteServiceConfiguration.getTimestamp().getEpochSecond());
-                logCacheDuration = "(valid for " + diff + " seconds)";
+            return endpoint;
+        }
+    }
+
+
+    /**
+     * Get the connection limiter of an endpoint. An evicted endpoint which is still kept by the caller is registered again, 
+     * e.g. the connection limiters are only kept for the registered endpoints.
+     *
+     * @param endpoint the ICAP endpoint
+     * @return the connection limiter of the service
+     */
+    private ICAPConnectionLimiter getConnectionLimiter(ICAPEndpoint endpoint) {
+        final ICAPServiceInformation serviceInformation = endpoint.getServiceInformation();
+        synchronized (endpoints) {
+            if (endpoints.get(serviceInformation) == null) {
+                endpoints.put(serviceInformation, endpoint);
+                evictEndpoints();
             }
-            
-            LOG.debug("Found remote service configuration in cache " + logCacheDuration + ": " + serviceInformation);
+            return connectionLimiters.computeIfAbsent(serviceInformation, k -> new ICAPConnectionLimiter());
+        }
+    }
+
+
+    /**
+     * Evict the least recently used endpoints and their connection limiters, the lock of the endpoints must be held
+     */
+    private void evictEndpoints() {
+        Iterator<ICAPServiceInformation> it = endpoints.keySet().iterator();
+        while (endpoints.size() > maxServices && it.hasNext()) {
+            ICAPServiceInformation eldest = it.next();
+            it.remove();
+            connectionLimiters.remove(eldest);
         }
-        
-        return new ICAPClientImpl(getICAPConnectionManager(), serviceInformation, remoteServiceConfiguration);
     }
 }
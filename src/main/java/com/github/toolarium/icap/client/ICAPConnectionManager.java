@@ -33,6 +33,48 @@ public interface ICAPConnectionManager {
     Socket createSocket(String hostname, int port, boolean secureConnection, Integer maxConnectionTimeout, Integer maxReadTimeout) throws UnknownHostException, IOException;
 
 
+    /**
+     * Release a socket which was created by the {@link #createSocket(String, int, boolean, Integer, Integer)}. By default the socket is closed.
+     *
+     * @param socket the socket to release
+     * @param reusable true if the last exchange on the socket was completed and the connection could be reused; otherwise the socket has to be closed
+     */
+    default void releaseSocket(Socket socket, boolean reusable) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // NOP
+            }
+        }
+    }
+
+
+    /**
+     * Define the max connections to a host as announced by the <code>Max-Connections</code> of the OPTIONS response. The idle
+     * connections which are kept alive for the host are limited by it, e.g. the leased and idle connections together don't exceed
+     * the limit. By default the value is ignored.
+     *
+     * @param hostname the name of the host
+     * @param port the port
+     * @param secureConnection true for secured SSL connections
+     * @param maxConnections the max connections; null or a value less or equal zero is interpreted as unlimited
+     */
+    default void setMaxConnections(String hostname, int port, boolean secureConnection, Integer maxConnections) {
+        // NOP
+    }
+
+
+    /**
+     * Define if the connection manager keeps the connections alive and reuse them. By default the connections are not kept alive.
+     *
+     * @return true if the connections are kept alive; otherwise false
+     */
+    default boolean isKeepAlive() {
+        return false;
+    }
+
+
     /**
      * Define the default socket connection timeout in milliseconds or null. A timeout of null or zero are interpreted as an infinite timeout. The connection will then block.
      *
@@ -47,4 +89,26 @@ public interface ICAPConnectionManager {
      * @param defaultSocketReadTimeout the default socket read timeout in milliseconds or null.
      */
     void setDefaultSocketReadTimeout(Integer defaultSocketReadTimeout);
+
+
+    /**
+     * Define if the TCP_NODELAY option is set on the connections (by default true). The requests are flushed only at the protocol boundaries,
+     * therefore Nagle's algorithm is not needed. By default the option is ignored.
+     *
+     * @param tcpNoDelay true to disable Nagle's algorithm
+     */
+    default void setTcpNoDelay(boolean tcpNoDelay) {
+        // NOP
+    }
+
+
+    /**
+     * Define the send buffer size (SO_SNDBUF) of the connections in bytes or null to use the default of the operating system. By default 
+     * the size is ignored.
+     *
+     * @param sendBufferSize the send buffer size in bytes or null
+     */
+    default void setSendBufferSize(Integer sendBufferSize) {
+        // NOP
+    }
 }
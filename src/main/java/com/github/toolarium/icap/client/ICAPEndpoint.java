@@ -0,0 +1,149 @@
+/*
+ * ICAPEndpoint.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client;
+
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Defines an ICAP endpoint handle. The icap url is parsed only once and the request lines and the host header are
+ * pre-encoded. The handle should be kept by the caller, the ICAP client is reachable without any parsing or lookup.
+ *
+ * @author patrick
+ */
+public final class ICAPEndpoint {
+    private static final long REFRESH_CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private final ICAPServiceInformation serviceInformation;
+    private final String serviceKey;
+    private final byte[][] requestLines;
+    private final byte[] optionsRequestLine;
+    private final byte[] hostHeader;
+    private volatile ICAPClient client;
+    private volatile long nextRefreshCheck;
+
+
+    /**
+     * Constructor for ICAPEndpoint
+     *
+     * @param serviceInformation the service information
+     */
+    public ICAPEndpoint(ICAPServiceInformation serviceInformation) {
+        this.serviceInformation = serviceInformation;
+        this.serviceKey = (serviceInformation.isSecureConnection() ? "icaps://" : "icap://") + serviceInformation.getHostName() + ":" + serviceInformation.getServicePort() + "/" + serviceInformation.getServiceName();
+
+        final String uri = " icap://" + serviceInformation.getHostName() + ":" + serviceInformation.getServicePort() + "/" + serviceInformation.getServiceName() + " ICAP/";
+        this.requestLines = new byte[ICAPMode.values().length][];
+        for (ICAPMode mode : ICAPMode.values()) {
+            requestLines[mode.ordinal()] = (mode.name() + uri).getBytes(StandardCharsets.UTF_8);
+        }
+        this.optionsRequestLine = ("OPTIONS" + uri).getBytes(StandardCharsets.UTF_8);
+        this.hostHeader = ("Host: " + serviceInformation.getHostName() + "\r\n").getBytes(StandardCharsets.UTF_8);
+        this.client = null;
+        this.nextRefreshCheck = 0;
+    }
+
+
+    /**
+     * Get the service information
+     *
+     * @return the service information
+     */
+    public ICAPServiceInformation getServiceInformation() {
+        return serviceInformation;
+    }
+
+
+    /**
+     * Get the service key, e.g. icap://localhost:1344/srv_clamav
+     *
+     * @return the service key
+     */
+    public String getServiceKey() {
+        return serviceKey;
+    }
+
+
+    /**
+     * Get the pre-encoded request line of a mode up to the ICAP version, e.g. <code>REQMOD icap://localhost:1344/srv_clamav ICAP/</code>.
+     * The returned array is shared and must not be modified.
+     *
+     * @param mode the mode
+     * @return the request line
+     */
+    public byte[] getRequestLine(ICAPMode mode) {
+        return requestLines[mode.ordinal()];
+    }
+
+
+    /**
+     * Get the pre-encoded request line of the OPTIONS request up to the ICAP version. The returned array is shared and must not be modified.
+     *
+     * @return the request line
+     */
+    public byte[] getOptionsRequestLine() {
+        return optionsRequestLine;
+    }
+
+
+    /**
+     * Get the pre-encoded host header including the line separator. The returned array is shared and must not be modified.
+     *
+     * @return the host header
+     */
+    public byte[] getHostHeader() {
+        return hostHeader;
+    }
+
+
+    /**
+     * Get the ICAP client. The options of the service are only checked once per second.
+     *
+     * @return the ICAP client
+     * @throws IOException In case of an I/O error
+     */
+    public ICAPClient getICAPClient() throws IOException {
+        ICAPClient currentClient = client;
+        if (currentClient != null && (System.nanoTime() - nextRefreshCheck) < 0) {
+            return currentClient;
+        }
+
+        return ICAPClientFactory.getInstance().getICAPClient(this);
+    }
+
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return serviceKey;
+    }
+
+
+    /**
+     * Get the current client
+     *
+     * @return the current client or null
+     */
+    ICAPClient getCurrentICAPClient() {
+        return client;
+    }
+
+
+    /**
+     * Set the client
+     *
+     * @param client the client or null to reset
+     */
+    void setICAPClient(ICAPClient client) {
+        this.nextRefreshCheck = System.nanoTime() + REFRESH_CHECK_INTERVAL;
+        this.client = client;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * ICAPBatchInformation.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.dto;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+
+/**
+ * Defines the limits of a batch validation. The limits apply per service: the concurrent batches of a service share their
+ * in-flight scans and bytes, each batch is started only within its own limits.
+ *
+ * @author patrick
+ */
+public class ICAPBatchInformation implements Serializable {
+    /** The default max number of concurrent scans */
+    public static final int DEFAULT_MAX_IN_FLIGHT_SCANS = 16;
+
+    /** The default max number of bytes of the concurrent scans */
+    public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 64L * 1024L * 1024L;
+
+    private static final long serialVersionUID = -2205581797406470218L;
+    private int maxInFlightScans;
+    private long maxInFlightBytes;
+    private boolean ordered;
+
+
+    /**
+     * Constructor for ICAPBatchInformation
+     */
+    public ICAPBatchInformation() {
+        this.maxInFlightScans = DEFAULT_MAX_IN_FLIGHT_SCANS;
+        this.maxInFlightBytes = DEFAULT_MAX_IN_FLIGHT_BYTES;
+        this.ordered = false;
+    }
+
+
+    /**
+     * Get the max number of concurrent scans
+     *
+     * @return the max number of concurrent scans
+     */
+    public int getMaxInFlightScans() {
+        return maxInFlightScans;
+    }
+
+
+    /**
+     * Set the max number of concurrent scans
+     *
+     * @param maxInFlightScans the max number of concurrent scans, at least 1
+     * @return the ICAPBatchInformation
+     */
+    public ICAPBatchInformation maxInFlightScans(int maxInFlightScans) {
+        this.maxInFlightScans = Math.max(1, maxInFlightScans);
+        return this;
+    }
+
+
+    /**
+     * Get the max number of bytes of the concurrent scans
+     *
+     * @return the max number of bytes
+     */
+    public long getMaxInFlightBytes() {
+        return maxInFlightBytes;
+    }
+
+
+    /**
+     * Set the max number of bytes of the concurrent scans. A resource which is larger than the limit is scanned alone,
+     * a resource with unknown length is not counted.
+     *
+     * @param maxInFlightBytes the max number of bytes, at least 1
+     * @return the ICAPBatchInformation
+     */
+    public ICAPBatchInformation maxInFlightBytes(long maxInFlightBytes) {
+        this.maxInFlightBytes = Math.max(1, maxInFlightBytes);
+        return this;
+    }
+
+
+    /**
+     * Check if the results are delivered in the order of the resources
+     *
+     * @return true if the results are delivered in the order of the resources; otherwise in the order of completion
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+
+    /**
+     * Define if the results are delivered in the order of the resources. An ordered batch keeps the completed results
+     * until the previous results are delivered.
+     *
+     * @param ordered true to deliver the results in the order of the resources; otherwise in the order of completion (default)
+     * @return the ICAPBatchInformation
+     */
+    public ICAPBatchInformation ordered(boolean ordered) {
+        this.ordered = ordered;
+        return this;
+    }
+
+
+    /**
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(maxInFlightBytes, maxInFlightScans, ordered);
+    }
+
+
+    /**
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+
+        ICAPBatchInformation other = (ICAPBatchInformation) obj;
+        return maxInFlightBytes == other.maxInFlightBytes && maxInFlightScans == other.maxInFlightScans && ordered == other.ordered;
+    }
+
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "ICAPBatchInformation [maxInFlightScans=" + maxInFlightScans + ", maxInFlightBytes=" + maxInFlightBytes + ", ordered=" + ordered + "]";
+    }
+}
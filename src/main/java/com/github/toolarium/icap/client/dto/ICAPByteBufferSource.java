@@ -0,0 +1,138 @@
+/*
+ * ICAPByteBufferSource.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.dto;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+
+/**
+ * Re-readable in-memory source of a heap byte array or an (off-heap) byte buffer. The content is not copied, it must not be 
+ * modified as long as the resource is validated.
+ *
+ * @author patrick
+ */
+public class ICAPByteBufferSource implements ICAPResourceSource {
+    private final ByteBuffer buffer;
+
+
+    /**
+     * Constructor for ICAPByteBufferSource
+     *
+     * @param content the content
+     */
+    public ICAPByteBufferSource(byte[] content) {
+        this(ByteBuffer.wrap(content));
+    }
+
+
+    /**
+     * Constructor for ICAPByteBufferSource
+     *
+     * @param content the content
+     * @param offset the offset
+     * @param length the length
+     */
+    public ICAPByteBufferSource(byte[] content, int offset, int length) {
+        this(ByteBuffer.wrap(content, offset, length));
+    }
+
+
+    /**
+     * Constructor for ICAPByteBufferSource, the content are the remaining bytes of the buffer. 
+     *
+     * @param content the content
+     */
+    public ICAPByteBufferSource(ByteBuffer content) {
+        if (content == null) {
+            throw new IllegalArgumentException("Invalid content!");
+        }
+
+        this.buffer = content.slice();
+    }
+
+
+    /**
+     * Get the content as new buffer which shares the content, the position and limit are independent of the source.
+     *
+     * @return the content
+     */
+    public ByteBuffer getBuffer() {
+        return buffer.duplicate();
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.dto.ICAPResourceSource#getLength()
+     */
+    @Override
+    public long getLength() {
+        return buffer.remaining();
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.dto.ICAPResourceSource#isRereadable()
+     */
+    @Override
+    public boolean isRereadable() {
+        return true;
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.dto.ICAPResourceSource#openChannel()
+     */
+    @Override
+    public ReadableByteChannel openChannel() {
+        final ByteBuffer content = getBuffer();
+        return new ReadableByteChannel() {
+            private boolean open = true;
+
+            /**
+             * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+             */
+            @Override
+            public int read(ByteBuffer dst) {
+                if (!content.hasRemaining()) {
+                    return -1;
+                }
+
+                int n = Math.min(dst.remaining(), content.remaining());
+                ByteBuffer part = content.duplicate();
+                part.limit(part.position() + n);
+                dst.put(part);
+                content.position(content.position() + n);
+                return n;
+            }
+
+            /**
+             * @see java.nio.channels.Channel#isOpen()
+             */
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            /**
+             * @see java.nio.channels.Channel#close()
+             */
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "ICAPByteBufferSource [length=" + buffer.remaining() + ", direct=" + buffer.isDirect() + "]";
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * ICAPChannelSource.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.dto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+
+
+/**
+ * Source of a channel which is owned by the caller, it's not closed by the client. A {@link SeekableByteChannel} is re-readable:
+ * the content starts at the position of the channel when the source is created and the channel is re-positioned on each read.
+ * Any other {@link ReadableByteChannel} can only be read once.
+ *
+ * @author patrick
+ */
+public class ICAPChannelSource implements ICAPResourceSource {
+    private final ReadableByteChannel channel;
+    private final long startPosition;
+    private final long length;
+    private volatile boolean opened;
+
+
+    /**
+     * Constructor for ICAPChannelSource, the content are the bytes from the current position to the end of the channel.
+     *
+     * @param channel the channel
+     * @throws IOException In case the position or size of the channel can not be read
+     */
+    public ICAPChannelSource(SeekableByteChannel channel) throws IOException {
+        this(channel, channel.position(), channel.size() - channel.position());
+    }
+
+
+    /**
+     * Constructor for ICAPChannelSource
+     *
+     * @param channel the channel
+     * @param length the number of bytes to read from the channel or {@link ICAPResource#UNKNOWN_LENGTH} to read until the end
+     * @throws IOException In case the position of the channel can not be read
+     */
+    public ICAPChannelSource(ReadableByteChannel channel, long length) throws IOException {
+        this(channel, (channel instanceof SeekableByteChannel) ? ((SeekableByteChannel)channel).position() : -1, length);
+    }
+
+
+    /**
+     * Constructor for ICAPChannelSource
+     *
+     * @param channel the channel
+     * @param startPosition the start position of a seekable channel or -1
+     * @param length the number of bytes to read from the channel
+     */
+    private ICAPChannelSource(ReadableByteChannel channel, long startPosition, long length) {
+        if (channel == null) {
+            throw new IllegalArgumentException("Invalid channel!");
+        }
+
+        this.channel = channel;
+        this.startPosition = startPosition;
+        this.length = length;
+        this.opened = false;
+    }
+
+
+    /**
+     * Get the channel.
+     *
+     * @return the channel
+     */
+    public ReadableByteChannel getChannel() {
+        return channel;
+    }
+
+
+    /**
+     * Get the start position of the content in a seekable channel.
+     *
+     * @return the start position or -1 if the channel is not seekable
+     */
+    public long getStartPosition() {
+        return startPosition;
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.dto.ICAPResourceSource#getLength()
+     */
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.dto.ICAPResourceSource#isRereadable()
+     */
+    @Override
+    public boolean isRereadable() {
+        return startPosition >= 0;
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.dto.ICAPResourceSource#openChannel()
+     */
+    @Override
+    public ReadableByteChannel openChannel() throws IOException {
+        if (isRereadable()) {
+            ((SeekableByteChannel)channel).position(startPosition);
+        } else if (opened) {
+            throw new IOException("The channel can only be read once!");
+        }
+        opened = true;
+
+        // the view limits the content to the length and doesn't close the channel of the caller
+        return new ReadableByteChannel() {
+            private long remaining = length;
+            private boolean open = true;
+
+            /**
+             * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+             */
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (!open) {
+                    throw new ClosedChannelException();
+                }
+                if (length < 0) {
+                    return channel.read(dst);
+                }
+                if (remaining <= 0) {
+                    return -1;
+                }
+
+                int limit = dst.limit();
+                if (dst.remaining() > remaining) {
+                    dst.limit(dst.position() + (int)remaining);
+                }
+
+                try {
+                    int n = channel.read(dst);
+                    if (n > 0) {
+                        remaining -= n;
+                    }
+                    return n;
+                } finally {
+                    dst.limit(limit);
+                }
+            }
+
+            /**
+             * @see java.nio.channels.Channel#isOpen()
+             */
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            /**
+             * @see java.nio.channels.Channel#close()
+             */
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "ICAPChannelSource [startPosition=" + startPosition + ", length=" + length + "]";
+    }
+}
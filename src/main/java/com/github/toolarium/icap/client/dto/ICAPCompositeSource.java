@@ -0,0 +1,159 @@
+/*
+ * ICAPCompositeSource.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.dto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Source of a sequence of segments, e.g. a multipart upload. The segments are sent one after the other without concatenation. 
+ * It's re-readable in case all segments are re-readable.
+ *
+ * @author patrick
+ */
+public class ICAPCompositeSource implements ICAPResourceSource {
+    private final List<ICAPResourceSource> segments;
+    private final long length;
+    private final boolean rereadable;
+
+
+    /**
+     * Constructor for ICAPCompositeSource
+     *
+     * @param segments the segments
+     */
+    public ICAPCompositeSource(ICAPResourceSource... segments) {
+        this(Arrays.asList(segments));
+    }
+
+
+    /**
+     * Constructor for ICAPCompositeSource
+     *
+     * @param segments the segments
+     */
+    public ICAPCompositeSource(List<? extends ICAPResourceSource> segments) {
+        if (segments == null || segments.contains(null)) {
+            throw new IllegalArgumentException("Invalid segments!");
+        }
+
+        this.segments = Collections.unmodifiableList(new ArrayList<ICAPResourceSource>(segments));
+        long totalLength = 0;
+        boolean allRereadable = true;
+        for (ICAPResourceSource segment : this.segments) {
+            if (totalLength >= 0) {
+                totalLength = (segment.getLength() < 0) ? ICAPResource.UNKNOWN_LENGTH : totalLength + segment.getLength();
+            }
+            allRereadable = allRereadable && segment.isRereadable();
+        }
+        this.length = totalLength;
+        this.rereadable = allRereadable;
+    }
+
+
+    /**
+     * Get the segments.
+     *
+     * @return the segments
+     */
+    public List<ICAPResourceSource> getSegments() {
+        return segments;
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.dto.ICAPResourceSource#getLength()
+     */
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.dto.ICAPResourceSource#isRereadable()
+     */
+    @Override
+    public boolean isRereadable() {
+        return rereadable;
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.dto.ICAPResourceSource#openChannel()
+     */
+    @Override
+    public ReadableByteChannel openChannel() {
+        return new ReadableByteChannel() {
+            private int index = 0;
+            private ReadableByteChannel current = null;
+            private boolean open = true;
+
+            /**
+             * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+             */
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (!open) {
+                    throw new ClosedChannelException();
+                }
+
+                while (true) {
+                    if (current == null) {
+                        if (index >= segments.size()) {
+                            return -1;
+                        }
+                        current = segments.get(index++).openChannel();
+                    }
+
+                    int n = current.read(dst);
+                    if (n >= 0) {
+                        return n;
+                    }
+
+                    current.close();
+                    current = null;
+                }
+            }
+
+            /**
+             * @see java.nio.channels.Channel#isOpen()
+             */
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            /**
+             * @see java.nio.channels.Channel#close()
+             */
+            @Override
+            public void close() throws IOException {
+                open = false;
+                if (current != null) {
+                    current.close();
+                    current = null;
+                }
+            }
+        };
+    }
+
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "ICAPCompositeSource [segments=" + segments + ", length=" + length + "]";
+    }
+}
@@ -23,6 +23,9 @@ public interface ICAPConstants {
     // ICAP header headers
     String HEADER_KEY_PREVIEW = "Preview";
     String HEADER_KEY_ALLOW = "Allow";
+    String HEADER_KEY_METHODS = "Methods";
+    String HEADER_KEY_MAX_CONNECTIONS = "Max-Connections";
+    String HEADER_KEY_OPTIONS_TTL = "Options-TTL";
     String HEADER_KEY_X_VIOLATIONS_FOUND = "X-Violations-Found";
     String HEADER_KEY_X_INFECTION_FOUND = "X-Infection-Found";    
     String HEADER_KEY_X_BLOCKED = "X-Blocked"; // used by Sophos
@@ -36,6 +39,8 @@ public interface ICAPConstants {
     String HEADER_KEY_X_REQUEST_MESSAGE_DIGEST = "X-Request-Message-Digest";    
     String HEADER_KEY_X_RESPONSE_MESSAGE_DIGEST = "X-Response-Message-Digest";
     String HEADER_KEY_X_IDENTICAL_CONTENT = "X-Resource-Identical-Content";
+    String HEADER_KEY_X_RESOURCE_LENGTH = "X-Resource-Length"; // the sent length of a resource with unknown length
+    String HEADER_KEY_X_KNOWN_HASH = "X-Known-Hash"; // the resource is answered by a known hash filter
     
 
     /*
@@ -0,0 +1,96 @@
+/*
+ * ICAPFileSource.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.dto;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Re-readable source of a file. It's transferred by its file channel.
+ *
+ * @author patrick
+ */
+public class ICAPFileSource implements ICAPResourceSource {
+    private final Path path;
+    private final long length;
+
+
+    /**
+     * Constructor for ICAPFileSource
+     *
+     * @param path the path of the file
+     * @throws IOException In case the size of the file can not be read
+     */
+    public ICAPFileSource(Path path) throws IOException {
+        this(path, Files.size(path));
+    }
+
+
+    /**
+     * Constructor for ICAPFileSource
+     *
+     * @param path the path of the file
+     * @param length the length of the file
+     */
+    public ICAPFileSource(Path path, long length) {
+        if (path == null) {
+            throw new IllegalArgumentException("Invalid path!");
+        }
+
+        this.path = path;
+        this.length = length;
+    }
+
+
+    /**
+     * Get the path of the file.
+     *
+     * @return the path
+     */
+    public Path getPath() {
+        return path;
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.dto.ICAPResourceSource#getLength()
+     */
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.dto.ICAPResourceSource#isRereadable()
+     */
+    @Override
+    public boolean isRereadable() {
+        return true;
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.dto.ICAPResourceSource#openChannel()
+     */
+    @Override
+    public FileChannel openChannel() throws IOException {
+        return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "ICAPFileSource [path=" + path + ", length=" + length + "]";
+    }
+}
@@ -41,6 +41,22 @@ public interface ICAPRemoteServiceConfiguration {
     ICAPMode[] getOptionMethods();
 
     
+    /**
+     * Get the max connections the server can handle (Max-Connections)
+     *
+     * @return the max connections or null if the server has no limitation
+     */
+    Integer getMaxConnections();
+
+    
+    /**
+     * Get the time in seconds how long the options are valid (Options-TTL)
+     *
+     * @return the time in seconds or null if the server don't define it
+     */
+    Integer getOptionsTTL();
+
+    
     /**
      * Get the timestamp of the request
      *
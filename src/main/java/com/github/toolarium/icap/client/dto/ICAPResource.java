@@ -6,10 +6,12 @@
 package com.github.toolarium.icap.client.dto;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
 import java.nio.file.Path;
 import java.util.Objects;
 
@@ -20,9 +22,12 @@ import java.util.Objects;
  * @author Patrick Meier
  */
 public class ICAPResource implements Serializable {
+    /** The resource length of a streamed resource with unknown length */
+    public static final long UNKNOWN_LENGTH = -1;
     private static final long serialVersionUID = -1034290022203558461L;
     private String resourceName;
     private InputStream resourceInputStream;
+    private transient ICAPResourceSource resourceSource;
     private long resourceLength;
 
     
@@ -45,8 +50,38 @@ public class ICAPResource implements Serializable {
         }
         
         setResourceName(file.getName());
-        setResourceBody(new FileInputStream(file));
         setResourceLength(file.length());
+        
+        // the file is transferred by its channel, the input stream is only opened on demand
+        this.resourceSource = new ICAPFileSource(resource, file.length());
+    }
+
+
+    /**
+     * Constructor for ICAPResource
+     *
+     * @param resourceName the name of the resource
+     * @param resourceSource the resource source
+     */
+    public ICAPResource(String resourceName, ICAPResourceSource resourceSource) {
+        if (resourceSource == null) {
+            throw new IllegalArgumentException("Invalid resource source!");
+        }
+
+        setResourceName(resourceName);
+        setResourceLength(resourceSource.getLength());
+        this.resourceSource = resourceSource;
+    }
+
+
+    /**
+     * Constructor for ICAPResource
+     *
+     * @param resourceName the name of the resource
+     * @param content the content
+     */
+    public ICAPResource(String resourceName, byte[] content) {
+        this(resourceName, new ICAPByteBufferSource(content));
     }
 
 
@@ -61,12 +96,24 @@ public class ICAPResource implements Serializable {
     }
 
 
+    /**
+     * Constructor for ICAPResource of a stream with unknown length, e.g. a live upload. The content is streamed as it arrives
+     * and the sent length is reported by the header {@link ICAPConstants#HEADER_KEY_X_RESOURCE_LENGTH}.
+     *
+     * @param resourceName the name of the resource
+     * @param resourceInputStream the resource input stream
+     */
+    public ICAPResource(String resourceName, InputStream resourceInputStream) {
+        this(resourceName, resourceInputStream, UNKNOWN_LENGTH);
+    }
+
+
     /**
      * Constructor for ICAPResource
      *
      * @param resourceName the name of the resource
      * @param resourceInputStream the resource input stream
-     * @param resourceLength  the resource length
+     * @param resourceLength  the resource length or {@link #UNKNOWN_LENGTH}
      */
     public ICAPResource(String resourceName, InputStream resourceInputStream, long resourceLength) {
         setResourceName(resourceName);
@@ -102,11 +149,19 @@ public class ICAPResource implements Serializable {
 
 
     /**
-     * Gets the resource input stream.
+     * Gets the resource input stream. In case of a resource source the stream is opened on the first access.
      *
      * @return the resource input stream
+     * @throws UncheckedIOException In case the resource source could not be opened
      */
     public InputStream getResourceBody() {
+        if (resourceInputStream == null && resourceSource != null) {
+            try {
+                resourceInputStream = Channels.newInputStream(resourceSource.openChannel());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
         return resourceInputStream;
     }
 
@@ -119,14 +174,38 @@ public class ICAPResource implements Serializable {
      */
     public ICAPResource setResourceBody(InputStream resourceInputStream) {
         this.resourceInputStream = resourceInputStream;
+        this.resourceSource = null;
         return this;
     }
 
 
+    /**
+     * Get the resource source. It's only set as long as the body is not replaced by {@link #setResourceBody(InputStream)}.
+     *
+     * @return the resource source or null if the resource is an input stream
+     */
+    public ICAPResourceSource getResourceSource() {
+        return resourceSource;
+    }
+
+
+    /**
+     * Get the path of a file resource. It's only set as long as the body is not replaced by {@link #setResourceBody(InputStream)}.
+     *
+     * @return the path or null if the resource is not a file
+     */
+    public Path getResourcePath() {
+        if (resourceSource instanceof ICAPFileSource) {
+            return ((ICAPFileSource)resourceSource).getPath();
+        }
+        return null;
+    }
+
+
     /**
      * Get the resource length.
      *
-     * @return the resource length
+     * @return the resource length or {@link #UNKNOWN_LENGTH}
      */
     public long getResourceLength() {
         return resourceLength;
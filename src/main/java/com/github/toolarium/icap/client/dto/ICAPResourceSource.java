@@ -0,0 +1,45 @@
+/*
+ * ICAPResourceSource.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.dto;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+
+/**
+ * Defines the source of the content of an {@link ICAPResource}. The client writes the well-known sources directly to the socket 
+ * ({@link ICAPByteBufferSource}, {@link ICAPFileSource}, {@link ICAPCompositeSource}), any other source is read by its channel.
+ *
+ * @author patrick
+ */
+public interface ICAPResourceSource {
+
+    /**
+     * Get the length of the content.
+     *
+     * @return the length in bytes or {@link ICAPResource#UNKNOWN_LENGTH} in case it's only known at the end of the content
+     */
+    long getLength();
+
+
+    /**
+     * Check if the content can be read more than once. The content of a re-readable source is read again, e.g. to calculate the 
+     * message digest only in case it's needed, instead of buffering or digesting it while it's sent.
+     *
+     * @return true if the content can be read more than once
+     */
+    boolean isRereadable();
+
+
+    /**
+     * Open a channel which reads the content from the beginning. The channel is closed by the caller. A source which is not 
+     * re-readable can only be opened once.
+     *
+     * @return the channel
+     * @throws IOException In case the channel can not be opened
+     */
+    ReadableByteChannel openChannel() throws IOException;
+}
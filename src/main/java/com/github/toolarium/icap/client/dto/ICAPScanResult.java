@@ -0,0 +1,115 @@
+/*
+ * ICAPScanResult.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.dto;
+
+import com.github.toolarium.icap.client.exception.ContentBlockedException;
+import java.io.Serializable;
+
+
+/**
+ * Defines the outcome of the validation of one resource of a batch. A failed or blocked resource doesn't fail the batch,
+ * the cause is kept in the result.
+ *
+ * @author patrick
+ */
+public class ICAPScanResult implements Serializable {
+    private static final long serialVersionUID = 4318762236450176553L;
+    private final long index;
+    private final ICAPResource resource;
+    private final ICAPHeaderInformation headerInformation;
+    private final Throwable error;
+
+
+    /**
+     * Constructor for ICAPScanResult
+     *
+     * @param index the index of the resource in the batch
+     * @param resource the resource
+     * @param headerInformation the ICAP header information or null in case of an error
+     * @param error the error or null
+     */
+    public ICAPScanResult(long index, ICAPResource resource, ICAPHeaderInformation headerInformation, Throwable error) {
+        this.index = index;
+        this.resource = resource;
+        this.error = error;
+
+        if (headerInformation == null && error instanceof ContentBlockedException) {
+            this.headerInformation = ((ContentBlockedException)error).getICAPHeaderInformation();
+        } else {
+            this.headerInformation = headerInformation;
+        }
+    }
+
+
+    /**
+     * Get the index of the resource in the batch, it starts with 0
+     *
+     * @return the index
+     */
+    public long getIndex() {
+        return index;
+    }
+
+
+    /**
+     * Get the resource
+     *
+     * @return the resource
+     */
+    public ICAPResource getResource() {
+        return resource;
+    }
+
+
+    /**
+     * Get the ICAP header information. In case the content is blocked it's the header information of the blocking response.
+     *
+     * @return the ICAP header information or null
+     */
+    public ICAPHeaderInformation getHeaderInformation() {
+        return headerInformation;
+    }
+
+
+    /**
+     * Get the error, e.g. an IOException or a {@link ContentBlockedException}
+     *
+     * @return the error or null
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+
+    /**
+     * Check if the resource is valid
+     *
+     * @return true if the resource is valid
+     */
+    public boolean isValid() {
+        return error == null;
+    }
+
+
+    /**
+     * Check if the content of the resource is blocked
+     *
+     * @return true if the content is blocked
+     */
+    public boolean isContentBlocked() {
+        return error instanceof ContentBlockedException;
+    }
+
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "ICAPScanResult [index=" + index + ", resource=" + resource + ", valid=" + isValid() + ", contentBlocked=" + isContentBlocked()
+                + ", error=" + ((error != null) ? error.getMessage() : null) + "]";
+    }
+}
@@ -5,16 +5,14 @@
  */
 package com.github.toolarium.icap.client.impl;
 
-import com.github.toolarium.icap.client.dto.ICAPConstants;
+import com.github.toolarium.icap.client.impl.parser.ICAPHeaderMap;
 import com.github.toolarium.icap.client.impl.parser.ICAPParser;
 import com.github.toolarium.icap.client.util.HexDump;
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PushbackInputStream;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import org.slf4j.Logger;
@@ -22,26 +20,48 @@ import org.slf4j.LoggerFactory;
 
 
 /**
- * Implements a chunk input stram
- *  
+ * Implements the input stream of an ICAP response: it reads the ICAP header and decodes the chunked encapsulated body.
+ * The decoder is a byte-level state machine over a pooled buffer, the encapsulated HTTP headers are skipped by the
+ * offset of the Encapsulated header. Chunk extensions (e.g. <code>ieof</code>) and trailers are consumed. The stream
+ * is not thread-safe.
+ *
  * @author patrick
  */
-public class ChunkedInputStream extends BufferedInputStream {
+public class ChunkedInputStream extends InputStream {
     private static final Logger LOG = LoggerFactory.getLogger(ChunkedInputStream.class);
-    private static final Charset StandardCharsetsUTF8 = Charset.forName("UTF-8");
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
     private static final byte CR = '\r';
     private static final byte LF = '\n';
-    private static final String NEWLINE = "" + (char)CR + (char)LF;
+    private static final int STATE_NONE = 0;
+    private static final int STATE_CHUNK_SIZE = 1;
+    private static final int STATE_CHUNK_EXTENSION = 2;
+    private static final int STATE_CHUNK_SIZE_LF = 3;
+    private static final int STATE_CHUNK_DATA = 4;
+    private static final int STATE_CHUNK_DATA_CR = 5;
+    private static final int STATE_CHUNK_DATA_LF = 6;
+    private static final int STATE_TRAILER = 7;
+    private static final int STATE_TRAILER_LINE = 8;
+    private static final int STATE_TRAILER_LF = 9;
+    private static final int STATE_END = 10;
+    private static final int STATE_ERROR = 11;
 
-    private String requestIdentifier;
-    private int currentChunkPos;
-    private int currentChunkSize;
-    private boolean ended;
-    private Map<String, List<String>> headers;
+    private final String requestIdentifier;
+    private final InputStream in;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+    private byte[] lineBuffer;
+    private byte[] line;
+    private int lineStart;
+    private int lineEnd;
+    private int state;
     private long chunkSize;
-    private long maxChunkSize;
+    private int chunkSizeDigits;
+    private long chunkRemaining;
+    private long bodyLength;
+    private Map<String, List<String>> headers;
+
 
-    
     /**
      * Constructor for ChunkedInputStream
      *
@@ -50,122 +70,116 @@ public class ChunkedInputStream extends BufferedInputStream {
      * @throws IOException In case of a stream error.
      */
     public ChunkedInputStream(final String requestIdentifier, final InputStream is) throws IOException {
-        super(is);
         if (is == null) {
             throw new IOException("Invalid stream!");
         }
-        
+
         this.requestIdentifier = requestIdentifier;
-        currentChunkPos = 0;
-        currentChunkSize = 0;
-        chunkSize = 0;
-        maxChunkSize = -1;
-        ended = false;
+        this.in = is;
+        this.buffer = ICAPBufferPool.getInstance().acquire();
+        this.position = 0;
+        this.limit = 0;
+        this.lineBuffer = null;
+        this.state = STATE_NONE;
+        this.headers = null;
     }
-    
+
 
     /**
      * @see java.io.InputStream#read()
      */
     @Override
     public int read() throws IOException {
-        if (ended) {
-            return -1;
-        }
-  
-        if (currentChunkPos >= currentChunkSize) {
-            nextChunk();
-        }
+        byte[] b = new byte[1];
+        int readBytes;
+        do {
+            readBytes = read(b, 0, 1);
+        } while (readBytes == 0);
 
-        try {
-            return super.read();
-        } finally {
-            currentChunkPos++;
-            chunkSize++;
+        if (readBytes < 0) {
+            return -1;
         }
+        return b[0] & 0xFF;
     }
 
-    
-    /**
-     * @see java.io.InputStream#read(byte[])
-     */
-    @Override
-    public int read(byte[] b) throws IOException {
-        return read(b, 0, b.length);
-    }
-    
 
     /**
      * @see java.io.InputStream#read(byte[], int, int)
      */
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        if (ended) {
-            return -1;
+        if (len == 0) {
+            return 0;
         }
 
-        if (currentChunkPos >= currentChunkSize) {
-            nextChunk();
-        }
+        try {
+            while (state != STATE_CHUNK_DATA) {
+                if (state == STATE_NONE || state == STATE_END) {
+                    return -1;
+                }
 
-        int sizeToRead = Math.min(len, currentChunkSize - currentChunkPos);
-        if (maxChunkSize > 0 && (sizeToRead + chunkSize) > maxChunkSize) {
-            sizeToRead = Long.valueOf(maxChunkSize - chunkSize).intValue();
-            ended = true;
-        } else {
-            
-            if (headers != null 
-                    && headers.containsKey(ICAPConstants.HEADER_KEY_TRANSFER_ENCODING)
-                    && !headers.get(ICAPConstants.HEADER_KEY_TRANSFER_ENCODING).isEmpty()
-                    && headers.get(ICAPConstants.HEADER_KEY_TRANSFER_ENCODING).get(0).equalsIgnoreCase("chunked")
-                    && headers.containsKey(ICAPConstants.HEADER_KEY_CONTENT_LENGTH)
-                    && !headers.get(ICAPConstants.HEADER_KEY_CONTENT_LENGTH).isEmpty()
-                    && !headers.get(ICAPConstants.HEADER_KEY_CONTENT_LENGTH).get(0).isBlank()) {
-                // NOP
-            } else {                
-                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                readLine(buffer);
-                sizeToRead = len;
-                String size = buffer.toString(StandardCharsetsUTF8);
-                if (!size.isBlank()) {
-                    try {
-                        sizeToRead = Integer.parseInt(size, 16);
-                    } catch (NumberFormatException e) {
-                        throw new IOException("Invalid size [" + size + "]:" + e.getMessage());
-                    }
+                readFraming();
+            }
+
+            int readBytes;
+            int available = limit - position;
+            if (available > 0) {
+                readBytes = (int)Math.min(Math.min(len, available), chunkRemaining);
+                System.arraycopy(buffer, position, b, off, readBytes);
+                position += readBytes;
+            } else if (len >= getBuffer().length) {
+                // large reads bypass the buffer
+                readBytes = in.read(b, off, (int)Math.min(len, chunkRemaining));
+                if (readBytes < 0) {
+                    throw new EOFException("Unexpected end of chunked content!");
                 }
+            } else {
+                fill();
+                readBytes = (int)Math.min(Math.min(len, limit - position), chunkRemaining);
+                System.arraycopy(buffer, position, b, off, readBytes);
+                position += readBytes;
             }
-        }
-        
-        int readBytes = 0;
-        try {
-            readBytes = super.read(b, off, sizeToRead);
-            
-            if (LOG.isDebugEnabled()) {
-                LOG.debug(requestIdentifier + "Raw data\n" + HexDump.getInstance().hexDump(new String(b, off, sizeToRead)));
+
+            chunkRemaining -= readBytes;
+            bodyLength += readBytes;
+            if (chunkRemaining == 0) {
+                state = STATE_CHUNK_DATA_CR;
             }
-            
-            if (maxChunkSize <= 0) {
-                super.read(new byte[3], 0, 3); // read 0\r\n
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(requestIdentifier + "Raw data\n" + HexDump.getInstance().hexDump(new String(b, off, readBytes, StandardCharsets.UTF_8)));
             }
-            
             return readBytes;
-        } finally {
-            currentChunkPos += readBytes;
-            chunkSize += readBytes;
+        } catch (IOException e) {
+            state = STATE_ERROR;
+            throw e;
         }
     }
 
-    
+
     /**
      * @see java.io.InputStream#close()
      */
     @Override
     public void close() throws IOException {
-        super.close();
+        release();
+        in.close();
     }
-    
-    
+
+
+    /**
+     * Release the buffer, the underlying stream is not closed. The stream must not be used anymore after the release.
+     */
+    public void release() {
+        ICAPBufferPool.getInstance().release(buffer);
+        buffer = null;
+        lineBuffer = null;
+        line = null;
+        position = 0;
+        limit = 0;
+    }
+
+
     /**
      * Get the headers
      *
@@ -174,165 +188,405 @@ public class ChunkedInputStream extends BufferedInputStream {
     public Map<String, List<String>> getHeaders() {
         return headers;
     }
-    
-    
+
+
     /**
      * Read the header
-     * 
+     *
      * @return the header
      * @throws IOException If an IO error occurs.
      */
     public Map<String, List<String>> readHeader() throws IOException {
-        List<String> headerLines = new ArrayList<>();
-        String orgHeader = "";
-        String line = null;
-        do {
-            line = readLine(new ByteArrayOutputStream());
-            if (line != null && line.length() > 0) {
-                headerLines.add(line);
-                orgHeader += line + NEWLINE;
-            }
-        } while (line != null && line.length() > 0);
-            
-        if (line == null) {
-            ended = true;
-        }
+        state = STATE_NONE;
 
-        headers = ICAPParser.getInstance().parseHeader(headerLines);       
-        if (headers.containsKey(ICAPConstants.HEADER_KEY_CONTENT_LENGTH) && !headers.get(ICAPConstants.HEADER_KEY_CONTENT_LENGTH).isEmpty()) {
-            try {
-                maxChunkSize = Long.valueOf(headers.get(ICAPConstants.HEADER_KEY_CONTENT_LENGTH).get(0));
-            } catch (NumberFormatException e) {
-                // NOP
+        ICAPHeaderMap header = new ICAPHeaderMap();
+        StringBuilder orgHeader = LOG.isDebugEnabled() ? new StringBuilder() : null;
+        while (readLine() && lineEnd > lineStart) {
+            ICAPParser.getInstance().parseHeaderLine(header, line, lineStart, lineEnd);
+            if (orgHeader != null) {
+                orgHeader.append(new String(line, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8)).append("\r\n");
             }
         }
-        
-        if (LOG.isDebugEnabled()) {
+
+        headers = header;
+        if (orgHeader != null) {
             LOG.debug(requestIdentifier + "HTTP headers:\n" + orgHeader);
         }
-        
+
         return headers;
     }
 
-    
+
     /**
-     * Read the next chunk.
-     * 
-     * @return the chunk size
+     * Start the encapsulated message of the last read header: the encapsulated HTTP headers are skipped by their length and
+     * the following reads return the decoded body.
+     *
+     * @param offset the offset of the body, respectively of the null-body in the encapsulated part
+     * @param hasBody true if a chunked body follows the encapsulated HTTP headers
      * @throws IOException If an IO error occurs.
      */
-    protected int nextChunk() throws IOException {
-        if (headers != null && currentChunkSize == 1) {
-            return currentChunkPos; // skip
+    public void startEncapsulatedMessage(int offset, boolean hasBody) throws IOException {
+        try {
+            long skipped = 0;
+            while (skipped < offset) {
+                if (position >= limit) {
+                    fill();
+                }
+
+                int n = (int)Math.min(limit - position, offset - skipped);
+                position += n;
+                skipped += n;
+            }
+        } catch (IOException e) {
+            state = STATE_ERROR;
+            throw e;
         }
 
-        currentChunkPos = 0;
-        currentChunkSize = 0;
+        bodyLength = 0;
+        if (hasBody) {
+            startChunk();
+        } else {
+            state = STATE_END;
+        }
+    }
 
-        // skip trailing newlines
-        ByteArrayOutputStream  buffer = new ByteArrayOutputStream();
 
-        int b = readNewline();
-        if (b != LF && b != CR) {
-            buffer.write(b);
-        }
-        
-        // read first line
-        String line = readLine(buffer);
-        if (line == null || line.length() <= 0) {
-            return -1;
+    /**
+     * Check if the encapsulated message was read completely including the trailer
+     *
+     * @return true if the end of the message was reached
+     */
+    public boolean isMessageComplete() {
+        return state == STATE_END;
+    }
+
+
+    /**
+     * Check if there are read bytes in the buffer which are not consumed
+     *
+     * @return true if there are pending bytes
+     */
+    public boolean hasPendingInput() {
+        return position < limit;
+    }
+
+
+    /**
+     * Get the number of decoded body bytes of the current message
+     *
+     * @return the number of decoded body bytes
+     */
+    public long getBodyLength() {
+        return bodyLength;
+    }
+
+
+    /**
+     * Drain the rest of the encapsulated message without interpreting it, so the connection can be reused.
+     *
+     * @param maxSize the max number of body bytes to drain
+     * @return true if the end of the message was reached; otherwise false
+     * @throws IOException If an IO error occurs.
+     */
+    public boolean drain(int maxSize) throws IOException {
+        long drainedBytes = 0;
+        try {
+            while (state != STATE_END) {
+                if (state == STATE_NONE || state == STATE_ERROR) {
+                    return false;
+                }
+
+                if (state != STATE_CHUNK_DATA) {
+                    readFraming();
+                    continue;
+                }
+
+                drainedBytes += chunkRemaining;
+                if (drainedBytes > maxSize) {
+                    return false;
+                }
+
+                while (chunkRemaining > 0) {
+                    if (position >= limit) {
+                        fill();
+                    }
+
+                    int n = (int)Math.min(limit - position, chunkRemaining);
+                    position += n;
+                    chunkRemaining -= n;
+                }
+                state = STATE_CHUNK_DATA_CR;
+            }
+        } catch (IOException e) {
+            state = STATE_ERROR;
+            throw e;
         }
 
-        if (line.toString().startsWith("HTTP")) {
-            readHeader();
-            if (headers == null || !headers.containsKey(ICAPConstants.HEADER_KEY_TRANSFER_ENCODING)
-                    || headers.get(ICAPConstants.HEADER_KEY_TRANSFER_ENCODING).isEmpty()
-                    || !headers.get(ICAPConstants.HEADER_KEY_TRANSFER_ENCODING).get(0).equalsIgnoreCase("chunked")) {
-                currentChunkSize = 1; // ignore not a chunked content
-                return currentChunkSize;
+        return true;
+    }
+
+
+    /**
+     * Consume the framing bytes until the next chunk data or the end of the message.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    private void readFraming() throws IOException {
+        while (state != STATE_CHUNK_DATA && state != STATE_END) {
+            if (position >= limit) {
+                fill();
             }
-            
-            line = readLine(new ByteArrayOutputStream());
-            if (line != null && line.length() == 0) {
-                line = readLine(new ByteArrayOutputStream());
+
+            final byte c = buffer[position++];
+            switch (state) {
+                case STATE_CHUNK_SIZE:
+                    int digit = Character.digit(c, 16);
+                    if (digit >= 0) {
+                        if (chunkSizeDigits >= 15) {
+                            throw new IOException("Bad chunk header: the chunk size is too large!");
+                        }
+                        chunkSize = (chunkSize << 4) | digit;
+                        chunkSizeDigits++;
+                    } else if (c == ' ' || c == '\t') {
+                        if (chunkSizeDigits > 0) {
+                            state = STATE_CHUNK_EXTENSION;
+                        }
+                    } else if (c == ';') {
+                        checkChunkSize();
+                        state = STATE_CHUNK_EXTENSION;
+                    } else if (c == CR) {
+                        checkChunkSize();
+                        state = STATE_CHUNK_SIZE_LF;
+                    } else if (c == LF) {
+                        checkChunkSize();
+                        endOfChunkSize();
+                    } else {
+                        throw new IOException("Bad chunk header: invalid character [0x" + Integer.toHexString(c & 0xFF) + "]!");
+                    }
+                    break;
+                case STATE_CHUNK_EXTENSION:
+                    // extensions like ieof are ignored
+                    if (c == CR) {
+                        state = STATE_CHUNK_SIZE_LF;
+                    } else if (c == LF) {
+                        endOfChunkSize();
+                    }
+                    break;
+                case STATE_CHUNK_SIZE_LF:
+                    expect(c, LF);
+                    endOfChunkSize();
+                    break;
+                case STATE_CHUNK_DATA_CR:
+                    if (c == CR) {
+                        state = STATE_CHUNK_DATA_LF;
+                    } else {
+                        expect(c, LF);
+                        startChunk();
+                    }
+                    break;
+                case STATE_CHUNK_DATA_LF:
+                    expect(c, LF);
+                    startChunk();
+                    break;
+                case STATE_TRAILER:
+                    if (c == CR) {
+                        state = STATE_TRAILER_LF;
+                    } else if (c == LF) {
+                        state = STATE_END;
+                    } else {
+                        state = STATE_TRAILER_LINE;
+                    }
+                    break;
+                case STATE_TRAILER_LINE:
+                    if (c == LF) {
+                        state = STATE_TRAILER;
+                    }
+                    break;
+                case STATE_TRAILER_LF:
+                    expect(c, LF);
+                    state = STATE_END;
+                    break;
+                default:
+                    throw new IOException("Invalid state of the chunked content!");
             }
         }
+    }
 
-        if (line.toString().startsWith("GET") || line.toString().startsWith("POST")) {
-            readHeader();
-            readHeader();
-            line = readLine(new ByteArrayOutputStream());
+
+    /**
+     * Start to read the next chunk size
+     */
+    private void startChunk() {
+        chunkSize = 0;
+        chunkSizeDigits = 0;
+        chunkRemaining = 0;
+        state = STATE_CHUNK_SIZE;
+    }
+
+
+    /**
+     * The chunk size line is read
+     */
+    private void endOfChunkSize() {
+        if (chunkSize == 0) {
+            state = STATE_TRAILER;
+        } else {
+            chunkRemaining = chunkSize;
+            state = STATE_CHUNK_DATA;
         }
+    }
 
-        if (line.endsWith(";")) {
-            line = line.substring(0, line.length() - 1);
+
+    /**
+     * Verify the chunk size contains at least one digit
+     *
+     * @throws IOException In case of an empty chunk size
+     */
+    private void checkChunkSize() throws IOException {
+        if (chunkSizeDigits == 0) {
+            throw new IOException("Bad chunk header: missing chunk size!");
         }
-        
-        try {
-            currentChunkSize = Integer.parseInt(line.trim(), 16);
-            return currentChunkSize;
-        } catch (NumberFormatException e) {
-            throw new IOException("Bad chunk header [" + line + "]:" + e.getMessage());
+    }
+
+
+    /**
+     * Verify an expected byte
+     *
+     * @param c the byte
+     * @param expected the expected byte
+     * @throws IOException In case of an unexpected byte
+     */
+    private void expect(byte c, byte expected) throws IOException {
+        if (c != expected) {
+            throw new IOException("Bad chunked content: expected [0x" + Integer.toHexString(expected) + "] but found [0x" + Integer.toHexString(c & 0xFF) + "]!");
         }
     }
-    
-    
+
+
     /**
-     * Read next newline
+     * Read the next line, the line separator is LF or CRLF. The line is afterwards referenced by line, lineStart and lineEnd 
+     * without the line separator.
      *
-     * @return true if a newline was read
+     * @return false in case the stream has ended
      * @throws IOException In case of an I/O error
      */
-    private int readNewline() throws IOException {
-        int b = super.read();
-        if (b < 0) {
-            return b;
-        }
+    private boolean readLine() throws IOException {
+        int lineLength = 0;
+        while (true) {
+            if (position >= limit && !fillBuffer()) {
+                return false;
+            }
 
-        if (b == LF) {
-            return b;
-        } 
+            int start = position;
+            int end = start;
+            while (end < limit && buffer[end] != LF) {
+                end++;
+            }
 
-        if (b == CR) {
-            b = super.read();
-            
-            if (b != LF) {
-                return b;
-            } else {
-                return b;
+            if (end < limit) {
+                position = end + 1;
+                if (lineLength == 0) {
+                    setLine(buffer, start, end);
+                } else {
+                    lineBuffer = appendLine(lineBuffer, lineLength, buffer, start, end - start);
+                    setLine(lineBuffer, 0, lineLength + end - start);
+                }
+                return true;
             }
+
+            lineBuffer = appendLine(lineBuffer, lineLength, buffer, start, end - start);
+            lineLength += end - start;
+            position = limit;
         }
-        
-        return b;
     }
-    
-    
+
+
     /**
-     * Read the next line
+     * Append a part of a line
      *
-     * @param buffer the buffer
-     * @return null in case the stream has ended otherwise the read line. In case there was only \r\n it will return an empty string.
-     * @throws IOException In case of an I/O error
+     * @param lineBytes the line buffer or null
+     * @param lineLength the current line length
+     * @param b the bytes
+     * @param offset the offset
+     * @param length the length
+     * @return the line buffer
+     * @throws IOException In case the line is too long
      */
-    private String readLine(ByteArrayOutputStream buffer) throws IOException {
-        int b;
-        while (((b = super.read()) != -1) &&  b != CR) {
-            buffer.write(b);
+    private byte[] appendLine(byte[] lineBytes, int lineLength, byte[] b, int offset, int length) throws IOException {
+        if (lineLength + length > MAX_LINE_LENGTH) {
+            throw new IOException("Header line exceeds " + MAX_LINE_LENGTH + " bytes!");
         }
 
-        if (b == CR) {
-            b = super.read();
-            if (b != LF) {
-                ((PushbackInputStream)in).unread(1);
-            }
-        } else {
-            return null;
+        byte[] result = lineBytes;
+        if (result == null) {
+            result = new byte[Math.max(256, length)];
+        } else if (lineLength + length > result.length) {
+            result = Arrays.copyOf(result, Math.max(result.length * 2, lineLength + length));
+        }
+
+        System.arraycopy(b, offset, result, lineLength, length);
+        return result;
+    }
+
+
+    /**
+     * Set the current line without the line separator
+     *
+     * @param b the bytes
+     * @param start the start
+     * @param end the end, excluding the LF
+     */
+    private void setLine(byte[] b, int start, int end) {
+        line = b;
+        lineStart = start;
+        lineEnd = end;
+        if (lineEnd > lineStart && b[lineEnd - 1] == CR) {
+            lineEnd--;
+        }
+    }
+
+
+    /**
+     * Fill the buffer, the end of the stream is not expected
+     *
+     * @throws IOException In case of an I/O error or if the stream has ended
+     */
+    private void fill() throws IOException {
+        if (!fillBuffer()) {
+            throw new EOFException("Unexpected end of chunked content!");
         }
-        
-        if (buffer.size() == 0) {
-            return "";
+    }
+
+
+    /**
+     * Fill the buffer
+     *
+     * @return false if the stream has ended
+     * @throws IOException In case of an I/O error
+     */
+    private boolean fillBuffer() throws IOException {
+        byte[] b = getBuffer();
+        int readBytes;
+        do {
+            readBytes = in.read(b, 0, b.length);
+        } while (readBytes == 0);
+
+        position = 0;
+        limit = Math.max(0, readBytes);
+        return readBytes > 0;
+    }
+
+
+    /**
+     * Get the buffer
+     *
+     * @return the buffer
+     * @throws IOException In case the stream is released
+     */
+    private byte[] getBuffer() throws IOException {
+        if (buffer == null) {
+            throw new IOException("Stream closed");
         }
-        
-        return new String(buffer.toByteArray(), 0, buffer.size(), StandardCharsetsUTF8);
+        return buffer;
     }
 }
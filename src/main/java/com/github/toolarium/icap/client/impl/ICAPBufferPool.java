@@ -0,0 +1,117 @@
+/*
+ * ICAPBufferPool.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Pool of byte buffers with a fixed size, e.g. used as write buffer of the {@link ICAPSocket}.
+ *
+ * @author patrick
+ */
+public final class ICAPBufferPool {
+    /** The default buffer size */
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    /** The default max number of pooled buffers */
+    public static final int DEFAULT_MAX_POOLED_BUFFERS = 64;
+
+    private final int bufferSize;
+    private final int maxPooledBuffers;
+    private final ConcurrentLinkedQueue<byte[]> buffers;
+    private final AtomicInteger pooledBuffers;
+
+
+    /**
+     * Private class, the only instance of the singelton which will be created by accessing the holder class.
+     *
+     * @author patrick
+     */
+    private static class HOLDER {
+        static final ICAPBufferPool INSTANCE = new ICAPBufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED_BUFFERS);
+    }
+
+
+    /**
+     * Constructor for ICAPBufferPool
+     *
+     * @param bufferSize the buffer size
+     * @param maxPooledBuffers the max number of pooled buffers
+     */
+    public ICAPBufferPool(int bufferSize, int maxPooledBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+        this.buffers = new ConcurrentLinkedQueue<byte[]>();
+        this.pooledBuffers = new AtomicInteger();
+    }
+
+
+    /**
+     * Get the shared instance
+     *
+     * @return the instance
+     */
+    public static ICAPBufferPool getInstance() {
+        return HOLDER.INSTANCE;
+    }
+
+
+    /**
+     * Get the buffer size
+     *
+     * @return the buffer size
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+
+    /**
+     * Get the number of pooled buffers
+     *
+     * @return the number of pooled buffers
+     */
+    public int getPooledBuffers() {
+        return pooledBuffers.get();
+    }
+
+
+    /**
+     * Acquire a buffer, a new buffer is created in case the pool is empty
+     *
+     * @return the buffer
+     */
+    public byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        if (buffer == null) {
+            return new byte[bufferSize];
+        }
+
+        pooledBuffers.decrementAndGet();
+        return buffer;
+    }
+
+
+    /**
+     * Release a buffer, it must not be used anymore after the release
+     *
+     * @param buffer the buffer
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize) {
+            return;
+        }
+
+        if (pooledBuffers.incrementAndGet() > maxPooledBuffers) {
+            pooledBuffers.decrementAndGet();
+            return;
+        }
+
+        buffers.offer(buffer);
+    }
+}
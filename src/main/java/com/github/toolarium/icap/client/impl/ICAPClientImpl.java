@@ -7,30 +7,54 @@ package com.github.toolarium.icap.client.impl;
 
 import com.github.toolarium.icap.client.ICAPClient;
 import com.github.toolarium.icap.client.ICAPConnectionManager;
+import com.github.toolarium.icap.client.ICAPEndpoint;
+import com.github.toolarium.icap.client.dto.ICAPBatchInformation;
+import com.github.toolarium.icap.client.dto.ICAPByteBufferSource;
+import com.github.toolarium.icap.client.dto.ICAPChannelSource;
+import com.github.toolarium.icap.client.dto.ICAPCompositeSource;
 import com.github.toolarium.icap.client.dto.ICAPConstants;
+import com.github.toolarium.icap.client.dto.ICAPFileSource;
 import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
 import com.github.toolarium.icap.client.dto.ICAPMode;
 import com.github.toolarium.icap.client.dto.ICAPRemoteServiceConfiguration;
 import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
 import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPResourceSource;
+import com.github.toolarium.icap.client.dto.ICAPScanResult;
 import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
 import com.github.toolarium.icap.client.exception.ContentBlockedException;
 import com.github.toolarium.icap.client.impl.dto.ICAPRemoteServiceConfigurationImpl;
+import com.github.toolarium.icap.client.impl.parser.ICAPHeaderMap;
+import com.github.toolarium.icap.client.util.ICAPAsyncExecutor;
 import com.github.toolarium.icap.client.util.ICAPClientUtil;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
+import com.github.toolarium.icap.client.util.ICAPFingerprint;
+import com.github.toolarium.icap.client.util.ICAPScanPublisher;
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.URLEncoder;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.security.DigestInputStream;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.time.Instant;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,13 +69,33 @@ public class ICAPClientImpl implements ICAPClient {
     private static final String NEWLINE = "\r\n";
     private static final String ICAP_END_SEPARATOR = NEWLINE + NEWLINE;
     private static final String HTTP_END_SEPARATOR = "0" + ICAP_END_SEPARATOR;
+    private static final byte[] NEWLINE_BYTES = NEWLINE.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_END_SEPARATOR_BYTES = HTTP_END_SEPARATOR.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IEOF_END_SEPARATOR_BYTES = ("0; ieof" + ICAP_END_SEPARATOR).getBytes(StandardCharsets.US_ASCII);
 
-    private ICAPConnectionManager connectionManager;
-    private ICAPServiceInformation serviceInformation;
-    private ICAPRemoteServiceConfiguration remoteServiceConfiguration;
-    private int bufferSize = 8192;
-    private String messageDigestAlgorithm = "SHA-256";
-    private boolean supportCompareVerifyIdenticalContent;
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final String DEFAULT_MESSAGE_DIGEST_ALGORITHM = "SHA-256";
+    private static final ICAPFingerprint DEFAULT_FINGERPRINT = createDefaultFingerprint();
+    private static final int MAX_REQUEST_TEMPLATES = 64;
+    private static final int MAX_REQUEST_BUFFER_SIZE = 64 * 1024;
+    private static final long MAX_MAPPED_SIZE = 64L * 1024 * 1024;
+    private static final ThreadLocal<ICAPRequestBuffer> REQUEST_BUFFER = ThreadLocal.withInitial(() -> new ICAPRequestBuffer(1024));
+
+    private final ICAPConnectionManager connectionManager;
+    private final ICAPServiceInformation serviceInformation;
+    private final ICAPEndpoint endpoint;
+    private final AtomicReference<ICAPRemoteServiceConfiguration> remoteServiceConfiguration;
+    private final ICAPConnectionLimiter connectionLimiter;
+    private final int bufferSize;
+    private final String messageDigestAlgorithm;
+    private final MessageDigest messageDigestPrototype;
+    private final String connectionHeader;
+    private final AtomicReference<CustomHeaders> customHeaders;
+    private final Map<RequestTemplateKey, ICAPRequestTemplate> requestTemplates;
+    private final boolean supportCompareVerifyIdenticalContent;
+    private final Executor executor;
+    private final ICAPFingerprint fingerprint;
+    private final double fingerprintSampleRate;
 
 
     /**
@@ -62,10 +106,98 @@ public class ICAPClientImpl implements ICAPClient {
      * @param connectionManager the connection manager
      */
     public ICAPClientImpl(ICAPConnectionManager connectionManager, ICAPServiceInformation serviceInformation, ICAPRemoteServiceConfiguration remoteServiceConfiguration) {
+        this(connectionManager, serviceInformation, remoteServiceConfiguration, new ICAPConnectionLimiter());
+    }
+
+
+    /**
+     * Constructor for ICAPClientImpl
+     *
+     * @param serviceInformation the service information
+     * @param remoteServiceConfiguration the remote service configuration
+     * @param connectionManager the connection manager
+     * @param connectionLimiter the connection limiter of the service
+     */
+    public ICAPClientImpl(ICAPConnectionManager connectionManager, ICAPServiceInformation serviceInformation, ICAPRemoteServiceConfiguration remoteServiceConfiguration, ICAPConnectionLimiter connectionLimiter) {
+        this(connectionManager, new ICAPEndpoint(serviceInformation), remoteServiceConfiguration, connectionLimiter);
+    }
+
+
+    /**
+     * Constructor for ICAPClientImpl
+     *
+     * @param endpoint the ICAP endpoint
+     * @param remoteServiceConfiguration the remote service configuration
+     * @param connectionManager the connection manager
+     * @param connectionLimiter the connection limiter of the service
+     */
+    public ICAPClientImpl(ICAPConnectionManager connectionManager, ICAPEndpoint endpoint, ICAPRemoteServiceConfiguration remoteServiceConfiguration, ICAPConnectionLimiter connectionLimiter) {
         this.connectionManager = connectionManager;
-        this.serviceInformation = serviceInformation;
-        this.remoteServiceConfiguration = remoteServiceConfiguration;
+        this.serviceInformation = endpoint.getServiceInformation();
+        this.endpoint = endpoint;
+        this.remoteServiceConfiguration = new AtomicReference<ICAPRemoteServiceConfiguration>(remoteServiceConfiguration);
+        this.connectionLimiter = connectionLimiter;
+        this.bufferSize = DEFAULT_BUFFER_SIZE;
+        this.messageDigestAlgorithm = DEFAULT_MESSAGE_DIGEST_ALGORITHM;
+        this.messageDigestPrototype = createMessageDigestPrototype(messageDigestAlgorithm);
+        this.connectionHeader = createConnectionHeader(connectionManager);
+        this.customHeaders = new AtomicReference<CustomHeaders>(new CustomHeaders(null, ""));
+        this.requestTemplates = new LinkedHashMap<RequestTemplateKey, ICAPRequestTemplate>(16, 0.75f, true);
         this.supportCompareVerifyIdenticalContent = false;
+        this.executor = null;
+        this.fingerprint = DEFAULT_FINGERPRINT;
+        this.fingerprintSampleRate = 1.0;
+    }
+
+
+    /**
+     * Constructor for ICAPClientImpl, creates a view of the given client which shares the state.
+     *
+     * @param client the client
+     * @param supportCompareVerifyIdenticalContent true to support verify and compare input and output content
+     */
+    protected ICAPClientImpl(ICAPClientImpl client, boolean supportCompareVerifyIdenticalContent) {
+        this(client, supportCompareVerifyIdenticalContent, client.executor);
+    }
+
+
+    /**
+     * Constructor for ICAPClientImpl, creates a view of the given client which shares the state.
+     *
+     * @param client the client
+     * @param supportCompareVerifyIdenticalContent true to support verify and compare input and output content
+     * @param executor the executor of the asynchronous requests or null to use the default executor
+     */
+    protected ICAPClientImpl(ICAPClientImpl client, boolean supportCompareVerifyIdenticalContent, Executor executor) {
+        this(client, supportCompareVerifyIdenticalContent, executor, client.fingerprint, client.fingerprintSampleRate);
+    }
+
+
+    /**
+     * Constructor for ICAPClientImpl, creates a view of the given client which shares the state.
+     *
+     * @param client the client
+     * @param supportCompareVerifyIdenticalContent true to support verify and compare input and output content
+     * @param executor the executor of the asynchronous requests or null to use the default executor
+     * @param fingerprint the fingerprint of the request and response content
+     * @param fingerprintSampleRate the fraction of the requests of which the fingerprints are calculated
+     */
+    protected ICAPClientImpl(ICAPClientImpl client, boolean supportCompareVerifyIdenticalContent, Executor executor, ICAPFingerprint fingerprint, double fingerprintSampleRate) {
+        this.connectionManager = client.connectionManager;
+        this.serviceInformation = client.serviceInformation;
+        this.endpoint = client.endpoint;
+        this.remoteServiceConfiguration = client.remoteServiceConfiguration;
+        this.connectionLimiter = client.connectionLimiter;
+        this.bufferSize = client.bufferSize;
+        this.messageDigestAlgorithm = client.messageDigestAlgorithm;
+        this.messageDigestPrototype = client.messageDigestPrototype;
+        this.connectionHeader = client.connectionHeader;
+        this.customHeaders = client.customHeaders;
+        this.requestTemplates = client.requestTemplates;
+        this.supportCompareVerifyIdenticalContent = supportCompareVerifyIdenticalContent;
+        this.executor = executor;
+        this.fingerprint = fingerprint;
+        this.fingerprintSampleRate = fingerprintSampleRate;
     }
 
 
@@ -74,8 +206,89 @@ public class ICAPClientImpl implements ICAPClient {
      */
     @Override    
     public ICAPClient supportCompareVerifyIdenticalContent(boolean supportCompareVerifyIdenticalContent) {
-        this.supportCompareVerifyIdenticalContent = supportCompareVerifyIdenticalContent;
-        return this;
+        if (this.supportCompareVerifyIdenticalContent == supportCompareVerifyIdenticalContent) {
+            return this;
+        }
+        
+        // the client is shared between threads, therefore a view is returned instead to change this instance
+        return new ICAPClientImpl(this, supportCompareVerifyIdenticalContent);
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.ICAPClient#executor(java.util.concurrent.Executor)
+     */
+    @Override
+    public ICAPClient executor(Executor executor) {
+        if (this.executor == executor) {
+            return this;
+        }
+        
+        // the client is shared between threads, therefore a view is returned instead to change this instance
+        return new ICAPClientImpl(this, supportCompareVerifyIdenticalContent, executor);
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.ICAPClient#fingerprint(com.github.toolarium.icap.client.util.ICAPFingerprint, double)
+     */
+    @Override
+    public ICAPClient fingerprint(ICAPFingerprint fingerprint, double sampleRate) {
+        if (fingerprint == null || sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("Invalid fingerprint [" + fingerprint + "] or sample rate [" + sampleRate + "]!");
+        }
+        
+        if (this.fingerprint == fingerprint && this.fingerprintSampleRate == sampleRate) {
+            return this;
+        }
+        
+        // the client is shared between threads, therefore a view is returned instead to change this instance
+        return new ICAPClientImpl(this, supportCompareVerifyIdenticalContent, executor, fingerprint, sampleRate);
+    }
+
+
+    /**
+     * Get the service information
+     *
+     * @return the service information
+     */
+    public ICAPServiceInformation getServiceInformation() {
+        return serviceInformation;
+    }
+
+
+    /**
+     * Get the connection manager
+     *
+     * @return the connection manager
+     */
+    public ICAPConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+
+    /**
+     * Get the current remote service configuration
+     *
+     * @return the remote service configuration or null
+     */
+    public ICAPRemoteServiceConfiguration getRemoteServiceConfiguration() {
+        return remoteServiceConfiguration.get();
+    }
+
+
+    /**
+     * Publish a new remote service configuration, e.g. after a refresh of the options. The connections are limited by its max connections.
+     *
+     * @param remoteServiceConfiguration the remote service configuration
+     */
+    public void updateRemoteServiceConfiguration(ICAPRemoteServiceConfiguration remoteServiceConfiguration) {
+        if (remoteServiceConfiguration != null) {
+            // in case the configuration is taken from a snapshot the limiter is not yet sized
+            setMaxConnections(remoteServiceConfiguration.getMaxConnections());
+            this.remoteServiceConfiguration.set(remoteServiceConfiguration);
+            ICAPVerdictCache.getInstance().updateISTag(serviceInformation, getISTag(remoteServiceConfiguration.getHeaders()));
+        }
     }
 
     
@@ -93,19 +306,20 @@ public class ICAPClientImpl implements ICAPClient {
      */
     @Override    
     public ICAPRemoteServiceConfiguration options(final ICAPRequestInformation requestInformation) throws IOException {
-        if (remoteServiceConfiguration != null) {
-            return remoteServiceConfiguration;
+        ICAPRemoteServiceConfiguration currentRemoteServiceConfiguration = remoteServiceConfiguration.get();
+        if (currentRemoteServiceConfiguration != null) {
+            return currentRemoteServiceConfiguration;
         }
         
         validateRequestInformation(requestInformation);
         final String requestIdentifier = createRequestIdentifier("options", null);
-        try (ICAPSocket icapSocket = new ICAPSocket(connectionManager, requestIdentifier, serviceInformation.getHostName(), serviceInformation.getServicePort(), 
+        try (ICAPSocket icapSocket = new ICAPSocket(connectionManager, connectionLimiter, requestIdentifier, serviceInformation.getHostName(), serviceInformation.getServicePort(), 
                                                     serviceInformation.getServiceName(), serviceInformation.isSecureConnection(), requestInformation.getMaxConnectionTimeout(), requestInformation.getMaxReadTimeout())) {
-            icapSocket.write("OPTIONS icap://" + serviceInformation.getHostName() + ":" + serviceInformation.getServicePort() + "/" + serviceInformation.getServiceName() + " ICAP/" + requestInformation.getApiVersion() + NEWLINE 
-                             + "Host: " + serviceInformation.getHostName() + NEWLINE
-                             + "User-Agent: " + requestInformation.getUserAgent() + NEWLINE
-                             + createCustomHeaders(requestInformation)
-                             + ICAPConstants.HEADER_KEY_ENCAPSULATED + ": null-body=0" + NEWLINE + NEWLINE);
+            writeRequestHeader(requestIdentifier, icapSocket, endpoint.getOptionsRequestLine(), requestInformation.getApiVersion(),
+                               connectionHeader
+                               + "User-Agent: " + requestInformation.getUserAgent() + NEWLINE
+                               + createCustomHeaders(requestInformation)
+                               + ICAPConstants.HEADER_KEY_ENCAPSULATED + ": null-body=0" + NEWLINE + NEWLINE);
             icapSocket.flush();
 
             ICAPHeaderInformation icapHeaderInformation = icapSocket.readICAPResponse(requestIdentifier, ICAP_END_SEPARATOR, bufferSize); 
@@ -134,22 +348,30 @@ public class ICAPClientImpl implements ICAPClient {
                 serverAllow204 = Boolean.valueOf(icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_ALLOW).get(0).equalsIgnoreCase("204"));
             }
             
+            Integer maxConnections = parseIntegerHeader(requestIdentifier, icapHeaderInformation, ICAPConstants.HEADER_KEY_MAX_CONNECTIONS);
+            Integer optionsTTL = parseIntegerHeader(requestIdentifier, icapHeaderInformation, ICAPConstants.HEADER_KEY_OPTIONS_TTL);
+            
             LOG.info(requestIdentifier + "Valid service [" 
                      + icapHeaderInformation.getStatus() + "/" + icapHeaderInformation.getMessage() + "], "
                      + "allow 204: " + serverAllow204 + ", "
-                     + "available methods: " + icapHeaderInformation.getHeaderValues("Methods"));
+                     + "available methods: " + icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_METHODS)
+                     + (maxConnections != null ? ", max connections: " + maxConnections : "")
+                     + (optionsTTL != null ? ", options ttl: " + optionsTTL : ""));
             
             int i = 0;
-            ICAPMode[] result = new ICAPMode[icapHeaderInformation.getHeaderValues("Methods").size()];
-            for (String method : icapHeaderInformation.getHeaderValues("Methods")) {
+            ICAPMode[] result = new ICAPMode[icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_METHODS).size()];
+            for (String method : icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_METHODS)) {
                 result[i++] = ICAPMode.valueOf(method.trim());
             }
 
-            remoteServiceConfiguration = new ICAPRemoteServiceConfigurationImpl(Instant.now(), result, serverPreviewSize, serverAllow204, icapHeaderInformation.getHeaders());
-            return remoteServiceConfiguration;
-        } catch (IOException e) {
-            remoteServiceConfiguration = null;
-            throw e;
+            setMaxConnections(maxConnections);
+            ICAPVerdictCache.getInstance().updateISTag(serviceInformation, getISTag(icapHeaderInformation.getHeaders()));
+            ICAPRemoteServiceConfiguration newRemoteServiceConfiguration = new ICAPRemoteServiceConfigurationImpl(Instant.now(), result, serverPreviewSize, serverAllow204, maxConnections, optionsTTL, icapHeaderInformation.getHeaders());
+            if (!remoteServiceConfiguration.compareAndSet(null, newRemoteServiceConfiguration)) {
+                // a concurrent request was faster, all threads should see the same snapshot
+                return remoteServiceConfiguration.get();
+            }
+            return newRemoteServiceConfiguration;
         }
     }
 
@@ -174,93 +396,1019 @@ public class ICAPClientImpl implements ICAPClient {
         }
         validateICAPResource(resource);
 
-        ICAPMode icapMode = ICAPMode.REQMOD;
-        if (inputMode != null) {
-            icapMode = inputMode;
+        final ICAPMode icapMode = (inputMode != null) ? inputMode : ICAPMode.REQMOD;
+
+        final String sourceRequest = requestInformation.prepareSourceRequest(resource);
+        final String requestIdentifier = createRequestIdentifier(icapMode.name(), sourceRequest);
+        LOG.info(requestIdentifier + "Validate resource (" + sourceRequest + ")");
+
+        // validate the service availability, the snapshot is used for the whole request
+        final ICAPRemoteServiceConfiguration currentRemoteServiceConfiguration = options(requestInformation);
+        
+        // the key of a re-readable source is calculated before a connection is used
+        final Map<String, byte[]> digests = new HashMap<String, byte[]>(2);
+        final ICAPSignaturePrefilter.Scanner signatureScanner = checkSignatures(requestIdentifier, sourceRequest, currentRemoteServiceConfiguration, resource, digests);
+        final ICAPHeaderInformation knownHeaderInformation = checkKnownHashes(requestIdentifier, sourceRequest, resource, digests);
+        if (knownHeaderInformation != null) {
+            return knownHeaderInformation;
+        }
+        
+        // the sampling is decided once, the verdict key depends on it
+        final boolean fingerprinted = isFingerprinted();
+        final ICAPVerdictCache.VerdictKey verdictKey = createVerdictKey(icapMode, currentRemoteServiceConfiguration, resource, digests, fingerprinted);
+        final ICAPVerdictCache.Verdict verdict = getCachedVerdict(requestIdentifier, sourceRequest, verdictKey);
+        if (verdict != null) {
+            return verdict.resolve();
+        }
+
+        // concurrent scans of the same content share one scan
+        return ICAPScanDeduplicator.getInstance().execute(verdictKey, getMaxWaitTime(requestInformation), 
+                () -> scanResource(requestIdentifier, icapMode, sourceRequest, currentRemoteServiceConfiguration, requestInformation, resource, fingerprinted, verdictKey, signatureScanner));
+    }
+
+    
+    /**
+     * Scan a resource over a connection of the connection manager
+     *
+     * @param requestIdentifier the request identifier
+     * @param icapMode the icap mode
+     * @param sourceRequest the source request
+     * @param currentRemoteServiceConfiguration the remote service configuration
+     * @param requestInformation the request information
+     * @param resource the resource
+     * @param fingerprinted true if the fingerprints of the request are calculated
+     * @param verdictKey the key of the verdict or null if the verdict is not cached
+     * @param signatureScanner the scanner of the local signatures which scans the content while it's sent or null
+     * @return the ICAP header information
+     * @throws IOException In case of an I/O error
+     * @throws ContentBlockedException In case the content is blocked
+     */
+    private ICAPHeaderInformation scanResource(final String requestIdentifier, 
+                                               final ICAPMode icapMode, 
+                                               final String sourceRequest,
+                                               final ICAPRemoteServiceConfiguration currentRemoteServiceConfiguration, 
+                                               final ICAPRequestInformation requestInformation, 
+                                               final ICAPResource resource,
+                                               final boolean fingerprinted,
+                                               final ICAPVerdictCache.VerdictKey verdictKey,
+                                               final ICAPSignaturePrefilter.Scanner signatureScanner) throws IOException, ContentBlockedException {
+        try (ICAPResponseBuffer resourceResponse = new ICAPResponseBuffer();
+             ICAPSocket icapSocket = new ICAPSocket(connectionManager, connectionLimiter, requestIdentifier, serviceInformation.getHostName(), serviceInformation.getServicePort(), 
+                                                    serviceInformation.getServiceName(), serviceInformation.isSecureConnection(), requestInformation.getMaxConnectionTimeout(), requestInformation.getMaxReadTimeout())) {
+            ICAPHeaderInformation icapHeaderInformation = processResource(requestIdentifier, icapSocket, icapMode, currentRemoteServiceConfiguration, requestInformation, resource, resourceResponse, fingerprinted, signatureScanner);
+            return evaluateResponse(requestIdentifier, icapMode, sourceRequest, icapHeaderInformation, resourceResponse, verdictKey);
+        } catch (IOException eio) {
+            LOG.warn(requestIdentifier + "Could not access to ICAP server: " + eio.getMessage());
+            throw eio;
+        }
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.ICAPClient#optionsAsync(com.github.toolarium.icap.client.dto.ICAPRequestInformation)
+     */
+    @Override
+    public CompletableFuture<ICAPRemoteServiceConfiguration> optionsAsync(final ICAPRequestInformation requestInformation) {
+        return supplyAsync(() -> options(requestInformation));
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.ICAPClient#validateResourceAsync(com.github.toolarium.icap.client.dto.ICAPMode, com.github.toolarium.icap.client.dto.ICAPRequestInformation, com.github.toolarium.icap.client.dto.ICAPResource)
+     */
+    @Override
+    public CompletableFuture<ICAPHeaderInformation> validateResourceAsync(final ICAPMode mode, final ICAPRequestInformation requestInformation, final ICAPResource resource) {
+        if (!supportNonBlockingTransport(requestInformation, resource)) {
+            return supplyAsync(() -> validateResource(mode, requestInformation, resource));
+        }
+
+        // validate the service availability, the snapshot is used for the whole request
+        final ICAPRemoteServiceConfiguration currentRemoteServiceConfiguration = remoteServiceConfiguration.get();
+        if (currentRemoteServiceConfiguration != null) {
+            return validateResourceNonBlocking(mode, requestInformation, resource, currentRemoteServiceConfiguration);
+        }
+        return optionsAsync(requestInformation).thenCompose(configuration -> validateResourceNonBlocking(mode, requestInformation, resource, configuration));
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.ICAPClient#validateResources(com.github.toolarium.icap.client.dto.ICAPMode, com.github.toolarium.icap.client.dto.ICAPRequestInformation, java.util.concurrent.Flow.Publisher, com.github.toolarium.icap.client.dto.ICAPBatchInformation)
+     */
+    @Override
+    public Flow.Publisher<ICAPScanResult> validateResources(final ICAPMode mode, 
+                                                           final ICAPRequestInformation requestInformation, 
+                                                           final Flow.Publisher<? extends ICAPResource> resources, 
+                                                           final ICAPBatchInformation batchInformation) {
+        // the connection limiter is shared by the clients of a service, e.g. the batches of a service share its in-flight counter
+        return new ICAPScanPublisher(resources, resource -> validateResourceAsync(mode, requestInformation, resource), batchInformation, connectionLimiter.getInFlightCounter());
+    }
+
+
+    /**
+     * Get the max time to wait for a running scan of the same content, it corresponds to the read timeout of the request
+     *
+     * @param requestInformation the request information
+     * @return the max wait time in milliseconds, zero waits without a limit
+     */
+    private long getMaxWaitTime(final ICAPRequestInformation requestInformation) {
+        if (connectionManager instanceof ICAPConnectionManagerImpl) {
+            return ((ICAPConnectionManagerImpl)connectionManager).getReadSocketTimeout(requestInformation.getMaxReadTimeout());
+        }
+        
+        final Integer maxReadTimeout = requestInformation.getMaxReadTimeout();
+        return (maxReadTimeout != null && maxReadTimeout.intValue() > 0) ? maxReadTimeout.intValue() : 0;
+    }
+
+
+    /**
+     * Get the executor of the asynchronous requests
+     *
+     * @return the executor
+     */
+    public Executor getExecutor() {
+        if (executor != null) {
+            return executor;
+        }
+        return ICAPAsyncExecutor.getInstance().getExecutor();
+    }
+
+    
+    /**
+     * Check if a request can be sent over the non-blocking transport. The remaining body is pulled by the event loop, 
+     * therefore only re-readable sources with a known length are supported.
+     *
+     * @param requestInformation the request information
+     * @param resource the resource
+     * @return true if the non-blocking transport can be used
+     */
+    private boolean supportNonBlockingTransport(final ICAPRequestInformation requestInformation, final ICAPResource resource) {
+        if (!(connectionManager instanceof ICAPNioConnectionManagerImpl) || requestInformation == null || resource == null) {
+            return false;
         }
+        
+        final ICAPResourceSource resourceSource = resource.getResourceSource();
+        return resourceSource != null && resourceSource.isRereadable() && resource.getResourceLength() > 0
+               && resource.getResourceName() != null && !resource.getResourceName().isBlank();
+    }
 
+
+    /**
+     * Validate a resource over the non-blocking transport. The resource is checked, the request header and the preview are prepared 
+     * and the response is evaluated by the executor of the asynchronous requests.
+     *
+     * @param inputMode the icap mode
+     * @param requestInformation the ICAP request information
+     * @param resource the ICAP resource
+     * @param currentRemoteServiceConfiguration the remote service configuration
+     * @return the future of the ICAP header information
+     */
+    private CompletableFuture<ICAPHeaderInformation> validateResourceNonBlocking(final ICAPMode inputMode, 
+                                                                               final ICAPRequestInformation requestInformation, 
+                                                                               final ICAPResource resource,
+                                                                               final ICAPRemoteServiceConfiguration currentRemoteServiceConfiguration) {
+        final ICAPMode icapMode = (inputMode != null) ? inputMode : ICAPMode.REQMOD;
         final String sourceRequest = requestInformation.prepareSourceRequest(resource);
         final String requestIdentifier = createRequestIdentifier(icapMode.name(), sourceRequest);
         LOG.info(requestIdentifier + "Validate resource (" + sourceRequest + ")");
 
-        // validate the service availability
-        if (remoteServiceConfiguration == null) {
-            options(requestInformation);
+        // the key, the known hashes and the signatures read the whole resource and the verdict store locks its file, therefore they are checked by the executor
+        return supplyAsync(() -> checkResourceNonBlocking(requestIdentifier, icapMode, sourceRequest, requestInformation, resource, currentRemoteServiceConfiguration))
+                .thenCompose(scan -> scan);
+    }
+
+
+    /**
+     * Check the known hashes, the signatures and the cached verdicts of a resource and scan it over the non-blocking transport 
+     * if it's still unknown, it's called by the executor of the asynchronous requests
+     *
+     * @param requestIdentifier the request identifier
+     * @param icapMode the icap mode
+     * @param sourceRequest the source request
+     * @param requestInformation the request information
+     * @param resource the resource
+     * @param currentRemoteServiceConfiguration the remote service configuration
+     * @return the future of the ICAP header information
+     * @throws IOException In case of an I/O error
+     * @throws ContentBlockedException In case the content is blocked
+     */
+    private CompletableFuture<ICAPHeaderInformation> checkResourceNonBlocking(final String requestIdentifier, 
+                                                                              final ICAPMode icapMode, 
+                                                                              final String sourceRequest,
+                                                                              final ICAPRequestInformation requestInformation, 
+                                                                              final ICAPResource resource,
+                                                                              final ICAPRemoteServiceConfiguration currentRemoteServiceConfiguration) 
+        throws IOException, ContentBlockedException {
+        final Map<String, byte[]> digests = new HashMap<String, byte[]>(2);
+        final ICAPSignaturePrefilter.Scanner signatureScanner = checkSignatures(requestIdentifier, sourceRequest, currentRemoteServiceConfiguration, resource, digests);
+        final ICAPHeaderInformation knownHeaderInformation = checkKnownHashes(requestIdentifier, sourceRequest, resource, digests);
+        if (knownHeaderInformation != null) {
+            return CompletableFuture.completedFuture(knownHeaderInformation);
         }
 
-        // prepare preview size
-        int previewSize = remoteServiceConfiguration.getServerPreviewSize();
-        if (resource.getResourceLength() < previewSize) {
-            previewSize = (int)resource.getResourceLength();
+        final boolean fingerprinted = isFingerprinted();
+        final ICAPVerdictCache.VerdictKey verdictKey = createVerdictKey(icapMode, currentRemoteServiceConfiguration, resource, digests, fingerprinted);
+        final ICAPVerdictCache.Verdict verdict = getCachedVerdict(requestIdentifier, sourceRequest, verdictKey);
+        if (verdict != null) {
+            return CompletableFuture.completedFuture(verdict.resolve());
         }
 
-        File resourceResponse = File.createTempFile(requestIdentifier, ".tmp");
-        try (ICAPSocket icapSocket = new ICAPSocket(connectionManager, requestIdentifier, serviceInformation.getHostName(), serviceInformation.getServicePort(), 
-                                                    serviceInformation.getServiceName(), serviceInformation.isSecureConnection(), requestInformation.getMaxConnectionTimeout(), requestInformation.getMaxReadTimeout())) {
-            ICAPHeaderInformation icapHeaderInformation = processResource(requestIdentifier, icapSocket, icapMode, requestInformation, resource, resourceResponse);
-            icapHeaderInformation.getHeaders().remove(ICAPConstants.HEADER_KEY_X_ICAP_STATUSLINE);
-            
-            if (icapHeaderInformation.getStatus() == 200) {
-                String threadInformation = "";
+        // concurrent scans of the same content share one scan; the preview is read and the request is prepared by the executor, the event loop only does the socket I/O
+        return ICAPScanDeduplicator.getInstance().executeAsync(verdictKey, getMaxWaitTime(requestInformation), 
+                () -> scanResourceNonBlocking(requestIdentifier, icapMode, sourceRequest, requestInformation, resource, currentRemoteServiceConfiguration, fingerprinted, verdictKey, signatureScanner));
+    }
 
-                for (Map.Entry<String, List<String>> e: icapHeaderInformation.getHeaders().entrySet()) {
-                    if (e.getKey().toLowerCase().startsWith("x-")) {
-                        threadInformation += "- " + e.getKey() + ": " + e.getValue() + "\n";
-                    }
+
+    /**
+     * Scan a resource over the non-blocking transport, it's called by the executor of the asynchronous requests
+     *
+     * @param requestIdentifier the request identifier
+     * @param icapMode the icap mode
+     * @param sourceRequest the source request
+     * @param requestInformation the request information
+     * @param resource the resource
+     * @param currentRemoteServiceConfiguration the remote service configuration
+     * @param fingerprinted true if the fingerprints of the request are calculated
+     * @param verdictKey the key of the verdict or null if the verdict is not cached
+     * @param signatureScanner the scanner of the local signatures which scans the content while it's sent or null
+     * @return the ICAP header information
+     */
+    private CompletableFuture<ICAPHeaderInformation> scanResourceNonBlocking(final String requestIdentifier, 
+                                                                             final ICAPMode icapMode, 
+                                                                             final String sourceRequest,
+                                                                             final ICAPRequestInformation requestInformation, 
+                                                                             final ICAPResource resource,
+                                                                             final ICAPRemoteServiceConfiguration currentRemoteServiceConfiguration,
+                                                                             final boolean fingerprinted,
+                                                                             final ICAPVerdictCache.VerdictKey verdictKey,
+                                                                             final ICAPSignaturePrefilter.Scanner signatureScanner) {
+        final CompletableFuture<ICAPHeaderInformation> result = new CompletableFuture<ICAPHeaderInformation>();
+        final ICAPResponseBuffer resourceResponse = new ICAPResponseBuffer(getExecutor());
+        final ICAPNioExchange exchange;
+        final MessageDigest outputMessageDigest;
+        try {
+            outputMessageDigest = fingerprinted ? fingerprint.createMessageDigest() : null;
+            exchange = createExchange(requestIdentifier, icapMode, currentRemoteServiceConfiguration, requestInformation, resource, 
+                                      (outputMessageDigest != null) ? new DigestOutputStream(resourceResponse, outputMessageDigest) : resourceResponse, signatureScanner);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn(requestIdentifier + "Could not access to ICAP server: " + e.getMessage());
+            closeResponseBuffer(resourceResponse);
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        if (signatureScanner != null && signatureScanner.isMatched()) {
+            // the preview matched, nothing is sent
+            closeResponseBuffer(resourceResponse);
+            result.completeExceptionally(createSignatureBlockedException(requestIdentifier, sourceRequest, signatureScanner.getMatch()));
+            return result;
+        }
+
+        final ICAPNioTransport transport = ((ICAPNioConnectionManagerImpl)connectionManager).getTransport();
+        transport.execute(exchange).whenCompleteAsync((icapHeaderInformation, exception) -> {
+            // the response buffer is read in case of a threat, therefore it's closed after the evaluation
+            try (ICAPResponseBuffer response = resourceResponse) {
+                if (signatureScanner != null && signatureScanner.isMatched()) {
+                    // the body producer stopped before the terminator, the connection is not reused
+                    throw createSignatureBlockedException(requestIdentifier, sourceRequest, signatureScanner.getMatch());
                 }
-                
-                // verify if there is a thread is found taken from header
-                if (hasThreadHeaderInformation(icapHeaderInformation)) {
-                    String threadHeaderInformation = readThreadHeaderInformation(icapMode, icapHeaderInformation, resourceResponse);
-                    String msg = "Threat found in resource (" + sourceRequest + ", http-status: " + icapHeaderInformation.getStatus() + "):\n" + threadInformation.trim();
-                    LOG.info(requestIdentifier + msg);
-                    throw new ContentBlockedException(msg, icapHeaderInformation, threadHeaderInformation);                    
-                } else if (supportCompareVerifyIdenticalContent 
-                        && icapHeaderInformation.containsHeader(ICAPConstants.HEADER_KEY_X_IDENTICAL_CONTENT) && !icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_IDENTICAL_CONTENT).isEmpty()
-                        && !Boolean.valueOf(icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_IDENTICAL_CONTENT).get(0))) {
-                    String msg = "Not identical resource (" + sourceRequest + ", http-status: " + icapHeaderInformation.getStatus() + "):\n" + threadInformation.trim();
-                    LOG.info(requestIdentifier + msg);
-                    throw new ContentBlockedException(msg, icapHeaderInformation);                    
+
+                if (exception != null) {
+                    throw exception;
                 }
+                
+                ICAPHeaderInformation processedHeaderInformation = processResponse(requestIdentifier, icapMode, requestInformation, resource, exchange, 
+                                                                                   icapHeaderInformation, outputMessageDigest, response);
+                result.complete(evaluateResponse(requestIdentifier, icapMode, sourceRequest, processedHeaderInformation, response, verdictKey));
+            } catch (IOException e) {
+                LOG.warn(requestIdentifier + "Could not access to ICAP server: " + e.getMessage());
+                result.completeExceptionally(e);
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
             }
+        }, getExecutor()).exceptionally(e -> {
+            // the executor rejected the evaluation
+            closeResponseBuffer(resourceResponse);
+            result.completeExceptionally(e);
+            return null;
+        });
+        return result;
+    }
 
-            LOG.info(requestIdentifier + "Valid resource (" + sourceRequest + ", http-status: " + icapHeaderInformation.getStatus() + ").");
-            return icapHeaderInformation;
-        } catch (IOException eio) {
-            LOG.warn(requestIdentifier + "Could not access to ICAP server: " + eio.getMessage());
-            throw eio;
-        } finally {
-            if (resourceResponse != null && resourceResponse.exists()) {
-                resourceResponse.delete();
+
+    /**
+     * Create the exchange of a resource, the preview is read and sent together with the request header
+     *
+     * @param requestIdentifier the request identifier
+     * @param icapMode the icap mode
+     * @param remoteServiceConfiguration the remote service configuration
+     * @param requestInformation the ICAP request information
+     * @param resource the ICAP resource
+     * @param responseBody the stream of the response body
+     * @param signatureScanner the scanner of the local signatures which scans the content while it's sent or null
+     * @return the exchange
+     * @throws IOException In case of an I/O error
+     */
+    private ICAPNioExchange createExchange(final String requestIdentifier,
+                                          final ICAPMode icapMode,
+                                          final ICAPRemoteServiceConfiguration remoteServiceConfiguration,
+                                          final ICAPRequestInformation requestInformation, 
+                                          final ICAPResource resource,
+                                          final OutputStream responseBody,
+                                          final ICAPSignaturePrefilter.Scanner signatureScanner) throws IOException {
+        final ICAPResourceSource resourceSource = resource.getResourceSource();
+        final long resourceLength = resource.getResourceLength();
+        int previewSize = remoteServiceConfiguration.getServerPreviewSize();
+        if (resourceLength < previewSize) {
+            previewSize = (int) resourceLength;
+        }
+
+        final byte[] preview = new byte[previewSize];
+        try (ReadableByteChannel channel = resourceSource.openChannel()) {
+            if (readFully(channel, preview) < previewSize) {
+                throw new EOFException("Unexpected end of the resource!");
             }
         }
+
+        if (signatureScanner != null) {
+            signatureScanner.update(preview, 0, previewSize);
+        }
+
+        final ICAPRequestTemplate requestTemplate = getRequestTemplate(requestIdentifier, icapMode, remoteServiceConfiguration, requestInformation);
+        final ICAPRequestBuffer requestBuffer = REQUEST_BUFFER.get().reset();
+        requestTemplate.write(requestBuffer, resource.getResourceName(), requestInformation.getRequestSource(), resourceLength, previewSize);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(requestIdentifier + "Send request:\n" + requestBuffer);
+        }
+
+        // header, preview and terminator are sent together; the request buffer is reused by the thread, therefore it's copied
+        final boolean completeInPreview = resourceLength <= previewSize;
+        byte[] terminator = new byte[0];
+        if (completeInPreview) {
+            terminator = IEOF_END_SEPARATOR_BYTES;
+        } else if (previewSize != 0) {
+            terminator = HTTP_END_SEPARATOR_BYTES;
+        }
+        
+        final ByteBuffer request = ByteBuffer.allocate(requestBuffer.length() + preview.length + NEWLINE_BYTES.length + terminator.length);
+        request.put(requestBuffer.array(), 0, requestBuffer.length()).put(preview).put(NEWLINE_BYTES).put(terminator).flip();
+        if (requestBuffer.capacity() > MAX_REQUEST_BUFFER_SIZE) {
+            REQUEST_BUFFER.remove();
+        }
+
+        // a buffered source is read by the event loop, any other source by the executor
+        final Executor bodyExecutor = (resourceSource instanceof ICAPByteBufferSource) ? null : getExecutor();
+        final ICAPNioConnectionManagerImpl nioConnectionManager = (ICAPNioConnectionManagerImpl)connectionManager;
+        return new ICAPNioExchange(requestIdentifier, 
+                                   new InetSocketAddress(serviceInformation.getHostName(), serviceInformation.getServicePort()), 
+                                   serviceInformation.isSecureConnection(),
+                                   request, 
+                                   completeInPreview ? null : new SourceBodyProducer(resourceSource, previewSize, serviceInformation.isSecureConnection(), bodyExecutor, signatureScanner), 
+                                   responseBody, 
+                                   nioConnectionManager.getSocketConnectionTimeout(requestInformation.getMaxConnectionTimeout()), 
+                                   nioConnectionManager.getReadSocketTimeout(requestInformation.getMaxReadTimeout()), 
+                                   connectionLimiter);
     }
 
-    
+
     /**
-     * Create custom headers
-     * 
+     * Process the response of an exchange, it corresponds to the response handling of the blocking transport
+     *
+     * @param requestIdentifier the request identifier
+     * @param icapMode the icap mode
      * @param requestInformation the ICAP request information
-     * @return the customer headers
+     * @param resource the ICAP resource
+     * @param exchange the exchange
+     * @param icapHeaderInformation the ICAP header information
+     * @param outputMessageDigest the message digest of the response or null if no fingerprint is calculated
+     * @param resourceResponse the resource response
+     * @return the ICAP header information
+     * @throws IOException In case of an I/O error
+     */
+    private ICAPHeaderInformation processResponse(final String requestIdentifier,
+                                                  final ICAPMode icapMode,
+                                                  final ICAPRequestInformation requestInformation, 
+                                                  final ICAPResource resource,
+                                                  final ICAPNioExchange exchange,
+                                                  final ICAPHeaderInformation icapHeaderInformation,
+                                                  final MessageDigest outputMessageDigest,
+                                                  final ICAPResponseBuffer resourceResponse) throws IOException {
+        if (exchange.isPreviewResponse()) {
+            switch (icapHeaderInformation.getStatus()) {
+                case 200: return icapHeaderInformation;
+                case 204: return icapHeaderInformation;
+                case 404: throw new IOException("404: ICAP Service not found");
+                default: throw new IOException("Server returned unknown status code:" + icapHeaderInformation.getStatus());
+            }
+        }
+
+        if (icapHeaderInformation.getStatus() == 204) { // unmodified
+            return icapHeaderInformation;
+        } 
+
+        if (icapHeaderInformation.getStatus() == 200) { // OK - The ICAP status is ok, but the encapsulated HTTP status will likely be different
+            if ((requestInformation.isAllow204() != null && !requestInformation.isAllow204()) && ICAPMode.REQMOD.equals(icapMode)) {
+                return icapHeaderInformation;
+            }
+            
+            if (!icapHeaderInformation.containsHeader(ICAPConstants.HEADER_KEY_ENCAPSULATED)) {
+                LOG.warn("Missing " + ICAPConstants.HEADER_KEY_ENCAPSULATED + " information!");
+                return icapHeaderInformation;
+            }
+
+            if (outputMessageDigest != null) {
+                verifyContent(requestIdentifier, icapHeaderInformation, resource.getResourceSource(), null, outputMessageDigest, exchange.isBodySent(), resource.getResourceLength(), resourceResponse);
+            }
+            return icapHeaderInformation;
+        }
+        
+        throw new IOException("Unrecognized or no status code in response header: " + icapHeaderInformation.getStatus() + "!");
+    }
+
+
+    /**
+     * Close a response buffer
+     *
+     * @param resourceResponse the resource response
+     */
+    private static void closeResponseBuffer(final ICAPResponseBuffer resourceResponse) {
+        try {
+            resourceResponse.close();
+        } catch (IOException e) {
+            LOG.debug("Could not close the response buffer: " + e.getMessage());
+        }
+    }
+
+    
+    /**
+     * Run a request on the executor
+     *
+     * @param <T> the result type
+     * @param request the request
+     * @return the future of the result, it's completed exceptionally in case the request fails or is rejected by the executor
+     */
+    private <T> CompletableFuture<T> supplyAsync(final Callable<T> request) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        try {
+            getExecutor().execute(() -> {
+                try {
+                    future.complete(request.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    
+    /**
+     * Write the request header. The pre-encoded request line and host header of the endpoint are written together 
+     * with the remaining header in one block.
+     * 
+     * @param requestIdentifier the request identifier
+     * @param icapSocket the ICAP socket
+     * @param requestLine the pre-encoded request line up to the ICAP version
+     * @param apiVersion the ICAP version
+     * @param header the remaining header
+     * @throws IOException In case of an I/O error
+     */
+    private void writeRequestHeader(final String requestIdentifier, final ICAPSocket icapSocket, final byte[] requestLine, final String apiVersion, final String header) throws IOException {
+        final byte[] version = (apiVersion + NEWLINE).getBytes(StandardCharsets.UTF_8);
+        final byte[] hostHeader = endpoint.getHostHeader();
+        final byte[] remainingHeader = header.getBytes(StandardCharsets.UTF_8);
+        
+        final byte[] request = new byte[requestLine.length + version.length + hostHeader.length + remainingHeader.length];
+        int pos = 0;
+        System.arraycopy(requestLine, 0, request, pos, requestLine.length);
+        pos += requestLine.length;
+        System.arraycopy(version, 0, request, pos, version.length);
+        pos += version.length;
+        System.arraycopy(hostHeader, 0, request, pos, hostHeader.length);
+        pos += hostHeader.length;
+        System.arraycopy(remainingHeader, 0, request, pos, remainingHeader.length);
+        
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(requestIdentifier + "Send request:\n" + new String(request, StandardCharsets.UTF_8));
+        }
+        icapSocket.write(request);
+    }
+
+    
+    /**
+     * Get the request template of a mode and request information, the templates are kept in a small LRU
+     * 
+     * @param requestIdentifier the request identifier
+     * @param icapMode the mode
+     * @param remoteServiceConfiguration the remote service configuration
+     * @param requestInformation the ICAP request information
+     * @return the request template
+     */
+    private ICAPRequestTemplate getRequestTemplate(final String requestIdentifier, final ICAPMode icapMode, final ICAPRemoteServiceConfiguration remoteServiceConfiguration, final ICAPRequestInformation requestInformation) {
+        final String allow204 = supportAllow204(requestIdentifier, remoteServiceConfiguration.isServerAllow204(), requestInformation.isAllow204());
+        final String requestCustomHeaders = createCustomHeaders(requestInformation);
+        final RequestTemplateKey key = new RequestTemplateKey(icapMode, requestInformation.getApiVersion(), requestInformation.getUserAgent(), requestCustomHeaders, allow204);
+        
+        synchronized (requestTemplates) {
+            ICAPRequestTemplate requestTemplate = requestTemplates.get(key);
+            if (requestTemplate == null) {
+                requestTemplate = new ICAPRequestTemplate(endpoint, icapMode, requestInformation.getApiVersion(), 
+                                                          connectionHeader + "User-Agent: " + requestInformation.getUserAgent() + NEWLINE + requestCustomHeaders + allow204);
+                requestTemplates.put(key, requestTemplate);
+                
+                // the least recently used template is evicted, e.g. varying user agents don't drop the templates of the common requests
+                if (requestTemplates.size() > MAX_REQUEST_TEMPLATES) {
+                    requestTemplates.remove(requestTemplates.keySet().iterator().next());
+                }
+            }
+            
+            return requestTemplate;
+        }
+    }
+
+
+    /**
+     * Set the max connections of the service to the connection limiter and the connection manager, which limits the idle connections by it
+     * 
+     * @param maxConnections the max connections or null
+     */
+    private void setMaxConnections(final Integer maxConnections) {
+        connectionLimiter.setMaxConnections(maxConnections);
+        connectionManager.setMaxConnections(serviceInformation.getHostName(), serviceInformation.getServicePort(), serviceInformation.isSecureConnection(), maxConnections);
+    }
+
+
+    /**
+     * Parse an integer header value
+     * 
+     * @param requestIdentifier the request identifier
+     * @param icapHeaderInformation the ICAP header information
+     * @param header the header
+     * @return the value or null
+     */
+    private Integer parseIntegerHeader(final String requestIdentifier, final ICAPHeaderInformation icapHeaderInformation, final String header) {
+        if (!icapHeaderInformation.containsHeader(header) 
+                || icapHeaderInformation.getHeaderValues(header) == null 
+                || icapHeaderInformation.getHeaderValues(header).isEmpty()) {
+            return null;
+        }
+        
+        String value = icapHeaderInformation.getHeaderValues(header).get(0);
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            LOG.warn(requestIdentifier + "Could not parse " + header + " [" + value + "]: " + e.getMessage());
+            return null;
+        }
+    }
+
+    
+    /**
+     * Create the connection header
+     * 
+     * @param connectionManager the connection manager
+     * @return the connection header
+     */
+    private static String createConnectionHeader(ICAPConnectionManager connectionManager) {
+        if (connectionManager.isKeepAlive()) {
+            return ICAPConstants.HEADER_KEY_CONNECTION + ": keep-alive" + NEWLINE;
+        }
+        
+        return ICAPConstants.HEADER_KEY_CONNECTION + ": close" + NEWLINE;
+    }
+
+    
+    /**
+     * Create the message digest prototype
+     * 
+     * @param algorithm the algorithm
+     * @return the prototype or null in case it can not be created
+     */
+    private static MessageDigest createMessageDigestPrototype(String algorithm) {
+        try {
+            return ICAPClientUtil.getInstance().createMessageDigest(algorithm);
+        } catch (IOException e) {
+            LOG.warn("Could not create message digest [" + algorithm + "]: " + e.getMessage());
+            return null;
+        }
+    }
+
+
+    /**
+     * Create a message digest, it's cloned from the prototype whenever possible.
+     * 
+     * @return the message digest
+     * @throws IOException In case the message digest could not be created
+     */
+    protected MessageDigest createMessageDigest() throws IOException {
+        if (messageDigestPrototype != null) {
+            try {
+                return (MessageDigest)messageDigestPrototype.clone();
+            } catch (CloneNotSupportedException e) {
+                // NOP, fallback to create a new instance
+            }
+        }
+        
+        return ICAPClientUtil.getInstance().createMessageDigest(messageDigestAlgorithm);
+    }
+
+
+    /**
+     * Create the default fingerprint
+     * 
+     * @return the default fingerprint
+     */
+    private static ICAPFingerprint createDefaultFingerprint() {
+        try {
+            return ICAPFingerprint.messageDigest(DEFAULT_MESSAGE_DIGEST_ALGORITHM);
+        } catch (IOException e) {
+            LOG.warn("Could not create message digest [" + DEFAULT_MESSAGE_DIGEST_ALGORITHM + "], the fingerprints are disabled: " + e.getMessage());
+            return ICAPFingerprint.NONE;
+        }
+    }
+
+
+    /**
+     * Decide if the fingerprints of a request are calculated, only the sampled requests are fingerprinted
+     * 
+     * @return true if the fingerprints are calculated
+     */
+    private boolean isFingerprinted() {
+        return fingerprint.isEnabled() && (fingerprintSampleRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < fingerprintSampleRate);
+    }
+
+    
+    /**
+     * Create custom headers, the last result is kept as long as the same custom headers are used.
+     * 
+     * @param requestInformation the ICAP request information
+     * @return the customer headers
+     */
+    private String createCustomHeaders(final ICAPRequestInformation requestInformation) {
+        final Map<String, String> requestCustomHeaders = requestInformation.getCustomHeaders();
+        if (requestCustomHeaders == null || requestCustomHeaders.isEmpty()) {
+            return "";
+        }
+
+        CustomHeaders lastCustomHeaders = customHeaders.get();
+        if (requestCustomHeaders.equals(lastCustomHeaders.customHeaders)) {
+            return lastCustomHeaders.headers;
+        }
+        
+        final StringBuilder headers = new StringBuilder();
+        for (Map.Entry<String, String> e : requestInformation.getCustomHeaders().entrySet()) {
+            final String key = e.getKey().trim();
+            final String value = e.getValue().trim();
+            
+            if (key.equalsIgnoreCase("Host") || key.equalsIgnoreCase("Connection") || key.equalsIgnoreCase("User-Agent") || key.equalsIgnoreCase("Preview") || key.equalsIgnoreCase("Encapsulated") || key.equalsIgnoreCase("Allow")) {
+                LOG.warn("Invalid customer header [" + key + "], it's not allowed, ignore!");
+            } else if (!value.isEmpty()) {
+                headers.append(key).append(": ").append(value).append(NEWLINE);
+            }
+        }
+        
+        final String result = headers.toString();
+        customHeaders.set(new CustomHeaders(new LinkedHashMap<String, String>(requestCustomHeaders), result));
+        return result;
+    }
+
+    
+    /**
+     * Evaluate the response of a resource and cache the verdict. The ISTag of the response is published to the verdict cache,
+     * a changed ISTag invalidates the cached verdicts of the service.
+     * 
+     * @param requestIdentifier the request identifier
+     * @param icapMode the icap mode
+     * @param sourceRequest the source request
+     * @param icapHeaderInformation the ICAP header information
+     * @param resourceResponse the resource response
+     * @param verdictKey the key of the verdict or null if the verdict is not cached
+     * @return the ICAP header information
+     * @throws ContentBlockedException In case the content is blocked
+     */
+    private ICAPHeaderInformation evaluateResponse(final String requestIdentifier, final ICAPMode icapMode, final String sourceRequest, final ICAPHeaderInformation icapHeaderInformation, 
+                                                   final ICAPResponseBuffer resourceResponse, final ICAPVerdictCache.VerdictKey verdictKey) throws ContentBlockedException {
+        final String isTag = getISTag(icapHeaderInformation.getHeaders());
+        final ICAPVerdictCache verdictCache = ICAPVerdictCache.getInstance();
+        verdictCache.updateISTag(serviceInformation, isTag);
+        
+        try {
+            ICAPHeaderInformation result = evaluateResponse(requestIdentifier, icapMode, sourceRequest, icapHeaderInformation, resourceResponse);
+            if (verdictKey != null && isTag != null) {
+                putVerdict(verdictKey.withISTag(isTag), ICAPVerdictCache.Verdict.valid(result));
+            }
+            return result;
+        } catch (ContentBlockedException e) {
+            if (verdictKey != null && isTag != null) {
+                putVerdict(verdictKey.withISTag(isTag), ICAPVerdictCache.Verdict.blocked(e));
+            }
+            throw e;
+        }
+    }
+
+
+    /**
+     * Keep a verdict in the verdict cache and the verdict store
+     *
+     * @param verdictKey the key of the verdict
+     * @param verdict the verdict
+     */
+    private static void putVerdict(final ICAPVerdictCache.VerdictKey verdictKey, final ICAPVerdictCache.Verdict verdict) {
+        ICAPVerdictCache.getInstance().put(verdictKey, verdict);
+        ICAPVerdictStore.getInstance().put(verdictKey, verdict);
+    }
+
+
+    /**
+     * Check a re-readable resource against the local signatures. In case the content digest of the client is needed by the following checks,
+     * the signatures are matched in the same pass and the digest is kept. Otherwise the content is scanned while it's sent.
+     *
+     * @param requestIdentifier the request identifier
+     * @param sourceRequest the source request
+     * @param currentRemoteServiceConfiguration the remote service configuration
+     * @param resource the resource
+     * @param digests the calculated digests by algorithm
+     * @return the scanner which scans the content while it's sent or null
+     * @throws IOException In case the source could not be read
+     * @throws ContentBlockedException In case a signature matched
+     */
+    private ICAPSignaturePrefilter.Scanner checkSignatures(final String requestIdentifier, 
+                                                           final String sourceRequest, 
+                                                           final ICAPRemoteServiceConfiguration currentRemoteServiceConfiguration, 
+                                                           final ICAPResource resource, 
+                                                           final Map<String, byte[]> digests) throws IOException, ContentBlockedException {
+        if (resource.getResourceSource() == null || !resource.getResourceSource().isRereadable() || resource.getResourceLength() <= 0) {
+            return null;
+        }
+        
+        final ICAPSignaturePrefilter.Scanner scanner = ICAPSignaturePrefilter.getInstance().createScanner();
+        if (scanner == null || !isContentDigestRequired(currentRemoteServiceConfiguration)) {
+            return scanner;
+        }
+
+        digests.put(messageDigestAlgorithm, digest(resource.getResourceSource(), new ICAPSignaturePrefilter.ScanningMessageDigest(createMessageDigest(), scanner)).digest());
+        if (scanner.isMatched()) {
+            throw createSignatureBlockedException(requestIdentifier, sourceRequest, scanner.getMatch());
+        }
+        return null;
+    }
+
+
+    /**
+     * Check if the content digest of the client is calculated before the resource is sent, either by the known hashes or by the verdict key
+     *
+     * @param currentRemoteServiceConfiguration the remote service configuration
+     * @return true if the content digest is calculated
+     */
+    private boolean isContentDigestRequired(final ICAPRemoteServiceConfiguration currentRemoteServiceConfiguration) {
+        final ICAPKnownHashes knownHashes = ICAPKnownHashes.getInstance();
+        if (knownHashes.isEnabled()) {
+            final ICAPHashFilter knownBad = knownHashes.getKnownBad();
+            final ICAPHashFilter knownGood = knownHashes.getKnownGood();
+            if ((knownBad != null && messageDigestAlgorithm.equals(knownBad.getAlgorithm())) || (knownGood != null && messageDigestAlgorithm.equals(knownGood.getAlgorithm()))) {
+                return true;
+            }
+        }
+        
+        return isVerdictKeyRequired(currentRemoteServiceConfiguration);
+    }
+
+
+    /**
+     * Create the exception of a content which matched a local signature, the header corresponds to a threat found by the ICAP server
+     *
+     * @param requestIdentifier the request identifier
+     * @param sourceRequest the source request
+     * @param signature the name of the matched signature
+     * @return the exception
+     */
+    private ContentBlockedException createSignatureBlockedException(final String requestIdentifier, final String sourceRequest, final String signature) {
+        final ICAPHeaderMap headers = new ICAPHeaderMap();
+        headers.put(ICAPConstants.HEADER_KEY_X_INFECTION_FOUND, Arrays.asList("Type=0; Resolution=2; Threat=" + signature + ";"));
+        headers.put(ICAPConstants.HEADER_KEY_X_VIRUS_ID, Arrays.asList(signature));
+        final ICAPHeaderInformation icapHeaderInformation = new ICAPHeaderInformation().setProtocol("ICAP").setVersion("1.0").setStatus(200).setMessage("OK").setHeaders(headers);
+
+        final String msg = "Threat found in resource (" + sourceRequest + ", http-status: 200):\n- " + ICAPConstants.HEADER_KEY_X_VIRUS_ID + ": [" + signature + "] (local signature)";
+        LOG.info(requestIdentifier + msg);
+        return new ContentBlockedException(msg, icapHeaderInformation);
+    }
+
+
+    /**
+     * Check the content digest of a re-readable resource against the known hash filters. A known bad content is blocked and a known good
+     * content is valid without a scan.
+     *
+     * @param requestIdentifier the request identifier
+     * @param sourceRequest the source request
+     * @param resource the resource
+     * @param digests the calculated digests by algorithm
+     * @return the ICAP header information of a known good content or null if the content is not known
+     * @throws IOException In case the source could not be read
+     * @throws ContentBlockedException In case the content is known bad
+     */
+    private ICAPHeaderInformation checkKnownHashes(final String requestIdentifier, final String sourceRequest, final ICAPResource resource, final Map<String, byte[]> digests) 
+            throws IOException, ContentBlockedException {
+        final ICAPKnownHashes knownHashes = ICAPKnownHashes.getInstance();
+        if (!knownHashes.isEnabled() || resource.getResourceSource() == null || !resource.getResourceSource().isRereadable() || resource.getResourceLength() <= 0) {
+            return null;
+        }
+
+        final ICAPHashFilter knownBad = knownHashes.getKnownBad();
+        if (knownBad != null && knownBad.contains(contentDigest(resource, knownBad.getAlgorithm(), digests))) {
+            final ICAPHeaderMap headers = new ICAPHeaderMap();
+            headers.put(ICAPConstants.HEADER_KEY_X_KNOWN_HASH, Arrays.asList("bad; " + knownBad.getAlgorithm()));
+            headers.put(ICAPConstants.HEADER_KEY_X_INFECTION_FOUND, Arrays.asList("Type=0; Resolution=2; Threat=Known bad content;"));
+            final ICAPHeaderInformation icapHeaderInformation = new ICAPHeaderInformation().setProtocol("ICAP").setVersion("1.0").setStatus(200).setMessage("OK").setHeaders(headers);
+            
+            final String msg = "Threat found in resource (" + sourceRequest + ", http-status: 200):\n- " + ICAPConstants.HEADER_KEY_X_KNOWN_HASH + ": [bad; " + knownBad.getAlgorithm() + "]";
+            LOG.info(requestIdentifier + msg);
+            throw new ContentBlockedException(msg, icapHeaderInformation);
+        }
+
+        final ICAPHashFilter knownGood = knownHashes.getKnownGood();
+        if (knownGood != null && knownGood.contains(contentDigest(resource, knownGood.getAlgorithm(), digests))) {
+            final ICAPHeaderMap headers = new ICAPHeaderMap();
+            headers.put(ICAPConstants.HEADER_KEY_X_KNOWN_HASH, Arrays.asList("good; " + knownGood.getAlgorithm()));
+            LOG.info(requestIdentifier + "Known good resource (" + sourceRequest + ", " + knownGood.getAlgorithm() + ").");
+            return new ICAPHeaderInformation().setProtocol("ICAP").setVersion("1.0").setStatus(204).setMessage("No Content").setHeaders(headers);
+        }
+        
+        return null;
+    }
+
+
+    /**
+     * Get the digest of a re-readable resource, each algorithm is only calculated once per request
+     *
+     * @param resource the resource
+     * @param algorithm the digest algorithm
+     * @param digests the calculated digests by algorithm
+     * @return the digest
+     * @throws IOException In case the source could not be read
+     */
+    private byte[] contentDigest(final ICAPResource resource, final String algorithm, final Map<String, byte[]> digests) throws IOException {
+        byte[] digest = digests.get(algorithm);
+        if (digest == null) {
+            final MessageDigest messageDigest = messageDigestAlgorithm.equals(algorithm) ? createMessageDigest() : ICAPClientUtil.getInstance().createMessageDigest(algorithm);
+            digest = digest(resource.getResourceSource(), messageDigest).digest();
+            digests.put(algorithm, digest);
+        }
+        return digest;
+    }
+
+
+    /**
+     * Create the key of the verdict of a resource, it's used by the verdict cache and to share the concurrent scans of identical content.
+     * The key is only created for a re-readable source, its digest is calculated before a connection is used.
+     *
+     * @param icapMode the icap mode
+     * @param currentRemoteServiceConfiguration the remote service configuration
+     * @param resource the resource
+     * @param digests the calculated digests by algorithm
+     * @param fingerprinted true if the fingerprints of the request are calculated, only then the content is verified and compared
+     * @return the key or null in case the verdict can not be cached
+     * @throws IOException In case the source could not be read
+     */
+    private ICAPVerdictCache.VerdictKey createVerdictKey(final ICAPMode icapMode, final ICAPRemoteServiceConfiguration currentRemoteServiceConfiguration, final ICAPResource resource, 
+                                                         final Map<String, byte[]> digests, final boolean fingerprinted) throws IOException {
+        if (!isVerdictKeyRequired(currentRemoteServiceConfiguration) || resource.getResourceSource() == null || !resource.getResourceSource().isRereadable() || resource.getResourceLength() <= 0) {
+            return null;
+        }
+
+        final String isTag = getServiceISTag(currentRemoteServiceConfiguration);
+        final String digest = ICAPClientUtil.getInstance().messageDigestToString(messageDigestAlgorithm, contentDigest(resource, messageDigestAlgorithm, digests));
+        // a verdict of an unsampled request is not verified, e.g. it's kept apart from the verified verdicts
+        return new ICAPVerdictCache.VerdictKey(digest, serviceInformation, icapMode, supportCompareVerifyIdenticalContent && fingerprinted, isTag);
+    }
+
+
+    /**
+     * Check if the key of the verdict is created, it's used by the verdict cache, the verdict store or to share the concurrent scans
+     *
+     * @param currentRemoteServiceConfiguration the remote service configuration
+     * @return true if the key is created
+     */
+    private boolean isVerdictKeyRequired(final ICAPRemoteServiceConfiguration currentRemoteServiceConfiguration) {
+        if (ICAPScanDeduplicator.getInstance().isEnabled()) {
+            return true;
+        }
+        
+        if (!ICAPVerdictCache.getInstance().isEnabled() && !ICAPVerdictStore.getInstance().isEnabled()) {
+            return false;
+        }
+
+        // without ISTag a verdict can't be invalidated, the key is only used to share the concurrent scans
+        return getServiceISTag(currentRemoteServiceConfiguration) != null;
+    }
+
+
+    /**
+     * Get the ISTag of the service, it's kept by the verdict cache
+     *
+     * @param currentRemoteServiceConfiguration the remote service configuration
+     * @return the ISTag or null
+     */
+    private String getServiceISTag(final ICAPRemoteServiceConfiguration currentRemoteServiceConfiguration) {
+        final ICAPVerdictCache verdictCache = ICAPVerdictCache.getInstance();
+        String isTag = verdictCache.getISTag(serviceInformation);
+        if (isTag == null && currentRemoteServiceConfiguration != null) {
+            isTag = getISTag(currentRemoteServiceConfiguration.getHeaders());
+            verdictCache.updateISTag(serviceInformation, isTag);
+        }
+        return isTag;
+    }
+
+
+    /**
+     * Get the verdict of a resource from the verdict cache or the verdict store
+     *
+     * @param requestIdentifier the request identifier
+     * @param sourceRequest the source request
+     * @param verdictKey the key of the verdict or null
+     * @return the verdict or null
+     */
+    private ICAPVerdictCache.Verdict getCachedVerdict(final String requestIdentifier, final String sourceRequest, final ICAPVerdictCache.VerdictKey verdictKey) {
+        if (verdictKey == null) {
+            return null;
+        }
+        
+        ICAPVerdictCache.Verdict verdict = ICAPVerdictCache.getInstance().get(verdictKey);
+        if (verdict != null) {
+            LOG.info(requestIdentifier + "Cached verdict of resource (" + sourceRequest + ", blocked: " + verdict.isBlocked() + ", ISTag: " + verdictKey.getISTag() + ").");
+            return verdict;
+        }
+
+        // the verdict store is shared with the other processes of the host
+        verdict = ICAPVerdictStore.getInstance().get(verdictKey);
+        if (verdict != null) {
+            LOG.info(requestIdentifier + "Stored verdict of resource (" + sourceRequest + ", blocked: " + verdict.isBlocked() + ", ISTag: " + verdictKey.getISTag() + ").");
+            ICAPVerdictCache.getInstance().put(verdictKey, verdict);
+        }
+        return verdict;
+    }
+
+
+    /**
+     * Get the ISTag of a header
+     *
+     * @param headers the headers
+     * @return the ISTag or null
+     */
+    private static String getISTag(final Map<String, List<String>> headers) {
+        if (headers == null) {
+            return null;
+        }
+        
+        final List<String> values = headers.get(ICAPConstants.HEADER_KEY_ISTAG);
+        if (values == null || values.isEmpty() || values.get(0) == null || values.get(0).isBlank()) {
+            return null;
+        }
+        return values.get(0).trim();
+    }
+
+    
+    /**
+     * Evaluate the response of a resource, a threat or a not identical content is signalled as {@link ContentBlockedException}
+     * 
+     * @param requestIdentifier the request identifier
+     * @param icapMode the icap mode
+     * @param sourceRequest the source request
+     * @param icapHeaderInformation the ICAP header information
+     * @param resourceResponse the resource response
+     * @return the ICAP header information
+     * @throws ContentBlockedException In case the content is blocked
      */
-    private String createCustomHeaders(final ICAPRequestInformation requestInformation) {
-        if (requestInformation.getCustomHeaders() == null || requestInformation.getCustomHeaders().isEmpty()) {
-            return "";
-        }
+    private ICAPHeaderInformation evaluateResponse(final String requestIdentifier, final ICAPMode icapMode, final String sourceRequest, 
+                                                   final ICAPHeaderInformation icapHeaderInformation, final ICAPResponseBuffer resourceResponse) throws ContentBlockedException {
+        icapHeaderInformation.getHeaders().remove(ICAPConstants.HEADER_KEY_X_ICAP_STATUSLINE);
         
-        final StringBuilder headers = new StringBuilder();
-        for (Map.Entry<String, String> e : requestInformation.getCustomHeaders().entrySet()) {
-            final String key = e.getKey().trim();
-            final String value = e.getValue().trim();
+        if (icapHeaderInformation.getStatus() == 200) {
+            String threadInformation = "";
+
+            for (Map.Entry<String, List<String>> e: icapHeaderInformation.getHeaders().entrySet()) {
+                if (e.getKey().toLowerCase().startsWith("x-")) {
+                    threadInformation += "- " + e.getKey() + ": " + e.getValue() + "\n";
+                }
+            }
             
-            if (key.equalsIgnoreCase("Host") || key.equalsIgnoreCase("Connection") || key.equalsIgnoreCase("User-Agent") || key.equalsIgnoreCase("Preview") || key.equalsIgnoreCase("Encapsulated") || key.equalsIgnoreCase("Allow")) {
-                LOG.warn("Invalid customer header [" + key + "], it's not allowed, ignore!");
-            } else if (!value.isEmpty()) {
-                headers.append(key).append(": ").append(value).append(NEWLINE);
+            // verify if there is a thread is found taken from header
+            if (hasThreadHeaderInformation(icapHeaderInformation)) {
+                String threadHeaderInformation = readThreadHeaderInformation(icapMode, icapHeaderInformation, resourceResponse);
+                String msg = "Threat found in resource (" + sourceRequest + ", http-status: " + icapHeaderInformation.getStatus() + "):\n" + threadInformation.trim();
+                LOG.info(requestIdentifier + msg);
+                throw new ContentBlockedException(msg, icapHeaderInformation, threadHeaderInformation);                    
+            } else if (supportCompareVerifyIdenticalContent 
+                    && icapHeaderInformation.containsHeader(ICAPConstants.HEADER_KEY_X_IDENTICAL_CONTENT) && !icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_IDENTICAL_CONTENT).isEmpty()
+                    && !Boolean.valueOf(icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_IDENTICAL_CONTENT).get(0))) {
+                String msg = "Not identical resource (" + sourceRequest + ", http-status: " + icapHeaderInformation.getStatus() + "):\n" + threadInformation.trim();
+                LOG.info(requestIdentifier + msg);
+                throw new ContentBlockedException(msg, icapHeaderInformation);                    
             }
         }
-        
-        return headers.toString();
+
+        LOG.info(requestIdentifier + "Valid resource (" + sourceRequest + ", http-status: " + icapHeaderInformation.getStatus() + ").");
+        return icapHeaderInformation;
     }
 
     
@@ -289,17 +1437,17 @@ public class ICAPClientImpl implements ICAPClient {
      * @param icapHeaderInformation the ICAP header information
      * @return the thread content information
      */
-    private String readThreadHeaderInformation(ICAPMode icapMode, ICAPHeaderInformation icapHeaderInformation, File resourceResponse) {
+    private String readThreadHeaderInformation(ICAPMode icapMode, ICAPHeaderInformation icapHeaderInformation, ICAPResponseBuffer resourceResponse) {
         String threadHeaderInformation = null;
 
         if (icapHeaderInformation.containsHeader(ICAPConstants.HEADER_KEY_ENCAPSULATED) && !icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_ENCAPSULATED).isEmpty()
-            && resourceResponse != null && resourceResponse.length() > 0 && resourceResponse.exists()) {                    
+            && resourceResponse != null && resourceResponse.length() > 0) {                    
             for (int i = 0; i < icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_ENCAPSULATED).size(); i++) {
                 String entry = icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_ENCAPSULATED).get(i);
                 String[] split = entry.split("=");
                 if (split.length > 1 && split[0].trim().equalsIgnoreCase(icapMode.getTag() + "-body")) {
                     try {
-                        threadHeaderInformation = new String(ICAPClientUtil.getInstance().readFile(resourceResponse), Charset.forName("UTF-8")).trim();
+                        threadHeaderInformation = new String(resourceResponse.toByteArray(), Charset.forName("UTF-8")).trim();
                     } catch (IOException e) {
                         LOG.warn("Could not read resource response: " + e.getMessage(), e);
                     }
@@ -341,8 +1489,8 @@ public class ICAPClientImpl implements ICAPClient {
     protected void validateICAPResource(final ICAPResource resource) throws IOException {
         if (resource == null 
                 || resource.getResourceName() == null || resource.getResourceName().isBlank() 
-                || resource.getResourceBody() == null 
-                || resource.getResourceLength() <= 0) {
+                || (resource.getResourceSource() == null && resource.getResourceBody() == null) 
+                || (resource.getResourceLength() <= 0 && resource.getResourceLength() != ICAPResource.UNKNOWN_LENGTH)) {
             throw new IOException("Invalid input resource!");
         }
     }
@@ -354,9 +1502,12 @@ public class ICAPClientImpl implements ICAPClient {
      * @param requestIdentifier the request identifier
      * @param icapSocket The icap socket
      * @param icapMode the icap mode
+     * @param remoteServiceConfiguration the remote service configuration
      * @param requestInformation the ICAP request information
      * @param resource the ICAP resource
      * @param resourceResponse the resource response
+     * @param fingerprinted true if the fingerprints of the request are calculated
+     * @param signatureScanner the scanner of the local signatures which scans a re-readable content while it's sent or null
      * @return the ICAP header information
      * @throws IOException In case of an I/O error
      * @throws ContentBlockedException In case the content is blocked
@@ -364,61 +1515,130 @@ public class ICAPClientImpl implements ICAPClient {
     protected ICAPHeaderInformation processResource(final String requestIdentifier,
                                                     final ICAPSocket icapSocket, 
                                                     final ICAPMode icapMode,
+                                                    final ICAPRemoteServiceConfiguration remoteServiceConfiguration,
                                                     final ICAPRequestInformation requestInformation, 
                                                     final ICAPResource resource,
-                                                    final File resourceResponse) throws IOException, ContentBlockedException {
-
-        // first part of header
-        String httpMethod = "GET";
-        String header = httpMethod + " /" + URLEncoder.encode(resource.getResourceName().trim(), StandardCharsets.UTF_8.name()) + " HTTP/1.1" + NEWLINE
-                        + "Host: " + requestInformation.getRequestSource() + NEWLINE + NEWLINE;
-        String body = header + "HTTP/1.1 200 OK" + NEWLINE + ICAPConstants.HEADER_KEY_TRANSFER_ENCODING + ": chunked" + NEWLINE 
-                      + ICAPConstants.HEADER_KEY_CONTENT_LENGTH + ": " + resource.getResourceLength() + NEWLINE + NEWLINE;
-        String reqHdr = "";
-        String bodyHdr = "";
-        if (ICAPMode.RESPMOD.equals(icapMode)) {
-            reqHdr = "req-hdr=0, ";
-            bodyHdr = icapMode.getTag() + "-hdr=" + header.length() + ", ";
-        } else {
-            reqHdr = "req-hdr=0, ";
+                                                    final ICAPResponseBuffer resourceResponse,
+                                                    final boolean fingerprinted,
+                                                    final ICAPSignaturePrefilter.Scanner signatureScanner) throws IOException, ContentBlockedException {
+        ICAPResourceSource resourceSource = resource.getResourceSource();
+        if (resourceSource == null) {
+            // the input stream can only be read once
+            resourceSource = new ICAPChannelSource(Channels.newChannel(resource.getResourceBody()), resource.getResourceLength());
         }
+        
+        try (ReadableByteChannel channel = resourceSource.openChannel()) {
+            return processResource(requestIdentifier, icapSocket, icapMode, remoteServiceConfiguration, requestInformation, resource, resourceResponse, resourceSource, channel, fingerprinted, signatureScanner);
+        }
+    }
+
+
+    /**
+     * Process a resource
+     *
+     * @param requestIdentifier the request identifier
+     * @param icapSocket The icap socket
+     * @param icapMode the icap mode
+     * @param remoteServiceConfiguration the remote service configuration
+     * @param requestInformation the ICAP request information
+     * @param resource the ICAP resource
+     * @param resourceResponse the resource response
+     * @param resourceSource the resource source
+     * @param channel the opened channel of the resource source
+     * @param fingerprinted true if the fingerprints of the request are calculated
+     * @param signatureScanner the scanner of the local signatures which scans a re-readable content while it's sent or null
+     * @return the ICAP header information
+     * @throws IOException In case of an I/O error
+     * @throws ContentBlockedException In case the content is blocked
+     */
+    private ICAPHeaderInformation processResource(final String requestIdentifier,
+                                                  final ICAPSocket icapSocket, 
+                                                  final ICAPMode icapMode,
+                                                  final ICAPRemoteServiceConfiguration remoteServiceConfiguration,
+                                                  final ICAPRequestInformation requestInformation, 
+                                                  final ICAPResource resource,
+                                                  final ICAPResponseBuffer resourceResponse,
+                                                  final ICAPResourceSource resourceSource,
+                                                  final ReadableByteChannel channel,
+                                                  final boolean fingerprinted,
+                                                  final ICAPSignaturePrefilter.Scanner signatureScanner) throws IOException, ContentBlockedException {
 
+        long resourceLength = resource.getResourceLength();
         int previewSize = remoteServiceConfiguration.getServerPreviewSize();
-        if (resource.getResourceLength() < previewSize) {
-            previewSize = (int) resource.getResourceLength();
-        }
-
-        String requestBuffer = "" + icapMode.name() + " icap://" + serviceInformation.getHostName() + ":" + serviceInformation.getServicePort() + "/" + serviceInformation.getServiceName() + " ICAP/" + requestInformation.getApiVersion() + NEWLINE 
-                             + "Host: " + serviceInformation.getHostName() + NEWLINE
-                             + "Connection:  close" + NEWLINE 
-                             + "User-Agent: " + requestInformation.getUserAgent() + NEWLINE 
-                             + createCustomHeaders(requestInformation)
-                             + supportAllow204(requestIdentifier, requestInformation.isAllow204())
-                             + "Preview: " + previewSize + NEWLINE 
-                             + "Encapsulated: " + reqHdr + bodyHdr + icapMode.getTag() + "-body=" + body.length() + NEWLINE + NEWLINE 
-                             + body
-                             + Integer.toHexString(previewSize) + NEWLINE;
-        icapSocket.write(requestBuffer);
+        if (resourceLength >= 0 && resourceLength < previewSize) {
+            previewSize = (int) resourceLength;
+        }
 
-        // sending preview or, if smaller than previewSize, the whole file.
+        // the preview is read before the header is sent: the end of a content with unknown length might be within the preview
         byte[] chunk = new byte[previewSize];
+        int readBytes = readFully(channel, chunk);
+        if (resourceLength < 0 && readBytes < previewSize) {
+            if (readBytes == 0) {
+                // same as an empty resource with known length, nothing is sent
+                ICAPHeaderMap headers = new ICAPHeaderMap();
+                headers.put(ICAPConstants.HEADER_KEY_X_RESOURCE_LENGTH, Arrays.asList("0"));
+                return new ICAPHeaderInformation().setHeaders(headers);
+            }
+            
+            resourceLength = readBytes;
+            previewSize = readBytes;
+        }
         
-        MessageDigest inputMessageDigest = ICAPClientUtil.getInstance().createMessageDigest(messageDigestAlgorithm);
-        DigestInputStream inputstream = new DigestInputStream(resource.getResourceBody(), inputMessageDigest); 
-        int readBytes = inputstream.read(chunk);
-        long totalReadBytes = readBytes;
+        // the fingerprint of a re-readable source is only calculated in case it's needed, only the sampled requests are fingerprinted
+        MessageDigest fingerprintDigest = null;
+        
+        // the content is matched against the local signatures while it's sent, the preview is checked before anything is sent
+        MessageDigest inputMessageDigest = null;
+        ICAPSignaturePrefilter.Scanner scanner = null;
+        if (resourceSource.isRereadable()) {
+            scanner = signatureScanner;
+            if (scanner != null && scanner.update(chunk, 0, readBytes)) {
+                throw createSignatureBlockedException(requestIdentifier, requestInformation.prepareSourceRequest(resource), scanner.getMatch());
+            }
+        } else {
+            fingerprintDigest = fingerprinted ? fingerprint.createMessageDigest() : null;
+            inputMessageDigest = fingerprintDigest;
+            scanner = ICAPSignaturePrefilter.getInstance().createScanner();
+            if (scanner != null) {
+                inputMessageDigest = new ICAPSignaturePrefilter.ScanningMessageDigest(inputMessageDigest, scanner);
+            }
+            
+            if (inputMessageDigest != null) {
+                inputMessageDigest.update(chunk, 0, readBytes);
+            }
+            if (scanner != null && scanner.isMatched()) {
+                throw createSignatureBlockedException(requestIdentifier, requestInformation.prepareSourceRequest(resource), scanner.getMatch());
+            }
+        }
+
+        // the static parts of the header are pre-encoded, only the variable parts are spliced in
+        final ICAPRequestTemplate requestTemplate = getRequestTemplate(requestIdentifier, icapMode, remoteServiceConfiguration, requestInformation);
+        final ICAPRequestBuffer requestBuffer = REQUEST_BUFFER.get().reset();
+        requestTemplate.write(requestBuffer, resource.getResourceName(), requestInformation.getRequestSource(), resourceLength, previewSize);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(requestIdentifier + "Send request:\n" + requestBuffer);
+        }
+        icapSocket.write(requestBuffer.array(), 0, requestBuffer.length());
+        if (requestBuffer.capacity() > MAX_REQUEST_BUFFER_SIZE) {
+            REQUEST_BUFFER.remove();
+        }
+
+        // sending preview or, if smaller than previewSize, the whole file.
         icapSocket.write(chunk, 0, readBytes);
-        icapSocket.write(NEWLINE);
-        if (resource.getResourceLength() <= previewSize) {
-            icapSocket.write("0; ieof" + ICAP_END_SEPARATOR);
+        icapSocket.write(NEWLINE_BYTES);
+        
+        // header, preview and terminator are sent together
+        final boolean completeInPreview = resourceLength >= 0 && resourceLength <= previewSize;
+        if (completeInPreview) {
+            icapSocket.write(IEOF_END_SEPARATOR_BYTES);
             icapSocket.flush();
         } else if (previewSize != 0) {
-            icapSocket.write(HTTP_END_SEPARATOR);
+            icapSocket.write(HTTP_END_SEPARATOR_BYTES);
             icapSocket.flush();
         }
 
         // parse the response; it might not be "100 continue" if fileSize < previewSize, then this is actually the respond otherwise it is a "go" for the rest of the file.
-        if (resource.getResourceLength() > previewSize) {
+        if (!completeInPreview) {
             ICAPHeaderInformation icapHeaderInformation = icapSocket.readICAPResponse(requestIdentifier, ICAP_END_SEPARATOR, bufferSize);
             switch (icapHeaderInformation.getStatus()) {
                 case 100: break; // continue transfer
@@ -430,25 +1650,44 @@ public class ICAPClientImpl implements ICAPClient {
         }
 
         // sending remaining part of file
-        if (resource.getResourceLength() > previewSize) {
-            byte[] buffer = new byte[bufferSize];
-            readBytes = -1;
-            while ((readBytes = inputstream.read(buffer)) != -1) {
-                totalReadBytes += readBytes;               
+        long sentLength = readBytes;
+        if (!completeInPreview) {
+            if (resourceLength < 0) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(requestIdentifier + "Stream remaining bytes of unknown length...");
+                }
+                sentLength += writeChannel(icapSocket, channel, inputMessageDigest);
+            } else {
                 if (LOG.isDebugEnabled()) {
-                    LOG.debug(requestIdentifier + "Send next block of " + readBytes + " bytes (total sent: " + totalReadBytes + " bytes)...");
+                    LOG.debug(requestIdentifier + "Send remaining " + (resourceLength - readBytes) + " bytes...");
+                }
+                
+                if (channel instanceof FileChannel) {
+                    icapSocket.writeChunks((FileChannel)channel, readBytes, resourceLength - readBytes, scanner);
+                    sentLength = resourceLength;
+                } else if (resourceSource.isRereadable()) {
+                    writeSource(icapSocket, resourceSource, readBytes, scanner);
+                    sentLength = resourceLength;
+                } else {
+                    sentLength += writeChannel(icapSocket, channel, inputMessageDigest);
                 }
-                icapSocket.write((Integer.toHexString(readBytes) + NEWLINE));
-                icapSocket.write(buffer, 0, readBytes);
-                icapSocket.write(NEWLINE);
             }
             
+            // the request is not terminated, therefore the connection is not reused
+            if (scanner != null && scanner.isMatched()) {
+                throw createSignatureBlockedException(requestIdentifier, requestInformation.prepareSourceRequest(resource), scanner.getMatch());
+            }
+
             // closing resource transfer.
-            icapSocket.write(HTTP_END_SEPARATOR);
+            icapSocket.write(HTTP_END_SEPARATOR_BYTES);
             icapSocket.flush();
         }
         
         ICAPHeaderInformation icapHeaderInformation = icapSocket.readICAPResponse(requestIdentifier, ICAP_END_SEPARATOR, bufferSize);
+        if (resource.getResourceLength() < 0) {
+            icapHeaderInformation.getHeaders().put(ICAPConstants.HEADER_KEY_X_RESOURCE_LENGTH, Arrays.asList("" + sentLength));
+        }
+        
         if (icapHeaderInformation.getStatus() == 204) { // unmodified
             return icapHeaderInformation;
         } 
@@ -464,39 +1703,243 @@ public class ICAPClientImpl implements ICAPClient {
             }
 
             boolean couldProcessFullContent;
-            MessageDigest outputMessageDigest = ICAPClientUtil.getInstance().createMessageDigest(messageDigestAlgorithm);
-            try (DigestOutputStream outputstream = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(resourceResponse)), outputMessageDigest)) {
-                //int parsedResult = (int) Long.parseLong(hex, 16);
-                couldProcessFullContent = (icapSocket.processContent(outputstream) >= 0);
-                outputstream.flush();
-                outputstream.close();
-            }
+            MessageDigest outputMessageDigest = fingerprinted ? fingerprint.createMessageDigest() : null;
+            // the response buffer is closed by the caller, it's read afterwards in case of a threat
+            OutputStream outputstream = (outputMessageDigest != null) ? new DigestOutputStream(resourceResponse, outputMessageDigest) : resourceResponse;
+            couldProcessFullContent = (icapSocket.processContent(outputstream) >= 0);
+            outputstream.flush();
             icapSocket.flush();
             icapSocket.close();
             
-            String inputMsg = ICAPClientUtil.getInstance().messageDigestToString(messageDigestAlgorithm, inputMessageDigest);
-            icapHeaderInformation.getHeaders().put(ICAPConstants.HEADER_KEY_X_REQUEST_MESSAGE_DIGEST, Arrays.asList(inputMsg));
-            String outputMsg = ICAPClientUtil.getInstance().messageDigestToString(messageDigestAlgorithm, outputMessageDigest);            
-            icapHeaderInformation.getHeaders().put(ICAPConstants.HEADER_KEY_X_RESPONSE_MESSAGE_DIGEST, Arrays.asList(outputMsg));
+            if (outputMessageDigest != null) {
+                verifyContent(requestIdentifier, icapHeaderInformation, resourceSource, fingerprintDigest, outputMessageDigest, couldProcessFullContent, sentLength, resourceResponse);
+            }
+            return icapHeaderInformation;
+        }
+        
+        throw new IOException("Unrecognized or no status code in response header: " + icapHeaderInformation.getStatus() + "!");
+    }
+
+
+    /**
+     * Add the message digests of the request and the response and compare the content if it's supported
+     *
+     * @param requestIdentifier the request identifier
+     * @param icapHeaderInformation the ICAP header information
+     * @param resourceSource the resource source
+     * @param inputMessageDigest the message digest of the sent content or null to calculate it from the re-readable source
+     * @param outputMessageDigest the message digest of the response
+     * @param couldProcessFullContent true if the whole response was read
+     * @param sentLength the sent length
+     * @param resourceResponse the resource response
+     * @throws IOException In case of an I/O error
+     */
+    private void verifyContent(final String requestIdentifier,
+                               final ICAPHeaderInformation icapHeaderInformation,
+                               final ICAPResourceSource resourceSource,
+                               final MessageDigest inputMessageDigest,
+                               final MessageDigest outputMessageDigest,
+                               final boolean couldProcessFullContent,
+                               final long sentLength,
+                               final ICAPResponseBuffer resourceResponse) throws IOException {
+        MessageDigest requestMessageDigest = inputMessageDigest;
+        if (requestMessageDigest == null) {
+            requestMessageDigest = digest(resourceSource, fingerprint.createMessageDigest());
+        }
+        String inputMsg = ICAPClientUtil.getInstance().messageDigestToString(fingerprint.getAlgorithm(), requestMessageDigest);
+        icapHeaderInformation.getHeaders().put(ICAPConstants.HEADER_KEY_X_REQUEST_MESSAGE_DIGEST, Arrays.asList(inputMsg));
+        String outputMsg = ICAPClientUtil.getInstance().messageDigestToString(fingerprint.getAlgorithm(), outputMessageDigest);            
+        icapHeaderInformation.getHeaders().put(ICAPConstants.HEADER_KEY_X_RESPONSE_MESSAGE_DIGEST, Arrays.asList(outputMsg));
 
-            if (LOG.isDebugEnabled()) {
-                LOG.debug(requestIdentifier + "Resource length: " + resource.getResourceLength() + ", Response length: " + resourceResponse.length() + "?");
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(requestIdentifier + "Resource length: " + sentLength + ", Response length: " + resourceResponse.length() + "?");
+        }
+        
+        if (supportCompareVerifyIdenticalContent) {
+            boolean identicalContent = couldProcessFullContent && sentLength == resourceResponse.length() && inputMsg.equals(outputMsg);
+            if (identicalContent) {
+                icapHeaderInformation.getHeaders().put(ICAPConstants.HEADER_KEY_X_IDENTICAL_CONTENT, Arrays.asList("" + identicalContent));
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(requestIdentifier + "Input and output are equal -> allow, it's a valid response!");
+                }
             }
-            
-            if (supportCompareVerifyIdenticalContent) {
-                boolean identicalContent = couldProcessFullContent && resource.getResourceLength() == resourceResponse.length() && inputMsg.equals(outputMsg);
-                if (identicalContent) {
-                    icapHeaderInformation.getHeaders().put(ICAPConstants.HEADER_KEY_X_IDENTICAL_CONTENT, Arrays.asList("" + identicalContent));
-                    if (LOG.isDebugEnabled()) {
-                        LOG.debug(requestIdentifier + "Input and output are equal -> allow, it's a valid response!");
+        }
+    }
+
+
+    /**
+     * Read from a channel until the buffer is full or the end of the channel is reached
+     *
+     * @param channel the channel
+     * @param buffer the buffer to fill
+     * @return the number of read bytes
+     * @throws IOException In case of an I/O error
+     */
+    private static int readFully(final ReadableByteChannel channel, final byte[] buffer) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer);
+        while (target.hasRemaining()) {
+            if (channel.read(target) < 0) {
+                break;
+            }
+        }
+        return target.position();
+    }
+
+
+    /**
+     * Write a re-readable source from a position as chunks. The well-known sources are written directly to the socket. In case the scanner
+     * matches a local signature, the writing stops before the matching chunk is sent.
+     *
+     * @param icapSocket the icap socket
+     * @param resourceSource the resource source
+     * @param position the position in the source
+     * @param scanner the scanner of the local signatures or null
+     * @throws IOException In case of an I/O error
+     */
+    private void writeSource(final ICAPSocket icapSocket, final ICAPResourceSource resourceSource, final long position, final ICAPSignaturePrefilter.Scanner scanner) throws IOException {
+        if (resourceSource instanceof ICAPByteBufferSource) {
+            ByteBuffer data = ((ICAPByteBufferSource)resourceSource).getBuffer();
+            data.position(data.position() + (int)position);
+            icapSocket.writeChunks(data, scanner);
+        } else if (resourceSource instanceof ICAPFileSource) {
+            try (FileChannel fileChannel = ((ICAPFileSource)resourceSource).openChannel()) {
+                icapSocket.writeChunks(fileChannel, position, resourceSource.getLength() - position, scanner);
+            }
+        } else if (resourceSource instanceof ICAPChannelSource && ((ICAPChannelSource)resourceSource).getChannel() instanceof FileChannel) {
+            final ICAPChannelSource channelSource = (ICAPChannelSource)resourceSource;
+            icapSocket.writeChunks((FileChannel)channelSource.getChannel(), channelSource.getStartPosition() + position, resourceSource.getLength() - position, scanner);
+        } else if (resourceSource instanceof ICAPCompositeSource) {
+            long segmentPosition = position;
+            for (ICAPResourceSource segment : ((ICAPCompositeSource)resourceSource).getSegments()) {
+                if (scanner != null && scanner.isMatched()) {
+                    return;
+                }
+                
+                if (segmentPosition >= segment.getLength()) {
+                    segmentPosition -= segment.getLength();
+                } else {
+                    writeSource(icapSocket, segment, segmentPosition, scanner);
+                    segmentPosition = 0;
+                }
+            }
+        } else {
+            try (ReadableByteChannel channel = resourceSource.openChannel()) {
+                skip(channel, position);
+                // without a digest the message digest only scans the content
+                writeChannel(icapSocket, channel, (scanner != null) ? new ICAPSignaturePrefilter.ScanningMessageDigest(null, scanner) : null);
+            }
+        }
+    }
+
+
+    /**
+     * Write the remaining content of a channel as chunks. In case the message digest matches a local signature, the writing stops
+     * before the matching chunk is sent.
+     *
+     * @param icapSocket the icap socket
+     * @param channel the channel
+     * @param messageDigest the message digest to update or null
+     * @return the number of written bytes
+     * @throws IOException In case of an I/O error
+     */
+    private long writeChannel(final ICAPSocket icapSocket, final ReadableByteChannel channel, final MessageDigest messageDigest) throws IOException {
+        final byte[] buffer = new byte[bufferSize];
+        final ByteBuffer target = ByteBuffer.wrap(buffer);
+        final ICAPSignaturePrefilter.Scanner scanner = (messageDigest instanceof ICAPSignaturePrefilter.ScanningMessageDigest) 
+                ? ((ICAPSignaturePrefilter.ScanningMessageDigest)messageDigest).getScanner() : null;
+        long writtenBytes = 0;
+        int readBytes;
+        while ((readBytes = channel.read(target)) != -1) {
+            if (readBytes > 0) {
+                if (messageDigest != null) {
+                    messageDigest.update(buffer, 0, readBytes);
+                    if (scanner != null && scanner.isMatched()) {
+                        break;
                     }
                 }
+                icapSocket.writeChunk(buffer, 0, readBytes);
+                writtenBytes += readBytes;
             }
+            target.clear();
+        }
+        return writtenBytes;
+    }
 
-            return icapHeaderInformation;
+
+    /**
+     * Skip bytes of a channel
+     *
+     * @param channel the channel
+     * @param length the number of bytes to skip
+     * @throws IOException In case of an I/O error
+     */
+    private void skip(final ReadableByteChannel channel, final long length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(bufferSize, Math.max(1, length)));
+        long remaining = length;
+        while (remaining > 0) {
+            buffer.clear().limit((int)Math.min(buffer.capacity(), remaining));
+            int n = channel.read(buffer);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of the resource!");
+            }
+            remaining -= n;
+        }
+    }
+
+
+    /**
+     * Calculate the digest of a re-readable source, files are memory-mapped in windows
+     *
+     * @param resourceSource the resource source
+     * @param messageDigest the message digest
+     * @return the message digest
+     * @throws IOException In case of an I/O error
+     */
+    private MessageDigest digest(final ICAPResourceSource resourceSource, final MessageDigest messageDigest) throws IOException {
+        if (resourceSource instanceof ICAPByteBufferSource) {
+            messageDigest.update(((ICAPByteBufferSource)resourceSource).getBuffer());
+        } else if (resourceSource instanceof ICAPFileSource) {
+            try (FileChannel fileChannel = ((ICAPFileSource)resourceSource).openChannel()) {
+                digest(fileChannel, 0, resourceSource.getLength(), messageDigest);
+            }
+        } else if (resourceSource instanceof ICAPChannelSource && ((ICAPChannelSource)resourceSource).getChannel() instanceof FileChannel) {
+            final ICAPChannelSource channelSource = (ICAPChannelSource)resourceSource;
+            digest((FileChannel)channelSource.getChannel(), channelSource.getStartPosition(), resourceSource.getLength(), messageDigest);
+        } else if (resourceSource instanceof ICAPCompositeSource) {
+            for (ICAPResourceSource segment : ((ICAPCompositeSource)resourceSource).getSegments()) {
+                digest(segment, messageDigest);
+            }
+        } else {
+            try (ReadableByteChannel channel = resourceSource.openChannel()) {
+                final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    messageDigest.update(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+        return messageDigest;
+    }
+
+
+    /**
+     * Calculate the digest of a file region, it's memory-mapped in windows
+     *
+     * @param fileChannel the file channel
+     * @param position the position
+     * @param length the length
+     * @param messageDigest the message digest
+     * @throws IOException In case of an I/O error
+     */
+    private static void digest(final FileChannel fileChannel, final long position, final long length, final MessageDigest messageDigest) throws IOException {
+        final long end = position + length;
+        long pos = position;
+        while (pos < end) {
+            long windowLength = Math.min(MAX_MAPPED_SIZE, end - pos);
+            messageDigest.update(fileChannel.map(FileChannel.MapMode.READ_ONLY, pos, windowLength));
+            pos += windowLength;
         }
-        
-        throw new IOException("Unrecognized or no status code in response header: " + icapHeaderInformation.getStatus() + "!");
     }
 
 
@@ -504,13 +1947,14 @@ public class ICAPClientImpl implements ICAPClient {
      * Check allow 204 support
      * 
      * @param requestIdentifier the equest identifier
+     * @param serverAllow204 true if the server supports allow 204
      * @param isAllow204 the request information
      * @return the request string
      */
-    protected String supportAllow204(final String requestIdentifier, final Boolean isAllow204) {
+    protected String supportAllow204(final String requestIdentifier, final boolean serverAllow204, final Boolean isAllow204) {
         
         String serverReason = "suppported by the icap-server";    
-        if (!remoteServiceConfiguration.isServerAllow204()) {
+        if (!serverAllow204) {
             serverReason = "not " + serverReason;    
         }
 
@@ -523,7 +1967,7 @@ public class ICAPClientImpl implements ICAPClient {
 
         String selectAllow204Reason = "Not use allow 204";
         String allow204Request = "";
-        if (remoteServiceConfiguration.isServerAllow204() && (isAllow204 == null || isAllow204.booleanValue())) {
+        if (serverAllow204 && (isAllow204 == null || isAllow204.booleanValue())) {
             selectAllow204Reason = "Use allow 204";
             allow204Request = "Allow: 204" + NEWLINE;
         }
@@ -558,4 +2002,353 @@ public class ICAPClientImpl implements ICAPClient {
             throw new IOException("Invalid request information!");
         }
     }
+
+
+    /**
+     * Produces the remaining body of a re-readable source as chunks for the non-blocking transport. The source is read only if
+     * the previous chunk was written, a slow connection therefore doesn't buffer the source. Over a secure connection a chunk
+     * including its framing fills exactly one TLS record. With an executor the source is read by the executor one chunk ahead,
+     * e.g. a slow disk doesn't block the event loop.
+     */
+    private final class SourceBodyProducer implements ICAPNioExchange.BodyProducer {
+        private static final int CHUNK_HEADER_SIZE = 10;
+        private static final int MAX_TLS_RECORD_SIZE = 16384;
+        private final ICAPResourceSource resourceSource;
+        private final long position;
+        private final int chunkSize;
+        private final Executor executor;
+        private final ICAPSignaturePrefilter.Scanner scanner;
+        private final ByteBuffer[] buffers;
+        private final Object lock;
+        private int nextBuffer;
+        private ReadableByteChannel channel;
+        private ByteBuffer readPart;
+        private IOException readError;
+        private Runnable callback;
+        private boolean lastChunk;
+        private boolean reading;
+        private boolean waiting;
+        private boolean closed;
+
+
+        /**
+         * Constructor for SourceBodyProducer
+         *
+         * @param resourceSource the resource source
+         * @param position the position of the remaining body
+         * @param secure true if the body is sent over a secure connection
+         * @param executor the executor which reads the source or null to read it by the caller
+         * @param scanner the scanner of the local signatures or null
+         */
+        SourceBodyProducer(ICAPResourceSource resourceSource, long position, boolean secure, Executor executor, ICAPSignaturePrefilter.Scanner scanner) {
+            this.resourceSource = resourceSource;
+            this.position = position;
+            this.chunkSize = secure ? (MAX_TLS_RECORD_SIZE - CHUNK_HEADER_SIZE - NEWLINE_BYTES.length) : bufferSize;
+            this.executor = executor;
+            this.scanner = scanner;
+            this.buffers = new ByteBuffer[2];
+            this.lock = new Object();
+            this.nextBuffer = 0;
+            this.channel = null;
+            this.readPart = null;
+            this.readError = null;
+            this.callback = null;
+            this.lastChunk = false;
+            this.reading = false;
+            this.waiting = false;
+            this.closed = false;
+        }
+
+
+        /**
+         * @see com.github.toolarium.icap.client.impl.ICAPNioExchange.BodyProducer#onAvailable(java.lang.Runnable)
+         */
+        @Override
+        public void onAvailable(Runnable callback) {
+            synchronized (lock) {
+                this.callback = callback;
+            }
+        }
+
+
+        /**
+         * @see com.github.toolarium.icap.client.impl.ICAPNioExchange.BodyProducer#next()
+         */
+        @Override
+        public ByteBuffer next() throws IOException {
+            if (executor == null) {
+                if (lastChunk) {
+                    return null;
+                }
+
+                final ByteBuffer part = read(getBuffer());
+                if (part == null) {
+                    lastChunk = true;
+                    return ByteBuffer.wrap(HTTP_END_SEPARATOR_BYTES);
+                }
+                return part;
+            }
+
+            synchronized (lock) {
+                if (readPart == null && !lastChunk) {
+                    startRead();
+                }
+                
+                if (readError != null) {
+                    throw readError;
+                }
+
+                if (readPart == null) {
+                    if (lastChunk) {
+                        return null;
+                    }
+                    
+                    waiting = true;
+                    return ByteBuffer.allocate(0);
+                }
+
+                // the part is written while the next part is read into the other buffer
+                final ByteBuffer part = readPart;
+                readPart = null;
+                startRead();
+                return part;
+            }
+        }
+
+
+        /**
+         * @see java.io.Closeable#close()
+         */
+        @Override
+        public void close() throws IOException {
+            synchronized (lock) {
+                closed = true;
+                if (reading) {
+                    // the channel is closed by the pending read
+                    return;
+                }
+            }
+
+            closeChannel();
+        }
+
+
+        /**
+         * Start to read the next part by the executor, it's called under the lock
+         *
+         * @throws IOException In case the executor rejects the read
+         */
+        private void startRead() throws IOException {
+            if (reading || lastChunk || closed || readError != null) {
+                return;
+            }
+
+            final ByteBuffer buffer = getBuffer();
+            reading = true;
+            try {
+                executor.execute(() -> readAsync(buffer));
+            } catch (RejectedExecutionException e) {
+                reading = false;
+                throw new IOException("Could not read the resource: " + e.getMessage(), e);
+            }
+        }
+
+
+        /**
+         * Read the next part by the executor and notify the waiting exchange
+         *
+         * @param buffer the buffer
+         */
+        private void readAsync(ByteBuffer buffer) {
+            ByteBuffer part = null;
+            IOException error = null;
+            try {
+                part = read(buffer);
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException("Could not read the resource: " + e.getMessage(), e);
+            }
+
+            Runnable notify = null;
+            boolean closeChannel;
+            synchronized (lock) {
+                reading = false;
+                readError = error;
+                if (error == null) {
+                    if (part == null) {
+                        lastChunk = true;
+                        part = ByteBuffer.wrap(HTTP_END_SEPARATOR_BYTES);
+                    }
+                    readPart = part;
+                }
+
+                closeChannel = closed;
+                if (waiting) {
+                    waiting = false;
+                    notify = callback;
+                }
+            }
+
+            if (closeChannel) {
+                try {
+                    closeChannel();
+                } catch (IOException e) {
+                    LOG.debug("Could not close the resource: " + e.getMessage());
+                }
+            } else if (notify != null) {
+                notify.run();
+            }
+        }
+
+
+        /**
+         * Read the next chunk into a buffer, the channel is opened by the first read. In case the chunk matches a local signature
+         * the exchange is failed before the chunk is sent.
+         *
+         * @param buffer the buffer
+         * @return the encoded chunk or null at the end of the source
+         * @throws IOException In case of an I/O error
+         */
+        private ByteBuffer read(ByteBuffer buffer) throws IOException {
+            if (channel == null) {
+                channel = resourceSource.openChannel();
+                skip(channel, position);
+            }
+
+            // the data is read behind the space of the chunk header, the header is placed right before the data
+            buffer.clear().position(CHUNK_HEADER_SIZE).limit(CHUNK_HEADER_SIZE + chunkSize);
+            int readBytes;
+            do {
+                readBytes = channel.read(buffer);
+            } while (readBytes == 0);
+            
+            if (readBytes < 0) {
+                return null;
+            }
+
+            if (scanner != null && scanner.update(buffer.array(), CHUNK_HEADER_SIZE, readBytes)) {
+                throw new IOException("Local signature " + scanner.getMatch() + " matched!");
+            }
+
+            final byte[] chunkHeader = (Integer.toHexString(readBytes) + NEWLINE).getBytes(StandardCharsets.US_ASCII);
+            final int start = CHUNK_HEADER_SIZE - chunkHeader.length;
+            buffer.limit(buffer.capacity());
+            buffer.put(NEWLINE_BYTES);
+            final int end = buffer.position();
+            buffer.position(start);
+            buffer.put(chunkHeader);
+            return buffer.position(start).limit(end);
+        }
+
+
+        /**
+         * Get the buffer of the next read, the buffers are used alternately and allocated lazily
+         *
+         * @return the buffer
+         */
+        private ByteBuffer getBuffer() {
+            if (buffers[nextBuffer] == null) {
+                buffers[nextBuffer] = ByteBuffer.allocate(CHUNK_HEADER_SIZE + chunkSize + NEWLINE_BYTES.length);
+            }
+
+            final ByteBuffer buffer = buffers[nextBuffer];
+            if (executor != null) {
+                nextBuffer = 1 - nextBuffer;
+            }
+            return buffer;
+        }
+
+
+        /**
+         * Close the channel of the source
+         *
+         * @throws IOException In case of an I/O error
+         */
+        private void closeChannel() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+
+    /**
+     * Keeps the last custom headers and the created header string
+     */
+    private static final class CustomHeaders {
+        private final Map<String, String> customHeaders;
+        private final String headers;
+
+
+        /**
+         * Constructor for CustomHeaders
+         *
+         * @param customHeaders the custom headers
+         * @param headers the header string
+         */
+        CustomHeaders(Map<String, String> customHeaders, String headers) {
+            this.customHeaders = customHeaders;
+            this.headers = headers;
+        }
+    }
+
+
+    /**
+     * Defines the key of a request template
+     */
+    private static final class RequestTemplateKey {
+        private final ICAPMode icapMode;
+        private final String apiVersion;
+        private final String userAgent;
+        private final String customHeaders;
+        private final String allow204;
+
+
+        /**
+         * Constructor for RequestTemplateKey
+         *
+         * @param icapMode the mode
+         * @param apiVersion the ICAP version
+         * @param userAgent the user agent
+         * @param customHeaders the custom headers
+         * @param allow204 the allow 204 header
+         */
+        RequestTemplateKey(ICAPMode icapMode, String apiVersion, String userAgent, String customHeaders, String allow204) {
+            this.icapMode = icapMode;
+            this.apiVersion = apiVersion;
+            this.userAgent = userAgent;
+            this.customHeaders = customHeaders;
+            this.allow204 = allow204;
+        }
+
+
+        /**
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return Objects.hash(icapMode, apiVersion, userAgent, customHeaders, allow204);
+        }
+
+
+        /**
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            
+            if (!(obj instanceof RequestTemplateKey)) {
+                return false;
+            }
+            
+            RequestTemplateKey other = (RequestTemplateKey) obj;
+            return icapMode == other.icapMode && Objects.equals(apiVersion, other.apiVersion) && Objects.equals(userAgent, other.userAgent)
+                    && Objects.equals(customHeaders, other.customHeaders) && Objects.equals(allow204, other.allow204);
+        }
+    }
 }
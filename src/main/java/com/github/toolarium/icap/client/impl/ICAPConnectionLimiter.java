@@ -0,0 +1,196 @@
+/*
+ * ICAPConnectionLimiter.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import com.github.toolarium.icap.client.util.ICAPInFlightCounter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Limits the outstanding connections to an ICAP service. The limit is taken from the <code>Max-Connections</code>
+ * of the OPTIONS response. Callers above the limit are queued until a connection is released or the wait time is elapsed.
+ * Non-blocking callers register a listener which is notified with the next release. The limiter of a service keeps the 
+ * {@link ICAPInFlightCounter} of its batch validations as well.
+ *
+ * @author patrick
+ */
+public class ICAPConnectionLimiter {
+    /** Unlimited connections */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final ResizableSemaphore semaphore;
+    private final ConcurrentLinkedQueue<Runnable> releaseListeners;
+    private final ICAPInFlightCounter inFlightCounter;
+    private int maxConnections;
+
+
+    /**
+     * Constructor for ICAPConnectionLimiter
+     */
+    public ICAPConnectionLimiter() {
+        this.maxConnections = UNLIMITED;
+        this.semaphore = new ResizableSemaphore(UNLIMITED);
+        this.releaseListeners = new ConcurrentLinkedQueue<Runnable>();
+        this.inFlightCounter = new ICAPInFlightCounter();
+    }
+
+
+    /**
+     * Get the max connections
+     *
+     * @return the max connections or {@link #UNLIMITED}
+     */
+    public synchronized int getMaxConnections() {
+        return maxConnections;
+    }
+
+
+    /**
+     * Set the max connections
+     *
+     * @param maxConnections the max connections; null or a value less or equal zero is interpreted as unlimited
+     */
+    public synchronized void setMaxConnections(Integer maxConnections) {
+        int newMaxConnections = UNLIMITED;
+        if (maxConnections != null && maxConnections.intValue() > 0) {
+            newMaxConnections = maxConnections.intValue();
+        }
+
+        int delta = newMaxConnections - this.maxConnections;
+        if (delta > 0) {
+            semaphore.release(delta);
+        } else if (delta < 0) {
+            semaphore.reducePermits(-delta);
+        }
+        this.maxConnections = newMaxConnections;
+        
+        if (delta > 0) {
+            notifyReleaseListeners();
+        }
+    }
+
+
+    /**
+     * Get the counter of the in-flight scans and bytes of the batch validations of the service
+     *
+     * @return the in-flight counter
+     */
+    public ICAPInFlightCounter getInFlightCounter() {
+        return inFlightCounter;
+    }
+
+
+    /**
+     * Get the number of available connections
+     *
+     * @return the number of available connections
+     */
+    public int getAvailableConnections() {
+        return semaphore.availablePermits();
+    }
+
+
+    /**
+     * Acquire a connection
+     *
+     * @param service the service, used for the error message
+     * @param maxWaitTime the max wait time in milliseconds. A wait time of null or zero are interpreted as an infinite wait time.
+     * @throws IOException In case the max connections are reached and no connection was released in time
+     */
+    public void acquire(String service, Integer maxWaitTime) throws IOException {
+        try {
+            if (maxWaitTime == null || maxWaitTime.intValue() <= 0) {
+                semaphore.acquire();
+            } else if (!semaphore.tryAcquire(maxWaitTime.longValue(), TimeUnit.MILLISECONDS)) {
+                throw new IOException("Max connections (" + getMaxConnections() + ") to [" + service + "] reached!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection to [" + service + "]!");
+        }
+    }
+
+
+    /**
+     * Try to acquire a connection without waiting
+     *
+     * @return true if a connection could be acquired
+     */
+    public boolean tryAcquire() {
+        return semaphore.tryAcquire();
+    }
+
+
+    /**
+     * Register a listener which is notified once with the next release of a connection, e.g. to retry a {@link #tryAcquire()} 
+     * without polling. The listener must not block.
+     *
+     * @param listener the listener
+     */
+    public void notifyOnRelease(Runnable listener) {
+        releaseListeners.add(listener);
+    }
+
+
+    /**
+     * Release a connection
+     */
+    public void release() {
+        semaphore.release();
+        notifyReleaseListeners();
+    }
+
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "ICAPConnectionLimiter [maxConnections=" + getMaxConnections() + ", availableConnections=" + getAvailableConnections() + "]";
+    }
+
+
+    /**
+     * Notify the registered release listeners
+     */
+    private void notifyReleaseListeners() {
+        Runnable listener;
+        while ((listener = releaseListeners.poll()) != null) {
+            listener.run();
+        }
+    }
+
+
+    /**
+     * Semaphore which supports to reduce the permits
+     */
+    private static class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 3962731208174470331L;
+
+
+        /**
+         * Constructor for ResizableSemaphore
+         *
+         * @param permits the permits
+         */
+        ResizableSemaphore(int permits) {
+            super(permits, true);
+        }
+
+
+        /**
+         * @see java.util.concurrent.Semaphore#reducePermits(int)
+         */
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -10,8 +10,13 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 
 
 /**
@@ -20,8 +25,18 @@ import javax.net.ssl.SSLSocketFactory;
  * @author patrick
  */
 public class ICAPConnectionManagerImpl implements ICAPConnectionManager {
+    /** The default number of cached TLS sessions */
+    public static final int DEFAULT_SSL_SESSION_CACHE_SIZE = 1000;
+
     private Integer defaultSocketConnectionTimeout;
     private Integer defaultSocketReadTimeout;
+    private volatile boolean tcpNoDelay = true;
+    private volatile Integer sendBufferSize;
+    private volatile SSLContext sslContext;
+    private volatile String[] enabledProtocols;
+    private volatile String[] enabledCipherSuites;
+    private volatile int sslSessionCacheSize = DEFAULT_SSL_SESSION_CACHE_SIZE;
+    private volatile Integer sslSessionTimeout;
 
 
     /**
@@ -37,6 +52,24 @@ public class ICAPConnectionManagerImpl implements ICAPConnectionManager {
     }
 
 
+    /**
+     * @see com.github.toolarium.icap.client.ICAPConnectionManager#releaseSocket(java.net.Socket, boolean)
+     */
+    @Override
+    public void releaseSocket(Socket socket, boolean reusable) {
+        closeSocket(socket);
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.ICAPConnectionManager#isKeepAlive()
+     */
+    @Override
+    public boolean isKeepAlive() {
+        return false;
+    }
+
+
     /**
      * @see com.github.toolarium.icap.client.ICAPConnectionManager#setDefaultSocketConnectionTimeout(java.lang.Integer)
      */
@@ -55,6 +88,156 @@ public class ICAPConnectionManagerImpl implements ICAPConnectionManager {
     }
 
 
+    /**
+     * @see com.github.toolarium.icap.client.ICAPConnectionManager#setTcpNoDelay(boolean)
+     */
+    @Override
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+
+    /**
+     * Check if the TCP_NODELAY option is set
+     *
+     * @return true if the TCP_NODELAY option is set
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.ICAPConnectionManager#setSendBufferSize(java.lang.Integer)
+     */
+    @Override
+    public void setSendBufferSize(Integer sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+
+    /**
+     * Get the send buffer size
+     *
+     * @return the send buffer size or null
+     */
+    public Integer getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+
+    /**
+     * Set the SSL context of the secure connections. All secure connections share the context, e.g. its session cache 
+     * allows to resume the TLS sessions instead of a full handshake per connection.
+     *
+     * @param sslContext the SSL context or null to use a default context
+     */
+    public void setSSLContext(SSLContext sslContext) {
+        synchronized (this) {
+            this.sslContext = sslContext;
+            if (sslContext != null) {
+                configureSessionContext(sslContext.getClientSessionContext());
+            }
+        }
+    }
+
+
+    /**
+     * Get the SSL context of the secure connections, the default context is created on the first access
+     *
+     * @return the SSL context
+     * @throws IOException In case the SSL context could not be created
+     */
+    public SSLContext getSSLContext() throws IOException {
+        SSLContext context = sslContext;
+        if (context != null) {
+            return context;
+        }
+        
+        synchronized (this) {
+            if (sslContext == null) {
+                try {
+                    context = SSLContext.getInstance("TLS");
+                    context.init(null, null, null);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Could not create the SSL context: " + e.getMessage(), e);
+                }
+                
+                configureSessionContext(context.getClientSessionContext());
+                sslContext = context;
+            }
+            return sslContext;
+        }
+    }
+
+
+    /**
+     * Set the enabled protocols of the secure connections, e.g. TLSv1.3 and TLSv1.2
+     *
+     * @param enabledProtocols the enabled protocols or null to use the default of the SSL context
+     */
+    public void setEnabledProtocols(String... enabledProtocols) {
+        this.enabledProtocols = (enabledProtocols != null && enabledProtocols.length > 0) ? enabledProtocols.clone() : null;
+    }
+
+
+    /**
+     * Set the enabled cipher suites of the secure connections in the order of preference
+     *
+     * @param enabledCipherSuites the enabled cipher suites or null to use the default of the SSL context
+     */
+    public void setEnabledCipherSuites(String... enabledCipherSuites) {
+        this.enabledCipherSuites = (enabledCipherSuites != null && enabledCipherSuites.length > 0) ? enabledCipherSuites.clone() : null;
+    }
+
+
+    /**
+     * Set the max number of cached TLS sessions
+     *
+     * @param sslSessionCacheSize the max number of cached TLS sessions, zero means no limit
+     */
+    public void setSSLSessionCacheSize(int sslSessionCacheSize) {
+        synchronized (this) {
+            this.sslSessionCacheSize = Math.max(0, sslSessionCacheSize);
+            if (sslContext != null) {
+                configureSessionContext(sslContext.getClientSessionContext());
+            }
+        }
+    }
+
+
+    /**
+     * Set the timeout of the cached TLS sessions in seconds
+     *
+     * @param sslSessionTimeout the timeout in seconds or null to use the default of the SSL context
+     */
+    public void setSSLSessionTimeout(Integer sslSessionTimeout) {
+        synchronized (this) {
+            this.sslSessionTimeout = sslSessionTimeout;
+            if (sslContext != null) {
+                configureSessionContext(sslContext.getClientSessionContext());
+            }
+        }
+    }
+
+
+    /**
+     * Create a SSL engine in client mode. The engine is created with the peer host and port, e.g. the session of a 
+     * previous connection can be resumed.
+     *
+     * @param hostname the name of host
+     * @param port the port
+     * @return the SSL engine
+     * @throws IOException In case the SSL engine could not be created
+     */
+    public SSLEngine createSSLEngine(String hostname, int port) throws IOException {
+        SSLEngine sslEngine = getSSLContext().createSSLEngine(hostname, port);
+        sslEngine.setUseClientMode(true);
+        sslEngine.setSSLParameters(configureSSLParameters(sslEngine.getSSLParameters()));
+        return sslEngine;
+    }
+
+
     /**
      * Create a simple socket
      *
@@ -67,9 +250,16 @@ public class ICAPConnectionManagerImpl implements ICAPConnectionManager {
      * @throws IOException In case of an I/O error
      */
     protected Socket createUnsecureSocket(String hostname, int port, Integer maxConnectionTimeout, Integer maxReadTimeout) throws UnknownHostException, IOException {
-        Socket socket = new Socket();
-        socket.setSoTimeout(getReadSocketTimeout(maxReadTimeout));
-        socket.connect(new InetSocketAddress(hostname,port), getSocketConnectionTimeout(maxConnectionTimeout));
+        // the socket of a channel allows to transfer files directly to the socket
+        Socket socket = SocketChannel.open().socket();
+        try {
+            configureSocket(socket);
+            socket.setSoTimeout(getReadSocketTimeout(maxReadTimeout));
+            socket.connect(new InetSocketAddress(hostname,port), getSocketConnectionTimeout(maxConnectionTimeout));
+        } catch (IOException e) {
+            closeSocket(socket);
+            throw e;
+        }
         return socket;
     }
 
@@ -86,21 +276,98 @@ public class ICAPConnectionManagerImpl implements ICAPConnectionManager {
      * @throws IOException In case of an I/O error
      */
     protected Socket createSecureSocket(String hostname, int port, Integer maxConnectionTimeout, Integer maxReadTimeout) throws UnknownHostException, IOException {
-        SSLSocketFactory factory = (SSLSocketFactory)SSLSocketFactory.getDefault();
-        Socket sslSocket = (SSLSocket)factory.createSocket();
-        sslSocket.setSoTimeout(getReadSocketTimeout(maxReadTimeout));
-        sslSocket.connect(new InetSocketAddress(hostname,port), getSocketConnectionTimeout(maxConnectionTimeout));
+        // the socket factory of the shared context resumes the sessions of the previous connections
+        SSLSocket sslSocket = (SSLSocket)getSSLContext().getSocketFactory().createSocket();
+        try {
+            sslSocket.setSSLParameters(configureSSLParameters(sslSocket.getSSLParameters()));
+            configureSocket(sslSocket);
+            sslSocket.setSoTimeout(getReadSocketTimeout(maxReadTimeout));
+            sslSocket.connect(new InetSocketAddress(hostname,port), getSocketConnectionTimeout(maxConnectionTimeout));
+        } catch (IOException e) {
+            closeSocket(sslSocket);
+            throw e;
+        }
         return sslSocket;
     }
 
 
+    /**
+     * Configure the socket options before the socket is connected
+     *
+     * @param socket the socket
+     * @throws IOException In case of an I/O error
+     */
+    protected void configureSocket(Socket socket) throws IOException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        
+        Integer size = sendBufferSize;
+        if (size != null && size.intValue() > 0) {
+            socket.setSendBufferSize(size.intValue());
+        }
+    }
+
+
+    /**
+     * Configure the SSL parameters of a secure connection
+     *
+     * @param sslParameters the default SSL parameters
+     * @return the SSL parameters
+     */
+    protected SSLParameters configureSSLParameters(SSLParameters sslParameters) {
+        String[] protocols = enabledProtocols;
+        if (protocols != null) {
+            sslParameters.setProtocols(protocols);
+        }
+        
+        String[] cipherSuites = enabledCipherSuites;
+        if (cipherSuites != null) {
+            sslParameters.setCipherSuites(cipherSuites);
+        }
+        return sslParameters;
+    }
+
+
+    /**
+     * Configure the client session context of the SSL context
+     *
+     * @param sessionContext the session context
+     */
+    protected void configureSessionContext(SSLSessionContext sessionContext) {
+        if (sessionContext == null) {
+            return;
+        }
+        
+        sessionContext.setSessionCacheSize(sslSessionCacheSize);
+        Integer timeout = sslSessionTimeout;
+        if (timeout != null && timeout.intValue() >= 0) {
+            sessionContext.setSessionTimeout(timeout.intValue());
+        }
+    }
+
+
+    /**
+     * Close a socket
+     *
+     * @param socket the socket to close
+     */
+    protected void closeSocket(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // NOP
+            }
+        }
+    }
+
+
     /**
      * Get the socket connection timeout
      *
      * @param maxConnectionTimeout the max connection timeout or null
      * @return the socket timeout to use
      */
-    private int getSocketConnectionTimeout(Integer maxConnectionTimeout) {
+    protected int getSocketConnectionTimeout(Integer maxConnectionTimeout) {
         int socketTimeout = 0;
         if (defaultSocketConnectionTimeout != null && defaultSocketConnectionTimeout.intValue() >= 0) {
             socketTimeout = defaultSocketConnectionTimeout.intValue();
@@ -119,7 +386,7 @@ public class ICAPConnectionManagerImpl implements ICAPConnectionManager {
      * @param maxReadTimeout the max read timeout or null
      * @return the socket timeout to use
      */
-    private int getReadSocketTimeout(Integer maxReadTimeout) {
+    protected int getReadSocketTimeout(Integer maxReadTimeout) {
         int socketReadTimeout = 0;
         if (defaultSocketReadTimeout != null && defaultSocketReadTimeout.intValue() >= 0) {
             socketReadTimeout = defaultSocketReadTimeout.intValue();
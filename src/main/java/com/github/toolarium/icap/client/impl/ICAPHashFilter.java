@@ -0,0 +1,280 @@
+/*
+ * ICAPHashFilter.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Read-only filter of a set of content digests, e.g. a list of known good software or of known malicious content. The filter file is
+ * memory-mapped and keeps no entry on the heap. It consists of a Bloom filter, which answers most of the lookups of an unknown digest
+ * without touching the digests, and of the sorted digests, which confirm a hit of the Bloom filter by a binary search. Therefore a hit
+ * is definite. The file is created by the {@link ICAPHashFilterImporter}.
+ *
+ * @author patrick
+ */
+public final class ICAPHashFilter implements Closeable {
+    static final int MAGIC = 0x49434846; // ICHF
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int OFFSET_DIGEST_LENGTH = 8;
+    static final int OFFSET_HASH_FUNCTIONS = 12;
+    static final int OFFSET_BLOOM_BITS = 16;
+    static final int OFFSET_COUNT = 24;
+    static final int OFFSET_ALGORITHM = 32;
+    static final int ALGORITHM_SIZE = HEADER_SIZE - OFFSET_ALGORITHM - 1;
+    static final int MIN_DIGEST_LENGTH = 16;
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final String algorithm;
+    private final int digestLength;
+    private final int hashFunctions;
+    private final long bloomBits;
+    private final long count;
+    private final long digestOffset;
+
+
+    /**
+     * Constructor for ICAPHashFilter
+     *
+     * @param file the file
+     * @param channel the channel
+     * @param segments the mapped segments
+     */
+    private ICAPHashFilter(Path file, FileChannel channel, MappedByteBuffer[] segments) {
+        this.file = file;
+        this.channel = channel;
+        this.segments = segments;
+        this.digestLength = getInt(OFFSET_DIGEST_LENGTH);
+        this.hashFunctions = getInt(OFFSET_HASH_FUNCTIONS);
+        this.bloomBits = getLong(OFFSET_BLOOM_BITS);
+        this.count = getLong(OFFSET_COUNT);
+        this.digestOffset = HEADER_SIZE + bloomSize(bloomBits);
+
+        final byte[] name = new byte[Math.min(ALGORITHM_SIZE, getByte(OFFSET_ALGORITHM) & 0xFF)];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = getByte(OFFSET_ALGORITHM + 1 + i);
+        }
+        this.algorithm = new String(name, StandardCharsets.US_ASCII);
+    }
+
+
+    /**
+     * Open a filter file
+     *
+     * @param file the file
+     * @return the filter
+     * @throws IOException In case the file could not be opened or is not a filter file
+     */
+    public static ICAPHashFilter open(Path file) throws IOException {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            final long size = channel.size();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("The file " + file + " is not a hash filter of version " + VERSION + "!");
+            }
+
+            final int digestLength = header.getInt(OFFSET_DIGEST_LENGTH);
+            final int hashFunctions = header.getInt(OFFSET_HASH_FUNCTIONS);
+            final long bloomBits = header.getLong(OFFSET_BLOOM_BITS);
+            final long count = header.getLong(OFFSET_COUNT);
+            if (digestLength < MIN_DIGEST_LENGTH || hashFunctions <= 0 || bloomBits <= 0 || count < 0 || size < HEADER_SIZE + bloomSize(bloomBits) + count * digestLength) {
+                throw new IOException("The hash filter " + file + " is truncated!");
+            }
+
+            final MappedByteBuffer[] segments = new MappedByteBuffer[(int)((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++) {
+                final long position = (long)i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, size - position));
+            }
+            return new ICAPHashFilter(file, channel, segments);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Get the file of the filter
+     *
+     * @return the file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+
+    /**
+     * Get the digest algorithm of the filter, e.g. SHA-256
+     *
+     * @return the digest algorithm
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+
+    /**
+     * Get the number of digests
+     *
+     * @return the number of digests
+     */
+    public long size() {
+        return count;
+    }
+
+
+    /**
+     * Check if the filter contains a digest
+     *
+     * @param digest the digest
+     * @return true if the filter contains the digest
+     */
+    public boolean contains(byte[] digest) {
+        if (digest == null || digest.length != digestLength) {
+            return false;
+        }
+        return mightContain(digest) && binarySearch(digest);
+    }
+
+
+    /**
+     * Check the Bloom filter, a negative result is definite
+     *
+     * @param digest the digest
+     * @return false if the filter doesn't contain the digest
+     */
+    boolean mightContain(byte[] digest) {
+        final long h1 = ByteBuffer.wrap(digest).getLong(0);
+        final long h2 = ByteBuffer.wrap(digest).getLong(8) | 1L;
+        for (int i = 0; i < hashFunctions; i++) {
+            final long bit = Math.floorMod(h1 + i * h2, bloomBits);
+            if ((getByte(HEADER_SIZE + (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "ICAPHashFilter [file=" + file + ", algorithm=" + algorithm + ", count=" + count + "]";
+    }
+
+
+    /**
+     * Get the number of bytes of the Bloom filter, it's aligned to 8 bytes
+     *
+     * @param bloomBits the number of bits
+     * @return the number of bytes
+     */
+    static long bloomSize(long bloomBits) {
+        return ((bloomBits + 63) >>> 6) << 3;
+    }
+
+
+    /**
+     * Search a digest in the sorted digests
+     *
+     * @param digest the digest
+     * @return true if the digest is found
+     */
+    private boolean binarySearch(byte[] digest) {
+        long low = 0;
+        long high = count - 1;
+        while (low <= high) {
+            final long middle = (low + high) >>> 1;
+            final int compare = compare(middle, digest);
+            if (compare < 0) {
+                low = middle + 1;
+            } else if (compare > 0) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Compare the digest at an index with a digest, unsigned lexicographically
+     *
+     * @param index the index
+     * @param digest the digest
+     * @return the comparison result
+     */
+    private int compare(long index, byte[] digest) {
+        final long position = digestOffset + index * digestLength;
+        for (int i = 0; i < digestLength; i++) {
+            final int compare = Integer.compare(getByte(position + i) & 0xFF, digest[i] & 0xFF);
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return 0;
+    }
+
+
+    /**
+     * Get a byte at a position of the file
+     *
+     * @param position the position
+     * @return the byte
+     */
+    private byte getByte(long position) {
+        return segments[(int)(position >>> SEGMENT_SHIFT)].get((int)(position & (SEGMENT_SIZE - 1)));
+    }
+
+
+    /**
+     * Get an int of the header
+     *
+     * @param position the position
+     * @return the int
+     */
+    private int getInt(int position) {
+        return segments[0].getInt(position);
+    }
+
+
+    /**
+     * Get a long of the header
+     *
+     * @param position the position
+     * @return the long
+     */
+    private long getLong(int position) {
+        return segments[0].getLong(position);
+    }
+}
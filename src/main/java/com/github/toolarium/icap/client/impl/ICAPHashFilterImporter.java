@@ -0,0 +1,436 @@
+/*
+ * ICAPHashFilterImporter.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import com.github.toolarium.icap.client.util.ICAPClientUtil;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Streaming importer of a {@link ICAPHashFilter}. The digests are collected in sorted runs of a bounded size which are spilled to
+ * temporary files, e.g. a list of hundreds of millions of digests is imported with a constant amount of memory. The runs are merged
+ * into the sorted and distinct digests of the filter file and the Bloom filter is built on the way.
+ *
+ * <pre>
+ * try (ICAPHashFilterImporter importer = new ICAPHashFilterImporter("SHA-256")) {
+ *     importer.add(reader);
+ *     importer.write(Paths.get("known-good.filter"));
+ * }
+ * </pre>
+ *
+ * @author patrick
+ */
+public class ICAPHashFilterImporter implements Closeable {
+    /** The default number of bits of the Bloom filter per digest, about 1% false positives */
+    public static final int DEFAULT_BITS_PER_DIGEST = 10;
+
+    /** The default number of digests of a sorted run */
+    public static final int DEFAULT_RUN_SIZE = 1 << 20;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ICAPHashFilterImporter.class);
+    private final String algorithm;
+    private final int digestLength;
+    private final int runSize;
+    private final Path directory;
+    private final List<Path> runs;
+    private byte[][] run;
+    private int runLength;
+    private long count;
+    private int bitsPerDigest;
+
+
+    /**
+     * Constructor for ICAPHashFilterImporter
+     *
+     * @param algorithm the digest algorithm, e.g. SHA-256
+     * @throws IOException In case the algorithm is not supported
+     */
+    public ICAPHashFilterImporter(String algorithm) throws IOException {
+        this(algorithm, DEFAULT_RUN_SIZE, null);
+    }
+
+
+    /**
+     * Constructor for ICAPHashFilterImporter
+     *
+     * @param algorithm the digest algorithm, e.g. SHA-256
+     * @param runSize the number of digests of a sorted run which is kept in memory
+     * @param directory the directory of the temporary files or null to use the default temporary directory
+     * @throws IOException In case the algorithm is not supported
+     */
+    public ICAPHashFilterImporter(String algorithm, int runSize, Path directory) throws IOException {
+        this.algorithm = algorithm;
+        this.digestLength = ICAPClientUtil.getInstance().createMessageDigest(algorithm).getDigestLength();
+        if (digestLength < ICAPHashFilter.MIN_DIGEST_LENGTH) {
+            throw new IOException("The digest algorithm " + algorithm + " is too short, at least " + ICAPHashFilter.MIN_DIGEST_LENGTH + " bytes are required!");
+        }
+        if (algorithm.length() > ICAPHashFilter.ALGORITHM_SIZE) {
+            throw new IOException("The name of the digest algorithm " + algorithm + " is too long!");
+        }
+
+        this.runSize = Math.max(1, runSize);
+        this.directory = directory;
+        this.runs = new ArrayList<Path>();
+        this.run = new byte[this.runSize][];
+        this.runLength = 0;
+        this.count = 0;
+        this.bitsPerDigest = DEFAULT_BITS_PER_DIGEST;
+    }
+
+
+    /**
+     * Set the number of bits of the Bloom filter per digest
+     *
+     * @param bitsPerDigest the number of bits per digest, at least 1
+     * @return the importer
+     */
+    public ICAPHashFilterImporter bitsPerDigest(int bitsPerDigest) {
+        this.bitsPerDigest = Math.max(1, bitsPerDigest);
+        return this;
+    }
+
+
+    /**
+     * Add a digest
+     *
+     * @param digest the digest
+     * @throws IOException In case of an invalid digest or a run could not be spilled
+     */
+    public void add(byte[] digest) throws IOException {
+        if (digest == null || digest.length != digestLength) {
+            throw new IOException("Invalid " + algorithm + " digest, " + digestLength + " bytes are expected!");
+        }
+
+        run[runLength++] = digest.clone();
+        count++;
+        if (runLength == runSize) {
+            spill();
+        }
+    }
+
+
+    /**
+     * Add a hex encoded digest
+     *
+     * @param digest the hex encoded digest
+     * @throws IOException In case of an invalid digest or a run could not be spilled
+     */
+    public void add(String digest) throws IOException {
+        if (digest == null || digest.length() != digestLength * 2) {
+            throw new IOException("Invalid " + algorithm + " digest [" + digest + "], " + (digestLength * 2) + " hex digits are expected!");
+        }
+
+        final byte[] value = new byte[digestLength];
+        for (int i = 0; i < digestLength; i++) {
+            final int high = Character.digit(digest.charAt(2 * i), 16);
+            final int low = Character.digit(digest.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IOException("Invalid " + algorithm + " digest [" + digest + "], it's not hex encoded!");
+            }
+            value[i] = (byte)((high << 4) | low);
+        }
+        add(value);
+    }
+
+
+    /**
+     * Add the hex encoded digests of a list, one digest per line. Further columns separated by a comma or a whitespace are ignored,
+     * the digest may be quoted. Empty lines, comments (#) and lines without a digest of the expected length, e.g. a title, are skipped.
+     *
+     * @param reader the reader
+     * @return the number of added digests
+     * @throws IOException In case of an I/O error
+     */
+    public long add(Reader reader) throws IOException {
+        final BufferedReader bufferedReader = (reader instanceof BufferedReader) ? (BufferedReader)reader : new BufferedReader(reader);
+        long added = 0;
+        long skipped = 0;
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+            final String digest = parseDigest(line);
+            if (digest == null) {
+                skipped++;
+            } else {
+                add(digest);
+                added++;
+            }
+        }
+
+        LOG.debug("Imported " + added + " " + algorithm + " digests, skipped " + skipped + " lines.");
+        return added;
+    }
+
+
+    /**
+     * Write the filter file. The file is written to a temporary file and moved to the target, e.g. a running process keeps its
+     * mapping of the previous file.
+     *
+     * @param file the filter file
+     * @return the number of distinct digests
+     * @throws IOException In case of an I/O error
+     */
+    public long write(Path file) throws IOException {
+        spill();
+
+        final int hashFunctions = Math.max(1, Math.min(16, (int)Math.round(bitsPerDigest * Math.log(2))));
+        final long bloomBits = Math.max(64, count * bitsPerDigest);
+        final long digestOffset = ICAPHashFilter.HEADER_SIZE + ICAPHashFilter.bloomSize(bloomBits);
+        final Path parent = file.toAbsolutePath().getParent();
+        final Path temporaryFile = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        long distinct = 0;
+        try {
+            try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                final MappedByteBuffer[] bloom = mapBloomFilter(channel, bloomBits);
+                channel.position(digestOffset);
+
+                final PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>((a, b) -> Arrays.compareUnsigned(a.current, b.current));
+                final List<RunReader> readers = new ArrayList<RunReader>();
+                final ByteBuffer out = ByteBuffer.allocate(digestLength * 4096);
+                try {
+                    for (Path runFile : runs) {
+                        final RunReader reader = new RunReader(runFile, digestLength);
+                        readers.add(reader);
+                        if (reader.next()) {
+                            queue.add(reader);
+                        }
+                    }
+
+                    byte[] previous = null;
+                    while (!queue.isEmpty()) {
+                        final RunReader reader = queue.poll();
+                        final byte[] digest = reader.current.clone();
+                        if (previous == null || !Arrays.equals(previous, digest)) {
+                            if (out.remaining() < digestLength) {
+                                writeFully(channel, out);
+                            }
+                            out.put(digest);
+                            setBits(bloom, digest, hashFunctions, bloomBits);
+                            previous = digest;
+                            distinct++;
+                        }
+                        if (reader.next()) {
+                            queue.add(reader);
+                        }
+                    }
+                    writeFully(channel, out);
+                } finally {
+                    for (RunReader reader : readers) {
+                        reader.close();
+                    }
+                }
+
+                final ByteBuffer header = ByteBuffer.allocate(ICAPHashFilter.HEADER_SIZE);
+                header.putInt(ICAPHashFilter.MAGIC).putInt(ICAPHashFilter.VERSION).putInt(digestLength).putInt(hashFunctions).putLong(bloomBits).putLong(distinct);
+                final byte[] name = algorithm.getBytes(StandardCharsets.US_ASCII);
+                header.put((byte)name.length).put(name);
+                header.clear();
+                channel.write(header, 0);
+                for (MappedByteBuffer segment : bloom) {
+                    segment.force();
+                }
+                channel.force(true);
+            }
+
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+
+        LOG.info("Wrote hash filter " + file + " with " + distinct + " " + algorithm + " digests.");
+        return distinct;
+    }
+
+
+    /**
+     * Delete the temporary runs
+     *
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        for (Path runFile : runs) {
+            Files.deleteIfExists(runFile);
+        }
+        runs.clear();
+        run = new byte[0][];
+        runLength = 0;
+    }
+
+
+    /**
+     * Parse the digest of a line
+     *
+     * @param line the line
+     * @return the hex encoded digest or null
+     */
+    private String parseDigest(String line) {
+        String value = line.trim();
+        if (value.isEmpty() || value.startsWith("#")) {
+            return null;
+        }
+
+        int end = 0;
+        while (end < value.length() && value.charAt(end) != ',' && !Character.isWhitespace(value.charAt(end))) {
+            end++;
+        }
+        value = value.substring(0, end);
+        if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1);
+        }
+
+        if (value.length() != digestLength * 2) {
+            return null;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) {
+                return null;
+            }
+        }
+        return value;
+    }
+
+
+    /**
+     * Sort the current run and spill it to a temporary file
+     *
+     * @throws IOException In case of an I/O error
+     */
+    private void spill() throws IOException {
+        if (runLength == 0) {
+            return;
+        }
+
+        Arrays.sort(run, 0, runLength, Arrays::compareUnsigned);
+        final Path runFile = (directory != null) ? Files.createTempFile(directory, "icap-hash-run", ".tmp") : Files.createTempFile("icap-hash-run", ".tmp");
+        runs.add(runFile);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(runFile), 1 << 16)) {
+            for (int i = 0; i < runLength; i++) {
+                out.write(run[i]);
+                run[i] = null;
+            }
+        }
+        runLength = 0;
+    }
+
+
+    /**
+     * Write the content of a buffer at the position of the channel
+     *
+     * @param channel the channel
+     * @param buffer the buffer
+     * @throws IOException In case of an I/O error
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+
+    /**
+     * Map the Bloom filter of a new filter file in segments
+     *
+     * @param channel the channel
+     * @param bloomBits the number of bits of the Bloom filter
+     * @return the segments
+     * @throws IOException In case of an I/O error
+     */
+    private static MappedByteBuffer[] mapBloomFilter(FileChannel channel, long bloomBits) throws IOException {
+        final long size = ICAPHashFilter.bloomSize(bloomBits);
+        final MappedByteBuffer[] segments = new MappedByteBuffer[(int)((size + (1L << 30) - 1) >>> 30)];
+        for (int i = 0; i < segments.length; i++) {
+            final long position = (long)i << 30;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, ICAPHashFilter.HEADER_SIZE + position, Math.min(1L << 30, size - position));
+        }
+        return segments;
+    }
+
+
+    /**
+     * Set the bits of a digest in the Bloom filter, the same double hashing as {@link ICAPHashFilter} is used
+     *
+     * @param bloom the segments of the Bloom filter
+     * @param digest the digest
+     * @param hashFunctions the number of hash functions
+     * @param bloomBits the number of bits
+     */
+    private static void setBits(MappedByteBuffer[] bloom, byte[] digest, int hashFunctions, long bloomBits) {
+        final long h1 = ByteBuffer.wrap(digest).getLong(0);
+        final long h2 = ByteBuffer.wrap(digest).getLong(8) | 1L;
+        for (int i = 0; i < hashFunctions; i++) {
+            final long bit = Math.floorMod(h1 + i * h2, bloomBits);
+            final long position = bit >>> 3;
+            final MappedByteBuffer segment = bloom[(int)(position >>> 30)];
+            final int index = (int)(position & ((1L << 30) - 1));
+            segment.put(index, (byte)(segment.get(index) | (1 << (bit & 7))));
+        }
+    }
+
+
+    /**
+     * Reads the sorted digests of a run
+     */
+    private static final class RunReader implements Closeable {
+        private final InputStream in;
+        private final byte[] current;
+
+
+        /**
+         * Constructor for RunReader
+         *
+         * @param runFile the run file
+         * @param digestLength the digest length
+         * @throws IOException In case of an I/O error
+         */
+        RunReader(Path runFile, int digestLength) throws IOException {
+            this.in = new BufferedInputStream(Files.newInputStream(runFile), 1 << 16);
+            this.current = new byte[digestLength];
+        }
+
+
+        /**
+         * Read the next digest
+         *
+         * @return false at the end of the run
+         * @throws IOException In case of an I/O error
+         */
+        boolean next() throws IOException {
+            return in.readNBytes(current, 0, current.length) == current.length;
+        }
+
+
+        /**
+         * @see java.io.Closeable#close()
+         */
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
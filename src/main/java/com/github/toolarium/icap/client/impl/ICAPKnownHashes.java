@@ -0,0 +1,125 @@
+/*
+ * ICAPKnownHashes.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import java.io.IOException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Holds the filters of the known content digests: the known good content is valid without a scan, the known bad content is blocked
+ * without a scan. A digest which is known good and known bad is blocked. By default no filter is set.
+ *
+ * @author patrick
+ */
+public final class ICAPKnownHashes {
+    private static final Logger LOG = LoggerFactory.getLogger(ICAPKnownHashes.class);
+    private volatile ICAPHashFilter knownGood;
+    private volatile ICAPHashFilter knownBad;
+
+
+    /**
+     * Private class, the only instance of the singelton which will be created by accessing the holder class.
+     *
+     * @author patrick
+     */
+    private static class HOLDER {
+        static final ICAPKnownHashes INSTANCE = new ICAPKnownHashes();
+    }
+
+
+    /**
+     * Constructor for ICAPKnownHashes
+     */
+    ICAPKnownHashes() {
+        this.knownGood = null;
+        this.knownBad = null;
+    }
+
+
+    /**
+     * Get the instance
+     *
+     * @return the instance
+     */
+    public static ICAPKnownHashes getInstance() {
+        return HOLDER.INSTANCE;
+    }
+
+
+    /**
+     * Check if a filter is set
+     *
+     * @return true if a filter is set
+     */
+    public boolean isEnabled() {
+        return knownGood != null || knownBad != null;
+    }
+
+
+    /**
+     * Get the filter of the known good content
+     *
+     * @return the filter or null
+     */
+    public ICAPHashFilter getKnownGood() {
+        return knownGood;
+    }
+
+
+    /**
+     * Set the filter of the known good content, the previous filter is closed
+     *
+     * @param knownGood the filter or null
+     */
+    public synchronized void setKnownGood(ICAPHashFilter knownGood) {
+        final ICAPHashFilter previous = this.knownGood;
+        this.knownGood = knownGood;
+        close(previous);
+    }
+
+
+    /**
+     * Get the filter of the known bad content
+     *
+     * @return the filter or null
+     */
+    public ICAPHashFilter getKnownBad() {
+        return knownBad;
+    }
+
+
+    /**
+     * Set the filter of the known bad content, the previous filter is closed
+     *
+     * @param knownBad the filter or null
+     */
+    public synchronized void setKnownBad(ICAPHashFilter knownBad) {
+        final ICAPHashFilter previous = this.knownBad;
+        this.knownBad = knownBad;
+        close(previous);
+    }
+
+
+    /**
+     * Close a filter which is replaced. The mapping of the file remains valid for a running lookup until the mapped buffer is
+     * collected.
+     *
+     * @param filter the filter or null
+     */
+    private static void close(ICAPHashFilter filter) {
+        if (filter == null) {
+            return;
+        }
+
+        try {
+            filter.close();
+        } catch (IOException e) {
+            LOG.warn("Could not close hash filter " + filter.getFile() + ": " + e.getMessage());
+        }
+    }
+}
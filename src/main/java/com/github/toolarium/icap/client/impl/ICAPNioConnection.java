@@ -0,0 +1,422 @@
+/*
+ * ICAPNioConnection.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+
+/**
+ * Connection of the {@link ICAPNioTransport}. A secure connection encrypts and decrypts the application data by a {@link SSLEngine},
+ * the network buffers are sized to one TLS record. All methods are called by the event loop thread of the connection.
+ *
+ * @author patrick
+ */
+public class ICAPNioConnection {
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+    private final String route;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final SSLEngine sslEngine;
+    private final long created;
+    private ByteBuffer networkInput;
+    private ByteBuffer networkOutput;
+    private boolean handshakeStarted;
+    private boolean handshakeComplete;
+    private boolean pendingInput;
+    private long lastUsed;
+    private int requestCount;
+
+
+    /**
+     * Constructor for ICAPNioConnection
+     *
+     * @param route the route
+     * @param channel the channel
+     * @param key the selection key
+     * @param sslEngine the SSL engine of a secure connection or null
+     */
+    ICAPNioConnection(String route, SocketChannel channel, SelectionKey key, SSLEngine sslEngine) {
+        this.route = route;
+        this.channel = channel;
+        this.key = key;
+        this.sslEngine = sslEngine;
+        this.created = System.currentTimeMillis();
+        this.lastUsed = created;
+        this.requestCount = 1;
+        this.handshakeStarted = false;
+        this.handshakeComplete = (sslEngine == null);
+        this.pendingInput = false;
+
+        if (sslEngine != null) {
+            final int packetBufferSize = sslEngine.getSession().getPacketBufferSize();
+            this.networkInput = ByteBuffer.allocate(packetBufferSize);
+            this.networkOutput = ByteBuffer.allocate(packetBufferSize);
+            this.networkOutput.flip();
+        }
+    }
+
+
+    /**
+     * Get the route
+     *
+     * @return the route
+     */
+    String getRoute() {
+        return route;
+    }
+
+
+    /**
+     * Get the channel
+     *
+     * @return the channel
+     */
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+
+    /**
+     * Get the selection key
+     *
+     * @return the selection key
+     */
+    SelectionKey getKey() {
+        return key;
+    }
+
+
+    /**
+     * Check if it's a secure connection
+     *
+     * @return true if it's a secure connection
+     */
+    boolean isSecure() {
+        return sslEngine != null;
+    }
+
+
+    /**
+     * Check if the connection is established, a secure connection has completed the handshake
+     *
+     * @return true if the connection is established
+     */
+    boolean isHandshakeComplete() {
+        return handshakeComplete;
+    }
+
+
+    /**
+     * Get the creation time
+     *
+     * @return the creation time in milliseconds
+     */
+    long getCreated() {
+        return created;
+    }
+
+
+    /**
+     * Get the last usage time
+     *
+     * @return the last usage time in milliseconds
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+
+    /**
+     * Set the last usage time
+     *
+     * @param lastUsed the last usage time in milliseconds
+     */
+    void setLastUsed(long lastUsed) {
+        this.lastUsed = lastUsed;
+    }
+
+
+    /**
+     * Get the number of requests
+     *
+     * @return the number of requests
+     */
+    int getRequestCount() {
+        return requestCount;
+    }
+
+
+    /**
+     * Increment the number of requests
+     */
+    void incrementRequestCount() {
+        requestCount++;
+    }
+
+
+    /**
+     * Continue the handshake of a secure connection
+     *
+     * @param buffer a scratch buffer of at least the application buffer size
+     * @return the interest operation to continue the handshake or 0 if the handshake is complete
+     * @throws IOException In case of an I/O error
+     */
+    int handshake(ByteBuffer buffer) throws IOException {
+        if (handshakeComplete) {
+            return 0;
+        }
+
+        if (!flush()) {
+            return SelectionKey.OP_WRITE;
+        }
+
+        if (!handshakeStarted) {
+            handshakeStarted = true;
+            sslEngine.beginHandshake();
+        }
+
+        while (true) {
+            switch (sslEngine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                case NEED_WRAP:
+                    wrap(EMPTY_BUFFER);
+                    if (!flush()) {
+                        return SelectionKey.OP_WRITE;
+                    }
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    buffer.clear();
+                    networkInput.flip();
+                    SSLEngineResult result;
+                    try {
+                        result = sslEngine.unwrap(networkInput, buffer);
+                    } finally {
+                        networkInput.compact();
+                    }
+
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new EOFException("Connection closed by the ICAP server during the handshake!");
+                    }
+
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        int n = channel.read(networkInput);
+                        if (n < 0) {
+                            throw new EOFException("Connection closed by the ICAP server during the handshake!");
+                        }
+                        if (n == 0) {
+                            return SelectionKey.OP_READ;
+                        }
+                    }
+                    break;
+                default:
+                    handshakeComplete = true;
+                    pendingInput = networkInput.position() > 0;
+                    return 0;
+            }
+        }
+    }
+
+
+    /**
+     * Write application data
+     *
+     * @param source the application data
+     * @return the number of consumed bytes
+     * @throws IOException In case of an I/O error
+     */
+    int write(ByteBuffer source) throws IOException {
+        if (sslEngine == null) {
+            return channel.write(source);
+        }
+
+        // the previous record is sent completely before the next one is encrypted
+        if (!flush()) {
+            return 0;
+        }
+
+        int consumed = wrap(source);
+        flush();
+        return consumed;
+    }
+
+
+    /**
+     * Flush the encrypted data
+     *
+     * @return true if all data is written; otherwise the connection has to wait until it's writable
+     * @throws IOException In case of an I/O error
+     */
+    boolean flush() throws IOException {
+        if (networkOutput == null) {
+            return true;
+        }
+
+        while (networkOutput.hasRemaining()) {
+            if (channel.write(networkOutput) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Read application data
+     *
+     * @param target the target buffer of at least the application buffer size
+     * @return the number of read bytes or -1 at the end of stream
+     * @throws IOException In case of an I/O error
+     */
+    int read(ByteBuffer target) throws IOException {
+        if (sslEngine == null) {
+            return channel.read(target);
+        }
+
+        pendingInput = false;
+        int n = 0;
+        if (networkInput.hasRemaining()) {
+            n = channel.read(networkInput);
+        }
+
+        int produced = 0;
+        networkInput.flip();
+        try {
+            while (networkInput.hasRemaining()) {
+                SSLEngineResult result = sslEngine.unwrap(networkInput, target);
+                produced += result.bytesProduced();
+                handlePostHandshake(result);
+
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    return (produced > 0) ? produced : -1;
+                }
+
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    // the remaining records are decrypted with the next read
+                    pendingInput = true;
+                    break;
+                }
+
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    break;
+                }
+            }
+        } finally {
+            networkInput.compact();
+        }
+
+        if (produced == 0 && n < 0) {
+            return -1;
+        }
+        return produced;
+    }
+
+
+    /**
+     * Check if there are received records which are not read yet, they don't raise a selection
+     *
+     * @return true if there is pending input
+     */
+    boolean hasPendingInput() {
+        return pendingInput;
+    }
+
+
+    /**
+     * Close the connection, a secure connection sends the close notification if possible
+     */
+    void close() {
+        key.cancel();
+        try {
+            if (sslEngine != null && handshakeComplete && channel.isConnected()) {
+                sslEngine.closeOutbound();
+                try {
+                    wrap(EMPTY_BUFFER);
+                    flush();
+                } catch (IOException e) {
+                    // NOP
+                }
+            }
+            channel.close();
+        } catch (IOException e) {
+            // NOP
+        }
+    }
+
+
+    /**
+     * Encrypt application data into the network output
+     *
+     * @param source the application data
+     * @return the number of consumed bytes
+     * @throws IOException In case of an I/O error
+     */
+    private int wrap(ByteBuffer source) throws IOException {
+        networkOutput.compact();
+        SSLEngineResult result;
+        try {
+            result = sslEngine.wrap(source, networkOutput);
+        } finally {
+            networkOutput.flip();
+        }
+
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED && source.hasRemaining()) {
+            throw new SSLException("The TLS session is closed!");
+        }
+
+        handlePostHandshake(result);
+        return result.bytesConsumed();
+    }
+
+
+    /**
+     * Handle the handshake messages after the initial handshake, e.g. session tickets or key updates
+     *
+     * @param result the result of the last operation
+     * @throws IOException In case of an I/O error
+     */
+    private void handlePostHandshake(SSLEngineResult result) throws IOException {
+        if (!handshakeComplete) {
+            return;
+        }
+
+        SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+        while (status == SSLEngineResult.HandshakeStatus.NEED_TASK || status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            } else {
+                networkOutput.compact();
+                try {
+                    sslEngine.wrap(EMPTY_BUFFER, networkOutput);
+                } finally {
+                    networkOutput.flip();
+                }
+                flush();
+            }
+            status = sslEngine.getHandshakeStatus();
+        }
+    }
+
+
+    /**
+     * Run the delegated tasks of the SSL engine
+     */
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = sslEngine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * ICAPNioConnectionManagerImpl.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+
+/**
+ * Implements a pooled {@link com.github.toolarium.icap.client.ICAPConnectionManager} with an additional non-blocking transport.
+ * The asynchronous requests of a client with this connection manager are multiplexed by the {@link ICAPNioTransport} over a
+ * small number of event loop threads; the synchronous requests use the pooled blocking sockets.
+ *
+ * @author patrick
+ */
+public class ICAPNioConnectionManagerImpl extends ICAPPooledConnectionManagerImpl {
+    private final ICAPNioTransport transport;
+
+
+    /**
+     * Constructor for ICAPNioConnectionManagerImpl
+     */
+    public ICAPNioConnectionManagerImpl() {
+        this(ICAPNioTransport.DEFAULT_EVENT_LOOPS);
+    }
+
+
+    /**
+     * Constructor for ICAPNioConnectionManagerImpl
+     *
+     * @param eventLoops the number of event loop threads
+     */
+    public ICAPNioConnectionManagerImpl(int eventLoops) {
+        // the secure connections of both transports share the SSL context and its session cache
+        this.transport = new ICAPNioTransport(eventLoops, this::createSSLEngine);
+    }
+
+
+    /**
+     * Get the non-blocking transport
+     *
+     * @return the transport
+     */
+    public ICAPNioTransport getTransport() {
+        return transport;
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.impl.ICAPConnectionManagerImpl#setTcpNoDelay(boolean)
+     */
+    @Override
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        super.setTcpNoDelay(tcpNoDelay);
+        transport.setTcpNoDelay(tcpNoDelay);
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.impl.ICAPConnectionManagerImpl#setSendBufferSize(java.lang.Integer)
+     */
+    @Override
+    public void setSendBufferSize(Integer sendBufferSize) {
+        super.setSendBufferSize(sendBufferSize);
+        transport.setSendBufferSize(sendBufferSize);
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.impl.ICAPPooledConnectionManagerImpl#setMaxConnections(java.lang.String, int, boolean, java.lang.Integer)
+     */
+    @Override
+    public void setMaxConnections(String hostname, int port, boolean secureConnection, Integer maxConnections) {
+        super.setMaxConnections(hostname, port, secureConnection, maxConnections);
+        transport.setMaxConnections(hostname, port, secureConnection, maxConnections);
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.impl.ICAPPooledConnectionManagerImpl#setMaxIdleConnectionsPerRoute(int)
+     */
+    @Override
+    public void setMaxIdleConnectionsPerRoute(int maxIdleConnectionsPerRoute) {
+        super.setMaxIdleConnectionsPerRoute(maxIdleConnectionsPerRoute);
+        transport.setMaxIdleConnectionsPerRoute(maxIdleConnectionsPerRoute);
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.impl.ICAPPooledConnectionManagerImpl#setMaxRequestsPerConnection(int)
+     */
+    @Override
+    public void setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+        super.setMaxRequestsPerConnection(maxRequestsPerConnection);
+        transport.setMaxRequestsPerConnection(maxRequestsPerConnection);
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.impl.ICAPPooledConnectionManagerImpl#setMaxConnectionAge(long)
+     */
+    @Override
+    public void setMaxConnectionAge(long maxConnectionAge) {
+        super.setMaxConnectionAge(maxConnectionAge);
+        transport.setMaxConnectionAge(maxConnectionAge);
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.impl.ICAPPooledConnectionManagerImpl#setMaxIdleTime(long)
+     */
+    @Override
+    public void setMaxIdleTime(long maxIdleTime) {
+        super.setMaxIdleTime(maxIdleTime);
+        transport.setMaxIdleTime(maxIdleTime);
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.impl.ICAPPooledConnectionManagerImpl#shutdown()
+     */
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        transport.shutdown();
+    }
+}
@@ -0,0 +1,529 @@
+/*
+ * ICAPNioExchange.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * One request / response exchange of the {@link ICAPNioTransport}. The request header together with the preview is written first,
+ * in case a <code>100 Continue</code> is expected the remaining body is pulled from the {@link BodyProducer} only as fast as the
+ * socket accepts it. The response is decoded incrementally by the {@link ICAPResponseDecoder}. The state is only accessed by the
+ * event loop thread of the exchange. A new secure connection completes the TLS handshake before the request is written.
+ *
+ * @author patrick
+ */
+public class ICAPNioExchange {
+    private static final Logger LOG = LoggerFactory.getLogger(ICAPNioExchange.class);
+    private static final int STATE_QUEUED = 0;
+    private static final int STATE_CONNECT = 1;
+    private static final int STATE_HANDSHAKE = 2;
+    private static final int STATE_WRITE_REQUEST = 3;
+    private static final int STATE_READ_CONTINUE = 4;
+    private static final int STATE_WRITE_BODY = 5;
+    private static final int STATE_READ_RESPONSE = 6;
+    private static final int STATE_DONE = 7;
+
+    private final String requestIdentifier;
+    private final InetSocketAddress address;
+    private final boolean secure;
+    private final ByteBuffer request;
+    private final BodyProducer bodyProducer;
+    private final OutputStream responseBody;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final ICAPConnectionLimiter connectionLimiter;
+    private final CompletableFuture<ICAPHeaderInformation> future;
+    private final ICAPResponseDecoder decoder;
+    private ICAPNioTransport.EventLoop eventLoop;
+    private ICAPNioConnection connection;
+    private ByteBuffer writeBuffer;
+    private int state;
+    private final long queued;
+    private long lastActivity;
+    private boolean permitAcquired;
+    private boolean continued;
+    private boolean bodySent;
+
+
+    /**
+     * Defines the producer of the remaining body, it's called only if the socket accepts more data
+     */
+    public interface BodyProducer extends Closeable {
+
+        /**
+         * Get the next encoded part of the body including the chunk framing and the last chunk. A producer which reads 
+         * the body outside of the event loop returns an empty part as long as the next part is not available.
+         *
+         * @return the next part, an empty part in case the next part is not yet available or null at the end of the body
+         * @throws IOException In case of an I/O error
+         */
+        ByteBuffer next() throws IOException;
+
+
+        /**
+         * Register the callback which has to be called as soon as the next part is available after an empty part was returned
+         *
+         * @param callback the callback
+         */
+        default void onAvailable(Runnable callback) {
+            // NOP
+        }
+    }
+
+
+    /**
+     * Constructor for ICAPNioExchange
+     *
+     * @param requestIdentifier the request identifier
+     * @param address the resolved address of the ICAP server
+     * @param secure true if the connection is secured by TLS
+     * @param request the encoded request header, the preview and the preview terminator
+     * @param bodyProducer the producer of the remaining body or null in case the request is complete and no <code>100 Continue</code> is expected
+     * @param responseBody the stream of the decoded response body
+     * @param connectTimeout the connect timeout in milliseconds, zero is interpreted as an infinite timeout
+     * @param readTimeout the read timeout in milliseconds, zero is interpreted as an infinite timeout
+     * @param connectionLimiter the connection limiter of the service or null
+     */
+    public ICAPNioExchange(String requestIdentifier, InetSocketAddress address, boolean secure, ByteBuffer request, BodyProducer bodyProducer,
+                           OutputStream responseBody, int connectTimeout, int readTimeout, ICAPConnectionLimiter connectionLimiter) {
+        this.requestIdentifier = requestIdentifier;
+        this.address = address;
+        this.secure = secure;
+        this.request = request;
+        this.bodyProducer = bodyProducer;
+        this.responseBody = responseBody;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.connectionLimiter = connectionLimiter;
+        this.future = new CompletableFuture<ICAPHeaderInformation>();
+        this.decoder = new ICAPResponseDecoder();
+        this.state = STATE_QUEUED;
+        this.queued = System.currentTimeMillis();
+
+        if (bodyProducer != null) {
+            bodyProducer.onAvailable(this::resume);
+        }
+    }
+
+
+    /**
+     * Get the future of the final response header. In case the body was sent after a <code>100 Continue</code> it's the response
+     * after the body; otherwise the response to the preview.
+     *
+     * @return the future
+     */
+    public CompletableFuture<ICAPHeaderInformation> getFuture() {
+        return future;
+    }
+
+
+    /**
+     * Check if the server requested the remaining body with a <code>100 Continue</code>
+     *
+     * @return true if the server requested the remaining body
+     */
+    public boolean isContinued() {
+        return continued;
+    }
+
+
+    /**
+     * Check if the final response is the response to the preview, e.g. the server didn't request the remaining body
+     *
+     * @return true if the final response is the response to the preview
+     */
+    public boolean isPreviewResponse() {
+        return bodyProducer != null && !continued;
+    }
+
+
+    /**
+     * Check if the whole body was sent
+     *
+     * @return true if the whole body was sent
+     */
+    public boolean isBodySent() {
+        return bodySent;
+    }
+
+
+    /**
+     * Get the route of the exchange, the connections are reused per route
+     *
+     * @return the route
+     */
+    String getRoute() {
+        return ICAPNioTransport.createRoute(address.getHostString(), address.getPort(), secure);
+    }
+
+
+    /**
+     * Check if the connection is secured by TLS
+     *
+     * @return true if it's a secure connection
+     */
+    boolean isSecure() {
+        return secure;
+    }
+
+
+    /**
+     * Get the address
+     *
+     * @return the address
+     */
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+
+    /**
+     * Get the connection limiter of the service
+     *
+     * @return the connection limiter or null
+     */
+    ICAPConnectionLimiter getConnectionLimiter() {
+        return connectionLimiter;
+    }
+
+
+    /**
+     * Try to acquire a connection permit of the connection limiter
+     *
+     * @return true if the exchange can be started
+     */
+    boolean tryAcquirePermit() {
+        if (connectionLimiter == null || permitAcquired) {
+            return true;
+        }
+
+        permitAcquired = connectionLimiter.tryAcquire();
+        return permitAcquired;
+    }
+
+
+    /**
+     * Start the exchange on a connection
+     *
+     * @param eventLoop the event loop
+     * @param connection the connection, it's either connected or the connect is pending
+     * @param connected true if the connection is connected
+     * @throws IOException In case of an I/O error
+     */
+    void start(ICAPNioTransport.EventLoop eventLoop, ICAPNioConnection connection, boolean connected) throws IOException {
+        this.eventLoop = eventLoop;
+        this.connection = connection;
+        this.lastActivity = System.currentTimeMillis();
+        connection.getKey().attach(this);
+
+        if (connected) {
+            onConnected();
+        } else {
+            state = STATE_CONNECT;
+            connection.getKey().interestOps(SelectionKey.OP_CONNECT);
+        }
+    }
+
+
+    /**
+     * Handle the ready operations of the selection key
+     *
+     * @param key the selection key
+     */
+    void handle(SelectionKey key) {
+        try {
+            if (state == STATE_CONNECT && key.isConnectable()) {
+                if (((SocketChannel)key.channel()).finishConnect()) {
+                    onConnected();
+                }
+                return;
+            }
+
+            if (state == STATE_HANDSHAKE) {
+                onHandshake();
+                return;
+            }
+
+            if (key.isReadable()) {
+                onReadable();
+            }
+
+            if (state != STATE_DONE && key.isValid() && key.isWritable()) {
+                onWritable();
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+
+    /**
+     * Check the timeouts of the exchange
+     *
+     * @param now the current time in milliseconds
+     */
+    void checkTimeout(long now) {
+        if (state == STATE_QUEUED) {
+            if (connectTimeout > 0 && (now - queued) > connectTimeout) {
+                fail(new IOException("Max connections (" + connectionLimiter.getMaxConnections() + ") to [" + getRoute() + "] reached!"));
+            }
+        } else if (state == STATE_CONNECT) {
+            if (connectTimeout > 0 && (now - lastActivity) > connectTimeout) {
+                fail(new SocketTimeoutException("Connect timed out"));
+            }
+        } else if (state != STATE_DONE && readTimeout > 0 && (now - lastActivity) > readTimeout) {
+            fail(new SocketTimeoutException("Read timed out"));
+        }
+    }
+
+
+    /**
+     * Check if the exchange is done
+     *
+     * @return true if the exchange is done
+     */
+    boolean isDone() {
+        return state == STATE_DONE;
+    }
+
+
+    /**
+     * Fail the exchange, the connection is closed
+     *
+     * @param e the cause
+     */
+    void fail(Throwable e) {
+        if (state == STATE_DONE) {
+            return;
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(requestIdentifier + "Exchange failed: " + e.getMessage());
+        }
+        finish(false);
+        future.completeExceptionally(e);
+    }
+
+
+    /**
+     * The connection is established, a new secure connection continues with the handshake
+     *
+     * @throws IOException In case of an I/O error
+     */
+    private void onConnected() throws IOException {
+        lastActivity = System.currentTimeMillis();
+        if (!connection.isHandshakeComplete()) {
+            state = STATE_HANDSHAKE;
+            onHandshake();
+        } else {
+            onEstablished();
+        }
+    }
+
+
+    /**
+     * Continue the handshake of a secure connection
+     *
+     * @throws IOException In case of an I/O error
+     */
+    private void onHandshake() throws IOException {
+        final int interestOps = connection.handshake(eventLoop.getReadBuffer());
+        lastActivity = System.currentTimeMillis();
+        if (interestOps != 0) {
+            connection.getKey().interestOps(interestOps);
+            return;
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(requestIdentifier + "Handshake of [" + getRoute() + "] completed.");
+        }
+        onEstablished();
+    }
+
+
+    /**
+     * The connection is established, the request is written
+     *
+     * @throws IOException In case of an I/O error
+     */
+    private void onEstablished() throws IOException {
+        state = STATE_WRITE_REQUEST;
+        writeBuffer = request;
+        lastActivity = System.currentTimeMillis();
+        onWritable();
+    }
+
+
+    /**
+     * Write as much as the socket accepts, further parts of the body are only pulled if the previous part was written
+     *
+     * @throws IOException In case of an I/O error
+     */
+    private void onWritable() throws IOException {
+        while (true) {
+            if (!connection.flush()) {
+                // the encrypted record is not sent completely
+                connection.getKey().interestOps(connection.getKey().interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+
+            if (writeBuffer == null || !writeBuffer.hasRemaining()) {
+                if (state == STATE_WRITE_REQUEST) {
+                    writeBuffer = null;
+                    bodySent = (bodyProducer == null);
+                    decoder.reset(responseBody);
+                    state = (bodyProducer != null) ? STATE_READ_CONTINUE : STATE_READ_RESPONSE;
+                    connection.getKey().interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+
+                if (state != STATE_WRITE_BODY) {
+                    connection.getKey().interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+
+                writeBuffer = bodyProducer.next();
+                if (writeBuffer == null) {
+                    bodySent = true;
+                    state = STATE_READ_RESPONSE;
+                    connection.getKey().interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                
+                if (!writeBuffer.hasRemaining()) {
+                    // the next part is read outside of the event loop, the exchange is resumed as soon as it's available
+                    writeBuffer = null;
+                    connection.getKey().interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+            }
+
+            final int n = connection.write(writeBuffer);
+            if (n > 0) {
+                lastActivity = System.currentTimeMillis();
+            }
+
+            if (writeBuffer.hasRemaining() && (n == 0 || !connection.isSecure())) {
+                // the socket buffer is full, the next part is written as soon as the socket is writable again
+                connection.getKey().interestOps(connection.getKey().interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Resume writing the body as soon as the body producer has the next part, it's called outside of the event loop
+     */
+    private void resume() {
+        eventLoop.execute(() -> {
+            if (state == STATE_WRITE_BODY && writeBuffer == null) {
+                try {
+                    onWritable();
+                } catch (IOException | RuntimeException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Read and decode the available bytes
+     *
+     * @throws IOException In case of an I/O error
+     */
+    private void onReadable() throws IOException {
+        final ByteBuffer readBuffer = eventLoop.getReadBuffer();
+        do {
+            readBuffer.clear();
+            int n = connection.read(readBuffer);
+            if (n < 0) {
+                throw new EOFException("Connection closed by the ICAP server!");
+            }
+            if (n == 0) {
+                break;
+            }
+
+            lastActivity = System.currentTimeMillis();
+            readBuffer.flip();
+            while (state != STATE_DONE && decoder.decode(readBuffer)) {
+                onMessage(readBuffer.hasRemaining() || connection.hasPendingInput());
+            }
+
+            // decrypted records which didn't fit into the read buffer don't raise a further selection
+        } while (state != STATE_DONE && connection.hasPendingInput());
+
+        if (state != STATE_DONE && !connection.flush()) {
+            connection.getKey().interestOps(connection.getKey().interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+
+    /**
+     * A complete message was decoded
+     *
+     * @param pendingBytes true if there are further bytes after the message
+     * @throws IOException In case of an I/O error
+     */
+    private void onMessage(boolean pendingBytes) throws IOException {
+        if (state == STATE_READ_CONTINUE && decoder.getHeaderInformation().getStatus() == 100) {
+            continued = true;
+            state = STATE_WRITE_BODY;
+            decoder.reset(responseBody);
+            connection.getKey().interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+        }
+
+        // a response before the whole body is sent leaves the connection in an undefined state
+        final boolean reusable = decoder.isReusable() && !pendingBytes && state != STATE_WRITE_BODY;
+        finish(reusable);
+        future.complete(decoder.getHeaderInformation());
+    }
+
+
+    /**
+     * Finish the exchange, the connection is released to the event loop
+     *
+     * @param reusable true if the connection can be reused
+     */
+    private void finish(boolean reusable) {
+        final int previousState = state;
+        state = STATE_DONE;
+        writeBuffer = null;
+
+        if (bodyProducer != null) {
+            try {
+                bodyProducer.close();
+            } catch (IOException e) {
+                LOG.debug(requestIdentifier + "Could not close the body producer: " + e.getMessage());
+            }
+        }
+
+        if (permitAcquired) {
+            permitAcquired = false;
+            connectionLimiter.release();
+        }
+
+        if (connection != null) {
+            eventLoop.release(connection, reusable && previousState != STATE_CONNECT);
+            connection = null;
+        }
+    }
+}
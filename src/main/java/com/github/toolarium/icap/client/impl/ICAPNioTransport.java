@@ -0,0 +1,854 @@
+/*
+ * ICAPNioTransport.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Non-blocking transport of the ICAP requests. A small number of event loop threads each multiplex their exchanges over one
+ * {@link Selector}, e.g. thousands of concurrent slow scans don't need a thread each. The connections are kept alive and reused
+ * per route within an event loop, the idle connections of a route are limited by the max connections of the host over all event
+ * loops. Secure connections are encrypted by a {@link SSLEngine}. The event loops are started lazily with
+ * the first exchange.
+ *
+ * @author patrick
+ */
+public class ICAPNioTransport {
+    /** The default number of event loops */
+    public static final int DEFAULT_EVENT_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static final Logger LOG = LoggerFactory.getLogger(ICAPNioTransport.class);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final AtomicInteger TRANSPORT_COUNTER = new AtomicInteger();
+    private final EventLoop[] eventLoops;
+    private final SSLEngineFactory sslEngineFactory;
+    private final AtomicInteger nextEventLoop;
+    private final Map<String, Integer> maxConnectionsPerRoute;
+    private final Map<String, AtomicInteger> idleConnectionsPerRoute;
+    private final int transportNumber;
+    private volatile boolean started;
+    private volatile boolean shutdown;
+    private volatile boolean tcpNoDelay;
+    private volatile Integer sendBufferSize;
+    private volatile int maxIdleConnectionsPerRoute;
+    private volatile int maxRequestsPerConnection;
+    private volatile long maxConnectionAge;
+    private volatile long maxIdleTime;
+
+
+    /**
+     * Constructor for ICAPNioTransport
+     */
+    public ICAPNioTransport() {
+        this(DEFAULT_EVENT_LOOPS);
+    }
+
+
+    /**
+     * Constructor for ICAPNioTransport
+     *
+     * @param eventLoops the number of event loop threads
+     */
+    public ICAPNioTransport(int eventLoops) {
+        this(eventLoops, null);
+    }
+
+
+    /**
+     * Constructor for ICAPNioTransport
+     *
+     * @param eventLoops the number of event loop threads
+     * @param sslEngineFactory the factory of the SSL engines of the secure connections or null to use the default SSL context
+     */
+    public ICAPNioTransport(int eventLoops, SSLEngineFactory sslEngineFactory) {
+        this.eventLoops = new EventLoop[Math.max(1, eventLoops)];
+        this.nextEventLoop = new AtomicInteger();
+        this.maxConnectionsPerRoute = new ConcurrentHashMap<String, Integer>();
+        this.idleConnectionsPerRoute = new ConcurrentHashMap<String, AtomicInteger>();
+        this.transportNumber = TRANSPORT_COUNTER.incrementAndGet();
+        this.sslEngineFactory = (sslEngineFactory != null) ? sslEngineFactory : ICAPNioTransport::createDefaultSSLEngine;
+        this.started = false;
+        this.shutdown = false;
+        this.tcpNoDelay = true;
+        this.sendBufferSize = null;
+        this.maxIdleConnectionsPerRoute = ICAPPooledConnectionManagerImpl.DEFAULT_MAX_IDLE_CONNECTIONS_PER_ROUTE;
+        this.maxRequestsPerConnection = ICAPPooledConnectionManagerImpl.DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+        this.maxConnectionAge = ICAPPooledConnectionManagerImpl.DEFAULT_MAX_CONNECTION_AGE;
+        this.maxIdleTime = ICAPPooledConnectionManagerImpl.DEFAULT_MAX_IDLE_TIME;
+    }
+
+
+    /**
+     * Execute an exchange
+     *
+     * @param exchange the exchange
+     * @return the future of the final response header
+     */
+    public CompletableFuture<ICAPHeaderInformation> execute(ICAPNioExchange exchange) {
+        try {
+            start();
+            final int index = Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length);
+            EventLoop eventLoop = eventLoops[index];
+            if (eventLoop.isClosed()) {
+                eventLoop = restartEventLoop(index);
+            }
+            eventLoop.submit(exchange);
+        } catch (IOException | RuntimeException e) {
+            exchange.fail(e);
+        }
+        return exchange.getFuture();
+    }
+
+
+    /**
+     * Get the number of event loops
+     *
+     * @return the number of event loops
+     */
+    public int getEventLoops() {
+        return eventLoops.length;
+    }
+
+
+    /**
+     * Get an event loop
+     *
+     * @param index the index of the event loop
+     * @return the event loop or null if the event loops are not started
+     */
+    EventLoop getEventLoop(int index) {
+        synchronized (eventLoops) {
+            return eventLoops[index];
+        }
+    }
+
+
+    /**
+     * Get the number of idle connections
+     *
+     * @return the number of idle connections
+     */
+    public int getIdleConnections() {
+        int result = 0;
+        for (EventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) {
+                result += eventLoop.idleConnectionCount;
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Define if the TCP_NODELAY option is set on the connections
+     *
+     * @param tcpNoDelay true to disable Nagle's algorithm
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+
+    /**
+     * Define the send buffer size (SO_SNDBUF) of the connections in bytes or null to use the default of the operating system.
+     *
+     * @param sendBufferSize the send buffer size in bytes or null
+     */
+    public void setSendBufferSize(Integer sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+
+    /**
+     * Set the max idle connections which are kept per route and event loop
+     *
+     * @param maxIdleConnectionsPerRoute the max idle connections
+     */
+    public void setMaxIdleConnectionsPerRoute(int maxIdleConnectionsPerRoute) {
+        this.maxIdleConnectionsPerRoute = Math.max(0, maxIdleConnectionsPerRoute);
+    }
+
+
+    /**
+     * Set the max connections of a host, the idle connections of the route over all event loops are limited by it
+     *
+     * @param hostname the name of the host
+     * @param port the port
+     * @param secure true for secure connections
+     * @param maxConnections the max connections; null or a value less or equal zero is interpreted as unlimited
+     */
+    public void setMaxConnections(String hostname, int port, boolean secure, Integer maxConnections) {
+        final String route = createRoute(hostname, port, secure);
+        if (maxConnections == null || maxConnections.intValue() <= 0) {
+            maxConnectionsPerRoute.remove(route);
+        } else {
+            maxConnectionsPerRoute.put(route, maxConnections);
+        }
+    }
+
+
+    /**
+     * Set the max requests which are sent over one connection before it will be closed
+     *
+     * @param maxRequestsPerConnection the max requests per connection
+     */
+    public void setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+        this.maxRequestsPerConnection = Math.max(1, maxRequestsPerConnection);
+    }
+
+
+    /**
+     * Set the max age of a connection in milliseconds. Older connections are not reused.
+     *
+     * @param maxConnectionAge the max age of a connection in milliseconds
+     */
+    public void setMaxConnectionAge(long maxConnectionAge) {
+        this.maxConnectionAge = maxConnectionAge;
+    }
+
+
+    /**
+     * Set the max idle time of a connection in milliseconds. Connections which are longer idle will be closed.
+     *
+     * @param maxIdleTime the max idle time of a connection in milliseconds
+     */
+    public void setMaxIdleTime(long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+
+    /**
+     * Stop the event loops, the pending exchanges are failed and all connections are closed
+     */
+    public void shutdown() {
+        synchronized (eventLoops) {
+            shutdown = true;
+            for (EventLoop eventLoop : eventLoops) {
+                if (eventLoop != null) {
+                    eventLoop.selector.wakeup();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Create a SSL engine of the default SSL context
+     *
+     * @param hostname the hostname
+     * @param port the port
+     * @return the SSL engine
+     * @throws IOException In case the default SSL context is not available
+     */
+    private static SSLEngine createDefaultSSLEngine(String hostname, int port) throws IOException {
+        try {
+            SSLEngine sslEngine = SSLContext.getDefault().createSSLEngine(hostname, port);
+            sslEngine.setUseClientMode(true);
+            return sslEngine;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not get the default SSL context: " + e.getMessage(), e);
+        }
+    }
+
+
+    /**
+     * Start the event loops
+     *
+     * @throws IOException In case a selector could not be opened
+     */
+    private void start() throws IOException {
+        if (started && !shutdown) {
+            return;
+        }
+
+        synchronized (eventLoops) {
+            if (shutdown) {
+                throw new IOException("The transport is shut down!");
+            }
+
+            if (!started) {
+                for (int i = 0; i < eventLoops.length; i++) {
+                    startEventLoop(i);
+                }
+                started = true;
+            }
+        }
+    }
+
+
+    /**
+     * Replace a stopped event loop, e.g. its selector failed. The exchanges of the stopped event loop were already failed.
+     *
+     * @param index the index of the event loop
+     * @return the running event loop
+     * @throws IOException In case the transport is shut down or a selector could not be opened
+     */
+    private EventLoop restartEventLoop(int index) throws IOException {
+        synchronized (eventLoops) {
+            if (shutdown) {
+                throw new IOException("The transport is shut down!");
+            }
+
+            if (eventLoops[index].isClosed()) {
+                LOG.warn("Restart the stopped event loop icap-nio-" + transportNumber + "-" + (index + 1) + ".");
+                startEventLoop(index);
+            }
+            return eventLoops[index];
+        }
+    }
+
+
+    /**
+     * Start an event loop thread, the caller holds the lock of the event loops
+     *
+     * @param index the index of the event loop
+     * @throws IOException In case a selector could not be opened
+     */
+    private void startEventLoop(int index) throws IOException {
+        eventLoops[index] = new EventLoop(Selector.open());
+        Thread thread = new Thread(eventLoops[index], "icap-nio-" + transportNumber + "-" + (index + 1));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Defines the factory of the SSL engines of the secure connections
+     */
+    public interface SSLEngineFactory {
+
+        /**
+         * Create a SSL engine in client mode
+         *
+         * @param hostname the hostname of the ICAP server
+         * @param port the port of the ICAP server
+         * @return the SSL engine
+         * @throws IOException In case the SSL engine could not be created
+         */
+        SSLEngine createSSLEngine(String hostname, int port) throws IOException;
+    }
+
+
+    /**
+     * Create the route of a connection, the connections are reused per route
+     *
+     * @param hostname the name of the host
+     * @param port the port
+     * @param secure true for a secure connection
+     * @return the route
+     */
+    static String createRoute(String hostname, int port, boolean secure) {
+        return (secure ? "icaps://" : "icap://") + hostname + ":" + port;
+    }
+
+
+    /**
+     * Get the max idle connections of a route over all event loops
+     *
+     * @param route the route
+     * @return the max idle connections
+     */
+    private int getMaxIdleConnections(String route) {
+        final Integer maxConnections = maxConnectionsPerRoute.get(route);
+        if (maxConnections == null) {
+            return Integer.MAX_VALUE;
+        }
+        return maxConnections.intValue();
+    }
+
+
+    /**
+     * Defines an event loop, all state except the submit queue is only accessed by the event loop thread.
+     */
+    final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<ICAPNioExchange> submitted;
+        private final ConcurrentLinkedQueue<Runnable> tasks;
+        private final Map<ICAPConnectionLimiter, WaitingExchanges> waiting;
+        private final List<ICAPNioExchange> active;
+        private final Map<String, ArrayDeque<ICAPNioConnection>> idleConnections;
+        private final ByteBuffer readBuffer;
+        private volatile int idleConnectionCount;
+        private volatile boolean closed;
+
+
+        /**
+         * Constructor for EventLoop
+         *
+         * @param selector the selector
+         */
+        EventLoop(Selector selector) {
+            this.selector = selector;
+            this.submitted = new ConcurrentLinkedQueue<ICAPNioExchange>();
+            this.tasks = new ConcurrentLinkedQueue<Runnable>();
+            this.waiting = new HashMap<ICAPConnectionLimiter, WaitingExchanges>();
+            this.active = new ArrayList<ICAPNioExchange>();
+            this.idleConnections = new HashMap<String, ArrayDeque<ICAPNioConnection>>();
+            this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            this.closed = false;
+        }
+
+
+        /**
+         * Submit an exchange, it's failed in case the event loop is stopped
+         *
+         * @param exchange the exchange
+         */
+        void submit(ICAPNioExchange exchange) {
+            submitted.add(exchange);
+            if (closed) {
+                // the event loop stopped meanwhile, the exchanges which were not taken by the close are failed here
+                failSubmitted(new IOException("The event loop is stopped!"));
+                return;
+            }
+            selector.wakeup();
+        }
+
+
+        /**
+         * Execute a task on the event loop, e.g. to continue an exchange of which the body producer has read the next part.
+         * The tasks of a stopped event loop are dropped, its exchanges are failed anyway.
+         *
+         * @param task the task
+         */
+        void execute(Runnable task) {
+            if (closed) {
+                return;
+            }
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+
+        /**
+         * Check if the event loop is stopped
+         *
+         * @return true if the event loop is stopped
+         */
+        boolean isClosed() {
+            return closed;
+        }
+
+
+        /**
+         * Get the selector
+         *
+         * @return the selector
+         */
+        Selector getSelector() {
+            return selector;
+        }
+
+
+        /**
+         * Get the shared read buffer, the received bytes are decoded immediately
+         *
+         * @return the read buffer
+         */
+        ByteBuffer getReadBuffer() {
+            return readBuffer;
+        }
+
+
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+            try {
+                while (!shutdown) {
+                    runTasks();
+                    startExchanges();
+                    selector.select(getSelectTimeout());
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+
+                        Object attachment = key.attachment();
+                        if (attachment instanceof ICAPNioExchange && key.isValid()) {
+                            ((ICAPNioExchange)attachment).handle(key);
+                        }
+                    }
+
+                    checkTimeouts(System.currentTimeMillis());
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Event loop stopped: " + e.getMessage(), e);
+            } finally {
+                close();
+            }
+        }
+
+
+        /**
+         * Release a connection of a finished exchange
+         *
+         * @param connection the connection
+         * @param reusable true if the connection can be reused
+         */
+        void release(ICAPNioConnection connection, boolean reusable) {
+            final long now = System.currentTimeMillis();
+            if (!reusable || shutdown || !connection.getChannel().isOpen() || connection.getRequestCount() >= maxRequestsPerConnection || isExpired(connection, now)) {
+                closeConnection(connection);
+                return;
+            }
+
+            connection.getKey().interestOps(0);
+            connection.getKey().attach(null);
+            connection.setLastUsed(now);
+            ArrayDeque<ICAPNioConnection> idleQueue = idleConnections.computeIfAbsent(connection.getRoute(), k -> new ArrayDeque<ICAPNioConnection>());
+            idleQueue.offerFirst(connection);
+            final AtomicInteger routeIdleConnections = idleConnectionAdded(connection.getRoute());
+
+            // limit the number of idle connections, the least recently used will be closed; a new connection is only opened if the
+            // event loop has no idle one, the idle connections of the other event loops would exceed the max connections otherwise
+            final int maxIdleConnections = getMaxIdleConnections(connection.getRoute());
+            while (!idleQueue.isEmpty() && (idleQueue.size() > maxIdleConnectionsPerRoute || routeIdleConnections.get() > maxIdleConnections)) {
+                closeConnection(idleQueue.pollLast());
+                idleConnectionRemoved(connection.getRoute());
+            }
+        }
+
+
+        /**
+         * Run the tasks which were handed over to the event loop
+         */
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+
+        /**
+         * Start the submitted and waiting exchanges
+         */
+        private void startExchanges() {
+            ICAPNioExchange exchange;
+            while ((exchange = submitted.poll()) != null) {
+                waiting.computeIfAbsent(exchange.getConnectionLimiter(), k -> new WaitingExchanges()).exchanges.add(exchange);
+            }
+
+            Iterator<Map.Entry<ICAPConnectionLimiter, WaitingExchanges>> it = waiting.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<ICAPConnectionLimiter, WaitingExchanges> entry = it.next();
+                startExchanges(entry.getKey(), entry.getValue());
+                if (entry.getValue().exchanges.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+
+
+        /**
+         * Start the waiting exchanges of a connection limiter in their order until the limiter has no free connection. The event
+         * loop is woken up by the next release of a connection of the limiter.
+         *
+         * @param connectionLimiter the connection limiter or null
+         * @param waitingExchanges the waiting exchanges of the connection limiter
+         */
+        private void startExchanges(ICAPConnectionLimiter connectionLimiter, WaitingExchanges waitingExchanges) {
+            ICAPNioExchange exchange;
+            while ((exchange = waitingExchanges.exchanges.peekFirst()) != null) {
+                if (exchange.isDone()) {
+                    waitingExchanges.exchanges.pollFirst();
+                } else if (exchange.tryAcquirePermit()) {
+                    waitingExchanges.exchanges.pollFirst();
+                    active.add(exchange);
+                    startExchange(exchange);
+                } else if (waitingExchanges.listening.compareAndSet(false, true)) {
+                    // a connection which is released before the listener is registered is taken by the next try
+                    connectionLimiter.notifyOnRelease(() -> {
+                        waitingExchanges.listening.set(false);
+                        selector.wakeup();
+                    });
+                } else {
+                    return;
+                }
+            }
+        }
+
+
+        /**
+         * Start an exchange on an idle or a new connection
+         *
+         * @param exchange the exchange
+         */
+        private void startExchange(ICAPNioExchange exchange) {
+            try {
+                ICAPNioConnection connection = pollIdleConnection(exchange.getRoute());
+                if (connection != null) {
+                    exchange.start(this, connection, true);
+                    return;
+                }
+
+                SocketChannel channel = SocketChannel.open();
+                boolean connected;
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+                    Integer size = sendBufferSize;
+                    if (size != null && size.intValue() > 0) {
+                        channel.setOption(StandardSocketOptions.SO_SNDBUF, size);
+                    }
+
+                    SSLEngine sslEngine = null;
+                    if (exchange.isSecure()) {
+                        // the engine is created with the peer host and port to resume a cached session of the route
+                        sslEngine = sslEngineFactory.createSSLEngine(exchange.getAddress().getHostString(), exchange.getAddress().getPort());
+                    }
+
+                    connected = channel.connect(exchange.getAddress());
+                    connection = new ICAPNioConnection(exchange.getRoute(), channel, channel.register(selector, 0), sslEngine);
+                } catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+                exchange.start(this, connection, connected);
+            } catch (IOException | RuntimeException e) {
+                exchange.fail(e);
+            }
+        }
+
+
+        /**
+         * Poll an idle connection of a route, expired connections or connections which were closed by the server are closed
+         *
+         * @param route the route
+         * @return the connection or null
+         */
+        private ICAPNioConnection pollIdleConnection(String route) {
+            ArrayDeque<ICAPNioConnection> idleQueue = idleConnections.get(route);
+            if (idleQueue == null) {
+                return null;
+            }
+
+            final long now = System.currentTimeMillis();
+            ICAPNioConnection connection;
+            while ((connection = idleQueue.pollFirst()) != null) {
+                idleConnectionRemoved(route);
+                if (isExpired(connection, now) || (now - connection.getLastUsed()) > maxIdleTime || isStale(connection)) {
+                    closeConnection(connection);
+                    continue;
+                }
+
+                connection.incrementRequestCount();
+                return connection;
+            }
+            return null;
+        }
+
+
+        /**
+         * Check if an idle connection was closed by the server: an idle connection must not have any pending application data.
+         * Handshake messages of a secure connection, e.g. session tickets, are consumed by the read.
+         *
+         * @param connection the connection
+         * @return true if the connection can not be used anymore
+         */
+        private boolean isStale(ICAPNioConnection connection) {
+            try {
+                readBuffer.clear();
+                return connection.read(readBuffer) != 0 || connection.hasPendingInput();
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+
+        /**
+         * Check if a connection is expired
+         *
+         * @param connection the connection
+         * @param now the current time in milliseconds
+         * @return true if it is expired
+         */
+        private boolean isExpired(ICAPNioConnection connection, long now) {
+            return maxConnectionAge > 0 && (now - connection.getCreated()) > maxConnectionAge;
+        }
+
+
+        /**
+         * Get the select timeout, the timeouts are checked after each selection
+         *
+         * @return the timeout in milliseconds, zero blocks until an event or wakeup
+         */
+        private long getSelectTimeout() {
+            if (!waiting.isEmpty() || !active.isEmpty()) {
+                return 100;
+            }
+            if (idleConnectionCount > 0) {
+                return Math.max(100, Math.min(maxIdleTime, 1000));
+            }
+            return 0;
+        }
+
+
+        /**
+         * Check the timeouts of the exchanges and close the idle connections
+         *
+         * @param now the current time in milliseconds
+         */
+        private void checkTimeouts(long now) {
+            for (WaitingExchanges waitingExchanges : waiting.values()) {
+                for (ICAPNioExchange exchange : waitingExchanges.exchanges) {
+                    exchange.checkTimeout(now);
+                }
+            }
+
+            Iterator<ICAPNioExchange> it = active.iterator();
+            while (it.hasNext()) {
+                ICAPNioExchange exchange = it.next();
+                exchange.checkTimeout(now);
+                if (exchange.isDone()) {
+                    it.remove();
+                }
+            }
+
+            for (ArrayDeque<ICAPNioConnection> idleQueue : idleConnections.values()) {
+                Iterator<ICAPNioConnection> idleIterator = idleQueue.iterator();
+                while (idleIterator.hasNext()) {
+                    ICAPNioConnection connection = idleIterator.next();
+                    if (isExpired(connection, now) || (now - connection.getLastUsed()) > maxIdleTime) {
+                        idleIterator.remove();
+                        idleConnectionRemoved(connection.getRoute());
+                        closeConnection(connection);
+                    }
+                }
+            }
+        }
+
+
+        /**
+         * Count an idle connection of the event loop and its route
+         *
+         * @param route the route
+         * @return the idle connections of the route over all event loops
+         */
+        private AtomicInteger idleConnectionAdded(String route) {
+            idleConnectionCount++;
+            final AtomicInteger routeIdleConnections = idleConnectionsPerRoute.computeIfAbsent(route, k -> new AtomicInteger());
+            routeIdleConnections.incrementAndGet();
+            return routeIdleConnections;
+        }
+
+
+        /**
+         * Remove an idle connection of the event loop and its route from the counters
+         *
+         * @param route the route
+         */
+        private void idleConnectionRemoved(String route) {
+            idleConnectionCount--;
+            final AtomicInteger routeIdleConnections = idleConnectionsPerRoute.get(route);
+            if (routeIdleConnections != null) {
+                routeIdleConnections.decrementAndGet();
+            }
+        }
+
+
+        /**
+         * Close a connection
+         *
+         * @param connection the connection
+         */
+        private void closeConnection(ICAPNioConnection connection) {
+            connection.close();
+        }
+
+
+        /**
+         * Fail the submitted exchanges
+         *
+         * @param e the cause
+         */
+        private void failSubmitted(IOException e) {
+            ICAPNioExchange exchange;
+            while ((exchange = submitted.poll()) != null) {
+                exchange.fail(e);
+            }
+        }
+
+
+        /**
+         * Close the event loop, the pending exchanges are failed
+         */
+        private void close() {
+            closed = true;
+            IOException e = new IOException(shutdown ? "The transport is shut down!" : "The event loop is stopped!");
+            failSubmitted(e);
+            for (WaitingExchanges waitingExchanges : waiting.values()) {
+                for (ICAPNioExchange waitingExchange : waitingExchanges.exchanges) {
+                    waitingExchange.fail(e);
+                }
+            }
+            for (ICAPNioExchange activeExchange : active) {
+                activeExchange.fail(e);
+            }
+            waiting.clear();
+            active.clear();
+            tasks.clear();
+
+            for (ArrayDeque<ICAPNioConnection> idleQueue : idleConnections.values()) {
+                for (ICAPNioConnection connection : idleQueue) {
+                    idleConnectionRemoved(connection.getRoute());
+                    closeConnection(connection);
+                }
+            }
+            idleConnections.clear();
+
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                // NOP
+            }
+        }
+    }
+
+
+    /**
+     * Defines the waiting exchanges of a connection limiter in their order
+     */
+    private static final class WaitingExchanges {
+        private final ArrayDeque<ICAPNioExchange> exchanges;
+        private final AtomicBoolean listening;
+
+
+        /**
+         * Constructor for WaitingExchanges
+         */
+        WaitingExchanges() {
+            this.exchanges = new ArrayDeque<ICAPNioExchange>();
+            this.listening = new AtomicBoolean(false);
+        }
+    }
+}
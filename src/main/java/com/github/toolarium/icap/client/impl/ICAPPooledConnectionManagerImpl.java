@@ -0,0 +1,401 @@
+/*
+ * ICAPPooledConnectionManagerImpl.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Implements a pooled {@link com.github.toolarium.icap.client.ICAPConnectionManager}. The connections are kept alive
+ * and reused per host, port and secure connection. A connection is only reused if the previous exchange was completed.
+ * Idle connections are evicted in the background; their number is limited by the max connections of the host.
+ *
+ * @author patrick
+ */
+public class ICAPPooledConnectionManagerImpl extends ICAPConnectionManagerImpl {
+    /** The default max idle connections per host, port and secure connection */
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS_PER_ROUTE = 8;
+
+    /** The default max requests per connection */
+    public static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 100;
+
+    /** The default max age of a connection in milliseconds */
+    public static final long DEFAULT_MAX_CONNECTION_AGE = 5 * 60 * 1000L;
+
+    /** The default max idle time of a connection in milliseconds */
+    public static final long DEFAULT_MAX_IDLE_TIME = 30 * 1000L;
+
+    /** The default idle time in milliseconds after which a connection is validated before it is reused */
+    public static final long DEFAULT_VALIDATE_AFTER_INACTIVITY = 2 * 1000L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ICAPPooledConnectionManagerImpl.class);
+    private final Map<String, ConcurrentLinkedDeque<PooledConnection>> idleConnections;
+    private final Map<Socket, PooledConnection> leasedConnections;
+    private final Map<String, Integer> maxConnectionsPerRoute;
+    private final AtomicBoolean evictionStarted;
+    private volatile ScheduledExecutorService evictionExecutor;
+    private volatile int maxIdleConnectionsPerRoute;
+    private volatile int maxRequestsPerConnection;
+    private volatile long maxConnectionAge;
+    private volatile long maxIdleTime;
+    private volatile long validateAfterInactivity;
+
+
+    /**
+     * Constructor for ICAPPooledConnectionManagerImpl
+     */
+    public ICAPPooledConnectionManagerImpl() {
+        idleConnections = new ConcurrentHashMap<String, ConcurrentLinkedDeque<PooledConnection>>();
+        leasedConnections = new ConcurrentHashMap<Socket, PooledConnection>();
+        maxConnectionsPerRoute = new ConcurrentHashMap<String, Integer>();
+        evictionStarted = new AtomicBoolean(false);
+        maxIdleConnectionsPerRoute = DEFAULT_MAX_IDLE_CONNECTIONS_PER_ROUTE;
+        maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+        maxConnectionAge = DEFAULT_MAX_CONNECTION_AGE;
+        maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+        validateAfterInactivity = DEFAULT_VALIDATE_AFTER_INACTIVITY;
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.impl.ICAPConnectionManagerImpl#createSocket(java.lang.String, int, boolean, java.lang.Integer, java.lang.Integer)
+     */
+    @Override
+    public Socket createSocket(String hostname, int port, boolean secureConnection, Integer maxConnectionTimeout, Integer maxReadTimeout) throws UnknownHostException, IOException {
+        final String key = createKey(hostname, port, secureConnection);
+        final ConcurrentLinkedDeque<PooledConnection> idleQueue = idleConnections.get(key);
+        if (idleQueue != null) {
+            PooledConnection pooledConnection;
+            while ((pooledConnection = idleQueue.pollFirst()) != null) {
+                final long now = System.currentTimeMillis();
+                if (isExpired(pooledConnection, now) || ((now - pooledConnection.lastUsed) > validateAfterInactivity && isStale(pooledConnection.socket))) {
+                    closeSocket(pooledConnection.socket);
+                    continue;
+                }
+
+                pooledConnection.socket.setSoTimeout(getReadSocketTimeout(maxReadTimeout));
+                pooledConnection.requestCount++;
+                leasedConnections.put(pooledConnection.socket, pooledConnection);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Reuse connection to [" + key + "] (request " + pooledConnection.requestCount + ")");
+                }
+                return pooledConnection.socket;
+            }
+        }
+
+        Socket socket = super.createSocket(hostname, port, secureConnection, maxConnectionTimeout, maxReadTimeout);
+        leasedConnections.put(socket, new PooledConnection(key, socket));
+        return socket;
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.impl.ICAPConnectionManagerImpl#releaseSocket(java.net.Socket, boolean)
+     */
+    @Override
+    public void releaseSocket(Socket socket, boolean reusable) {
+        if (socket == null) {
+            return;
+        }
+
+        final PooledConnection pooledConnection = leasedConnections.remove(socket);
+        final long now = System.currentTimeMillis();
+        if (pooledConnection == null || !reusable || socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()
+                || pooledConnection.requestCount >= maxRequestsPerConnection || isExpired(pooledConnection, now)) {
+            closeSocket(socket);
+            return;
+        }
+
+        pooledConnection.lastUsed = now;
+        final ConcurrentLinkedDeque<PooledConnection> idleQueue = idleConnections.computeIfAbsent(pooledConnection.key, k -> new ConcurrentLinkedDeque<PooledConnection>());
+        idleQueue.offerFirst(pooledConnection);
+        limitIdleConnections(pooledConnection.key, idleQueue);
+        startEviction();
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.ICAPConnectionManager#setMaxConnections(java.lang.String, int, boolean, java.lang.Integer)
+     */
+    @Override
+    public void setMaxConnections(String hostname, int port, boolean secureConnection, Integer maxConnections) {
+        final String key = createKey(hostname, port, secureConnection);
+        if (maxConnections == null || maxConnections.intValue() <= 0) {
+            maxConnectionsPerRoute.remove(key);
+            return;
+        }
+
+        maxConnectionsPerRoute.put(key, maxConnections);
+        final ConcurrentLinkedDeque<PooledConnection> idleQueue = idleConnections.get(key);
+        if (idleQueue != null) {
+            limitIdleConnections(key, idleQueue);
+        }
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.impl.ICAPConnectionManagerImpl#isKeepAlive()
+     */
+    @Override
+    public boolean isKeepAlive() {
+        return true;
+    }
+
+
+    /**
+     * Set the max idle connections which are kept per host, port and secure connection
+     *
+     * @param maxIdleConnectionsPerRoute the max idle connections
+     */
+    public void setMaxIdleConnectionsPerRoute(int maxIdleConnectionsPerRoute) {
+        this.maxIdleConnectionsPerRoute = Math.max(0, maxIdleConnectionsPerRoute);
+    }
+
+
+    /**
+     * Set the max requests which are sent over one connection before it will be closed
+     *
+     * @param maxRequestsPerConnection the max requests per connection
+     */
+    public void setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+        this.maxRequestsPerConnection = Math.max(1, maxRequestsPerConnection);
+    }
+
+
+    /**
+     * Set the max age of a connection in milliseconds. Older connections are not reused.
+     *
+     * @param maxConnectionAge the max age of a connection in milliseconds
+     */
+    public void setMaxConnectionAge(long maxConnectionAge) {
+        this.maxConnectionAge = maxConnectionAge;
+    }
+
+
+    /**
+     * Set the max idle time of a connection in milliseconds. Connections which are longer idle will be evicted.
+     *
+     * @param maxIdleTime the max idle time of a connection in milliseconds
+     */
+    public void setMaxIdleTime(long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+
+    /**
+     * Set the idle time in milliseconds after which a connection is validated before it is reused.
+     *
+     * @param validateAfterInactivity the idle time in milliseconds
+     */
+    public void setValidateAfterInactivity(long validateAfterInactivity) {
+        this.validateAfterInactivity = validateAfterInactivity;
+    }
+
+
+    /**
+     * Get the number of idle connections
+     *
+     * @return the number of idle connections
+     */
+    public int getIdleConnections() {
+        int result = 0;
+        for (ConcurrentLinkedDeque<PooledConnection> idleQueue : idleConnections.values()) {
+            result += idleQueue.size();
+        }
+        return result;
+    }
+
+
+    /**
+     * Get the number of leased connections
+     *
+     * @return the number of leased connections
+     */
+    public int getLeasedConnections() {
+        return leasedConnections.size();
+    }
+
+
+    /**
+     * Evict all expired and idle connections
+     */
+    public void evictIdleConnections() {
+        final long now = System.currentTimeMillis();
+        for (ConcurrentLinkedDeque<PooledConnection> idleQueue : idleConnections.values()) {
+            for (PooledConnection pooledConnection : idleQueue) {
+                if ((isExpired(pooledConnection, now) || (now - pooledConnection.lastUsed) > maxIdleTime) && idleQueue.remove(pooledConnection)) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Evict idle connection to [" + pooledConnection.key + "]");
+                    }
+                    closeSocket(pooledConnection.socket);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Close all idle connections and stop the background eviction
+     */
+    public void shutdown() {
+        ScheduledExecutorService executor = evictionExecutor;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        evictionStarted.set(false);
+
+        for (ConcurrentLinkedDeque<PooledConnection> idleQueue : idleConnections.values()) {
+            PooledConnection pooledConnection;
+            while ((pooledConnection = idleQueue.pollFirst()) != null) {
+                closeSocket(pooledConnection.socket);
+            }
+        }
+    }
+
+
+    /**
+     * Check if a connection is expired
+     *
+     * @param pooledConnection the pooled connection
+     * @param now the current time in milliseconds
+     * @return true if it is expired
+     */
+    protected boolean isExpired(PooledConnection pooledConnection, long now) {
+        return maxConnectionAge > 0 && (now - pooledConnection.created) > maxConnectionAge;
+    }
+
+
+    /**
+     * Check if an idle socket was closed by the remote side.
+     *
+     * @param socket the socket
+     * @return true if the socket can not be used anymore
+     */
+    protected boolean isStale(Socket socket) {
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+            return true;
+        }
+
+        try {
+            int soTimeout = socket.getSoTimeout();
+            try {
+                socket.setSoTimeout(1);
+                InputStream is = socket.getInputStream();
+                // an idle connection must not have any pending data and an end of stream means the server closed it
+                is.read();
+                return true;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } finally {
+                socket.setSoTimeout(soTimeout);
+            }
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+
+    /**
+     * Start the background eviction of idle connections
+     */
+    private void startEviction() {
+        if (!evictionStarted.compareAndSet(false, true)) {
+            return;
+        }
+
+        long period = Math.max(1000L, Math.min(maxIdleTime, 30 * 1000L) / 2);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "icap-connection-eviction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                evictIdleConnections();
+            } catch (RuntimeException e) {
+                LOG.debug("Could not evict idle connections: " + e.getMessage(), e);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        evictionExecutor = executor;
+    }
+
+
+    /**
+     * Limit the number of idle connections of a route, the least recently used will be closed. Since a new connection is only
+     * opened if there is no idle one, the idle connections are limited by the max connections of the host as well.
+     *
+     * @param key the key of the route
+     * @param idleQueue the idle connections of the route
+     */
+    private void limitIdleConnections(String key, ConcurrentLinkedDeque<PooledConnection> idleQueue) {
+        int maxIdleConnections = maxIdleConnectionsPerRoute;
+        final Integer maxConnections = maxConnectionsPerRoute.get(key);
+        if (maxConnections != null) {
+            maxIdleConnections = Math.min(maxIdleConnections, maxConnections.intValue());
+        }
+
+        while (idleQueue.size() > maxIdleConnections) {
+            PooledConnection oldest = idleQueue.pollLast();
+            if (oldest == null) {
+                break;
+            }
+            closeSocket(oldest.socket);
+        }
+    }
+
+
+    /**
+     * Create the key of a connection
+     *
+     * @param hostname the host name
+     * @param port the port
+     * @param secureConnection true for a secured connection
+     * @return the key
+     */
+    private String createKey(String hostname, int port, boolean secureConnection) {
+        return (secureConnection ? "icaps://" : "icap://") + hostname + ":" + port;
+    }
+
+
+    /**
+     * Defines a pooled connection
+     */
+    protected static final class PooledConnection {
+        private final String key;
+        private final Socket socket;
+        private final long created;
+        private volatile long lastUsed;
+        private volatile int requestCount;
+
+
+        /**
+         * Constructor for PooledConnection
+         *
+         * @param key the key
+         * @param socket the socket
+         */
+        PooledConnection(String key, Socket socket) {
+            this.key = key;
+            this.socket = socket;
+            this.created = System.currentTimeMillis();
+            this.lastUsed = created;
+            this.requestCount = 1;
+        }
+    }
+}
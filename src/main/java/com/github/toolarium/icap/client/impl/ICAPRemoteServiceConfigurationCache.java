@@ -0,0 +1,494 @@
+/*
+ * ICAPRemoteServiceConfigurationCache.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRemoteServiceConfiguration;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import com.github.toolarium.icap.client.impl.dto.ICAPRemoteServiceConfigurationImpl;
+import com.github.toolarium.icap.client.impl.parser.ICAPHeaderMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Bounded cache of the remote service configurations. An expired configuration is served as long as one background refresh
+ * per service is running (refresh-ahead), but not longer than a short grace period after its max age. Only in case there is no
+ * valid configuration at all the caller has to wait; concurrent callers of the same service wait on the same OPTIONS request. Optionally the last OPTIONS result is kept as snapshot on
+ * the disk, so a restarted JVM can use it before the first OPTIONS request is answered.
+ *
+ * @author patrick
+ */
+public class ICAPRemoteServiceConfigurationCache {
+    /** The default max number of cached services */
+    public static final int DEFAULT_MAX_SIZE = 256;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ICAPRemoteServiceConfigurationCache.class);
+    private static final double REFRESH_AHEAD_FACTOR = 0.8;
+    private static final long MIN_REFRESH_INTERVAL = 10L;
+    private static final long MAX_STALE_PERIOD = 30L;
+    private static final String SNAPSHOT_PREFIX = "icap-options-";
+    private static final String SNAPSHOT_SUFFIX = ".properties";
+    private final ReentrantLock lock;
+    private final LinkedHashMap<ICAPServiceInformation, CacheEntry> cache;
+    private final Map<ICAPServiceInformation, CompletableFuture<ICAPRemoteServiceConfiguration>> inFlight;
+    private final Executor refreshExecutor;
+    private volatile int maxSize;
+    private volatile Path snapshotDirectory;
+
+
+    /**
+     * Defines the loader of a remote service configuration
+     */
+    public interface Loader {
+
+        /**
+         * Load the remote service configuration
+         *
+         * @return the remote service configuration
+         * @throws IOException In case of an I/O error
+         */
+        ICAPRemoteServiceConfiguration load() throws IOException;
+    }
+
+
+    /**
+     * Constructor for ICAPRemoteServiceConfigurationCache
+     *
+     * @param refreshExecutor the executor of the background refresh
+     */
+    public ICAPRemoteServiceConfigurationCache(Executor refreshExecutor) {
+        this.lock = new ReentrantLock();
+        this.cache = new LinkedHashMap<ICAPServiceInformation, CacheEntry>(16, 0.75f, true);
+        this.inFlight = new ConcurrentHashMap<ICAPServiceInformation, CompletableFuture<ICAPRemoteServiceConfiguration>>();
+        this.refreshExecutor = refreshExecutor;
+        this.maxSize = DEFAULT_MAX_SIZE;
+        this.snapshotDirectory = null;
+    }
+
+
+    /**
+     * Set the max number of cached services. The least recently used service is evicted.
+     *
+     * @param maxSize the max number of cached services
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+        lock.lock();
+        try {
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Set the directory where the snapshots of the OPTIONS results are kept.
+     *
+     * @param snapshotDirectory the directory or null to disable the snapshots
+     */
+    public void setSnapshotDirectory(Path snapshotDirectory) {
+        this.snapshotDirectory = snapshotDirectory;
+    }
+
+
+    /**
+     * Get the number of cached services
+     *
+     * @return the number of cached services
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return cache.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Remove a service from the cache
+     *
+     * @param serviceInformation the service information
+     */
+    public void invalidate(ICAPServiceInformation serviceInformation) {
+        lock.lock();
+        try {
+            cache.remove(serviceInformation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Get the remote service configuration
+     *
+     * @param serviceInformation the service information
+     * @param loader the loader which is used in case the configuration has to be loaded or refreshed
+     * @return the remote service configuration
+     * @throws IOException In case the configuration could not be loaded
+     */
+    public ICAPRemoteServiceConfiguration get(ICAPServiceInformation serviceInformation, Loader loader) throws IOException {
+        CacheEntry entry;
+        lock.lock();
+        try {
+            entry = cache.get(serviceInformation);
+        } finally {
+            lock.unlock();
+        }
+
+        if (entry == null) {
+            ICAPRemoteServiceConfiguration snapshot = readSnapshot(serviceInformation);
+            if (snapshot != null) {
+                entry = put(serviceInformation, snapshot);
+                LOG.debug("Use remote service configuration snapshot: " + serviceInformation);
+            }
+        }
+
+        if (entry == null) {
+            return load(serviceInformation, loader);
+        }
+
+        long age = Instant.now().getEpochSecond() - entry.remoteServiceConfiguration.getTimestamp().getEpochSecond();
+        long maxAge = getMaxAge(serviceInformation, entry.remoteServiceConfiguration);
+        if (age > maxAge + MAX_STALE_PERIOD) {
+            // the background refresh failed or didn't finish in time, the configuration must not be used anymore
+            LOG.debug("Remote service configuration expired since " + (age - maxAge) + " seconds: " + serviceInformation);
+            return load(serviceInformation, loader);
+        }
+
+        if (age > (long)(maxAge * REFRESH_AHEAD_FACTOR)) {
+            refresh(serviceInformation, entry, loader);
+        } else if (LOG.isDebugEnabled()) {
+            LOG.debug("Found remote service configuration in cache (valid for " + (maxAge - age) + " seconds): " + serviceInformation);
+        }
+
+        return entry.remoteServiceConfiguration;
+    }
+
+
+    /**
+     * Get the max age of the cached remote service configuration in seconds. The Options-TTL of the server
+     * overrules the max age of the service information in case it is shorter.
+     *
+     * @param serviceInformation the service information
+     * @param remoteServiceConfiguration the remote service configuration
+     * @return the max age in seconds
+     */
+    public long getMaxAge(ICAPServiceInformation serviceInformation, ICAPRemoteServiceConfiguration remoteServiceConfiguration) {
+        long cacheMaxAge = serviceInformation.getCacheMaxAgeInSeconds();
+        if (remoteServiceConfiguration.getOptionsTTL() != null && remoteServiceConfiguration.getOptionsTTL().intValue() > 0) {
+            cacheMaxAge = Math.min(cacheMaxAge, remoteServiceConfiguration.getOptionsTTL().longValue());
+        }
+        return cacheMaxAge;
+    }
+
+
+    /**
+     * Load the configuration on the caller thread. Concurrent callers of the same service wait on the same request.
+     *
+     * @param serviceInformation the service information
+     * @param loader the loader
+     * @return the remote service configuration
+     * @throws IOException In case the configuration could not be loaded
+     */
+    private ICAPRemoteServiceConfiguration load(ICAPServiceInformation serviceInformation, Loader loader) throws IOException {
+        CompletableFuture<ICAPRemoteServiceConfiguration> future = new CompletableFuture<ICAPRemoteServiceConfiguration>();
+        CompletableFuture<ICAPRemoteServiceConfiguration> existingFuture = inFlight.putIfAbsent(serviceInformation, future);
+        if (existingFuture != null) {
+            return join(existingFuture);
+        }
+
+        try {
+            ICAPRemoteServiceConfiguration remoteServiceConfiguration = loader.load();
+            put(serviceInformation, remoteServiceConfiguration);
+            writeSnapshot(serviceInformation, remoteServiceConfiguration);
+            future.complete(remoteServiceConfiguration);
+            return remoteServiceConfiguration;
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Could not get options from remote icap-server: " + e.getMessage(), e);
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(serviceInformation, future);
+        }
+    }
+
+
+    /**
+     * Refresh the configuration in the background, only one refresh per service is running.
+     *
+     * @param serviceInformation the service information
+     * @param entry the cache entry
+     * @param loader the loader
+     */
+    private void refresh(ICAPServiceInformation serviceInformation, CacheEntry entry, Loader loader) {
+        long now = Instant.now().getEpochSecond();
+        if ((now - entry.lastRefresh) < MIN_REFRESH_INTERVAL) {
+            return;
+        }
+
+        CompletableFuture<ICAPRemoteServiceConfiguration> future = new CompletableFuture<ICAPRemoteServiceConfiguration>();
+        if (inFlight.putIfAbsent(serviceInformation, future) != null) {
+            return;
+        }
+
+        entry.lastRefresh = now;
+        LOG.debug("Refresh remote service configuration in background: " + serviceInformation);
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    ICAPRemoteServiceConfiguration remoteServiceConfiguration = loader.load();
+                    put(serviceInformation, remoteServiceConfiguration);
+                    writeSnapshot(serviceInformation, remoteServiceConfiguration);
+                    future.complete(remoteServiceConfiguration);
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("Could not refresh options from remote icap-server " + serviceInformation + ": " + e.getMessage());
+                    future.completeExceptionally(e);
+                } finally {
+                    inFlight.remove(serviceInformation, future);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(serviceInformation, future);
+            LOG.warn("Could not start refresh of the remote service configuration: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Put a configuration into the cache
+     *
+     * @param serviceInformation the service information
+     * @param remoteServiceConfiguration the remote service configuration
+     * @return the cache entry
+     */
+    private CacheEntry put(ICAPServiceInformation serviceInformation, ICAPRemoteServiceConfiguration remoteServiceConfiguration) {
+        CacheEntry entry = new CacheEntry(remoteServiceConfiguration);
+        lock.lock();
+        try {
+            cache.put(serviceInformation, entry);
+            evict();
+        } finally {
+            lock.unlock();
+        }
+
+        LOG.debug("Set remote service configuration cache: " + serviceInformation);
+        return entry;
+    }
+
+
+    /**
+     * Evict the least recently used entries, the lock must be held
+     */
+    private void evict() {
+        while (cache.size() > maxSize) {
+            ICAPServiceInformation eldest = cache.keySet().iterator().next();
+            cache.remove(eldest);
+            LOG.debug("Evict remote service configuration from cache: " + eldest);
+        }
+    }
+
+
+    /**
+     * Join a future
+     *
+     * @param future the future
+     * @return the result
+     * @throws IOException In case of an I/O error
+     */
+    private ICAPRemoteServiceConfiguration join(CompletableFuture<ICAPRemoteServiceConfiguration> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the options!", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+
+    /**
+     * Get the snapshot file
+     *
+     * @param serviceInformation the service information
+     * @return the snapshot file or null
+     */
+    private Path getSnapshotFile(ICAPServiceInformation serviceInformation) {
+        Path directory = snapshotDirectory;
+        if (directory == null) {
+            return null;
+        }
+
+        return directory.resolve(SNAPSHOT_PREFIX + Integer.toHexString(createServiceKey(serviceInformation).hashCode()) + SNAPSHOT_SUFFIX);
+    }
+
+
+    /**
+     * Create the key of a service
+     *
+     * @param serviceInformation the service information
+     * @return the key
+     */
+    private String createServiceKey(ICAPServiceInformation serviceInformation) {
+        return (serviceInformation.isSecureConnection() ? "icaps://" : "icap://") + serviceInformation.getHostName() + ":" + serviceInformation.getServicePort() + "/" + serviceInformation.getServiceName();
+    }
+
+
+    /**
+     * Write a snapshot of the configuration
+     *
+     * @param serviceInformation the service information
+     * @param remoteServiceConfiguration the remote service configuration
+     */
+    private void writeSnapshot(ICAPServiceInformation serviceInformation, ICAPRemoteServiceConfiguration remoteServiceConfiguration) {
+        Path file = getSnapshotFile(serviceInformation);
+        if (file == null || remoteServiceConfiguration == null || remoteServiceConfiguration.getTimestamp() == null) {
+            return;
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty("service", createServiceKey(serviceInformation));
+        properties.setProperty("timestamp", "" + remoteServiceConfiguration.getTimestamp().getEpochSecond());
+        properties.setProperty("serverPreviewSize", "" + remoteServiceConfiguration.getServerPreviewSize());
+        properties.setProperty("serverAllow204", "" + remoteServiceConfiguration.isServerAllow204());
+        if (remoteServiceConfiguration.getMaxConnections() != null) {
+            properties.setProperty("maxConnections", "" + remoteServiceConfiguration.getMaxConnections());
+        }
+        if (remoteServiceConfiguration.getOptionsTTL() != null) {
+            properties.setProperty("optionsTTL", "" + remoteServiceConfiguration.getOptionsTTL());
+        }
+
+        StringBuilder optionMethods = new StringBuilder();
+        if (remoteServiceConfiguration.getOptionMethods() != null) {
+            for (ICAPMode mode : remoteServiceConfiguration.getOptionMethods()) {
+                if (optionMethods.length() > 0) {
+                    optionMethods.append(',');
+                }
+                optionMethods.append(mode.name());
+            }
+        }
+        properties.setProperty("optionMethods", optionMethods.toString());
+
+        if (remoteServiceConfiguration.getHeaders() != null) {
+            int i = 0;
+            for (Map.Entry<String, List<String>> e : remoteServiceConfiguration.getHeaders().entrySet()) {
+                properties.setProperty("header." + i + ".name", e.getKey());
+                int j = 0;
+                for (String value : e.getValue()) {
+                    properties.setProperty("header." + i + ".value." + (j++), value);
+                }
+                i++;
+            }
+        }
+
+        try {
+            Files.createDirectories(file.getParent());
+            Path tempFile = Files.createTempFile(file.getParent(), SNAPSHOT_PREFIX, ".tmp");
+            try (OutputStream os = Files.newOutputStream(tempFile)) {
+                properties.store(os, "ICAP options snapshot");
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not write options snapshot [" + file + "]: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Read the snapshot of a configuration
+     *
+     * @param serviceInformation the service information
+     * @return the configuration or null
+     */
+    private ICAPRemoteServiceConfiguration readSnapshot(ICAPServiceInformation serviceInformation) {
+        Path file = getSnapshotFile(serviceInformation);
+        if (file == null || !Files.exists(file)) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(file)) {
+            properties.load(is);
+            if (!createServiceKey(serviceInformation).equals(properties.getProperty("service"))) {
+                return null;
+            }
+
+            List<ICAPMode> modes = new ArrayList<ICAPMode>();
+            for (String mode : properties.getProperty("optionMethods", "").split(",")) {
+                if (!mode.isBlank()) {
+                    modes.add(ICAPMode.valueOf(mode.trim()));
+                }
+            }
+
+            Map<String, List<String>> headers = new ICAPHeaderMap();
+            for (int i = 0; properties.containsKey("header." + i + ".name"); i++) {
+                List<String> values = new ArrayList<String>();
+                for (int j = 0; properties.containsKey("header." + i + ".value." + j); j++) {
+                    values.add(properties.getProperty("header." + i + ".value." + j));
+                }
+                headers.put(properties.getProperty("header." + i + ".name"), values);
+            }
+
+            String maxConnections = properties.getProperty("maxConnections");
+            String optionsTTL = properties.getProperty("optionsTTL");
+            return new ICAPRemoteServiceConfigurationImpl(Instant.ofEpochSecond(Long.parseLong(properties.getProperty("timestamp"))),
+                                                          modes.toArray(new ICAPMode[modes.size()]),
+                                                          Integer.parseInt(properties.getProperty("serverPreviewSize")),
+                                                          Boolean.parseBoolean(properties.getProperty("serverAllow204")),
+                                                          maxConnections != null ? Integer.valueOf(maxConnections) : null,
+                                                          optionsTTL != null ? Integer.valueOf(optionsTTL) : null,
+                                                          headers);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not read options snapshot [" + file + "]: " + e.getMessage());
+            return null;
+        }
+    }
+
+
+    /**
+     * Defines a cache entry
+     */
+    private static final class CacheEntry {
+        private final ICAPRemoteServiceConfiguration remoteServiceConfiguration;
+        private volatile long lastRefresh;
+
+
+        /**
+         * Constructor for CacheEntry
+         *
+         * @param remoteServiceConfiguration the remote service configuration
+         */
+        CacheEntry(ICAPRemoteServiceConfiguration remoteServiceConfiguration) {
+            this.remoteServiceConfiguration = remoteServiceConfiguration;
+            this.lastRefresh = 0;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * ICAPRequestBuffer.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ * Growable byte buffer which is reused to assemble the ICAP requests. It's not thread-safe.
+ *
+ * @author patrick
+ */
+public class ICAPRequestBuffer {
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private byte[] buffer;
+    private int length;
+
+
+    /**
+     * Constructor for ICAPRequestBuffer
+     *
+     * @param initialCapacity the initial capacity
+     */
+    public ICAPRequestBuffer(int initialCapacity) {
+        this.buffer = new byte[Math.max(16, initialCapacity)];
+        this.length = 0;
+    }
+
+
+    /**
+     * Reset the buffer
+     *
+     * @return this
+     */
+    public ICAPRequestBuffer reset() {
+        length = 0;
+        return this;
+    }
+
+
+    /**
+     * Get the internal array, the content is valid up to {@link #length()}
+     *
+     * @return the internal array
+     */
+    public byte[] array() {
+        return buffer;
+    }
+
+
+    /**
+     * Get the length of the content
+     *
+     * @return the length
+     */
+    public int length() {
+        return length;
+    }
+
+
+    /**
+     * Get the capacity of the buffer
+     *
+     * @return the capacity
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+
+
+    /**
+     * Append a byte
+     *
+     * @param b the byte
+     * @return this
+     */
+    public ICAPRequestBuffer append(byte b) {
+        ensureCapacity(1);
+        buffer[length++] = b;
+        return this;
+    }
+
+
+    /**
+     * Append bytes
+     *
+     * @param bytes the bytes
+     * @return this
+     */
+    public ICAPRequestBuffer append(byte[] bytes) {
+        return append(bytes, 0, bytes.length);
+    }
+
+
+    /**
+     * Append bytes
+     *
+     * @param bytes the bytes
+     * @param offset the offset
+     * @param len the length
+     * @return this
+     */
+    public ICAPRequestBuffer append(byte[] bytes, int offset, int len) {
+        ensureCapacity(len);
+        System.arraycopy(bytes, offset, buffer, length, len);
+        length += len;
+        return this;
+    }
+
+
+    /**
+     * Append a string UTF-8 encoded
+     *
+     * @param content the content
+     * @return this
+     */
+    public ICAPRequestBuffer append(String content) {
+        final int len = content.length();
+        ensureCapacity(len);
+        for (int i = 0; i < len; i++) {
+            char c = content.charAt(i);
+            if (c >= 0x80) {
+                // not pure ASCII, rollback and encode
+                length -= i;
+                return append(content.getBytes(StandardCharsets.UTF_8));
+            }
+            buffer[length++] = (byte)c;
+        }
+        return this;
+    }
+
+
+    /**
+     * Append a decimal number
+     *
+     * @param value the value
+     * @return this
+     */
+    public ICAPRequestBuffer appendDecimal(long value) {
+        if (value < 0) {
+            return append(Long.toString(value));
+        }
+
+        final int digits = decimalLength(value);
+        ensureCapacity(digits);
+        long v = value;
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte)('0' + (int)(v % 10));
+            v /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+
+    /**
+     * Append a hex number (lower case), e.g. the chunk size
+     *
+     * @param value the value
+     * @return this
+     */
+    public ICAPRequestBuffer appendHex(int value) {
+        final int digits = hexLength(value);
+        ensureCapacity(digits);
+        int v = value;
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = HEX_DIGITS[v & 0xF];
+            v >>>= 4;
+        }
+        length += digits;
+        return this;
+    }
+
+
+    /**
+     * Get the number of decimal digits of a positive number
+     *
+     * @param value the value
+     * @return the number of digits
+     */
+    public static int decimalLength(long value) {
+        int digits = 1;
+        long v = value;
+        while (v >= 10) {
+            v /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+
+    /**
+     * Get the number of hex digits of a number
+     *
+     * @param value the value
+     * @return the number of digits
+     */
+    public static int hexLength(int value) {
+        return Math.max(1, (Integer.SIZE - Integer.numberOfLeadingZeros(value) + 3) / 4);
+    }
+
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Ensure the capacity
+     *
+     * @param len the additional length
+     */
+    private void ensureCapacity(int len) {
+        if (length + len > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + len));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * ICAPRequestTemplate.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import com.github.toolarium.icap.client.ICAPEndpoint;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Pre-encoded ICAP request header of a service, mode and request information. The static segments are encoded once, only the
+ * resource name, the request source, the resource length, the preview size and the offsets are spliced in per request.
+ * The Encapsulated offsets are byte lengths.
+ *
+ * @author patrick
+ */
+public class ICAPRequestTemplate {
+    private static final String NEWLINE = "\r\n";
+    private static final byte[] ENCAPSULATED = (NEWLINE + "Encapsulated: req-hdr=0, ").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SEPARATOR = ", ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_REQUEST_START = (NEWLINE + NEWLINE + "GET /").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_REQUEST_HOST = (" HTTP/1.1" + NEWLINE + "Host: ").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_RESPONSE_START = (NEWLINE + NEWLINE + "HTTP/1.1 200 OK" + NEWLINE + "Transfer-Encoding: chunked").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_CONTENT_LENGTH = (NEWLINE + "Content-Length: ").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEADER_END = (NEWLINE + NEWLINE).getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LINE_END = NEWLINE.getBytes(StandardCharsets.US_ASCII);
+    // the leading separator of the http response start ends the http request, the http response ends with the header end
+    private static final int HTTP_REQUEST_LENGTH = "GET /".length() + HTTP_REQUEST_HOST.length + HEADER_END.length;
+    private static final int HTTP_RESPONSE_LENGTH = HTTP_RESPONSE_START.length;
+    private final byte[] prefix;
+    private final byte[] responseHeaderKey;
+    private final byte[] bodyKey;
+
+
+    /**
+     * Constructor for ICAPRequestTemplate
+     *
+     * @param endpoint the endpoint
+     * @param icapMode the mode
+     * @param apiVersion the ICAP version
+     * @param headers the static headers (Connection, User-Agent, custom headers and Allow) including the line separators
+     */
+    public ICAPRequestTemplate(ICAPEndpoint endpoint, ICAPMode icapMode, String apiVersion, String headers) {
+        ICAPRequestBuffer buffer = new ICAPRequestBuffer(256);
+        buffer.append(endpoint.getRequestLine(icapMode)).append(apiVersion + NEWLINE).append(endpoint.getHostHeader()).append(headers).append("Preview: ");
+        this.prefix = new byte[buffer.length()];
+        System.arraycopy(buffer.array(), 0, prefix, 0, prefix.length);
+
+        if (ICAPMode.RESPMOD.equals(icapMode)) {
+            this.responseHeaderKey = (icapMode.getTag() + "-hdr=").getBytes(StandardCharsets.US_ASCII);
+        } else {
+            this.responseHeaderKey = null;
+        }
+        this.bodyKey = (icapMode.getTag() + "-body=").getBytes(StandardCharsets.US_ASCII);
+    }
+
+
+    /**
+     * Write the request header including the chunk size of the preview into the buffer
+     *
+     * @param buffer the buffer
+     * @param resourceName the resource name
+     * @param requestSource the request source
+     * @param resourceLength the resource length or a negative value in case it's unknown (the Content-Length is omitted)
+     * @param previewSize the preview size
+     * @return the buffer
+     */
+    public ICAPRequestBuffer write(ICAPRequestBuffer buffer, String resourceName, String requestSource, long resourceLength, int previewSize) {
+        final String name = resourceName.trim();
+        final String encodedName = isURLSafe(name) ? null : URLEncoder.encode(name, StandardCharsets.UTF_8);
+        final int nameLength = (encodedName != null) ? encodedName.length() : name.length();
+        final String source = "" + requestSource;
+        final int httpRequestLength = HTTP_REQUEST_LENGTH + nameLength + utf8Length(source);
+        final int contentLengthLength = (resourceLength >= 0) ? HTTP_CONTENT_LENGTH.length + ICAPRequestBuffer.decimalLength(resourceLength) : 0;
+        final int bodyOffset = httpRequestLength + HTTP_RESPONSE_LENGTH + contentLengthLength;
+
+        buffer.append(prefix).appendDecimal(previewSize).append(ENCAPSULATED);
+        if (responseHeaderKey != null) {
+            buffer.append(responseHeaderKey).appendDecimal(httpRequestLength).append(SEPARATOR);
+        }
+        buffer.append(bodyKey).appendDecimal(bodyOffset);
+
+        buffer.append(HTTP_REQUEST_START);
+        if (encodedName != null) {
+            buffer.append(encodedName);
+        } else {
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                buffer.append((byte)(c == ' ' ? '+' : c));
+            }
+        }
+        buffer.append(HTTP_REQUEST_HOST).append(source);
+        buffer.append(HTTP_RESPONSE_START);
+        if (resourceLength >= 0) {
+            buffer.append(HTTP_CONTENT_LENGTH).appendDecimal(resourceLength);
+        }
+        buffer.append(HEADER_END);
+        buffer.appendHex(previewSize).append(LINE_END);
+        return buffer;
+    }
+
+
+    /**
+     * Check if the name is not changed by the url encoding, except the space which is replaced by a plus
+     *
+     * @param name the name
+     * @return true if the name can be used as it is
+     */
+    private static boolean isURLSafe(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '*' || c == '_' || c == ' ')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Get the UTF-8 length of a string
+     *
+     * @param content the content
+     * @return the length in bytes
+     */
+    private static int utf8Length(String content) {
+        int length = 0;
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < content.length() && Character.isLowSurrogate(content.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++; // replaced by '?'
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,856 @@
+/*
+ * ICAPRescanJournal.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import com.github.toolarium.icap.client.ICAPClient;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
+import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import com.github.toolarium.icap.client.exception.ContentBlockedException;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Durable journal of the recently cleared content of a service. Each entry consists of the time, the mode, the ISTag of the service,
+ * the digest and the locator of a resource. As soon as the ISTag of the service changes, e.g. the signatures of the scanner are updated,
+ * a low-priority worker replays the entries which were cleared by an older ISTag through the client. The worker is rate-limited and only
+ * scans if at least half of the connections of the service are free, it uses one connection at most. The progress is kept in a checkpoint
+ * file, a restarted worker continues where it stopped.
+ *
+ * @author patrick
+ */
+public final class ICAPRescanJournal implements Closeable {
+    /** The default max age of an entry */
+    public static final Duration DEFAULT_MAX_AGE = Duration.ofDays(7);
+    private static final Logger LOG = LoggerFactory.getLogger(ICAPRescanJournal.class);
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final int CHECKPOINT_INTERVAL = 100;
+    private static final int MAX_RESCANNED_DIGESTS = 65536;
+    private static final int DEFAULT_RATE = 5;
+    private static final long DEFAULT_POLL_INTERVAL = 1000L;
+    private static final long DEFAULT_RETRY_INTERVAL = 10000L;
+    private static final long CLOSE_TIMEOUT = 30000L;
+    private static final int RESCAN_CONNECTION_TIMEOUT = 1000;
+    private static final int RESCAN_READ_TIMEOUT = 60000;
+    private final Path journalFile;
+    private final Path checkpointFile;
+    private final ICAPServiceInformation serviceInformation;
+    private final ClientSupplier clientSupplier;
+    private final ICAPConnectionLimiter connectionLimiter;
+    private final ResourceResolver resourceResolver;
+    private final AtomicLong rescans;
+    private final AtomicLong blocked;
+    private final AtomicLong idlePolls;
+    private final Map<String, Boolean> rescannedDigests;
+    private FileChannel appendChannel;
+    private Thread worker;
+    private volatile boolean closed;
+    private volatile Listener listener;
+    private volatile long maxAge;
+    private volatile int rate;
+    private volatile long pollInterval;
+    private volatile long retryInterval;
+
+    // the state of the worker
+    private volatile String roundISTag;
+    private volatile long offset;
+    private InputStream reader;
+    private long expiredEntries;
+    private int uncheckpointedEntries;
+    private boolean roundComplete;
+    private long nextRescan;
+
+
+    /**
+     * Defines the supplier of the client
+     */
+    public interface ClientSupplier {
+
+        /**
+         * Get the client of the service
+         *
+         * @return the client
+         * @throws IOException In case of an I/O error
+         */
+        ICAPClient getICAPClient() throws IOException;
+    }
+
+
+    /**
+     * Defines the resolver of a resource locator
+     */
+    public interface ResourceResolver {
+
+        /**
+         * Resolve a resource
+         *
+         * @param locator the locator
+         * @return the resource or null if the resource is no longer available
+         * @throws IOException In case the resource could not be read
+         */
+        ICAPResource resolve(String locator) throws IOException;
+    }
+
+
+    /**
+     * Defines the listener of the rescans
+     */
+    public interface Listener {
+
+        /**
+         * A previously cleared resource is blocked by the current ISTag
+         *
+         * @param locator the locator of the resource
+         * @param digest the recorded digest or an empty string
+         * @param e the exception of the blocked content
+         */
+        void blocked(String locator, String digest, ContentBlockedException e);
+    }
+
+
+    /**
+     * Constructor for ICAPRescanJournal, the locators are resolved as file paths
+     *
+     * @param journalFile the journal file
+     * @param serviceInformation the service information
+     * @param clientSupplier the supplier of the client
+     * @param connectionLimiter the connection limiter of the service or null
+     * @throws IOException In case the journal could not be opened
+     */
+    public ICAPRescanJournal(Path journalFile, ICAPServiceInformation serviceInformation, ClientSupplier clientSupplier, ICAPConnectionLimiter connectionLimiter) throws IOException {
+        this(journalFile, serviceInformation, clientSupplier, connectionLimiter, ICAPRescanJournal::resolvePath);
+    }
+
+
+    /**
+     * Constructor for ICAPRescanJournal
+     *
+     * @param journalFile the journal file
+     * @param serviceInformation the service information
+     * @param clientSupplier the supplier of the client
+     * @param connectionLimiter the connection limiter of the service or null
+     * @param resourceResolver the resolver of the resource locators
+     * @throws IOException In case the journal could not be opened
+     */
+    public ICAPRescanJournal(Path journalFile,
+                             ICAPServiceInformation serviceInformation,
+                             ClientSupplier clientSupplier,
+                             ICAPConnectionLimiter connectionLimiter,
+                             ResourceResolver resourceResolver) throws IOException {
+        this.journalFile = journalFile;
+        this.checkpointFile = journalFile.resolveSibling(journalFile.getFileName() + CHECKPOINT_SUFFIX);
+        this.serviceInformation = serviceInformation;
+        this.clientSupplier = clientSupplier;
+        this.connectionLimiter = connectionLimiter;
+        this.resourceResolver = resourceResolver;
+        this.rescans = new AtomicLong();
+        this.blocked = new AtomicLong();
+        this.idlePolls = new AtomicLong();
+        this.rescannedDigests = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            private static final long serialVersionUID = 6160432281326049877L;
+
+            /**
+             * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+             */
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > MAX_RESCANNED_DIGESTS;
+            }
+        };
+        this.closed = false;
+        this.listener = null;
+        this.maxAge = DEFAULT_MAX_AGE.toMillis();
+        this.rate = DEFAULT_RATE;
+        this.pollInterval = DEFAULT_POLL_INTERVAL;
+        this.retryInterval = DEFAULT_RETRY_INTERVAL;
+
+        if (journalFile.getParent() != null) {
+            Files.createDirectories(journalFile.getParent());
+        }
+        this.appendChannel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        readCheckpoint();
+    }
+
+
+    /**
+     * Set the listener of the blocked resources
+     *
+     * @param listener the listener or null
+     * @return the journal
+     */
+    public ICAPRescanJournal listener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+
+    /**
+     * Set the max age of an entry, older entries are not rescanned and removed from the journal
+     *
+     * @param maxAge the max age, by default 7 days
+     * @return the journal
+     */
+    public ICAPRescanJournal maxAge(Duration maxAge) {
+        this.maxAge = maxAge.toMillis();
+        return this;
+    }
+
+
+    /**
+     * Set the max number of rescans per second
+     *
+     * @param rate the max number of rescans per second, by default 5
+     * @return the journal
+     */
+    public ICAPRescanJournal rate(int rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Invalid rate: " + rate + "!");
+        }
+        this.rate = rate;
+        return this;
+    }
+
+
+    /**
+     * Set the interval in which the ISTag and the free connections of the service are checked
+     *
+     * @param pollInterval the poll interval, by default 1 second
+     * @return the journal
+     */
+    public ICAPRescanJournal pollInterval(Duration pollInterval) {
+        this.pollInterval = pollInterval.toMillis();
+        return this;
+    }
+
+
+    /**
+     * Set the interval after which a failed rescan is retried, e.g. the service is not available
+     *
+     * @param retryInterval the retry interval, by default 10 seconds
+     * @return the journal
+     */
+    public ICAPRescanJournal retryInterval(Duration retryInterval) {
+        this.retryInterval = retryInterval.toMillis();
+        return this;
+    }
+
+
+    /**
+     * Get the journal file
+     *
+     * @return the journal file
+     */
+    public Path getJournalFile() {
+        return journalFile;
+    }
+
+
+    /**
+     * Get the ISTag of the current or last rescan
+     *
+     * @return the ISTag or null
+     */
+    public String getRoundISTag() {
+        return roundISTag;
+    }
+
+
+    /**
+     * Get the offset of the next entry of the rescan
+     *
+     * @return the offset in the journal file
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+
+    /**
+     * Get the number of rescanned resources
+     *
+     * @return the number of rescanned resources
+     */
+    public long getRescans() {
+        return rescans.get();
+    }
+
+
+    /**
+     * Get the number of previously cleared resources which are blocked by a rescan
+     *
+     * @return the number of blocked resources
+     */
+    public long getBlocked() {
+        return blocked.get();
+    }
+
+
+    /**
+     * Get the number of polls in which the worker found nothing to rescan, e.g. the journal is processed up to its end or the 
+     * connections are occupied
+     *
+     * @return the number of idle polls
+     */
+    public long getIdlePolls() {
+        return idlePolls.get();
+    }
+
+
+    /**
+     * Add a cleared resource. The entry is bound to the current ISTag of the service, it's rescanned as soon as the ISTag changes.
+     *
+     * @param mode the icap mode of the scan
+     * @param locator the locator of the resource, e.g. the path of a file
+     * @param digest the digest of the resource or null
+     * @throws IOException In case the entry could not be written
+     */
+    public void add(ICAPMode mode, String locator, String digest) throws IOException {
+        if (locator == null || locator.isBlank()) {
+            throw new IllegalArgumentException("Invalid locator!");
+        }
+
+        final String isTag = ICAPVerdictCache.getInstance().getISTag(serviceInformation);
+        final String line = System.currentTimeMillis()
+                            + ";" + ((mode != null) ? mode : ICAPMode.REQMOD).name()
+                            + ";" + encode(isTag)
+                            + ";" + encode(digest)
+                            + ";" + encode(locator) + "\n";
+
+        final ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII));
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("The rescan journal " + journalFile + " is closed!");
+            }
+
+            while (buffer.hasRemaining()) {
+                appendChannel.write(buffer);
+            }
+        }
+    }
+
+
+    /**
+     * Start the worker
+     *
+     * @return the journal
+     */
+    public synchronized ICAPRescanJournal start() {
+        if (worker == null && !closed) {
+            worker = new Thread(this::run, "icap-rescan-" + serviceInformation.getServiceName());
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MIN_PRIORITY);
+            worker.start();
+        }
+        return this;
+    }
+
+
+    /**
+     * Stop the worker and close the journal, the checkpoint is written by the worker
+     *
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        final Thread currentWorker;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            currentWorker = worker;
+        }
+
+        if (currentWorker != null) {
+            currentWorker.interrupt();
+            try {
+                currentWorker.join(CLOSE_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (this) {
+            appendChannel.close();
+        }
+    }
+
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "ICAPRescanJournal [journalFile=" + journalFile + ", service=" + serviceInformation + ", roundISTag=" + roundISTag + ", offset=" + offset
+                + ", rescans=" + rescans + ", blocked=" + blocked + "]";
+    }
+
+
+    /**
+     * The loop of the worker
+     */
+    private void run() {
+        try {
+            while (!closed) {
+                boolean busy = false;
+                try {
+                    busy = process();
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("Could not process the rescan journal " + journalFile + ": " + e.getMessage());
+                    closeReader();
+                }
+
+                if (!busy) {
+                    idlePolls.incrementAndGet();
+                    Thread.sleep(pollInterval);
+                }
+            }
+        } catch (InterruptedException e) {
+            // the journal is closed
+        } finally {
+            closeReader();
+            writeCheckpoint();
+        }
+    }
+
+
+    /**
+     * Process the next entry of the journal
+     *
+     * @return true if an entry was processed, false if the worker should wait
+     * @throws IOException In case the journal could not be read
+     * @throws InterruptedException In case the worker is interrupted
+     */
+    private boolean process() throws IOException, InterruptedException {
+        final String isTag = ICAPVerdictCache.getInstance().getISTag(serviceInformation);
+        if (isTag == null) {
+            return false;
+        }
+
+        if (!isTag.equals(roundISTag)) {
+            LOG.info("ISTag of service [" + serviceInformation + "] changed to " + isTag + ", rescan the journal " + journalFile + ".");
+            closeReader();
+            roundISTag = isTag;
+            offset = 0;
+            expiredEntries = 0;
+            roundComplete = false;
+            rescannedDigests.clear();
+            writeCheckpoint();
+        }
+
+        final Entry entry = readEntry();
+        if (entry == null) {
+            completeRound();
+            return false;
+        }
+
+        roundComplete = false;
+        if (entry.timestamp < System.currentTimeMillis() - maxAge) {
+            expiredEntries++;
+            advance(entry);
+            return true;
+        }
+
+        // the resource was cleared by the current ISTag or its content was already rescanned
+        if (isTag.equals(entry.isTag) || (!entry.digest.isEmpty() && rescannedDigests.containsKey(entry.digest))) {
+            advance(entry);
+            return true;
+        }
+
+        // the entry is read again as soon as enough connections are free
+        if (!hasFreeConnections()) {
+            closeReader();
+            return false;
+        }
+
+        pace();
+        if (!rescan(entry)) {
+            closeReader();
+            Thread.sleep(retryInterval);
+            return true;
+        }
+
+        if (!entry.digest.isEmpty()) {
+            rescannedDigests.put(entry.digest, Boolean.TRUE);
+        }
+        advance(entry);
+        return true;
+    }
+
+
+    /**
+     * Rescan the resource of an entry
+     *
+     * @param entry the entry
+     * @return true if the entry is done, false if the rescan should be retried
+     */
+    private boolean rescan(Entry entry) {
+        final ICAPResource resource;
+        try {
+            resource = resourceResolver.resolve(entry.locator);
+        } catch (IOException | RuntimeException e) {
+            LOG.info("Resource [" + entry.locator + "] of the rescan journal is not available: " + e.getMessage());
+            return true;
+        }
+
+        if (resource == null) {
+            return true;
+        }
+
+        final ICAPRequestInformation requestInformation = new ICAPRequestInformation().setRequestSource("rescan")
+                                                                                      .maxConnectionTimeout(RESCAN_CONNECTION_TIMEOUT)
+                                                                                      .maxReadTimeout(RESCAN_READ_TIMEOUT);
+        try {
+            clientSupplier.getICAPClient().validateResource(entry.mode, requestInformation, resource);
+            rescans.incrementAndGet();
+            return true;
+        } catch (ContentBlockedException e) {
+            rescans.incrementAndGet();
+            blocked.incrementAndGet();
+            LOG.warn("Previously cleared resource [" + entry.locator + "] is blocked by ISTag " + roundISTag + ": " + e.getMessage());
+
+            final Listener currentListener = listener;
+            if (currentListener != null) {
+                try {
+                    currentListener.blocked(entry.locator, entry.digest, e);
+                } catch (RuntimeException ex) {
+                    LOG.warn("Rescan listener failed: " + ex.getMessage());
+                }
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            LOG.info("Could not rescan resource [" + entry.locator + "], retry in " + retryInterval + "ms: " + e.getMessage());
+            return false;
+        }
+    }
+
+
+    /**
+     * Check if enough connections of the service are free, the interactive scans have precedence
+     *
+     * @return true if a rescan can use a connection
+     */
+    private boolean hasFreeConnections() {
+        if (connectionLimiter == null) {
+            return true;
+        }
+
+        final int maxConnections = connectionLimiter.getMaxConnections();
+        return maxConnections == ICAPConnectionLimiter.UNLIMITED || connectionLimiter.getAvailableConnections() > maxConnections / 2;
+    }
+
+
+    /**
+     * Wait until the next rescan is allowed by the rate
+     *
+     * @throws InterruptedException In case the worker is interrupted
+     */
+    private void pace() throws InterruptedException {
+        final long now = System.nanoTime();
+        if (nextRescan - now > 0) {
+            TimeUnit.NANOSECONDS.sleep(nextRescan - now);
+        }
+        nextRescan = Math.max(now, nextRescan) + TimeUnit.SECONDS.toNanos(1) / rate;
+    }
+
+
+    /**
+     * Advance the offset behind an entry, a checkpoint is written regularly
+     *
+     * @param entry the entry
+     */
+    private void advance(Entry entry) {
+        offset = entry.nextOffset;
+        if (++uncheckpointedEntries >= CHECKPOINT_INTERVAL) {
+            writeCheckpoint();
+        }
+    }
+
+
+    /**
+     * Complete the rescan of the current ISTag, the expired entries are removed from the journal
+     *
+     * @throws IOException In case the journal could not be compacted
+     */
+    private void completeRound() throws IOException {
+        if (roundComplete) {
+            return;
+        }
+        roundComplete = true;
+
+        if (expiredEntries > 0) {
+            compact();
+        }
+        writeCheckpoint();
+        LOG.info("Rescan journal " + journalFile + " of ISTag " + roundISTag + " processed (rescans: " + rescans + ", blocked: " + blocked + ").");
+    }
+
+
+    /**
+     * Remove the expired entries of the journal. In case the process stops between the replacement of the journal and the checkpoint,
+     * the remaining entries of the rescan are skipped.
+     *
+     * @throws IOException In case the journal could not be compacted
+     */
+    private void compact() throws IOException {
+        closeReader();
+        final long minTimestamp = System.currentTimeMillis() - maxAge;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            final Path tempFile = Files.createTempFile(journalFile.toAbsolutePath().getParent(), journalFile.getFileName().toString(), ".tmp");
+            try {
+                try (BufferedReader in = Files.newBufferedReader(journalFile, StandardCharsets.US_ASCII);
+                     BufferedWriter out = Files.newBufferedWriter(tempFile, StandardCharsets.US_ASCII)) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        final Entry entry = parseEntry(line, 0);
+                        if (entry != null && entry.timestamp >= minTimestamp) {
+                            out.write(line);
+                            out.write('\n');
+                        }
+                    }
+                }
+
+                appendChannel.close();
+                Files.move(tempFile, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+                if (!appendChannel.isOpen()) {
+                    appendChannel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+            }
+
+            // the remaining entries were cleared by the current ISTag
+            offset = Files.size(journalFile);
+            expiredEntries = 0;
+        }
+    }
+
+
+    /**
+     * Read the next complete entry of the journal
+     *
+     * @return the entry or null if the end of the journal is reached
+     * @throws IOException In case of an I/O error
+     */
+    private Entry readEntry() throws IOException {
+        if (reader == null) {
+            final FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.READ);
+            if (offset > channel.size()) {
+                offset = channel.size();
+            }
+            channel.position(offset);
+            reader = new BufferedInputStream(Channels.newInputStream(channel));
+        }
+
+        long position = offset;
+        while (true) {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            int b;
+            while ((b = reader.read()) >= 0 && b != '\n') {
+                line.write(b);
+            }
+
+            if (b < 0) {
+                // an incomplete line is read again, it might be written at the moment
+                closeReader();
+                return null;
+            }
+
+            position += line.size() + 1;
+            final Entry entry = parseEntry(line.toString(StandardCharsets.US_ASCII), position);
+            if (entry != null) {
+                return entry;
+            }
+
+            LOG.warn("Invalid entry in rescan journal " + journalFile + " skipped.");
+            offset = position;
+        }
+    }
+
+
+    /**
+     * Close the reader of the journal
+     */
+    private void closeReader() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // NOP
+            }
+            reader = null;
+        }
+    }
+
+
+    /**
+     * Read the checkpoint
+     */
+    private void readCheckpoint() {
+        if (!Files.exists(checkpointFile)) {
+            return;
+        }
+
+        final Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(checkpointFile)) {
+            properties.load(is);
+            roundISTag = properties.getProperty("istag");
+            offset = Long.parseLong(properties.getProperty("offset", "0"));
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not read checkpoint [" + checkpointFile + "], the journal is rescanned: " + e.getMessage());
+            roundISTag = null;
+            offset = 0;
+        }
+    }
+
+
+    /**
+     * Write the checkpoint
+     */
+    private void writeCheckpoint() {
+        uncheckpointedEntries = 0;
+        if (roundISTag == null) {
+            return;
+        }
+
+        final Properties properties = new Properties();
+        properties.setProperty("service", "" + serviceInformation);
+        properties.setProperty("istag", roundISTag);
+        properties.setProperty("offset", "" + offset);
+        try {
+            final Path tempFile = Files.createTempFile(checkpointFile.toAbsolutePath().getParent(), checkpointFile.getFileName().toString(), ".tmp");
+            try (OutputStream os = Files.newOutputStream(tempFile)) {
+                properties.store(os, "ICAP rescan checkpoint");
+            }
+            Files.move(tempFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not write checkpoint [" + checkpointFile + "]: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Parse an entry
+     *
+     * @param line the line
+     * @param nextOffset the offset behind the line
+     * @return the entry or null if it's invalid
+     */
+    private static Entry parseEntry(String line, long nextOffset) {
+        final String[] values = line.split(";", 5);
+        if (values.length != 5) {
+            return null;
+        }
+
+        try {
+            return new Entry(Long.parseLong(values[0]), ICAPMode.valueOf(values[1]), decode(values[2]), decode(values[3]), decode(values[4]), nextOffset);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Encode a value of an entry
+     *
+     * @param value the value or null
+     * @return the encoded value
+     */
+    private static String encode(String value) {
+        return (value != null) ? URLEncoder.encode(value, StandardCharsets.UTF_8) : "";
+    }
+
+
+    /**
+     * Decode a value of an entry
+     *
+     * @param value the encoded value
+     * @return the value
+     */
+    private static String decode(String value) {
+        return URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Resolve a locator as file path
+     *
+     * @param locator the locator
+     * @return the resource or null if the file doesn't exist
+     */
+    private static ICAPResource resolvePath(String locator) {
+        try {
+            return new ICAPResource(Paths.get(locator));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * An entry of the journal
+     */
+    private static final class Entry {
+        private final long timestamp;
+        private final ICAPMode mode;
+        private final String isTag;
+        private final String digest;
+        private final String locator;
+        private final long nextOffset;
+
+
+        /**
+         * Constructor for Entry
+         *
+         * @param timestamp the timestamp
+         * @param mode the mode
+         * @param isTag the ISTag which cleared the resource
+         * @param digest the digest
+         * @param locator the locator
+         * @param nextOffset the offset behind the entry
+         */
+        Entry(long timestamp, ICAPMode mode, String isTag, String digest, String locator, long nextOffset) {
+            this.timestamp = timestamp;
+            this.mode = mode;
+            this.isTag = isTag;
+            this.digest = digest;
+            this.locator = locator;
+            this.nextOffset = nextOffset;
+        }
+    }
+}
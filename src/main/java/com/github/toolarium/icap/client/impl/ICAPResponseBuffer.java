@@ -0,0 +1,476 @@
+/*
+ * ICAPResponseBuffer.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+
+/**
+ * Sink of the encapsulated response body. The content is kept in pooled buffers up to a threshold, only above the threshold
+ * it is spilled to a temporary file which is written through a direct buffer. The file is created lazily, e.g. an unmodified
+ * response doesn't touch the file system. With a spill executor the file is created and written by the executor, the writer 
+ * hands over the filled buffers, e.g. an event loop doesn't block on a slow disk. It's not thread-safe.
+ *
+ * @author patrick
+ */
+public class ICAPResponseBuffer extends OutputStream {
+    /** The default threshold in bytes up to which the response is kept in memory */
+    public static final int DEFAULT_THRESHOLD = 256 * 1024;
+    private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+    private static final String FILE_PREFIX = "icap-response-";
+    private static final String FILE_SUFFIX = ".tmp";
+    private static volatile int defaultThreshold = DEFAULT_THRESHOLD;
+    private static volatile Path defaultDirectory = null;
+    private final int threshold;
+    private final Path directory;
+    private final Executor spillExecutor;
+    private final List<byte[]> chunks;
+    private byte[] current;
+    private int currentPosition;
+    private long length;
+    private Path file;
+    private FileChannel channel;
+    private ByteBuffer spillBuffer;
+    private CompletableFuture<Void> spillTask;
+    private boolean closed;
+
+
+    /**
+     * Constructor for ICAPResponseBuffer with the default threshold and directory
+     */
+    public ICAPResponseBuffer() {
+        this(defaultThreshold, defaultDirectory);
+    }
+
+
+    /**
+     * Constructor for ICAPResponseBuffer with the default threshold and directory
+     *
+     * @param spillExecutor the executor which writes the spilled file or null to write it by the writer
+     */
+    public ICAPResponseBuffer(Executor spillExecutor) {
+        this(defaultThreshold, defaultDirectory, spillExecutor);
+    }
+
+
+    /**
+     * Constructor for ICAPResponseBuffer
+     *
+     * @param threshold the threshold in bytes up to which the content is kept in memory
+     * @param directory the directory of the spilled file or null to use the default temporary directory
+     */
+    public ICAPResponseBuffer(int threshold, Path directory) {
+        this(threshold, directory, null);
+    }
+
+
+    /**
+     * Constructor for ICAPResponseBuffer
+     *
+     * @param threshold the threshold in bytes up to which the content is kept in memory
+     * @param directory the directory of the spilled file or null to use the default temporary directory
+     * @param spillExecutor the executor which writes the spilled file or null to write it by the writer
+     */
+    public ICAPResponseBuffer(int threshold, Path directory, Executor spillExecutor) {
+        this.threshold = Math.max(0, threshold);
+        this.directory = directory;
+        this.spillExecutor = spillExecutor;
+        this.chunks = new ArrayList<byte[]>(4);
+        this.current = null;
+        this.currentPosition = 0;
+        this.length = 0;
+        this.file = null;
+        this.channel = null;
+        this.spillBuffer = null;
+        this.spillTask = null;
+        this.closed = false;
+    }
+
+
+    /**
+     * Set the default threshold up to which the response is kept in memory
+     *
+     * @param threshold the threshold in bytes
+     */
+    public static void setDefaultThreshold(int threshold) {
+        defaultThreshold = threshold;
+    }
+
+
+    /**
+     * Set the default directory of the spilled files
+     *
+     * @param directory the directory or null to use the default temporary directory
+     */
+    public static void setDefaultDirectory(Path directory) {
+        defaultDirectory = directory;
+    }
+
+
+    /**
+     * @see java.io.OutputStream#write(int)
+     */
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte)b}, 0, 1);
+    }
+
+
+    /**
+     * @see java.io.OutputStream#write(byte[], int, int)
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Response buffer is closed!");
+        }
+
+        if (channel == null && spillTask == null && length + len > threshold) {
+            if (spillExecutor != null) {
+                startSpill();
+            } else {
+                spill();
+            }
+        }
+
+        if (spillTask == null && channel != null) {
+            writeToChannel(b, off, len);
+        } else {
+            int offset = off;
+            int remaining = len;
+            while (remaining > 0) {
+                if (current == null || currentPosition == current.length) {
+                    if (spillTask != null && current != null) {
+                        // the filled buffer is written by the spill executor
+                        handOver(current, currentPosition);
+                        chunks.clear();
+                    }
+                    
+                    current = ICAPBufferPool.getInstance().acquire();
+                    currentPosition = 0;
+                    chunks.add(current);
+                }
+
+                int n = Math.min(remaining, current.length - currentPosition);
+                System.arraycopy(b, offset, current, currentPosition, n);
+                currentPosition += n;
+                offset += n;
+                remaining -= n;
+            }
+        }
+
+        length += len;
+    }
+
+
+    /**
+     * Get the length of the content
+     *
+     * @return the length in bytes
+     */
+    public long length() {
+        return length;
+    }
+
+
+    /**
+     * Check if the content was spilled to a file
+     *
+     * @return true if the content was spilled
+     */
+    public boolean isSpilled() {
+        return spillTask != null || file != null;
+    }
+
+
+    /**
+     * Get the content
+     *
+     * @return the content
+     * @throws IOException In case of an I/O error
+     */
+    public byte[] toByteArray() throws IOException {
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Response of " + length + " bytes is too large!");
+        }
+
+        awaitSpill();
+        byte[] result = new byte[(int)length];
+        if (channel != null) {
+            flushSpillBuffer();
+            ByteBuffer target = ByteBuffer.wrap(result);
+            while (target.hasRemaining()) {
+                if (channel.read(target, target.position()) < 0) {
+                    throw new IOException("Unexpected end of the response file!");
+                }
+            }
+            return result;
+        }
+
+        int pos = 0;
+        for (byte[] chunk : chunks) {
+            int n = (int)Math.min(chunk.length, length - pos);
+            System.arraycopy(chunk, 0, result, pos, n);
+            pos += n;
+        }
+        return result;
+    }
+
+
+    /**
+     * Get an input stream of the content, it must be read and closed before the buffer is closed
+     *
+     * @return the input stream
+     * @throws IOException In case of an I/O error
+     */
+    public InputStream getInputStream() throws IOException {
+        awaitSpill();
+        if (channel != null) {
+            flushSpillBuffer();
+            return Files.newInputStream(file);
+        }
+
+        return new InputStream() {
+            private long position = 0;
+
+            /**
+             * @see java.io.InputStream#read()
+             */
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) < 0) ? -1 : b[0] & 0xFF;
+            }
+
+            /**
+             * @see java.io.InputStream#read(byte[], int, int)
+             */
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position >= length) {
+                    return -1;
+                }
+
+                final int chunkSize = chunks.get(0).length;
+                byte[] chunk = chunks.get((int)(position / chunkSize));
+                int chunkPosition = (int)(position % chunkSize);
+                int n = (int)Math.min(Math.min(len, chunk.length - chunkPosition), length - position);
+                System.arraycopy(chunk, chunkPosition, b, off, n);
+                position += n;
+                return n;
+            }
+        };
+    }
+
+
+    /**
+     * @see java.io.OutputStream#close()
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            awaitSpill();
+        } catch (IOException e) {
+            // NOP, the file is deleted anyway
+        }
+
+        for (byte[] chunk : chunks) {
+            ICAPBufferPool.getInstance().release(chunk);
+        }
+        chunks.clear();
+        current = null;
+        spillBuffer = null;
+
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } finally {
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+
+    /**
+     * Spill the content to a new temporary file
+     *
+     * @throws IOException In case of an I/O error
+     */
+    private void spill() throws IOException {
+        createFile();
+
+        long remaining = length;
+        for (byte[] chunk : chunks) {
+            int n = (int)Math.min(chunk.length, remaining);
+            writeToChannel(chunk, 0, n);
+            remaining -= n;
+            ICAPBufferPool.getInstance().release(chunk);
+        }
+        chunks.clear();
+        current = null;
+    }
+
+
+    /**
+     * Create the temporary file and its channel
+     *
+     * @throws IOException In case of an I/O error
+     */
+    private void createFile() throws IOException {
+        if (directory != null) {
+            file = Files.createTempFile(directory, FILE_PREFIX, FILE_SUFFIX);
+        } else {
+            file = Files.createTempFile(FILE_PREFIX, FILE_SUFFIX);
+        }
+
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        spillBuffer = ByteBuffer.allocateDirect(SPILL_BUFFER_SIZE);
+    }
+
+
+    /**
+     * Start to spill the content to a new temporary file by the spill executor, the buffered content is handed over
+     *
+     * @throws IOException In case the spill executor rejects the task
+     */
+    private void startSpill() throws IOException {
+        final List<byte[]> spilledChunks = new ArrayList<byte[]>(chunks);
+        final long spilledLength = length;
+        
+        try {
+            spillTask = CompletableFuture.runAsync(() -> {
+                try {
+                    createFile();
+                    long remaining = spilledLength;
+                    for (byte[] chunk : spilledChunks) {
+                        int n = (int)Math.min(chunk.length, remaining);
+                        writeToChannel(chunk, 0, n);
+                        remaining -= n;
+                        ICAPBufferPool.getInstance().release(chunk);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, spillExecutor);
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Could not spill the response: " + e.getMessage(), e);
+        }
+        
+        chunks.clear();
+        current = null;
+        currentPosition = 0;
+    }
+
+
+    /**
+     * Hand over a buffer to the spill executor, the buffers are written in the order of the hand over
+     *
+     * @param chunk the buffer
+     * @param len the length of the content in the buffer
+     * @throws IOException In case the spill executor rejects the task
+     */
+    private void handOver(final byte[] chunk, final int len) throws IOException {
+        try {
+            spillTask = spillTask.thenRunAsync(() -> {
+                try {
+                    writeToChannel(chunk, 0, len);
+                    ICAPBufferPool.getInstance().release(chunk);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, spillExecutor);
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Could not spill the response: " + e.getMessage(), e);
+        }
+    }
+
+
+    /**
+     * Wait until the spill executor has written the handed over content
+     *
+     * @throws IOException In case the content could not be spilled
+     */
+    private void awaitSpill() throws IOException {
+        if (spillTask == null) {
+            return;
+        }
+
+        if (current != null) {
+            handOver(current, currentPosition);
+            chunks.clear();
+            current = null;
+            currentPosition = 0;
+        }
+
+        try {
+            spillTask.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException)e.getCause()).getCause();
+            }
+            throw new IOException("Could not spill the response: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+
+    /**
+     * Write to the file channel through the spill buffer
+     *
+     * @param b the bytes
+     * @param off the offset
+     * @param len the length
+     * @throws IOException In case of an I/O error
+     */
+    private void writeToChannel(byte[] b, int off, int len) throws IOException {
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            if (!spillBuffer.hasRemaining()) {
+                flushSpillBuffer();
+            }
+
+            int n = Math.min(remaining, spillBuffer.remaining());
+            spillBuffer.put(b, offset, n);
+            offset += n;
+            remaining -= n;
+        }
+    }
+
+
+    /**
+     * Flush the spill buffer to the file channel
+     *
+     * @throws IOException In case of an I/O error
+     */
+    private void flushSpillBuffer() throws IOException {
+        spillBuffer.flip();
+        while (spillBuffer.hasRemaining()) {
+            channel.write(spillBuffer);
+        }
+        spillBuffer.clear();
+    }
+}
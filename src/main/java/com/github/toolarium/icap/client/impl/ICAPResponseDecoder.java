@@ -0,0 +1,347 @@
+/*
+ * ICAPResponseDecoder.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import com.github.toolarium.icap.client.dto.ICAPConstants;
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.impl.parser.ICAPHeaderMap;
+import com.github.toolarium.icap.client.impl.parser.ICAPParser;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Incremental decoder of an ICAP response, the counterpart of the {@link ChunkedInputStream} for a non-blocking transport.
+ * The received bytes are pushed as they arrive: the ICAP header is parsed line by line, the encapsulated HTTP headers are
+ * skipped by the offset of the Encapsulated header and the chunked body is decoded into an output stream. The decoder stops
+ * at the end of a message, the remaining bytes are left in the buffer. It's not thread-safe.
+ *
+ * @author patrick
+ */
+public class ICAPResponseDecoder {
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_SKIP = 1;
+    private static final int STATE_CHUNK_SIZE = 2;
+    private static final int STATE_CHUNK_DATA = 3;
+    private static final int STATE_CHUNK_DATA_END = 4;
+    private static final int STATE_TRAILER = 5;
+    private static final int STATE_END = 6;
+
+    private byte[] lineBuffer;
+    private int lineLength;
+    private int state;
+    private ICAPHeaderMap headers;
+    private ICAPHeaderInformation headerInformation;
+    private OutputStream body;
+    private long remaining;
+    private long bodyLength;
+    private boolean reusable;
+
+
+    /**
+     * Constructor for ICAPResponseDecoder
+     */
+    public ICAPResponseDecoder() {
+        this.lineBuffer = new byte[256];
+        reset(null);
+    }
+
+
+    /**
+     * Start a new message
+     *
+     * @param body the output stream of the decoded body or null to discard it
+     */
+    public void reset(OutputStream body) {
+        this.body = body;
+        this.lineLength = 0;
+        this.state = STATE_HEADER;
+        this.headers = new ICAPHeaderMap();
+        this.headerInformation = null;
+        this.remaining = 0;
+        this.bodyLength = 0;
+        this.reusable = true;
+    }
+
+
+    /**
+     * Decode the received bytes
+     *
+     * @param input the received bytes, a heap buffer in read mode
+     * @return true if the message is complete
+     * @throws IOException In case of an invalid response or an error of the body stream
+     */
+    public boolean decode(ByteBuffer input) throws IOException {
+        final byte[] b = input.array();
+        final int offset = input.arrayOffset();
+        int position = input.position();
+        final int limit = input.limit();
+
+        try {
+            while (state != STATE_END && position < limit) {
+                switch (state) {
+                    case STATE_SKIP: {
+                        int n = (int)Math.min(remaining, limit - position);
+                        position += n;
+                        remaining -= n;
+                        if (remaining == 0) {
+                            state = isChunkedBody() ? STATE_CHUNK_SIZE : STATE_END;
+                        }
+                        break;
+                    }
+                    case STATE_CHUNK_DATA: {
+                        int n = (int)Math.min(remaining, limit - position);
+                        if (body != null) {
+                            body.write(b, offset + position, n);
+                        }
+                        position += n;
+                        remaining -= n;
+                        bodyLength += n;
+                        if (remaining == 0) {
+                            state = STATE_CHUNK_DATA_END;
+                        }
+                        break;
+                    }
+                    default: {
+                        int end = position;
+                        while (end < limit && b[offset + end] != LF) {
+                            end++;
+                        }
+
+                        appendLine(b, offset + position, end - position);
+                        if (end == limit) {
+                            position = end;
+                        } else {
+                            position = end + 1;
+                            int length = lineLength;
+                            if (length > 0 && lineBuffer[length - 1] == CR) {
+                                length--;
+                            }
+                            lineLength = 0;
+                            processLine(length);
+                        }
+                        break;
+                    }
+                }
+            }
+        } finally {
+            input.position(position);
+        }
+
+        return state == STATE_END;
+    }
+
+
+    /**
+     * Check if the message is complete
+     *
+     * @return true if the message is complete
+     */
+    public boolean isMessageComplete() {
+        return state == STATE_END;
+    }
+
+
+    /**
+     * Check if the connection can be reused after the message, e.g. the end of the encapsulated part is known and the
+     * server didn't request to close the connection
+     *
+     * @return true if the connection is reusable
+     */
+    public boolean isReusable() {
+        return state == STATE_END && reusable;
+    }
+
+
+    /**
+     * Get the header information of the message, it's available as soon as the ICAP header is decoded.
+     *
+     * @return the header information or null
+     */
+    public ICAPHeaderInformation getHeaderInformation() {
+        return headerInformation;
+    }
+
+
+    /**
+     * Get the length of the decoded body
+     *
+     * @return the length of the decoded body
+     */
+    public long getBodyLength() {
+        return bodyLength;
+    }
+
+
+    /**
+     * Process a line
+     *
+     * @param length the length of the line without the line separator
+     * @throws IOException In case of an invalid line
+     */
+    private void processLine(int length) throws IOException {
+        switch (state) {
+            case STATE_HEADER:
+                if (length > 0) {
+                    ICAPParser.getInstance().parseHeaderLine(headers, lineBuffer, 0, length);
+                } else if (!headers.isEmpty()) {
+                    endOfHeader();
+                }
+                break;
+            case STATE_CHUNK_SIZE:
+                remaining = parseChunkSize(length);
+                state = (remaining == 0) ? STATE_TRAILER : STATE_CHUNK_DATA;
+                break;
+            case STATE_CHUNK_DATA_END:
+                if (length != 0) {
+                    throw new IOException("Invalid end of chunk!");
+                }
+                state = STATE_CHUNK_SIZE;
+                break;
+            case STATE_TRAILER:
+                if (length == 0) {
+                    state = STATE_END;
+                }
+                break;
+            default:
+                throw new IOException("Invalid decoder state " + state + "!");
+        }
+    }
+
+
+    /**
+     * The end of the ICAP header is reached, the header information is created and the encapsulated part is started
+     */
+    private void endOfHeader() {
+        List<String> statusLine = headers.get(ICAPConstants.HEADER_KEY_X_ICAP_STATUSLINE);
+        if (statusLine != null && !statusLine.isEmpty() && statusLine.get(0) != null && !statusLine.get(0).isBlank()) {
+            headerInformation = ICAPParser.getInstance().parseICAPHeaderInformation(statusLine.get(0));
+        } else {
+            headerInformation = new ICAPHeaderInformation();
+        }
+        headerInformation.setHeaders(headers);
+
+        if (headerInformation.containsHeader(ICAPConstants.HEADER_KEY_CONNECTION)
+                && headerInformation.getHeaderValues(ICAPConstants.HEADER_KEY_CONNECTION).stream().anyMatch(v -> "close".equalsIgnoreCase(v))) {
+            reusable = false;
+        }
+
+        if (headerInformation.getStatus() == 100 || !headerInformation.containsHeader(ICAPConstants.HEADER_KEY_ENCAPSULATED)) {
+            state = STATE_END;
+            return;
+        }
+
+        remaining = getEncapsulatedBodyOffset();
+        if (remaining < 0) {
+            // without a valid offset the end of the encapsulated part is unknown
+            reusable = false;
+            state = STATE_END;
+        } else if (remaining == 0) {
+            state = isChunkedBody() ? STATE_CHUNK_SIZE : STATE_END;
+        } else {
+            state = STATE_SKIP;
+        }
+    }
+
+
+    /**
+     * Check if a chunked body follows the encapsulated headers
+     *
+     * @return true if a chunked body follows
+     */
+    private boolean isChunkedBody() {
+        for (String entry : headerInformation.getHeaderValues(ICAPConstants.HEADER_KEY_ENCAPSULATED)) {
+            int idx = entry.indexOf('=');
+            if (idx > 0) {
+                String key = entry.substring(0, idx).trim();
+                if (key.endsWith("-body")) {
+                    return !key.equalsIgnoreCase("null-body");
+                }
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Get the offset of the encapsulated body, respectively the null-body
+     *
+     * @return the offset or -1
+     */
+    private long getEncapsulatedBodyOffset() {
+        for (String entry : headerInformation.getHeaderValues(ICAPConstants.HEADER_KEY_ENCAPSULATED)) {
+            int idx = entry.indexOf('=');
+            if (idx > 0 && entry.substring(0, idx).trim().endsWith("-body")) {
+                try {
+                    return Integer.parseInt(entry.substring(idx + 1).trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Parse the chunk size of the line, a chunk extension is ignored
+     *
+     * @param length the length of the line
+     * @return the chunk size
+     * @throws IOException In case of an invalid chunk size
+     */
+    private long parseChunkSize(int length) throws IOException {
+        long size = 0;
+        int digits = 0;
+        for (int i = 0; i < length; i++) {
+            byte c = lineBuffer[i];
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                if (c == ';' || c == ' ' || c == '\t') {
+                    break;
+                }
+                throw new IOException("Invalid chunk size!");
+            }
+
+            if (++digits > 15) {
+                throw new IOException("Invalid chunk size!");
+            }
+            size = (size << 4) + digit;
+        }
+
+        if (digits == 0) {
+            throw new IOException("Invalid chunk size!");
+        }
+        return size;
+    }
+
+
+    /**
+     * Append bytes to the current line
+     *
+     * @param b the bytes
+     * @param offset the offset
+     * @param length the length
+     * @throws IOException In case the line is too long
+     */
+    private void appendLine(byte[] b, int offset, int length) throws IOException {
+        if (lineLength + length > lineBuffer.length) {
+            if (lineLength + length > MAX_LINE_LENGTH) {
+                throw new IOException("Line exceeds the max length of " + MAX_LINE_LENGTH + " bytes!");
+            }
+            lineBuffer = Arrays.copyOf(lineBuffer, Math.min(MAX_LINE_LENGTH, Math.max(lineBuffer.length * 2, lineLength + length)));
+        }
+
+        System.arraycopy(b, offset, lineBuffer, lineLength, length);
+        lineLength += length;
+    }
+}
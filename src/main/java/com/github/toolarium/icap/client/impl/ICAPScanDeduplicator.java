@@ -0,0 +1,246 @@
+/*
+ * ICAPScanDeduplicator.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.exception.ContentBlockedException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Deduplicates the concurrent scans of identical content: as long as a scan of a content digest runs against a service, further scans
+ * of the same content wait for it and receive the verdict of the running scan. Each waiting caller gets its own copy of the 
+ * {@link ICAPHeaderInformation} or the {@link ContentBlockedException}, it waits at most its read timeout. In case the running 
+ * scan fails otherwise, e.g. by a connection error, the waiting callers scan by themselves. By default the deduplication is disabled.
+ *
+ * @author patrick
+ */
+public final class ICAPScanDeduplicator {
+    private static final Logger LOG = LoggerFactory.getLogger(ICAPScanDeduplicator.class);
+    private final Map<ICAPVerdictCache.VerdictKey, CompletableFuture<ICAPVerdictCache.Verdict>> inFlightScans;
+    private final AtomicLong sharedScans;
+    private volatile boolean enabled;
+
+
+    /**
+     * Private class, the only instance of the singelton which will be created by accessing the holder class.
+     *
+     * @author patrick
+     */
+    private static class HOLDER {
+        static final ICAPScanDeduplicator INSTANCE = new ICAPScanDeduplicator();
+    }
+
+
+    /**
+     * Defines a scan of a resource
+     */
+    @FunctionalInterface
+    public interface Scan {
+        /**
+         * Scan the resource
+         *
+         * @return the ICAP header information
+         * @throws IOException In case of an I/O error
+         * @throws ContentBlockedException In case the content is blocked
+         */
+        ICAPHeaderInformation scan() throws IOException, ContentBlockedException;
+    }
+
+
+    /**
+     * Constructor for ICAPScanDeduplicator
+     */
+    ICAPScanDeduplicator() {
+        this.inFlightScans = new ConcurrentHashMap<ICAPVerdictCache.VerdictKey, CompletableFuture<ICAPVerdictCache.Verdict>>();
+        this.sharedScans = new AtomicLong();
+        this.enabled = false;
+    }
+
+
+    /**
+     * Get the instance
+     *
+     * @return the instance
+     */
+    public static ICAPScanDeduplicator getInstance() {
+        return HOLDER.INSTANCE;
+    }
+
+
+    /**
+     * Enable or disable the deduplication
+     *
+     * @param enabled true to deduplicate the concurrent scans of identical content
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+
+    /**
+     * Check if the deduplication is enabled
+     *
+     * @return true if the deduplication is enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+
+    /**
+     * Get the number of running scans
+     *
+     * @return the number of running scans
+     */
+    public int size() {
+        return inFlightScans.size();
+    }
+
+
+    /**
+     * Get the number of scans which were answered by a running scan
+     *
+     * @return the number of shared scans
+     */
+    public long getSharedScans() {
+        return sharedScans.get();
+    }
+
+
+    /**
+     * Execute a scan or wait for the running scan of the same key
+     *
+     * @param key the key or null if the scan can't be shared
+     * @param maxWaitTime the max time in milliseconds to wait for a running scan, zero or less waits without a limit
+     * @param scan the scan
+     * @return the ICAP header information
+     * @throws IOException In case of an I/O error
+     * @throws ContentBlockedException In case the content is blocked
+     */
+    public ICAPHeaderInformation execute(ICAPVerdictCache.VerdictKey key, long maxWaitTime, Scan scan) throws IOException, ContentBlockedException {
+        if (!isEnabled() || key == null) {
+            return scan.scan();
+        }
+
+        while (true) {
+            final CompletableFuture<ICAPVerdictCache.Verdict> ownScan = new CompletableFuture<ICAPVerdictCache.Verdict>();
+            final CompletableFuture<ICAPVerdictCache.Verdict> runningScan = inFlightScans.putIfAbsent(key, ownScan);
+            if (runningScan == null) {
+                ICAPHeaderInformation result = null;
+                Throwable error = null;
+                try {
+                    result = scan.scan();
+                    return result;
+                } catch (IOException | ContentBlockedException | RuntimeException | Error e) {
+                    error = e;
+                    throw e;
+                } finally {
+                    // the key is released first, a failed scan can be repeated by the waiting callers
+                    inFlightScans.remove(key, ownScan);
+                    complete(ownScan, result, error);
+                }
+            }
+
+            sharedScans.incrementAndGet();
+            try {
+                final ICAPVerdictCache.Verdict verdict = (maxWaitTime > 0) ? runningScan.get(maxWaitTime, TimeUnit.MILLISECONDS) : runningScan.get();
+                return verdict.resolve();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the running scan of " + key.getDigest() + "!");
+            } catch (TimeoutException e) {
+                throw new SocketTimeoutException("Timeout of " + maxWaitTime + "ms while waiting for the running scan of " + key.getDigest() + "!");
+            } catch (ExecutionException e) {
+                LOG.debug("The running scan of " + key.getDigest() + " failed (" + e.getCause() + "), scan again.");
+            }
+        }
+    }
+
+
+    /**
+     * Execute an asynchronous scan or share the running scan of the same key
+     *
+     * @param key the key or null if the scan can't be shared
+     * @param maxWaitTime the max time in milliseconds to wait for a running scan, zero or less waits without a limit
+     * @param scan the scan
+     * @return the ICAP header information
+     */
+    public CompletableFuture<ICAPHeaderInformation> executeAsync(ICAPVerdictCache.VerdictKey key, long maxWaitTime, Supplier<CompletableFuture<ICAPHeaderInformation>> scan) {
+        if (!isEnabled() || key == null) {
+            return scan.get();
+        }
+
+        final CompletableFuture<ICAPVerdictCache.Verdict> ownScan = new CompletableFuture<ICAPVerdictCache.Verdict>();
+        final CompletableFuture<ICAPVerdictCache.Verdict> runningScan = inFlightScans.putIfAbsent(key, ownScan);
+        if (runningScan == null) {
+            CompletableFuture<ICAPHeaderInformation> result;
+            try {
+                result = scan.get();
+            } catch (RuntimeException e) {
+                result = CompletableFuture.failedFuture(e);
+            }
+
+            // the returned future is completed after the key is released
+            return result.whenComplete((headerInformation, error) -> {
+                inFlightScans.remove(key, ownScan);
+                complete(ownScan, headerInformation, (error instanceof CompletionException && error.getCause() != null) ? error.getCause() : error);
+            });
+        }
+
+        sharedScans.incrementAndGet();
+        // the running scan is shared, therefore the timeout is applied to a copy
+        final CompletableFuture<ICAPVerdictCache.Verdict> waitingScan = (maxWaitTime > 0) ? runningScan.copy().orTimeout(maxWaitTime, TimeUnit.MILLISECONDS) : runningScan;
+        return waitingScan.handle((verdict, error) -> {
+            if (error == null) {
+                try {
+                    return CompletableFuture.completedFuture(verdict.resolve());
+                } catch (ContentBlockedException e) {
+                    return CompletableFuture.<ICAPHeaderInformation>failedFuture(e);
+                }
+            }
+
+            final Throwable cause = (error instanceof CompletionException && error.getCause() != null) ? error.getCause() : error;
+            if (cause instanceof TimeoutException) {
+                return CompletableFuture.<ICAPHeaderInformation>failedFuture(new SocketTimeoutException("Timeout of " + maxWaitTime + "ms while waiting for the running scan of " + key.getDigest() + "!"));
+            }
+
+            LOG.debug("The running scan of " + key.getDigest() + " failed (" + cause + "), scan again.");
+            return executeAsync(key, maxWaitTime, scan);
+        }).thenCompose(result -> result);
+    }
+
+
+    /**
+     * Complete the shared scan with the verdict of a scan, the waiting callers resolve their own copy of it
+     *
+     * @param sharedScan the shared scan
+     * @param headerInformation the header information of a valid content
+     * @param error the error of the scan or null
+     */
+    private static void complete(CompletableFuture<ICAPVerdictCache.Verdict> sharedScan, ICAPHeaderInformation headerInformation, Throwable error) {
+        if (error == null) {
+            sharedScan.complete(ICAPVerdictCache.Verdict.valid(headerInformation));
+        } else if (error instanceof ContentBlockedException) {
+            sharedScan.complete(ICAPVerdictCache.Verdict.blocked((ContentBlockedException)error));
+        } else {
+            sharedScan.completeExceptionally(error);
+        }
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * ICAPSignaturePrefilter.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Local signature prefilter: the content is matched against a set of byte signatures (e.g. EICAR, fixed byte markers of known
+ * droppers) by an Aho-Corasick automaton before it's sent to the ICAP server. The automaton is streaming, a signature is also found
+ * across the buffer boundaries. By default no signature is set.
+ *
+ * <p>The signature file contains one signature per line, the name and the hex encoded bytes separated by a semicolon:
+ * <pre>
+ * # name;hex
+ * EICAR-Test-File;58354f2150254041505b345c505a58353428505e2937434329377d2445494341522d5354414e444152442d414e544956495255532d544553542d46494c452124482b482a
+ * </pre>
+ *
+ * @author patrick
+ */
+public final class ICAPSignaturePrefilter {
+    private static final Logger LOG = LoggerFactory.getLogger(ICAPSignaturePrefilter.class);
+    private volatile Automaton automaton;
+
+
+    /**
+     * Private class, the only instance of the singelton which will be created by accessing the holder class.
+     *
+     * @author patrick
+     */
+    private static class HOLDER {
+        static final ICAPSignaturePrefilter INSTANCE = new ICAPSignaturePrefilter();
+    }
+
+
+    /**
+     * Constructor for ICAPSignaturePrefilter
+     */
+    ICAPSignaturePrefilter() {
+        this.automaton = null;
+    }
+
+
+    /**
+     * Get the instance
+     *
+     * @return the instance
+     */
+    public static ICAPSignaturePrefilter getInstance() {
+        return HOLDER.INSTANCE;
+    }
+
+
+    /**
+     * Load the signatures of a signature file, they replace the current signatures
+     *
+     * @param signatureFile the signature file or null to remove the signatures
+     * @throws IOException In case the file could not be read or contains an invalid signature
+     */
+    public void load(Path signatureFile) throws IOException {
+        if (signatureFile == null) {
+            setSignatures(null);
+            return;
+        }
+
+        final Map<String, byte[]> signatures = new LinkedHashMap<String, byte[]>();
+        try (BufferedReader reader = Files.newBufferedReader(signatureFile, StandardCharsets.UTF_8)) {
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                final int index = line.lastIndexOf(';');
+                final byte[] signature = (index > 0) ? parseHex(line.substring(index + 1)) : null;
+                if (signature == null || signature.length == 0) {
+                    throw new IOException("Invalid signature in line " + lineNumber + " of " + signatureFile + ", expected format: name;hex");
+                }
+                signatures.put(line.substring(0, index).trim(), signature);
+            }
+        }
+
+        setSignatures(signatures);
+        LOG.info("Loaded " + signatures.size() + " signatures of " + signatureFile + ".");
+    }
+
+
+    /**
+     * Set the signatures
+     *
+     * @param signatures the signatures by name or null to remove the signatures
+     */
+    public void setSignatures(Map<String, byte[]> signatures) {
+        this.automaton = (signatures != null && !signatures.isEmpty()) ? new Automaton(signatures) : null;
+    }
+
+
+    /**
+     * Check if signatures are set
+     *
+     * @return true if signatures are set
+     */
+    public boolean isEnabled() {
+        return automaton != null;
+    }
+
+
+    /**
+     * Create a scanner of a content
+     *
+     * @return the scanner or null if no signature is set
+     */
+    public Scanner createScanner() {
+        final Automaton currentAutomaton = automaton;
+        return (currentAutomaton != null) ? new Scanner(currentAutomaton) : null;
+    }
+
+
+    /**
+     * Parse a hex encoded signature, whitespaces are ignored
+     *
+     * @param value the hex encoded signature
+     * @return the signature or null if it's invalid
+     */
+    private static byte[] parseHex(String value) {
+        final String hex = value.replaceAll("\\s", "");
+        if (hex.length() % 2 != 0) {
+            return null;
+        }
+
+        final byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i++) {
+            final int high = Character.digit(hex.charAt(2 * i), 16);
+            final int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            result[i] = (byte)((high << 4) | low);
+        }
+        return result;
+    }
+
+
+    /**
+     * Streaming scanner of a content. Once a signature matched, the following bytes are ignored.
+     */
+    public static final class Scanner {
+        private final Automaton automaton;
+        private int state;
+        private int match;
+
+
+        /**
+         * Constructor for Scanner
+         *
+         * @param automaton the automaton
+         */
+        Scanner(Automaton automaton) {
+            this.automaton = automaton;
+            this.state = 0;
+            this.match = -1;
+        }
+
+
+        /**
+         * Scan bytes
+         *
+         * @param bytes the bytes
+         * @param offset the offset
+         * @param length the length
+         * @return true if a signature matched
+         */
+        public boolean update(byte[] bytes, int offset, int length) {
+            for (int i = offset; i < offset + length && match < 0; i++) {
+                state = automaton.next(state, bytes[i] & 0xFF);
+                match = automaton.match[state];
+            }
+            return match >= 0;
+        }
+
+
+        /**
+         * Scan the remaining bytes of a buffer, the position of the buffer is not changed
+         *
+         * @param buffer the buffer
+         * @return true if a signature matched
+         */
+        public boolean update(ByteBuffer buffer) {
+            for (int i = buffer.position(); i < buffer.limit() && match < 0; i++) {
+                state = automaton.next(state, buffer.get(i) & 0xFF);
+                match = automaton.match[state];
+            }
+            return match >= 0;
+        }
+
+
+        /**
+         * Check if a signature matched
+         *
+         * @return true if a signature matched
+         */
+        public boolean isMatched() {
+            return match >= 0;
+        }
+
+
+        /**
+         * Get the name of the matched signature
+         *
+         * @return the name or null
+         */
+        public String getMatch() {
+            return (match >= 0) ? automaton.names[match] : null;
+        }
+    }
+
+
+    /**
+     * A message digest which scans the digested content as well. It's used to run the prefilter in the same pass as the digest
+     * of the content, without a message digest the content is only scanned.
+     */
+    static final class ScanningMessageDigest extends MessageDigest {
+        private final MessageDigest messageDigest;
+        private final Scanner scanner;
+
+
+        /**
+         * Constructor for ScanningMessageDigest
+         *
+         * @param messageDigest the message digest or null
+         * @param scanner the scanner
+         */
+        ScanningMessageDigest(MessageDigest messageDigest, Scanner scanner) {
+            super((messageDigest != null) ? messageDigest.getAlgorithm() : "NONE");
+            this.messageDigest = messageDigest;
+            this.scanner = scanner;
+        }
+
+
+        /**
+         * Get the scanner
+         *
+         * @return the scanner
+         */
+        Scanner getScanner() {
+            return scanner;
+        }
+
+
+        /**
+         * @see java.security.MessageDigestSpi#engineGetDigestLength()
+         */
+        @Override
+        protected int engineGetDigestLength() {
+            return (messageDigest != null) ? messageDigest.getDigestLength() : 0;
+        }
+
+
+        /**
+         * @see java.security.MessageDigestSpi#engineUpdate(byte)
+         */
+        @Override
+        protected void engineUpdate(byte input) {
+            scanner.update(new byte[] {input}, 0, 1);
+            if (messageDigest != null) {
+                messageDigest.update(input);
+            }
+        }
+
+
+        /**
+         * @see java.security.MessageDigestSpi#engineUpdate(byte[], int, int)
+         */
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            scanner.update(input, offset, len);
+            if (messageDigest != null) {
+                messageDigest.update(input, offset, len);
+            }
+        }
+
+
+        /**
+         * @see java.security.MessageDigestSpi#engineUpdate(java.nio.ByteBuffer)
+         */
+        @Override
+        protected void engineUpdate(ByteBuffer input) {
+            scanner.update(input);
+            if (messageDigest != null) {
+                messageDigest.update(input);
+            } else {
+                input.position(input.limit());
+            }
+        }
+
+
+        /**
+         * @see java.security.MessageDigestSpi#engineDigest()
+         */
+        @Override
+        protected byte[] engineDigest() {
+            return (messageDigest != null) ? messageDigest.digest() : new byte[0];
+        }
+
+
+        /**
+         * @see java.security.MessageDigestSpi#engineReset()
+         */
+        @Override
+        protected void engineReset() {
+            if (messageDigest != null) {
+                messageDigest.reset();
+            }
+        }
+    }
+
+
+    /**
+     * Aho-Corasick automaton. The children of a node are kept sorted in flat arrays, the transitions of the root are dense.
+     * The match of a node is the first signature which ends in the node or in one of its suffixes.
+     */
+    static final class Automaton {
+        private final String[] names;
+        private final int[] childStart;
+        private final byte[] childLabel;
+        private final int[] childTarget;
+        private final int[] fail;
+        private final int[] match;
+        private final int[] rootNext;
+
+
+        /**
+         * Constructor for Automaton
+         *
+         * @param signatures the signatures by name
+         */
+        Automaton(Map<String, byte[]> signatures) {
+            // build the trie
+            final List<Map<Integer, Integer>> children = new ArrayList<Map<Integer, Integer>>();
+            final List<Integer> output = new ArrayList<Integer>();
+            children.add(new HashMap<Integer, Integer>());
+            output.add(-1);
+
+            this.names = signatures.keySet().toArray(new String[0]);
+            int index = 0;
+            for (byte[] signature : signatures.values()) {
+                int node = 0;
+                for (byte b : signature) {
+                    Integer child = children.get(node).get(b & 0xFF);
+                    if (child == null) {
+                        child = children.size();
+                        children.get(node).put(b & 0xFF, child);
+                        children.add(new HashMap<Integer, Integer>());
+                        output.add(-1);
+                    }
+                    node = child;
+                }
+                if (output.get(node) < 0) {
+                    output.set(node, index);
+                }
+                index++;
+            }
+
+            // flatten the children
+            final int nodes = children.size();
+            this.childStart = new int[nodes + 1];
+            this.childLabel = new byte[nodes - 1];
+            this.childTarget = new int[nodes - 1];
+            int position = 0;
+            for (int node = 0; node < nodes; node++) {
+                childStart[node] = position;
+                final Integer[] labels = children.get(node).keySet().toArray(new Integer[0]);
+                Arrays.sort(labels);
+                for (Integer label : labels) {
+                    childLabel[position] = (byte)label.intValue();
+                    childTarget[position] = children.get(node).get(label);
+                    position++;
+                }
+            }
+            childStart[nodes] = position;
+
+            this.rootNext = new int[256];
+            for (Map.Entry<Integer, Integer> e : children.get(0).entrySet()) {
+                rootNext[e.getKey()] = e.getValue();
+            }
+
+            // the failure links and matches in breadth-first order
+            this.fail = new int[nodes];
+            this.match = new int[nodes];
+            match[0] = -1;
+            final ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+            for (int i = childStart[0]; i < childStart[1]; i++) {
+                fail[childTarget[i]] = 0;
+                match[childTarget[i]] = output.get(childTarget[i]);
+                queue.add(childTarget[i]);
+            }
+
+            while (!queue.isEmpty()) {
+                final int node = queue.poll();
+                for (int i = childStart[node]; i < childStart[node + 1]; i++) {
+                    final int child = childTarget[i];
+                    final int failure = next(fail[node], childLabel[i] & 0xFF);
+                    fail[child] = failure;
+                    match[child] = (output.get(child) >= 0) ? output.get(child) : match[failure];
+                    queue.add(child);
+                }
+            }
+        }
+
+
+        /**
+         * Get the next state
+         *
+         * @param state the current state
+         * @param b the byte
+         * @return the next state
+         */
+        int next(int state, int b) {
+            int node = state;
+            while (node != 0) {
+                final int child = child(node, b);
+                if (child >= 0) {
+                    return child;
+                }
+                node = fail[node];
+            }
+            return rootNext[b];
+        }
+
+
+        /**
+         * Get the child of a node
+         *
+         * @param node the node
+         * @param b the byte
+         * @return the child or -1
+         */
+        private int child(int node, int b) {
+            int low = childStart[node];
+            int high = childStart[node + 1] - 1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                final int label = childLabel[middle] & 0xFF;
+                if (label < b) {
+                    low = middle + 1;
+                } else if (label > b) {
+                    high = middle - 1;
+                } else {
+                    return childTarget[middle];
+                }
+            }
+            return -1;
+        }
+    }
+}
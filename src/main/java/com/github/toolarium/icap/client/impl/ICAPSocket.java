@@ -9,11 +9,15 @@ import com.github.toolarium.icap.client.ICAPConnectionManager;
 import com.github.toolarium.icap.client.dto.ICAPConstants;
 import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
 import com.github.toolarium.icap.client.impl.parser.ICAPParser;
-import com.github.toolarium.icap.client.util.ICAPClientUtil;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Map;
@@ -29,12 +33,29 @@ import org.slf4j.LoggerFactory;
 public class ICAPSocket implements AutoCloseable {
     private static final Logger LOG = LoggerFactory.getLogger(ICAPSocket.class);
     private static final Charset StandardCharsetsUTF8 = Charset.forName("UTF-8");
-    
+    private static final int MAX_DRAIN_SIZE = 64 * 1024;
+    private static final int MAX_FILE_CHUNK_SIZE = 1024 * 1024;
+    private static final long MAX_MAPPED_SIZE = 64L * 1024 * 1024;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsetsUTF8);
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private ICAPConnectionManager connectionManager;
+    private ICAPConnectionLimiter connectionLimiter;
     private String requestIdentifier;
     private String connection;
     private Socket socket;
     private ChunkedInputStream is;
     private OutputStream os;
+    private byte[] writeBuffer;
+    private int writePosition;
+    private final byte[] chunkHeader = new byte[10];
+    private boolean closed;
+    private boolean responseComplete;
+    private boolean serverCloseConnection;
+    private int pendingBodyOffset;
+    private boolean pendingBody;
+    private boolean messageStarted;
 
 
     /**
@@ -51,17 +72,60 @@ public class ICAPSocket implements AutoCloseable {
      * @throws IOException In case of an I/O error
      */
     public ICAPSocket(ICAPConnectionManager connectionManager, String requestIdentifier, String host, int port, String service, boolean secureConnection, Integer maxConnectionTimeout, Integer maxReadTimeout) throws IOException {
+        this(connectionManager, null, requestIdentifier, host, port, service, secureConnection, maxConnectionTimeout, maxReadTimeout);
+    }
+
+
+    /**
+     * Constructor for ICAPSocket
+     *
+     * @param connectionManager the connection manager
+     * @param connectionLimiter the connection limiter or null
+     * @param requestIdentifier the request identifier
+     * @param host the host
+     * @param port the port
+     * @param service the service
+     * @param secureConnection true to establish a secured connection
+     * @param maxConnectionTimeout the max connection timeout in milliseconds. By default there is no timeout set (null). A timeout of null or zero are interpreted as an infinite timeout. 
+     *        It is also used as max time to wait in case the max connections of the service are reached.
+     * @param maxReadTimeout the max read timeout in milliseconds. By default there is no timeout set (null). A timeout of null or zero are interpreted as an infinite timeout. The connection will then block. 
+     * @throws IOException In case of an I/O error
+     */
+    public ICAPSocket(ICAPConnectionManager connectionManager, ICAPConnectionLimiter connectionLimiter, String requestIdentifier, String host, int port, String service, 
+                      boolean secureConnection, Integer maxConnectionTimeout, Integer maxReadTimeout) throws IOException {
+        this.connectionManager = connectionManager;
+        this.connectionLimiter = connectionLimiter;
         this.requestIdentifier = requestIdentifier;
         this.connection = "" + host + ":" + port + "/" + service;
+        this.closed = false;
+        this.responseComplete = false;
+        this.serverCloseConnection = false;
+        this.pendingBodyOffset = -1;
+        this.pendingBody = false;
+        this.messageStarted = false;
         if (LOG.isDebugEnabled()) {
             LOG.debug(requestIdentifier + "Send create socket to [" + connection + "]");
         }
 
+        if (connectionLimiter != null) {
+            connectionLimiter.acquire(connection, maxConnectionTimeout);
+        }
+
         try {
             socket = connectionManager.createSocket(host, port, secureConnection, maxConnectionTimeout, maxReadTimeout);
             is = new ChunkedInputStream(requestIdentifier, socket.getInputStream());
             os = socket.getOutputStream();
+            writeBuffer = ICAPBufferPool.getInstance().acquire();
+            writePosition = 0;
         } catch (IOException e) {
+            if (socket != null) {
+                connectionManager.releaseSocket(socket, false);
+            }
+            
+            if (connectionLimiter != null) {
+                connectionLimiter.release();
+            }
+            
             LOG.warn(requestIdentifier + "Could not connect to [" + connection + "]: " + e.getMessage());
             throw e;
         }
@@ -84,18 +148,18 @@ public class ICAPSocket implements AutoCloseable {
 
     
     /**
-     * Write some bytes
+     * Write some bytes. The bytes are gathered in the write buffer until the next {@link #flush()} or the buffer is full.
      *
      * @param bytes the bytes to write
      * @throws IOException In case of an I/O error
      */
     public void write(byte[] bytes) throws IOException {
-        os.write(bytes);
+        write(bytes, 0, bytes.length);
     }
 
     
     /**
-     * Write some bytes
+     * Write some bytes. The bytes are gathered in the write buffer until the next {@link #flush()} or the buffer is full.
      *
      * @param bytes the bytes to write
      * @param offset the offset
@@ -103,16 +167,185 @@ public class ICAPSocket implements AutoCloseable {
      * @throws IOException In case of an I/O error
      */
     public void write(byte[] bytes, int offset, int length) throws IOException {
-        os.write(bytes, offset, length);
+        if (writeBuffer == null) {
+            throw new IOException("Socket of [" + connection + "] is closed!");
+        }
+        
+        if (length > writeBuffer.length - writePosition) {
+            flushBuffer();
+            if (length >= writeBuffer.length) {
+                os.write(bytes, offset, length);
+                return;
+            }
+        }
+        
+        System.arraycopy(bytes, offset, writeBuffer, writePosition, length);
+        writePosition += length;
     }
 
 
     /**
-     * Flush the output stream
+     * Write a chunk: the chunk size as hex, the data and the line separators.
+     *
+     * @param bytes the bytes to write
+     * @param offset the offset
+     * @param length the length
+     * @throws IOException In case of an I/O error
+     */
+    public void writeChunk(byte[] bytes, int offset, int length) throws IOException {
+        writeChunkHeader(length);
+        write(bytes, offset, length);
+        write(chunkHeader, chunkHeader.length - 2, 2);
+    }
+
+
+    /**
+     * Write a region of a file as chunks. On a plain connection the chunk data is transferred by the file channel directly 
+     * to the socket channel (sendfile), only the chunk framing is written separately. Otherwise, e.g. on a secured connection, 
+     * the file is memory-mapped and copied into the write buffer.
+     *
+     * @param fileChannel the file channel
+     * @param position the position in the file
+     * @param length the number of bytes to write
+     * @throws IOException In case of an I/O error
+     */
+    public void writeChunks(FileChannel fileChannel, long position, long length) throws IOException {
+        writeChunks(fileChannel, position, length, null);
+    }
+
+
+    /**
+     * Write a region of a file as chunks, see {@link #writeChunks(FileChannel, long, long)}. In case of a scanner the file is memory-mapped, 
+     * each chunk is scanned before it's written and the writing stops before a chunk which matches a local signature.
+     *
+     * @param fileChannel the file channel
+     * @param position the position in the file
+     * @param length the number of bytes to write
+     * @param scanner the scanner of the local signatures or null
+     * @throws IOException In case of an I/O error
+     */
+    public void writeChunks(FileChannel fileChannel, long position, long length, ICAPSignaturePrefilter.Scanner scanner) throws IOException {
+        final SocketChannel socketChannel = socket.getChannel();
+        final long end = position + length;
+        MappedByteBuffer mappedBuffer = null;
+        long mappedPosition = 0;
+        long pos = position;
+        while (pos < end) {
+            final int chunkLength = (int)Math.min(MAX_FILE_CHUNK_SIZE, end - pos);
+            if (socketChannel != null && scanner == null) {
+                writeChunkHeader(chunkLength);
+                flushBuffer();
+                long transferred = 0;
+                while (transferred < chunkLength) {
+                    long n = fileChannel.transferTo(pos + transferred, chunkLength - transferred, socketChannel);
+                    if (n <= 0 && pos + transferred >= fileChannel.size()) {
+                        throw new EOFException("Unexpected end of file at position " + (pos + transferred) + "!");
+                    }
+                    transferred += n;
+                }
+            } else {
+                if (mappedBuffer == null || pos + chunkLength > mappedPosition + mappedBuffer.capacity()) {
+                    if (pos + chunkLength > fileChannel.size()) {
+                        throw new EOFException("Unexpected end of file at position " + fileChannel.size() + "!");
+                    }
+                    mappedPosition = pos;
+                    mappedBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, mappedPosition, Math.min(MAX_MAPPED_SIZE, end - pos));
+                }
+                
+                ByteBuffer data = mappedBuffer.duplicate();
+                data.position((int)(pos - mappedPosition)).limit((int)(pos - mappedPosition) + chunkLength);
+                if (scanner != null && scanner.update(data)) {
+                    return;
+                }
+                
+                writeChunkHeader(chunkLength);
+                write(data);
+            }
+            
+            write(chunkHeader, chunkHeader.length - 2, 2);
+            pos += chunkLength;
+        }
+    }
+
+
+    /**
+     * Write the remaining bytes of a buffer as chunks. A heap buffer larger than the write buffer and, on a plain connection, 
+     * a direct buffer are written directly to the socket; otherwise the bytes are copied into the write buffer.
+     *
+     * @param data the data to write
+     * @throws IOException In case of an I/O error
+     */
+    public void writeChunks(ByteBuffer data) throws IOException {
+        writeChunks(data, null);
+    }
+
+
+    /**
+     * Write the remaining bytes of a buffer as chunks, see {@link #writeChunks(ByteBuffer)}. In case of a scanner each chunk is scanned 
+     * before it's written and the writing stops before a chunk which matches a local signature.
+     *
+     * @param data the data to write
+     * @param scanner the scanner of the local signatures or null
+     * @throws IOException In case of an I/O error
+     */
+    public void writeChunks(ByteBuffer data, ICAPSignaturePrefilter.Scanner scanner) throws IOException {
+        final SocketChannel socketChannel = socket.getChannel();
+        while (data.hasRemaining()) {
+            final int chunkLength = Math.min(MAX_FILE_CHUNK_SIZE, data.remaining());
+            ByteBuffer chunk = data.duplicate();
+            chunk.limit(chunk.position() + chunkLength);
+            if (scanner != null && scanner.update(chunk)) {
+                return;
+            }
+            
+            writeChunkHeader(chunkLength);
+            if (chunk.hasArray()) {
+                write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunkLength);
+            } else if (socketChannel != null) {
+                flushBuffer();
+                while (chunk.hasRemaining()) {
+                    socketChannel.write(chunk);
+                }
+            } else {
+                write(chunk);
+            }
+            
+            write(chunkHeader, chunkHeader.length - 2, 2);
+            data.position(data.position() + chunkLength);
+        }
+    }
+
+
+    /**
+     * Write the remaining bytes of a buffer. The bytes are gathered in the write buffer until the next {@link #flush()} or the buffer is full.
+     *
+     * @param data the data to write
+     * @throws IOException In case of an I/O error
+     */
+    public void write(ByteBuffer data) throws IOException {
+        if (writeBuffer == null) {
+            throw new IOException("Socket of [" + connection + "] is closed!");
+        }
+
+        while (data.hasRemaining()) {
+            if (writePosition == writeBuffer.length) {
+                flushBuffer();
+            }
+            
+            int length = Math.min(data.remaining(), writeBuffer.length - writePosition);
+            data.get(writeBuffer, writePosition, length);
+            writePosition += length;
+        }
+    }
+
+
+    /**
+     * Flush the output stream, it should be called only at the protocol boundaries.
      *
      * @throws IOException In case of an I/O error
      */
     public void flush() throws IOException {
+        flushBuffer();
         os.flush();
 
         if (LOG.isDebugEnabled()) {
@@ -130,6 +363,11 @@ public class ICAPSocket implements AutoCloseable {
      * @throws IOException In case of an I/O error
      */
     public Map<String, List<String>> readHTTPHeader(final String separator, final int bufferSize) throws IOException {
+        // a response is only expected in case the request is sent
+        if (writePosition > 0) {
+            flush();
+        }
+        
         return is.readHeader();
     }
 
@@ -146,12 +384,12 @@ public class ICAPSocket implements AutoCloseable {
             return 0;
         }
         
+        startEncapsulatedMessage();
         long totalSize = 0;
-        
+        byte[] buf = ICAPBufferPool.getInstance().acquire();
         try {
-            byte[] buf = new byte[ICAPClientUtil.INTERNAL_BUFFER_SIZE];
             int length;
-            while ((length = is.read(buf)) > 0) {
+            while ((length = is.read(buf)) >= 0) {
                 if (length > 0) {
                     outputStream.write(buf, 0, length);
                 }
@@ -160,6 +398,8 @@ public class ICAPSocket implements AutoCloseable {
         } catch (RuntimeException ex) {
             LOG.debug("Could not transfer all bytes from input to output stream: " + ex.getMessage());
             totalSize = -1;
+        } finally {
+            ICAPBufferPool.getInstance().release(buf);
         }
 
         if (LOG.isDebugEnabled()) {
@@ -203,6 +443,17 @@ public class ICAPSocket implements AutoCloseable {
 
         // parse header values
         icapHeaderInformation.setHeaders(header);
+        
+        if (icapHeaderInformation.getStatus() != 100) {
+            messageStarted = false;
+            pendingBodyOffset = getEncapsulatedBodyOffset(icapHeaderInformation);
+            
+            // without a valid offset the end of the encapsulated part is unknown
+            responseComplete = pendingBodyOffset >= 0 || !icapHeaderInformation.containsHeader(ICAPConstants.HEADER_KEY_ENCAPSULATED);
+            serverCloseConnection = icapHeaderInformation.containsHeader(ICAPConstants.HEADER_KEY_CONNECTION) 
+                                    && icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_CONNECTION).stream().anyMatch(v -> "close".equalsIgnoreCase(v));
+        }
+        
         return icapHeaderInformation;
     }
 
@@ -212,17 +463,150 @@ public class ICAPSocket implements AutoCloseable {
      */
     @Override
     public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        
+        try {
+            releaseConnection();
+        } finally {
+            is.release();
+            ICAPBufferPool.getInstance().release(writeBuffer);
+            writeBuffer = null;
+            writePosition = 0;
+            
+            if (connectionLimiter != null) {
+                connectionLimiter.release();
+            }
+        }
+    }
+    
+
+    /**
+     * Release the connection to the connection manager
+     *
+     * @throws IOException In case of an I/O error
+     */
+    private void releaseConnection() throws IOException {
+        boolean reusable = false;
+        if (connectionManager.isKeepAlive() && responseComplete && !serverCloseConnection) {
+            try {
+                startEncapsulatedMessage();
+                reusable = (!messageStarted || is.drain(MAX_DRAIN_SIZE)) && !is.hasPendingInput();
+            } catch (IOException e) {
+                reusable = false;
+            }
+        }
+
+        if (reusable) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(requestIdentifier + "Release socket of [" + connection + "]");
+            }
+
+            try {
+                flush();
+            } catch (IOException e) {
+                reusable = false;
+            }
+            
+            connectionManager.releaseSocket(socket, reusable);
+            return;
+        }
+        
         if (LOG.isDebugEnabled()) {
             LOG.debug(requestIdentifier + "Close socket of [" + connection + "]");
         }
         
         close(is);
-        os.flush();
-        close(os);
-        socket.close();
+        try {
+            flush();
+        } finally {
+            close(os);
+            connectionManager.releaseSocket(socket, false);
+        }
     }
     
 
+    /**
+     * Write the chunk size as hex and the line separator
+     *
+     * @param length the length of the chunk
+     * @throws IOException In case of an I/O error
+     */
+    private void writeChunkHeader(int length) throws IOException {
+        int pos = chunkHeader.length;
+        chunkHeader[--pos] = LF;
+        chunkHeader[--pos] = CR;
+        int v = length;
+        do {
+            chunkHeader[--pos] = HEX_DIGITS[v & 0xF];
+            v >>>= 4;
+        } while (v != 0);
+        
+        write(chunkHeader, pos, chunkHeader.length - pos);
+    }
+
+
+    /**
+     * Write the buffered bytes to the socket
+     *
+     * @throws IOException In case of an I/O error
+     */
+    private void flushBuffer() throws IOException {
+        if (writePosition > 0) {
+            int length = writePosition;
+            writePosition = 0;
+            os.write(writeBuffer, 0, length);
+        }
+    }
+
+
+    /**
+     * Start the encapsulated message of the last response in case it was not yet started
+     *
+     * @throws IOException In case of an I/O error
+     */
+    private void startEncapsulatedMessage() throws IOException {
+        if (!messageStarted && pendingBodyOffset >= 0) {
+            messageStarted = true;
+            is.startEncapsulatedMessage(pendingBodyOffset, pendingBody);
+        }
+    }
+
+
+    /**
+     * Get the offset of the encapsulated body, respectively the null-body. It also sets whether a chunked body follows.
+     *
+     * @param icapHeaderInformation the ICAP header information
+     * @return the offset of the body or -1 if there is no encapsulated part
+     */
+    private int getEncapsulatedBodyOffset(ICAPHeaderInformation icapHeaderInformation) {
+        pendingBody = false;
+        if (!icapHeaderInformation.containsHeader(ICAPConstants.HEADER_KEY_ENCAPSULATED)) {
+            return -1;
+        }
+
+        for (String entry : icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_ENCAPSULATED)) {
+            int idx = entry.indexOf('=');
+            if (idx > 0) {
+                String key = entry.substring(0, idx).trim();
+                if (key.endsWith("-body")) {
+                    try {
+                        int offset = Integer.parseInt(entry.substring(idx + 1).trim());
+                        pendingBody = !key.equalsIgnoreCase("null-body");
+                        return offset;
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }
+            }
+        }
+        
+        return -1;
+    }
+
+    
     /**
      * Close
      *
@@ -0,0 +1,654 @@
+/*
+ * ICAPVerdictCache.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import com.github.toolarium.icap.client.exception.ContentBlockedException;
+import com.github.toolarium.icap.client.impl.parser.ICAPHeaderMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Bounded cache of the verdicts of the ICAP servers, keyed by the content digest, the service and the ISTag of the service.
+ * The eviction follows W-TinyLFU: new verdicts enter a small LRU window, a verdict which leaves the window is only admitted to
+ * the main segmented LRU if it was requested more often than the victim of the main space. The frequencies are estimated by a
+ * count-min sketch which is halved periodically. A new ISTag of a service invalidates all verdicts of the service.
+ * By default the cache is disabled (max size 0).
+ *
+ * @author patrick
+ */
+public final class ICAPVerdictCache {
+    private static final Logger LOG = LoggerFactory.getLogger(ICAPVerdictCache.class);
+    private static final double WINDOW_RATIO = 0.01;
+    private static final double PROTECTED_RATIO = 0.8;
+    private final Map<ICAPServiceInformation, String> serviceTags;
+    private final LinkedHashMap<VerdictKey, Verdict> window;
+    private final LinkedHashMap<VerdictKey, Verdict> probation;
+    private final LinkedHashMap<VerdictKey, Verdict> protectedSegment;
+    private FrequencySketch sketch;
+    private volatile int maxSize;
+    private int maxWindowSize;
+    private int maxProtectedSize;
+    private long hits;
+    private long misses;
+
+
+    /**
+     * Private class, the only instance of the singelton which will be created by accessing the holder class.
+     *
+     * @author patrick
+     */
+    private static class HOLDER {
+        static final ICAPVerdictCache INSTANCE = new ICAPVerdictCache();
+    }
+
+
+    /**
+     * Constructor for ICAPVerdictCache
+     */
+    ICAPVerdictCache() {
+        this.serviceTags = new ConcurrentHashMap<ICAPServiceInformation, String>();
+        this.window = new LinkedHashMap<VerdictKey, Verdict>();
+        this.probation = new LinkedHashMap<VerdictKey, Verdict>();
+        this.protectedSegment = new LinkedHashMap<VerdictKey, Verdict>();
+        setMaxSize(0);
+    }
+
+
+    /**
+     * Get the instance
+     *
+     * @return the instance
+     */
+    public static ICAPVerdictCache getInstance() {
+        return HOLDER.INSTANCE;
+    }
+
+
+    /**
+     * Set the max number of cached verdicts, the cached verdicts and their frequencies are cleared. The ISTags of the services 
+     * are kept, they are used by the {@link ICAPVerdictStore} and the {@link ICAPRescanJournal} as well.
+     *
+     * @param maxSize the max number of cached verdicts, 0 disables the cache
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(0, maxSize);
+        this.maxWindowSize = Math.max(1, (int)(this.maxSize * WINDOW_RATIO));
+        this.maxProtectedSize = (int)((this.maxSize - maxWindowSize) * PROTECTED_RATIO);
+        this.sketch = new FrequencySketch(Math.max(1, this.maxSize));
+        clearVerdicts();
+    }
+
+
+    /**
+     * Check if the cache is enabled
+     *
+     * @return true if the cache is enabled
+     */
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+
+    /**
+     * Get the number of cached verdicts
+     *
+     * @return the number of cached verdicts
+     */
+    public synchronized int size() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+
+    /**
+     * Get the number of cache hits
+     *
+     * @return the number of cache hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+
+    /**
+     * Get the number of cache misses
+     *
+     * @return the number of cache misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+
+    /**
+     * Clear the cached verdicts and the ISTags of the services
+     */
+    public synchronized void clear() {
+        clearVerdicts();
+        serviceTags.clear();
+    }
+
+
+    /**
+     * Clear the cached verdicts, it's called under the lock of the cache
+     */
+    private void clearVerdicts() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        hits = 0;
+        misses = 0;
+    }
+
+
+    /**
+     * Get the current ISTag of a service
+     *
+     * @param serviceInformation the service information
+     * @return the ISTag or null if it's not known
+     */
+    public String getISTag(ICAPServiceInformation serviceInformation) {
+        return serviceTags.get(serviceInformation);
+    }
+
+
+    /**
+     * Update the ISTag of a service, e.g. from an OPTIONS or a scan response. A changed ISTag invalidates all verdicts of the service.
+     * The ISTag is tracked even if the cache is disabled, it's used by the {@link ICAPVerdictStore} as well.
+     *
+     * @param serviceInformation the service information
+     * @param isTag the ISTag
+     */
+    public void updateISTag(ICAPServiceInformation serviceInformation, String isTag) {
+        if (serviceInformation == null || isTag == null || isTag.isBlank()) {
+            return;
+        }
+
+        final String previousISTag = serviceTags.put(serviceInformation, isTag);
+        if (previousISTag != null && !previousISTag.equals(isTag)) {
+            LOG.info("ISTag of service [" + serviceInformation + "] changed from " + previousISTag + " to " + isTag + ", the cached verdicts are invalidated.");
+            invalidate(serviceInformation);
+        }
+    }
+
+
+    /**
+     * Get a cached verdict
+     *
+     * @param key the key
+     * @return the verdict or null
+     */
+    public synchronized Verdict get(VerdictKey key) {
+        if (!isEnabled() || key == null) {
+            return null;
+        }
+
+        sketch.increment(key);
+        Verdict verdict = window.remove(key);
+        if (verdict != null) {
+            window.put(key, verdict);
+        } else if ((verdict = probation.remove(key)) != null) {
+            // a second access promotes the verdict to the protected segment
+            protectedSegment.put(key, verdict);
+            if (protectedSegment.size() > maxProtectedSize) {
+                Iterator<Map.Entry<VerdictKey, Verdict>> it = protectedSegment.entrySet().iterator();
+                Map.Entry<VerdictKey, Verdict> demoted = it.next();
+                it.remove();
+                probation.put(demoted.getKey(), demoted.getValue());
+            }
+        } else if ((verdict = protectedSegment.remove(key)) != null) {
+            protectedSegment.put(key, verdict);
+        }
+
+        if (verdict != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return verdict;
+    }
+
+
+    /**
+     * Put a verdict, the verdict is only admitted to the main space if it's requested more often than the evicted verdict
+     *
+     * @param key the key
+     * @param verdict the verdict
+     */
+    public synchronized void put(VerdictKey key, Verdict verdict) {
+        if (!isEnabled() || key == null || verdict == null || !key.isTag.equals(serviceTags.get(key.serviceInformation))) {
+            return;
+        }
+
+        if (window.containsKey(key)) {
+            window.put(key, verdict);
+            return;
+        }
+        if (probation.containsKey(key)) {
+            probation.put(key, verdict);
+            return;
+        }
+        if (protectedSegment.containsKey(key)) {
+            protectedSegment.put(key, verdict);
+            return;
+        }
+
+        sketch.increment(key);
+        window.put(key, verdict);
+        if (window.size() <= maxWindowSize) {
+            return;
+        }
+
+        Iterator<Map.Entry<VerdictKey, Verdict>> it = window.entrySet().iterator();
+        Map.Entry<VerdictKey, Verdict> candidate = it.next();
+        it.remove();
+        if (probation.size() + protectedSegment.size() < maxSize - maxWindowSize) {
+            probation.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+
+        LinkedHashMap<VerdictKey, Verdict> victimSegment = probation.isEmpty() ? protectedSegment : probation;
+        if (victimSegment.isEmpty()) {
+            return;
+        }
+
+        Iterator<Map.Entry<VerdictKey, Verdict>> victimIterator = victimSegment.entrySet().iterator();
+        Map.Entry<VerdictKey, Verdict> victim = victimIterator.next();
+        if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim.getKey())) {
+            victimIterator.remove();
+            probation.put(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+
+    /**
+     * Invalidate the verdicts of a service
+     *
+     * @param serviceInformation the service information
+     */
+    public synchronized void invalidate(ICAPServiceInformation serviceInformation) {
+        window.keySet().removeIf(k -> k.serviceInformation.equals(serviceInformation));
+        probation.keySet().removeIf(k -> k.serviceInformation.equals(serviceInformation));
+        protectedSegment.keySet().removeIf(k -> k.serviceInformation.equals(serviceInformation));
+    }
+
+
+    /**
+     * Defines the key of a verdict. Besides the content digest, the service and the ISTag it contains the mode and the identical
+     * content verification, both of them influence the verdict.
+     */
+    public static final class VerdictKey {
+        private final String digest;
+        private final ICAPServiceInformation serviceInformation;
+        private final ICAPMode mode;
+        private final boolean compareIdenticalContent;
+        private final String isTag;
+        private final int hashCode;
+
+
+        /**
+         * Constructor for VerdictKey
+         *
+         * @param digest the content digest
+         * @param serviceInformation the service information
+         * @param mode the mode
+         * @param compareIdenticalContent true if the identical content is verified
+         * @param isTag the ISTag of the service
+         */
+        public VerdictKey(String digest, ICAPServiceInformation serviceInformation, ICAPMode mode, boolean compareIdenticalContent, String isTag) {
+            this.digest = digest;
+            this.serviceInformation = serviceInformation;
+            this.mode = mode;
+            this.compareIdenticalContent = compareIdenticalContent;
+            this.isTag = isTag;
+            this.hashCode = Objects.hash(digest, serviceInformation, mode, compareIdenticalContent, isTag);
+        }
+
+
+        /**
+         * Get the content digest
+         *
+         * @return the content digest
+         */
+        public String getDigest() {
+            return digest;
+        }
+
+
+        /**
+         * Get the service information
+         *
+         * @return the service information
+         */
+        public ICAPServiceInformation getServiceInformation() {
+            return serviceInformation;
+        }
+
+
+        /**
+         * Get the mode
+         *
+         * @return the mode
+         */
+        public ICAPMode getMode() {
+            return mode;
+        }
+
+
+        /**
+         * Check if the identical content is verified
+         *
+         * @return true if the identical content is verified
+         */
+        public boolean isCompareIdenticalContent() {
+            return compareIdenticalContent;
+        }
+
+
+        /**
+         * Get the ISTag
+         *
+         * @return the ISTag
+         */
+        public String getISTag() {
+            return isTag;
+        }
+
+
+        /**
+         * Create the key of the same content with another ISTag
+         *
+         * @param newISTag the ISTag
+         * @return the key
+         */
+        public VerdictKey withISTag(String newISTag) {
+            if (Objects.equals(isTag, newISTag)) {
+                return this;
+            }
+            return new VerdictKey(digest, serviceInformation, mode, compareIdenticalContent, newISTag);
+        }
+
+
+        /**
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+
+        /**
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (!(obj instanceof VerdictKey)) {
+                return false;
+            }
+
+            VerdictKey other = (VerdictKey) obj;
+            return hashCode == other.hashCode && compareIdenticalContent == other.compareIdenticalContent && mode == other.mode
+                   && Objects.equals(digest, other.digest) && Objects.equals(isTag, other.isTag) && Objects.equals(serviceInformation, other.serviceInformation);
+        }
+
+
+        /**
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return "VerdictKey [digest=" + digest + ", service=" + serviceInformation + ", mode=" + mode + ", isTag=" + isTag + "]";
+        }
+    }
+
+
+    /**
+     * Defines a cached verdict, either the header information of a valid resource or the blocked content
+     */
+    public static final class Verdict {
+        private final ICAPHeaderInformation headerInformation;
+        private final String blockedMessage;
+        private final String blockedContent;
+
+
+        /**
+         * Constructor for Verdict
+         *
+         * @param headerInformation the header information
+         * @param blockedMessage the message of the blocked content or null
+         * @param blockedContent the blocked content or null
+         */
+        private Verdict(ICAPHeaderInformation headerInformation, String blockedMessage, String blockedContent) {
+            this.headerInformation = copy(headerInformation);
+            this.blockedMessage = blockedMessage;
+            this.blockedContent = blockedContent;
+        }
+
+
+        /**
+         * Create the verdict of a valid resource
+         *
+         * @param headerInformation the header information
+         * @return the verdict
+         */
+        public static Verdict valid(ICAPHeaderInformation headerInformation) {
+            return new Verdict(headerInformation, null, null);
+        }
+
+
+        /**
+         * Create the verdict of a blocked resource
+         *
+         * @param e the content blocked exception
+         * @return the verdict
+         */
+        public static Verdict blocked(ContentBlockedException e) {
+            return new Verdict(e.getICAPHeaderInformation(), e.getMessage(), e.getContent());
+        }
+
+
+        /**
+         * Create a verdict
+         *
+         * @param headerInformation the header information
+         * @param blockedMessage the message of the blocked content or null if the resource is valid
+         * @param blockedContent the blocked content or null
+         * @return the verdict
+         */
+        static Verdict of(ICAPHeaderInformation headerInformation, String blockedMessage, String blockedContent) {
+            return new Verdict(headerInformation, blockedMessage, blockedContent);
+        }
+
+
+        /**
+         * Check if the content is blocked
+         *
+         * @return true if the content is blocked
+         */
+        public boolean isBlocked() {
+            return blockedMessage != null;
+        }
+
+
+        /**
+         * Get the header information, it must not be modified
+         *
+         * @return the header information
+         */
+        ICAPHeaderInformation getHeaderInformation() {
+            return headerInformation;
+        }
+
+
+        /**
+         * Get the message of the blocked content
+         *
+         * @return the message or null
+         */
+        String getBlockedMessage() {
+            return blockedMessage;
+        }
+
+
+        /**
+         * Get the blocked content
+         *
+         * @return the blocked content or null
+         */
+        String getBlockedContent() {
+            return blockedContent;
+        }
+
+
+        /**
+         * Resolve the verdict, each caller gets its own copy of the header information
+         *
+         * @return the header information of a valid resource
+         * @throws ContentBlockedException In case the content is blocked
+         */
+        public ICAPHeaderInformation resolve() throws ContentBlockedException {
+            if (isBlocked()) {
+                throw new ContentBlockedException(blockedMessage, copy(headerInformation), blockedContent);
+            }
+            return copy(headerInformation);
+        }
+
+
+        /**
+         * Copy the header information
+         *
+         * @param headerInformation the header information
+         * @return the copy
+         */
+        private static ICAPHeaderInformation copy(ICAPHeaderInformation headerInformation) {
+            if (headerInformation == null) {
+                return null;
+            }
+
+            return new ICAPHeaderInformation().setProtocol(headerInformation.getProtocol())
+                                              .setVersion(headerInformation.getVersion())
+                                              .setStatus(headerInformation.getStatus())
+                                              .setMessage(headerInformation.getMessage())
+                                              .setHeaders((headerInformation.getHeaders() != null) ? new ICAPHeaderMap(headerInformation.getHeaders()) : null);
+        }
+    }
+
+
+    /**
+     * Count-min sketch with 4 rows of saturating 4-bit counters. The counters are halved after a sample of ten times the
+     * cache size, e.g. old popularity fades out.
+     */
+    private static final class FrequencySketch {
+        private static final int ROWS = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+
+        /**
+         * Constructor for FrequencySketch
+         *
+         * @param size the expected number of entries
+         */
+        FrequencySketch(int size) {
+            int width = Integer.highestOneBit(Math.max(16, Math.min(size, 1 << 24)) - 1) << 1;
+            this.counters = new byte[ROWS * width];
+            this.mask = width - 1;
+            this.sampleSize = (int)Math.min(Integer.MAX_VALUE, 10L * size);
+        }
+
+
+        /**
+         * Increment the frequency of a key
+         *
+         * @param key the key
+         */
+        void increment(Object key) {
+            final int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < ROWS; i++) {
+                int index = indexOf(hash, i);
+                if (counters[index] < MAX_COUNT) {
+                    counters[index]++;
+                    added = true;
+                }
+            }
+
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+
+        /**
+         * Estimate the frequency of a key
+         *
+         * @param key the key
+         * @return the estimated frequency
+         */
+        int frequency(Object key) {
+            final int hash = spread(key.hashCode());
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < ROWS; i++) {
+                frequency = Math.min(frequency, counters[indexOf(hash, i)]);
+            }
+            return frequency;
+        }
+
+
+        /**
+         * Halve all counters
+         */
+        private void reset() {
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] = (byte)(counters[i] >>> 1);
+            }
+            additions /= 2;
+        }
+
+
+        /**
+         * Get the index of a counter
+         *
+         * @param hash the hash
+         * @param row the row
+         * @return the index
+         */
+        private int indexOf(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % ROWS];
+            h ^= h >>> 16;
+            return row * (mask + 1) + (h & mask);
+        }
+
+
+        /**
+         * Spread the hash code
+         *
+         * @param hashCode the hash code
+         * @return the spread hash
+         */
+        private static int spread(int hashCode) {
+            int h = hashCode * 0x45D9F3B;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,605 @@
+/*
+ * ICAPVerdictStore.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.impl.parser.ICAPHeaderMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Persistent verdict store in a memory-mapped file, it can be shared by several processes of the same host. The file holds an
+ * open-addressing table of fixed-size records (key hash, ISTag hash, verdict, timestamp), no heap object is kept per entry.
+ * The table is divided into windows of {@link #PROBES} slots, a key is probed in the window of its hash; in case the window is full, 
+ * the oldest record of the window is replaced. The window is locked by a file lock, shared for a lookup and exclusive for an update. 
+ * Within the process the windows are guarded by striped locks, a lookup only waits for the lookups and updates of the same stripe.
+ * A record of another ISTag or older than the max age is not used. The store complements the {@link ICAPVerdictCache}, by default it's closed.
+ *
+ * @author patrick
+ */
+public final class ICAPVerdictStore {
+    /** The number of probed slots per key */
+    public static final int PROBES = 16;
+
+    /** The default max age of a record */
+    public static final Duration DEFAULT_MAX_AGE = Duration.ofDays(1);
+
+    private static final Logger LOG = LoggerFactory.getLogger(ICAPVerdictStore.class);
+    private static final int MAGIC = 0x49435653; // ICVS
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 512;
+    private static final byte STATE_EMPTY = 0;
+    private static final byte STATE_VALID = 1;
+    private static final byte STATE_BLOCKED = 2;
+    private static final int OFFSET_STATE = 0;
+    private static final int OFFSET_TIMESTAMP = 8;
+    private static final int OFFSET_HASH = 16;
+    private static final int HASH_SIZE = 32;
+    private static final int OFFSET_ISTAG = OFFSET_HASH + HASH_SIZE;
+    private static final int OFFSET_HEADER = OFFSET_ISTAG + HASH_SIZE;
+    private static final int HEADER_TEXT_SIZE = 238;
+    private static final int OFFSET_MESSAGE = OFFSET_HEADER + 2 + HEADER_TEXT_SIZE;
+    private static final int MESSAGE_SIZE = 126;
+    private static final int OFFSET_CONTENT = OFFSET_MESSAGE + 2 + MESSAGE_SIZE;
+    private static final int CONTENT_SIZE = RECORD_SIZE - OFFSET_CONTENT - 2;
+    private static final int LOCK_STRIPES = 64;
+    private final ReentrantLock[] locks;
+    private Path file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private volatile int capacity;
+    private volatile boolean enabled;
+    private volatile long maxAge;
+
+
+    /**
+     * Private class, the only instance of the singelton which will be created by accessing the holder class.
+     *
+     * @author patrick
+     */
+    private static class HOLDER {
+        static final ICAPVerdictStore INSTANCE = new ICAPVerdictStore();
+    }
+
+
+    /**
+     * Constructor for ICAPVerdictStore
+     */
+    ICAPVerdictStore() {
+        this.locks = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++) {
+            this.locks[i] = new ReentrantLock();
+        }
+        this.enabled = false;
+        this.maxAge = DEFAULT_MAX_AGE.toMillis();
+    }
+
+
+    /**
+     * Get the instance
+     *
+     * @return the instance
+     */
+    public static ICAPVerdictStore getInstance() {
+        return HOLDER.INSTANCE;
+    }
+
+
+    /**
+     * Open the store. An existing file keeps its capacity, a new file is created with the given capacity.
+     *
+     * @param file the file of the store
+     * @param capacity the number of records of a new file
+     * @throws IOException In case the file could not be opened or is not a verdict store
+     */
+    public synchronized void open(Path file, int capacity) throws IOException {
+        close();
+
+        final long maxCapacity = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+        if (capacity < PROBES || capacity > maxCapacity) {
+            throw new IOException("Invalid capacity " + capacity + " of the verdict store, it must be between " + PROBES + " and " + maxCapacity + "!");
+        }
+
+        FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            int fileCapacity;
+            final FileLock lock = fileChannel.lock(0, HEADER_SIZE, false);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                if (fileChannel.size() == 0) {
+                    fileCapacity = capacity;
+                    fileChannel.write(ByteBuffer.allocate(1), HEADER_SIZE + (long)fileCapacity * RECORD_SIZE - 1);
+                    header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(fileCapacity).flip();
+                    fileChannel.write(header, 0);
+                    fileChannel.force(true);
+                } else {
+                    fileChannel.read(header, 0);
+                    header.flip();
+                    if (header.remaining() < 16 || header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != RECORD_SIZE) {
+                        throw new IOException("The file " + file + " is not a verdict store of version " + VERSION + "!");
+                    }
+
+                    fileCapacity = header.getInt();
+                    if (fileCapacity < PROBES || fileChannel.size() < HEADER_SIZE + (long)fileCapacity * RECORD_SIZE) {
+                        throw new IOException("The verdict store " + file + " is truncated!");
+                    }
+                }
+            } finally {
+                lock.release();
+            }
+
+            final MappedByteBuffer fileBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)fileCapacity * RECORD_SIZE);
+            lockAll();
+            try {
+                this.buffer = fileBuffer;
+                this.channel = fileChannel;
+                this.capacity = fileCapacity;
+                this.file = file;
+                this.enabled = true;
+            } finally {
+                unlockAll();
+            }
+            LOG.info("Opened verdict store " + file + " with " + fileCapacity + " records.");
+        } catch (IOException | RuntimeException e) {
+            fileChannel.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Close the store, the records remain in the file
+     */
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+
+        lockAll();
+        try {
+            enabled = false;
+            try {
+                buffer.force();
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Could not close verdict store " + file + ": " + e.getMessage());
+            }
+
+            channel = null;
+            buffer = null;
+            file = null;
+            capacity = 0;
+        } finally {
+            unlockAll();
+        }
+    }
+
+
+    /**
+     * Check if the store is open
+     *
+     * @return true if the store is open
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+
+    /**
+     * Get the number of records of the store
+     *
+     * @return the number of records or 0 if the store is closed
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    /**
+     * Set the max age of the records, an older record is not used
+     *
+     * @param maxAge the max age
+     */
+    public void setMaxAge(Duration maxAge) {
+        this.maxAge = (maxAge != null) ? maxAge.toMillis() : DEFAULT_MAX_AGE.toMillis();
+    }
+
+
+    /**
+     * Get a verdict, an I/O error is logged and reported as a miss
+     *
+     * @param key the key
+     * @return the verdict or null
+     */
+    public ICAPVerdictCache.Verdict get(ICAPVerdictCache.VerdictKey key) {
+        final int currentCapacity = capacity;
+        if (!enabled || key == null || key.getISTag() == null) {
+            return null;
+        }
+
+        final byte[] hash = hash(key);
+        final int window = window(hash, currentCapacity);
+        final ReentrantLock windowLock = locks[window % LOCK_STRIPES];
+        windowLock.lock();
+        try {
+            if (!enabled || capacity != currentCapacity) {
+                // the store was closed or reopened in between
+                return null;
+            }
+            
+            final int firstSlot = window * PROBES;
+            final FileLock lock = channel.lock(position(firstSlot), (long)PROBES * RECORD_SIZE, true);
+            try {
+                return readVerdict(firstSlot, hash, sha256(key.getISTag()));
+            } finally {
+                lock.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            // e.g. a corrupted record
+            LOG.warn("Could not read verdict store " + file + ": " + e.getMessage());
+        } finally {
+            windowLock.unlock();
+        }
+        return null;
+    }
+
+
+    /**
+     * Put a verdict, an I/O error is logged and ignored
+     *
+     * @param key the key
+     * @param verdict the verdict
+     */
+    public void put(ICAPVerdictCache.VerdictKey key, ICAPVerdictCache.Verdict verdict) {
+        final int currentCapacity = capacity;
+        if (!enabled || key == null || key.getISTag() == null || verdict == null) {
+            return;
+        }
+
+        final byte[] hash = hash(key);
+        final int window = window(hash, currentCapacity);
+        final ReentrantLock windowLock = locks[window % LOCK_STRIPES];
+        windowLock.lock();
+        try {
+            if (!enabled || capacity != currentCapacity) {
+                // the store was closed or reopened in between
+                return;
+            }
+            
+            final int firstSlot = window * PROBES;
+            final FileLock lock = channel.lock(position(firstSlot), (long)PROBES * RECORD_SIZE, false);
+            try {
+                writeRecord(position(selectSlot(firstSlot, hash)), hash, sha256(key.getISTag()), verdict);
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not write verdict store " + file + ": " + e.getMessage());
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+
+    /**
+     * Acquire the locks of all windows, e.g. to open or close the store
+     */
+    private void lockAll() {
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+    }
+
+
+    /**
+     * Release the locks of all windows
+     */
+    private void unlockAll() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+
+
+    /**
+     * Read the verdict of a key hash from the probed window
+     *
+     * @param firstSlot the first slot of the probed window
+     * @param hash the key hash
+     * @param isTagHash the hash of the current ISTag
+     * @return the verdict or null
+     */
+    private ICAPVerdictCache.Verdict readVerdict(int firstSlot, byte[] hash, byte[] isTagHash) {
+        for (int i = 0; i < PROBES; i++) {
+            final int position = position(firstSlot + i);
+            final byte state = buffer.get(position + OFFSET_STATE);
+            if (state == STATE_EMPTY) {
+                return null;
+            }
+
+            if (matches(position + OFFSET_HASH, hash)) {
+                if (!matches(position + OFFSET_ISTAG, isTagHash) || System.currentTimeMillis() - buffer.getLong(position + OFFSET_TIMESTAMP) > maxAge) {
+                    return null;
+                }
+                return readVerdict(position, state);
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Select the slot of a key hash in the probed window: the record of the key hash, an empty slot or the oldest record
+     *
+     * @param firstSlot the first slot of the probed window
+     * @param hash the key hash
+     * @return the slot
+     */
+    private int selectSlot(int firstSlot, byte[] hash) {
+        int slot = firstSlot;
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < PROBES; i++) {
+            final int position = position(firstSlot + i);
+            if (buffer.get(position + OFFSET_STATE) == STATE_EMPTY || matches(position + OFFSET_HASH, hash)) {
+                return firstSlot + i;
+            }
+
+            final long timestamp = buffer.getLong(position + OFFSET_TIMESTAMP);
+            if (timestamp < oldest) {
+                oldest = timestamp;
+                slot = firstSlot + i;
+            }
+        }
+        return slot;
+    }
+
+
+    /**
+     * Get the probed window of a key hash, the windows don't overlap. The slots behind the last complete window are not used.
+     *
+     * @param hash the key hash
+     * @param capacity the number of records
+     * @return the window
+     */
+    private static int window(byte[] hash, int capacity) {
+        final long value = ByteBuffer.wrap(hash).getLong();
+        return (int)Math.floorMod(value, (long)Math.max(1, capacity / PROBES));
+    }
+
+
+    /**
+     * Get the position of a slot
+     *
+     * @param slot the slot
+     * @return the position in the file
+     */
+    private static int position(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+
+    /**
+     * Check if a hash of a record is equal to a hash
+     *
+     * @param position the position of the hash in the record
+     * @param hash the hash
+     * @return true if the hash is equal
+     */
+    private boolean matches(int position, byte[] hash) {
+        for (int i = 0; i < HASH_SIZE; i++) {
+            if (buffer.get(position + i) != hash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Read the verdict of a record
+     *
+     * @param position the position of the record
+     * @param state the state of the record
+     * @return the verdict
+     */
+    private ICAPVerdictCache.Verdict readVerdict(int position, byte state) {
+        final String[] lines = readString(position + OFFSET_HEADER).split("\n");
+        final String[] statusLine = lines[0].split(" ", 3);
+        final String[] protocol = statusLine[0].split("/", 2);
+
+        final ICAPHeaderInformation headerInformation = new ICAPHeaderInformation().setProtocol(protocol[0]);
+        headerInformation.setVersion((protocol.length > 1) ? protocol[1] : null);
+        headerInformation.setStatus((statusLine.length > 1) ? Integer.parseInt(statusLine[1]) : 0);
+        headerInformation.setMessage((statusLine.length > 2) ? statusLine[2] : null);
+
+        final Map<String, List<String>> headers = new ICAPHeaderMap();
+        for (int i = 1; i < lines.length; i++) {
+            final int index = lines[i].indexOf(':');
+            if (index > 0) {
+                headers.computeIfAbsent(lines[i].substring(0, index), k -> new ArrayList<String>()).add(lines[i].substring(index + 1).trim());
+            }
+        }
+        headerInformation.setHeaders(headers);
+
+        if (state == STATE_BLOCKED) {
+            final String content = readString(position + OFFSET_CONTENT);
+            return ICAPVerdictCache.Verdict.of(headerInformation, readString(position + OFFSET_MESSAGE), content.isEmpty() ? null : content);
+        }
+        return ICAPVerdictCache.Verdict.of(headerInformation, null, null);
+    }
+
+
+    /**
+     * Write a record, the state is written at last
+     *
+     * @param position the position of the record
+     * @param hash the key hash
+     * @param isTagHash the hash of the ISTag
+     * @param verdict the verdict
+     */
+    private void writeRecord(int position, byte[] hash, byte[] isTagHash, ICAPVerdictCache.Verdict verdict) {
+        buffer.put(position + OFFSET_STATE, STATE_EMPTY);
+        buffer.putLong(position + OFFSET_TIMESTAMP, System.currentTimeMillis());
+        write(position + OFFSET_HASH, hash);
+        write(position + OFFSET_ISTAG, isTagHash);
+
+        final ICAPHeaderInformation headerInformation = verdict.getHeaderInformation();
+        final StringBuilder header = new StringBuilder();
+        if (headerInformation != null) {
+            header.append(headerInformation.getProtocol()).append('/').append(headerInformation.getVersion()).append(' ')
+                  .append(headerInformation.getStatus()).append(' ').append(headerInformation.getMessage());
+            if (headerInformation.getHeaders() != null) {
+                int length = header.toString().getBytes(StandardCharsets.UTF_8).length;
+                for (Map.Entry<String, List<String>> e : headerInformation.getHeaders().entrySet()) {
+                    for (String value : e.getValue()) {
+                        // only complete header lines are kept
+                        final String line = "\n" + e.getKey() + ": " + value;
+                        final int lineLength = line.getBytes(StandardCharsets.UTF_8).length;
+                        if (length + lineLength <= HEADER_TEXT_SIZE) {
+                            header.append(line);
+                            length += lineLength;
+                        }
+                    }
+                }
+            }
+        }
+
+        writeString(position + OFFSET_HEADER, header.toString(), HEADER_TEXT_SIZE);
+        writeString(position + OFFSET_MESSAGE, verdict.getBlockedMessage(), MESSAGE_SIZE);
+        writeString(position + OFFSET_CONTENT, verdict.getBlockedContent(), CONTENT_SIZE);
+        buffer.put(position + OFFSET_STATE, verdict.isBlocked() ? STATE_BLOCKED : STATE_VALID);
+    }
+
+
+    /**
+     * Read a string with a length prefix
+     *
+     * @param position the position
+     * @return the string
+     */
+    private String readString(int position) {
+        final byte[] value = new byte[Math.min(Math.max(0, buffer.getShort(position)), RECORD_SIZE)];
+        read(position + 2, value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Read bytes at an absolute position
+     *
+     * @param position the position
+     * @param value the bytes to read
+     */
+    private void read(int position, byte[] value) {
+        final ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(value);
+    }
+
+
+    /**
+     * Write bytes at an absolute position
+     *
+     * @param position the position
+     * @param value the bytes to write
+     */
+    private void write(int position, byte[] value) {
+        final ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.put(value);
+    }
+
+
+    /**
+     * Write a string with a length prefix, a longer string is truncated
+     *
+     * @param position the position
+     * @param value the value or null
+     * @param maxLength the max length in bytes
+     */
+    private void writeString(int position, String value, int maxLength) {
+        final byte[] bytes = encode(value, maxLength);
+        buffer.putShort(position, (short)bytes.length);
+        write(position + 2, bytes);
+    }
+
+
+    /**
+     * Encode a string as UTF-8, a longer string is truncated on a character boundary
+     *
+     * @param value the value or null
+     * @param maxLength the max length in bytes
+     * @return the encoded value
+     */
+    private static byte[] encode(String value, int maxLength) {
+        if (value == null) {
+            return new byte[0];
+        }
+
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= maxLength) {
+            return bytes;
+        }
+
+        // decoding the truncated bytes drops an incomplete character at the end
+        final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.IGNORE);
+        try {
+            final CharBuffer truncated = decoder.decode(ByteBuffer.wrap(bytes, 0, maxLength));
+            return truncated.toString().getBytes(StandardCharsets.UTF_8);
+        } catch (CharacterCodingException e) {
+            return new byte[0];
+        }
+    }
+
+
+    /**
+     * Calculate the hash of a key, it's independent of the ISTag
+     *
+     * @param key the key
+     * @return the hash
+     */
+    private static byte[] hash(ICAPVerdictCache.VerdictKey key) {
+        return sha256(key.getDigest() + '|' + key.getServiceInformation().getHostName() + ':' + key.getServiceInformation().getServicePort()
+                      + '/' + key.getServiceInformation().getServiceName() + '|' + key.getServiceInformation().isSecureConnection()
+                      + '|' + key.getMode() + '|' + key.isCompareIdenticalContent());
+    }
+
+
+    /**
+     * Calculate the SHA-256 hash of a value, e.g. an ISTag of any length is kept in a fixed-size field
+     *
+     * @param value the value
+     * @return the hash
+     */
+    private static byte[] sha256(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported!", e);
+        }
+    }
+}
@@ -25,6 +25,8 @@ public class ICAPRemoteServiceConfigurationImpl implements ICAPRemoteServiceConf
     private final int serverPreviewSize;
     private final boolean serverAllow204;
     private final ICAPMode[] optionMethods;
+    private final Integer maxConnections;
+    private final Integer optionsTTL;
     private final Instant timestamp;
     private final Map<String, List<String>> headers;
     
@@ -47,10 +49,28 @@ public class ICAPRemoteServiceConfigurationImpl implements ICAPRemoteServiceConf
      * @param headers the icap header information
      */
     public ICAPRemoteServiceConfigurationImpl(Instant timestamp, ICAPMode[] optionMethods, int serverPreviewSize, boolean serverAllow204, Map<String, List<String>> headers) {
+        this(timestamp, optionMethods, serverPreviewSize, serverAllow204, null, null, headers);
+    }
+
+
+    /**
+     * Constructor for RemoteServiceConfiguration
+     * 
+     * @param timestamp the timestamp
+     * @param optionMethods the option methods
+     * @param serverPreviewSize the server preview size
+     * @param serverAllow204 the server allow 204
+     * @param maxConnections the max connections or null
+     * @param optionsTTL the options TTL in seconds or null
+     * @param headers the icap header information
+     */
+    public ICAPRemoteServiceConfigurationImpl(Instant timestamp, ICAPMode[] optionMethods, int serverPreviewSize, boolean serverAllow204, Integer maxConnections, Integer optionsTTL, Map<String, List<String>> headers) {
         this.timestamp = timestamp;
         this.optionMethods = optionMethods;
         this.serverPreviewSize = serverPreviewSize;
         this.serverAllow204 = serverAllow204;
+        this.maxConnections = maxConnections;
+        this.optionsTTL = optionsTTL;
         this.headers = headers;
     }
 
@@ -82,6 +102,24 @@ public class ICAPRemoteServiceConfigurationImpl implements ICAPRemoteServiceConf
     }
 
 
+    /**
+     * @see com.github.toolarium.icap.client.dto.ICAPRemoteServiceConfiguration#getMaxConnections()
+     */
+    @Override
+    public Integer getMaxConnections() {
+        return maxConnections;
+    }
+
+
+    /**
+     * @see com.github.toolarium.icap.client.dto.ICAPRemoteServiceConfiguration#getOptionsTTL()
+     */
+    @Override
+    public Integer getOptionsTTL() {
+        return optionsTTL;
+    }
+
+
     /**
      * @see com.github.toolarium.icap.client.dto.ICAPRemoteServiceConfiguration#getTimestamp()
      */
@@ -108,7 +146,7 @@ public class ICAPRemoteServiceConfigurationImpl implements ICAPRemoteServiceConf
         final int prime = 31;
         int result = 1;
         result = prime * result + Arrays.hashCode(optionMethods);
-        result = prime * result + Objects.hash(headers, serverAllow204, serverPreviewSize, timestamp);
+        result = prime * result + Objects.hash(headers, maxConnections, optionsTTL, serverAllow204, serverPreviewSize, timestamp);
         return result;
     }
 
@@ -132,6 +170,7 @@ public class ICAPRemoteServiceConfigurationImpl implements ICAPRemoteServiceConf
         
         ICAPRemoteServiceConfigurationImpl other = (ICAPRemoteServiceConfigurationImpl) obj;
         return Objects.equals(headers, other.headers)
+                && Objects.equals(maxConnections, other.maxConnections) && Objects.equals(optionsTTL, other.optionsTTL)
                 && Arrays.equals(optionMethods, other.optionMethods) && serverAllow204 == other.serverAllow204
                 && serverPreviewSize == other.serverPreviewSize && Objects.equals(timestamp, other.timestamp);
     }
@@ -143,7 +182,8 @@ public class ICAPRemoteServiceConfigurationImpl implements ICAPRemoteServiceConf
     @Override
     public String toString() {
         return "ICAPRemoteServiceConfigurationImpl [serverPreviewSize=" + serverPreviewSize + ", serverAllow204="
-                + serverAllow204 + ", optionMethods=" + Arrays.toString(optionMethods) + ", timestamp=" + timestamp
+                + serverAllow204 + ", optionMethods=" + Arrays.toString(optionMethods) + ", maxConnections=" + maxConnections
+                + ", optionsTTL=" + optionsTTL + ", timestamp=" + timestamp
                 + "]";
     }
 }
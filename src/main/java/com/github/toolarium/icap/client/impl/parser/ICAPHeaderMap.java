@@ -0,0 +1,493 @@
+/*
+ * ICAPHeaderMap.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl.parser;
+
+import com.github.toolarium.icap.client.dto.ICAPConstants;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+
+/**
+ * Compact header table with case-insensitive keys which keeps the insertion order. The received header values are kept as raw
+ * value and are only split into the value list when they are accessed:
+ * <ul>
+ * <li>Date and the status line are not split</li>
+ * <li>X-Infection-Found is split by semicolon</li>
+ * <li>X-Violations-Found is split by newline</li>
+ * <li>all other headers are split by comma</li>
+ * </ul>
+ * The table is not thread-safe.
+ *
+ * @author patrick
+ */
+public class ICAPHeaderMap extends AbstractMap<String, List<String>> implements Serializable {
+    private static final long serialVersionUID = 4863471126580617309L;
+    private String[] keys;
+    private int[] hashes;
+    private String[] rawValues;
+    private Object[] values;
+    private int size;
+    private int lastIndex;
+    private transient int modificationCount;
+    private transient Set<Map.Entry<String, List<String>>> entrySet;
+
+
+    /**
+     * Constructor for ICAPHeaderMap
+     */
+    public ICAPHeaderMap() {
+        this(16);
+    }
+
+
+    /**
+     * Constructor for ICAPHeaderMap
+     *
+     * @param initialCapacity the initial capacity
+     */
+    public ICAPHeaderMap(int initialCapacity) {
+        final int capacity = Math.max(4, initialCapacity);
+        this.keys = new String[capacity];
+        this.hashes = new int[capacity];
+        this.rawValues = new String[capacity];
+        this.values = new Object[capacity];
+        this.size = 0;
+        this.lastIndex = -1;
+    }
+
+
+    /**
+     * Constructor for ICAPHeaderMap
+     *
+     * @param headers the headers to copy
+     */
+    public ICAPHeaderMap(Map<String, List<String>> headers) {
+        this(headers.size());
+        putAll(headers);
+    }
+
+
+    /**
+     * @see java.util.AbstractMap#size()
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * @see java.util.AbstractMap#containsKey(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+
+    /**
+     * @see java.util.AbstractMap#get(java.lang.Object)
+     */
+    @Override
+    public List<String> get(Object key) {
+        int idx = indexOf(key);
+        if (idx < 0) {
+            return null;
+        }
+
+        return valueAt(idx);
+    }
+
+
+    /**
+     * @see java.util.AbstractMap#put(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public List<String> put(String key, List<String> value) {
+        Objects.requireNonNull(key);
+        int idx = indexOf(key);
+        if (idx >= 0) {
+            List<String> previous = valueAt(idx);
+            values[idx] = value;
+            return previous;
+        }
+
+        idx = append(key);
+        values[idx] = value;
+        return null;
+    }
+
+
+    /**
+     * @see java.util.AbstractMap#remove(java.lang.Object)
+     */
+    @Override
+    public List<String> remove(Object key) {
+        int idx = indexOf(key);
+        if (idx < 0) {
+            return null;
+        }
+
+        List<String> previous = valueAt(idx);
+        removeAt(idx);
+        return previous;
+    }
+
+
+    /**
+     * @see java.util.AbstractMap#clear()
+     */
+    @Override
+    public void clear() {
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(rawValues, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+        lastIndex = -1;
+        modificationCount++;
+    }
+
+
+    /**
+     * @see java.util.AbstractMap#entrySet()
+     */
+    @Override
+    public Set<Map.Entry<String, List<String>>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+
+    /**
+     * Add a raw header value, it's split when the header is accessed.
+     *
+     * @param key the key
+     * @param rawValue the raw value
+     */
+    public void add(String key, String rawValue) {
+        int idx = indexOf(key);
+        if (idx < 0) {
+            idx = append(key);
+            rawValues[idx] = rawValue;
+        } else {
+            // e.g. a repeated header, the raw values can't be joined because the split would differ
+            List<String> value = new ArrayList<String>(valueAt(idx));
+            value.addAll(split(keys[idx], rawValue));
+            values[idx] = value;
+        }
+        lastIndex = idx;
+    }
+
+
+    /**
+     * Add a raw header value to the last added header, e.g. a continuation line
+     *
+     * @param rawValue the raw value
+     */
+    public void addToLast(String rawValue) {
+        if (lastIndex < 0) {
+            add(ICAPConstants.HEADER_KEY_X_ICAP_STATUSLINE, rawValue);
+        } else {
+            add(keys[lastIndex], rawValue);
+        }
+    }
+
+
+    /**
+     * Split a raw header value
+     *
+     * @param key the key
+     * @param rawValue the raw value
+     * @return the split values
+     */
+    static List<String> split(String key, String rawValue) {
+        if (equalsKey(ICAPConstants.HEADER_KEY_X_ICAP_STATUSLINE, key) || equalsKey("Date", key)) {
+            List<String> result = new ArrayList<String>(1);
+            result.add(rawValue);
+            return result;
+        } else if (equalsKey(ICAPConstants.HEADER_KEY_X_INFECTION_FOUND, key)) {
+            return split(rawValue, ';');
+        } else if (equalsKey(ICAPConstants.HEADER_KEY_X_VIOLATIONS_FOUND, key)) {
+            return split(rawValue, '\n');
+        }
+
+        return split(rawValue, ',');
+    }
+
+
+    /**
+     * Split the value by a separator. The parts are trimmed and trailing empty parts are removed (same behaviour as String.split).
+     *
+     * @param rawValue the raw value
+     * @param separator the separator
+     * @return the values
+     */
+    private static List<String> split(String rawValue, char separator) {
+        int end = rawValue.length();
+        int idx = rawValue.indexOf(separator);
+        if (idx < 0) {
+            List<String> result = new ArrayList<String>(1);
+            result.add(rawValue.trim());
+            return result;
+        }
+
+        // trailing empty parts are removed
+        while (end > 0 && rawValue.charAt(end - 1) == separator) {
+            end--;
+        }
+
+        List<String> result = new ArrayList<String>(4);
+        int start = 0;
+        while (start < end) {
+            idx = rawValue.indexOf(separator, start);
+            if (idx < 0 || idx > end) {
+                idx = end;
+            }
+
+            result.add(rawValue.substring(start, idx).trim());
+            start = idx + 1;
+        }
+        return result;
+    }
+
+
+    /**
+     * Get the index of a key
+     *
+     * @param key the key
+     * @return the index or -1
+     */
+    private int indexOf(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+
+        final String name = (String)key;
+        final int hash = hash(name);
+        for (int i = 0; i < size; i++) {
+            if (hashes[i] == hash && (keys[i] == name || keys[i].equalsIgnoreCase(name))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Get the value of an index, the raw value is split on the first access
+     *
+     * @param idx the index
+     * @return the value
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> valueAt(int idx) {
+        if (values[idx] == null && rawValues[idx] != null) {
+            values[idx] = split(keys[idx], rawValues[idx]);
+            rawValues[idx] = null;
+        }
+        return (List<String>)values[idx];
+    }
+
+
+    /**
+     * Append a new key
+     *
+     * @param key the key
+     * @return the index
+     */
+    private int append(String key) {
+        if (size == keys.length) {
+            final int capacity = size * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            rawValues = Arrays.copyOf(rawValues, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        keys[size] = key;
+        hashes[size] = hash(key);
+        modificationCount++;
+        return size++;
+    }
+
+
+    /**
+     * Remove an index
+     *
+     * @param idx the index
+     */
+    private void removeAt(int idx) {
+        final int moved = size - idx - 1;
+        if (moved > 0) {
+            System.arraycopy(keys, idx + 1, keys, idx, moved);
+            System.arraycopy(hashes, idx + 1, hashes, idx, moved);
+            System.arraycopy(rawValues, idx + 1, rawValues, idx, moved);
+            System.arraycopy(values, idx + 1, values, idx, moved);
+        }
+
+        size--;
+        keys[size] = null;
+        rawValues[size] = null;
+        values[size] = null;
+        if (lastIndex == idx) {
+            lastIndex = -1;
+        } else if (lastIndex > idx) {
+            lastIndex--;
+        }
+        modificationCount++;
+    }
+
+
+    /**
+     * Case-insensitive hash of a key
+     *
+     * @param key the key
+     * @return the hash
+     */
+    private static int hash(String key) {
+        int h = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            h = 31 * h + c;
+        }
+        return h;
+    }
+
+
+    /**
+     * Compare two keys case-insensitive
+     *
+     * @param expected the expected key
+     * @param key the key
+     * @return true if they are equal
+     */
+    private static boolean equalsKey(String expected, String key) {
+        return expected == key || expected.equalsIgnoreCase(key);
+    }
+
+
+    /**
+     * The entry set of the header table
+     */
+    private class EntrySet extends AbstractSet<Map.Entry<String, List<String>>> {
+
+        /**
+         * @see java.util.AbstractCollection#iterator()
+         */
+        @Override
+        public Iterator<Map.Entry<String, List<String>>> iterator() {
+            return new EntryIterator();
+        }
+
+
+        /**
+         * @see java.util.AbstractCollection#size()
+         */
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+
+    /**
+     * The entry iterator of the header table
+     */
+    private class EntryIterator implements Iterator<Map.Entry<String, List<String>>> {
+        private int next;
+        private int current = -1;
+        private int expectedModificationCount = modificationCount;
+
+
+        /**
+         * @see java.util.Iterator#hasNext()
+         */
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+
+        /**
+         * @see java.util.Iterator#next()
+         */
+        @Override
+        public Map.Entry<String, List<String>> next() {
+            if (expectedModificationCount != modificationCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+
+            current = next++;
+            return new HeaderEntry(keys[current], valueAt(current));
+        }
+
+
+        /**
+         * @see java.util.Iterator#remove()
+         */
+        @Override
+        public void remove() {
+            if (current < 0) {
+                throw new IllegalStateException();
+            }
+            if (expectedModificationCount != modificationCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            removeAt(current);
+            next = current;
+            current = -1;
+            expectedModificationCount = modificationCount;
+        }
+    }
+
+
+    /**
+     * The entry of the header table, a value change is written through
+     */
+    private class HeaderEntry extends AbstractMap.SimpleEntry<String, List<String>> {
+        private static final long serialVersionUID = 1L;
+
+
+        /**
+         * Constructor for HeaderEntry
+         *
+         * @param key the key
+         * @param value the value
+         */
+        HeaderEntry(String key, List<String> value) {
+            super(key, value);
+        }
+
+
+        /**
+         * @see java.util.AbstractMap.SimpleEntry#setValue(java.lang.Object)
+         */
+        @Override
+        public List<String> setValue(List<String> value) {
+            put(getKey(), value);
+            return super.setValue(value);
+        }
+    }
+}
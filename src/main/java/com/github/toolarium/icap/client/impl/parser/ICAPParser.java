@@ -7,21 +7,29 @@ package com.github.toolarium.icap.client.impl.parser;
 
 import com.github.toolarium.icap.client.dto.ICAPConstants;
 import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 
 /**
- * Defines the ICAP parser
+ * Defines the ICAP parser. The header lines are parsed on byte level, the well-known header keys are not allocated.
  *  
  * @author patrick
  */
 public final class ICAPParser {
-    private static final Pattern LINE_STATUS_PATTERN = Pattern.compile("(ICAP)\\/(1.0)\\s(\\d{3})\\s(.*)");
+    private static final String PROTOCOL = "ICAP";
+    private static final String VERSION = "1.0";
+    private static final String STATUS_LINE_PREFIX = PROTOCOL + "/" + VERSION;
+    private static final String[] KNOWN_KEYS = {
+        ICAPConstants.HEADER_KEY_SERVER, ICAPConstants.HEADER_KEY_CONNECTION, ICAPConstants.HEADER_KEY_ISTAG, ICAPConstants.HEADER_KEY_CONTENT_LENGTH,
+        ICAPConstants.HEADER_KEY_TRANSFER_ENCODING, ICAPConstants.HEADER_KEY_ENCAPSULATED, ICAPConstants.HEADER_KEY_PREVIEW, ICAPConstants.HEADER_KEY_ALLOW,
+        ICAPConstants.HEADER_KEY_METHODS, ICAPConstants.HEADER_KEY_MAX_CONNECTIONS, ICAPConstants.HEADER_KEY_OPTIONS_TTL, ICAPConstants.HEADER_KEY_X_VIOLATIONS_FOUND,
+        ICAPConstants.HEADER_KEY_X_INFECTION_FOUND, ICAPConstants.HEADER_KEY_X_BLOCKED, ICAPConstants.HEADER_KEY_X_VIRUS_ID, ICAPConstants.HEADER_KEY_X_VIRUS_NAME,
+        ICAPConstants.HEADER_KEY_X_BLOCK_REASON, ICAPConstants.HEADER_KEY_X_BLOCK_RESULT, "Date", "Service", "Service-ID", "Transfer-Preview", "Transfer-Ignore", 
+        "Transfer-Complete", "X-Include", "X-Response-Info", "X-Blocked-By"};
+    private static final byte[][] KNOWN_KEY_BYTES = createKeyBytes(KNOWN_KEYS);
 
     
     /**
@@ -53,7 +61,7 @@ public final class ICAPParser {
     
     
     /**
-     * Parse the protocol line
+     * Parse the protocol line, e.g. <code>ICAP/1.0 200 OK</code>
      *
      * @param protocolHeaderLine the protocol line
      * @return the parsed header information
@@ -62,13 +70,15 @@ public final class ICAPParser {
         ICAPHeaderInformation headerInformation = new ICAPHeaderInformation();
         
         // parse ICAP protocol header line
-        if (protocolHeaderLine != null && !protocolHeaderLine.isBlank()) {
-            Matcher matcher = LINE_STATUS_PATTERN.matcher(protocolHeaderLine);
-            if (matcher.matches()) {
-                headerInformation.setProtocol(matcher.group(1));
-                headerInformation.setVersion(matcher.group(2));
-                headerInformation.setStatus(Integer.parseInt(matcher.group(3)));
-                headerInformation.setMessage(matcher.group(4));
+        if (protocolHeaderLine != null && protocolHeaderLine.length() >= STATUS_LINE_PREFIX.length() + 4 && protocolHeaderLine.startsWith(STATUS_LINE_PREFIX)) {
+            final int statusStart = STATUS_LINE_PREFIX.length() + 1;
+            final int statusEnd = statusStart + 3;
+            if (isWhitespace(protocolHeaderLine.charAt(statusStart - 1)) && isDigit(protocolHeaderLine, statusStart, statusEnd) 
+                    && (protocolHeaderLine.length() == statusEnd || isWhitespace(protocolHeaderLine.charAt(statusEnd)))) {
+                headerInformation.setProtocol(PROTOCOL);
+                headerInformation.setVersion(VERSION);
+                headerInformation.setStatus((protocolHeaderLine.charAt(statusStart) - '0') * 100 + (protocolHeaderLine.charAt(statusStart + 1) - '0') * 10 + (protocolHeaderLine.charAt(statusStart + 2) - '0'));
+                headerInformation.setMessage(protocolHeaderLine.length() > statusEnd ? protocolHeaderLine.substring(statusEnd + 1) : "");
             }
         }
 
@@ -89,46 +99,178 @@ public final class ICAPParser {
          * Connection: keep-alive
          * ISTag: CI0001-000-0978-6918203
          */
-        Map<String,List<String>> headers = new LinkedHashMap<>();
-        String key = ICAPConstants.HEADER_KEY_X_ICAP_STATUSLINE;
+        ICAPHeaderMap headers = new ICAPHeaderMap();
         for (String line : headerLines) {
-            int idx = line.indexOf(':');
-            String value = line.substring(idx + 1).trim();
-            if (idx > 0) {                
-                key = line.substring(0, idx);
-                value = line.substring(idx + 1).trim();
+            byte[] b = line.getBytes(StandardCharsets.UTF_8);
+            parseHeaderLine(headers, b, 0, b.length);
+        }
+        
+        return headers;
+    }
+
+
+    /**
+     * Parse a raw header line without the line separator and add it to the headers. The first line is the status line, a line 
+     * without a key is added to the previous header.
+     * 
+     * @param headers the headers
+     * @param b the bytes
+     * @param start the start of the line
+     * @param end the end of the line (exclusive)
+     */
+    public void parseHeaderLine(ICAPHeaderMap headers, byte[] b, int start, int end) {
+        int colon = -1;
+        if (!(headers.isEmpty() && startsWith(b, start, end, STATUS_LINE_PREFIX))) {
+            for (int i = start; i < end; i++) {
+                if (b[i] == ':') {
+                    colon = i;
+                    break;
+                }
             }
-            
-            List<String> valueList = headers.get(key);
-            if (valueList == null) {
-                valueList = new ArrayList<>();
-                headers.put(key, valueList);
+        }
+
+        if (colon <= start) {
+            // status line or continuation line
+            headers.addToLast(toValue(b, (colon == start) ? start + 1 : start, end));
+            return;
+        }
+        
+        headers.add(toKey(b, start, colon), toValue(b, colon + 1, end));
+    }
+
+
+    /**
+     * Get the key, the well-known keys are not allocated
+     *
+     * @param b the bytes
+     * @param start the start
+     * @param end the end (exclusive)
+     * @return the key
+     */
+    private String toKey(byte[] b, int start, int end) {
+        final int length = end - start;
+        for (int i = 0; i < KNOWN_KEY_BYTES.length; i++) {
+            byte[] key = KNOWN_KEY_BYTES[i];
+            if (key.length == length && equalsIgnoreCase(key, b, start)) {
+                return KNOWN_KEYS[i];
             }
+        }
+        
+        return new String(b, start, length, StandardCharsets.UTF_8);
+    }
 
-            if (key.equalsIgnoreCase("Date")) {
-                valueList.add(value);
-            } else if (key.equalsIgnoreCase(ICAPConstants.HEADER_KEY_X_INFECTION_FOUND)) {
-                add(valueList, value.split(";"));
-            } else if (key.equalsIgnoreCase(ICAPConstants.HEADER_KEY_X_VIOLATIONS_FOUND)) {
-                add(valueList, value.split("\n"));
-            } else {
-                add(valueList, value.split("\\,"));
+
+    /**
+     * Get the trimmed value
+     *
+     * @param b the bytes
+     * @param start the start
+     * @param end the end (exclusive)
+     * @return the value
+     */
+    private String toValue(byte[] b, int start, int end) {
+        int valueStart = start;
+        int valueEnd = end;
+        while (valueStart < valueEnd && (b[valueStart] & 0xFF) <= ' ') {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && (b[valueEnd - 1] & 0xFF) <= ' ') {
+            valueEnd--;
+        }
+        
+        if (valueStart == valueEnd) {
+            return "";
+        }
+        return new String(b, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Compare lower case ASCII bytes with bytes case-insensitive
+     *
+     * @param lowerCaseKey the lower case key
+     * @param b the bytes
+     * @param start the start
+     * @return true if they are equal
+     */
+    private static boolean equalsIgnoreCase(byte[] lowerCaseKey, byte[] b, int start) {
+        for (int i = 0; i < lowerCaseKey.length; i++) {
+            int c = b[start + i];
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != lowerCaseKey[i]) {
+                return false;
             }
         }
+        return true;
+    }
+
+
+    /**
+     * Check if the bytes start with an ASCII prefix
+     *
+     * @param b the bytes
+     * @param start the start
+     * @param end the end (exclusive)
+     * @param prefix the prefix
+     * @return true if the bytes start with the prefix
+     */
+    private static boolean startsWith(byte[] b, int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
         
-        return headers;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (b[start + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Check if the characters are digits
+     *
+     * @param s the string
+     * @param start the start
+     * @param end the end (exclusive)
+     * @return true if all characters are digits
+     */
+    private static boolean isDigit(String s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Check if a character is a whitespace
+     *
+     * @param c the character
+     * @return true if it is a whitespace
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t';
     }
 
 
     /**
-     * Add
+     * Create the lower case bytes of the keys
      *
-     * @param valueList the value list
-     * @param values the values
+     * @param keys the keys
+     * @return the lower case bytes
      */
-    private void add(List<String> valueList, String[] values) {
-        for (int i = 0; i < values.length; i++) {
-            valueList.add(values[i].trim());
+    private static byte[][] createKeyBytes(String[] keys) {
+        byte[][] result = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            result[i] = keys[i].toLowerCase(Locale.ROOT).getBytes(StandardCharsets.US_ASCII);
         }
+        return result;
     }
 }
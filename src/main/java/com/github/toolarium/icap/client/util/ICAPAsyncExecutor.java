@@ -0,0 +1,115 @@
+/*
+ * ICAPAsyncExecutor.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Provides the default executor of the asynchronous requests. On a JDK with virtual threads (21+) every request runs on its
+ * own virtual thread, otherwise on a cached pool of daemon threads. The virtual thread executor is resolved by reflection 
+ * to keep the Java 11 baseline.
+ *
+ * @author patrick
+ */
+public final class ICAPAsyncExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(ICAPAsyncExecutor.class);
+    private static final String THREAD_NAME = "icap-async-";
+    private volatile Executor executor;
+    private volatile Executor defaultExecutor;
+
+
+    /**
+     * Private class, the only instance of the singelton which will be created by accessing the holder class.
+     *
+     * @author patrick
+     */
+    private static class HOLDER {
+        static final ICAPAsyncExecutor INSTANCE = new ICAPAsyncExecutor();
+    }
+
+
+    /**
+     * Constructor for ICAPAsyncExecutor
+     */
+    private ICAPAsyncExecutor() {
+        this.executor = null;
+        this.defaultExecutor = null;
+    }
+
+
+    /**
+     * Get the instance
+     *
+     * @return the instance
+     */
+    public static ICAPAsyncExecutor getInstance() {
+        return HOLDER.INSTANCE;
+    }
+
+
+    /**
+     * Get the executor of the asynchronous requests
+     *
+     * @return the executor
+     */
+    public Executor getExecutor() {
+        Executor result = executor;
+        if (result != null) {
+            return result;
+        }
+        
+        result = defaultExecutor;
+        if (result == null) {
+            synchronized (this) {
+                result = defaultExecutor;
+                if (result == null) {
+                    result = createDefaultExecutor();
+                    defaultExecutor = result;
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Set the executor of the asynchronous requests
+     *
+     * @param executor the executor or null to use the default executor
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+
+    /**
+     * Create the default executor
+     *
+     * @return the default executor
+     */
+    private static Executor createDefaultExecutor() {
+        try {
+            ExecutorService result = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            LOG.debug("Asynchronous ICAP requests run on virtual threads.");
+            return result;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("Virtual threads are not available, asynchronous ICAP requests run on a thread pool.");
+        }
+
+        final AtomicInteger threadCounter = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, THREAD_NAME + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
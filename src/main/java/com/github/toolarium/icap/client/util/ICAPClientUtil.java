@@ -211,6 +211,18 @@ public final class ICAPClientUtil {
      * @return the message digest as string
      */
     public String messageDigestToString(String algorithm, MessageDigest messageDigest) {
-        return "{" + algorithm + "}" + String.format("%0" + (messageDigest.getDigestLength() * 2) + "x", new BigInteger(1, messageDigest.digest()));
+        return messageDigestToString(algorithm, messageDigest.digest());
+    }
+
+
+    /**
+     * Convert a digest into a string
+     *
+     * @param algorithm the algorithm
+     * @param digest the digest
+     * @return the digest as string
+     */
+    public String messageDigestToString(String algorithm, byte[] digest) {
+        return "{" + algorithm + "}" + String.format("%0" + (digest.length * 2) + "x", new BigInteger(1, digest));
     }
 }
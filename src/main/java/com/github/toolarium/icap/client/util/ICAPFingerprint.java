@@ -0,0 +1,363 @@
+/*
+ * ICAPFingerprint.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.util;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.zip.CRC32C;
+
+
+/**
+ * Defines the fingerprint of the request and response content of a scan. A fingerprint is only used to verify and compare the
+ * content, therefore a fast non-cryptographic checksum is sufficient in most cases. The cryptographic message digest is created
+ * from a cloned prototype.
+ *
+ * @author Patrick Meier
+ */
+public final class ICAPFingerprint {
+    /** No fingerprint, the content is neither verified nor compared */
+    public static final ICAPFingerprint NONE = new ICAPFingerprint("NONE", null);
+
+    /** The CRC32C checksum, it's calculated by the intrinsics of the JDK */
+    public static final ICAPFingerprint CRC32C = new ICAPFingerprint("CRC32C", null);
+
+    /** The 64 bit xxHash */
+    public static final ICAPFingerprint XXH64 = new ICAPFingerprint("XXH64", null);
+
+    private final String algorithm;
+    private final MessageDigest prototype;
+
+
+    /**
+     * Constructor for ICAPFingerprint
+     *
+     * @param algorithm the algorithm
+     * @param prototype the prototype of a message digest or null
+     */
+    private ICAPFingerprint(String algorithm, MessageDigest prototype) {
+        this.algorithm = algorithm;
+        this.prototype = prototype;
+    }
+
+
+    /**
+     * Create the fingerprint of a cryptographic message digest, e.g. SHA-256
+     *
+     * @param algorithm the algorithm of the message digest
+     * @return the fingerprint
+     * @throws IOException In case the message digest is not supported
+     */
+    public static ICAPFingerprint messageDigest(String algorithm) throws IOException {
+        return new ICAPFingerprint(algorithm, ICAPClientUtil.getInstance().createMessageDigest(algorithm));
+    }
+
+
+    /**
+     * Get the algorithm
+     *
+     * @return the algorithm
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+
+    /**
+     * Check if a fingerprint is calculated
+     *
+     * @return false in case of {@link #NONE}
+     */
+    public boolean isEnabled() {
+        return this != NONE;
+    }
+
+
+    /**
+     * Create a message digest of the fingerprint
+     *
+     * @return the message digest or null in case of {@link #NONE}
+     * @throws IOException In case the message digest could not be created
+     */
+    public MessageDigest createMessageDigest() throws IOException {
+        if (this == NONE) {
+            return null;
+        } else if (this == CRC32C) {
+            return new CRC32CMessageDigest();
+        } else if (this == XXH64) {
+            return new XXH64MessageDigest();
+        }
+
+        try {
+            return (MessageDigest)prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            return ICAPClientUtil.getInstance().createMessageDigest(algorithm);
+        }
+    }
+
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return algorithm;
+    }
+
+
+    /**
+     * CRC32C checksum as message digest, the checksum is big-endian
+     */
+    private static final class CRC32CMessageDigest extends MessageDigest {
+        private final CRC32C checksum;
+
+
+        /**
+         * Constructor for CRC32CMessageDigest
+         */
+        CRC32CMessageDigest() {
+            super("CRC32C");
+            this.checksum = new CRC32C();
+        }
+
+
+        /**
+         * @see java.security.MessageDigestSpi#engineGetDigestLength()
+         */
+        @Override
+        protected int engineGetDigestLength() {
+            return 4;
+        }
+
+
+        /**
+         * @see java.security.MessageDigestSpi#engineUpdate(byte)
+         */
+        @Override
+        protected void engineUpdate(byte input) {
+            checksum.update(input);
+        }
+
+
+        /**
+         * @see java.security.MessageDigestSpi#engineUpdate(byte[], int, int)
+         */
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            checksum.update(input, offset, len);
+        }
+
+
+        /**
+         * @see java.security.MessageDigestSpi#engineUpdate(java.nio.ByteBuffer)
+         */
+        @Override
+        protected void engineUpdate(ByteBuffer input) {
+            checksum.update(input);
+        }
+
+
+        /**
+         * @see java.security.MessageDigestSpi#engineDigest()
+         */
+        @Override
+        protected byte[] engineDigest() {
+            final byte[] result = ByteBuffer.allocate(4).putInt((int)checksum.getValue()).array();
+            checksum.reset();
+            return result;
+        }
+
+
+        /**
+         * @see java.security.MessageDigestSpi#engineReset()
+         */
+        @Override
+        protected void engineReset() {
+            checksum.reset();
+        }
+    }
+
+
+    /**
+     * The 64 bit xxHash with seed 0 as message digest, the hash is big-endian (canonical representation)
+     */
+    private static final class XXH64MessageDigest extends MessageDigest {
+        private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+        private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+        private static final long PRIME1 = 0x9E3779B185EBCA87L;
+        private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+        private static final long PRIME3 = 0x165667B19E3779F9L;
+        private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+        private static final long PRIME5 = 0x27D4EB2F165667C5L;
+        private static final int STRIPE = 32;
+        private final byte[] buffer;
+        private int bufferLength;
+        private long totalLength;
+        private long v1;
+        private long v2;
+        private long v3;
+        private long v4;
+
+
+        /**
+         * Constructor for XXH64MessageDigest
+         */
+        XXH64MessageDigest() {
+            super("XXH64");
+            this.buffer = new byte[STRIPE];
+            engineReset();
+        }
+
+
+        /**
+         * @see java.security.MessageDigestSpi#engineGetDigestLength()
+         */
+        @Override
+        protected int engineGetDigestLength() {
+            return 8;
+        }
+
+
+        /**
+         * @see java.security.MessageDigestSpi#engineUpdate(byte)
+         */
+        @Override
+        protected void engineUpdate(byte input) {
+            engineUpdate(new byte[] {input}, 0, 1);
+        }
+
+
+        /**
+         * @see java.security.MessageDigestSpi#engineUpdate(byte[], int, int)
+         */
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            totalLength += len;
+            int position = offset;
+            final int end = offset + len;
+            if (bufferLength > 0) {
+                final int length = Math.min(STRIPE - bufferLength, len);
+                System.arraycopy(input, position, buffer, bufferLength, length);
+                bufferLength += length;
+                position += length;
+                if (bufferLength < STRIPE) {
+                    return;
+                }
+                stripe(buffer, 0);
+                bufferLength = 0;
+            }
+
+            while (end - position >= STRIPE) {
+                stripe(input, position);
+                position += STRIPE;
+            }
+
+            bufferLength = end - position;
+            System.arraycopy(input, position, buffer, 0, bufferLength);
+        }
+
+
+        /**
+         * @see java.security.MessageDigestSpi#engineDigest()
+         */
+        @Override
+        protected byte[] engineDigest() {
+            long hash;
+            if (totalLength >= STRIPE) {
+                hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+                hash = merge(hash, v1);
+                hash = merge(hash, v2);
+                hash = merge(hash, v3);
+                hash = merge(hash, v4);
+            } else {
+                hash = PRIME5;
+            }
+            hash += totalLength;
+
+            int position = 0;
+            while (bufferLength - position >= 8) {
+                hash ^= round(0, (long)LONG_LE.get(buffer, position));
+                hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+                position += 8;
+            }
+
+            if (bufferLength - position >= 4) {
+                hash ^= ((int)INT_LE.get(buffer, position) & 0xFFFFFFFFL) * PRIME1;
+                hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+                position += 4;
+            }
+
+            while (position < bufferLength) {
+                hash ^= (buffer[position++] & 0xFF) * PRIME5;
+                hash = Long.rotateLeft(hash, 11) * PRIME1;
+            }
+
+            hash ^= hash >>> 33;
+            hash *= PRIME2;
+            hash ^= hash >>> 29;
+            hash *= PRIME3;
+            hash ^= hash >>> 32;
+
+            engineReset();
+            return ByteBuffer.allocate(8).putLong(hash).array();
+        }
+
+
+        /**
+         * @see java.security.MessageDigestSpi#engineReset()
+         */
+        @Override
+        protected void engineReset() {
+            bufferLength = 0;
+            totalLength = 0;
+            v1 = PRIME1 + PRIME2;
+            v2 = PRIME2;
+            v3 = 0;
+            v4 = -PRIME1;
+        }
+
+
+        /**
+         * Process a stripe of 32 bytes
+         *
+         * @param input the input
+         * @param offset the offset of the stripe
+         */
+        private void stripe(byte[] input, int offset) {
+            v1 = round(v1, (long)LONG_LE.get(input, offset));
+            v2 = round(v2, (long)LONG_LE.get(input, offset + 8));
+            v3 = round(v3, (long)LONG_LE.get(input, offset + 16));
+            v4 = round(v4, (long)LONG_LE.get(input, offset + 24));
+        }
+
+
+        /**
+         * Process a lane
+         *
+         * @param accumulator the accumulator
+         * @param input the input
+         * @return the accumulator
+         */
+        private static long round(long accumulator, long input) {
+            return Long.rotateLeft(accumulator + input * PRIME2, 31) * PRIME1;
+        }
+
+
+        /**
+         * Merge an accumulator into the hash
+         *
+         * @param hash the hash
+         * @param accumulator the accumulator
+         * @return the hash
+         */
+        private static long merge(long hash, long accumulator) {
+            return (hash ^ round(0, accumulator)) * PRIME1 + PRIME4;
+        }
+    }
+}
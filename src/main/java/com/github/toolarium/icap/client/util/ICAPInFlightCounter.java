@@ -0,0 +1,115 @@
+/*
+ * ICAPInFlightCounter.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * Counts the in-flight scans and bytes of the batch validations of an ICAP service. All batches of the same service share
+ * one counter, each batch checks it against its own limits. Batches which reached the limits register a listener which
+ * is notified with the next release.
+ *
+ * @author patrick
+ */
+public class ICAPInFlightCounter {
+    private final ConcurrentLinkedQueue<Runnable> releaseListeners;
+    private int inFlightScans;
+    private long inFlightBytes;
+
+
+    /**
+     * Constructor for ICAPInFlightCounter
+     */
+    public ICAPInFlightCounter() {
+        this.releaseListeners = new ConcurrentLinkedQueue<Runnable>();
+        this.inFlightScans = 0;
+        this.inFlightBytes = 0;
+    }
+
+
+    /**
+     * Get the number of in-flight scans
+     *
+     * @return the number of in-flight scans
+     */
+    public synchronized int getInFlightScans() {
+        return inFlightScans;
+    }
+
+
+    /**
+     * Get the number of in-flight bytes
+     *
+     * @return the number of in-flight bytes
+     */
+    public synchronized long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+
+    /**
+     * Try to acquire a scan within the limits. A resource which exceeds the byte limit alone is acquired as soon as
+     * no other scan is in flight.
+     *
+     * @param length the length of the resource, a negative length is not counted
+     * @param maxInFlightScans the max number of in-flight scans
+     * @param maxInFlightBytes the max number of in-flight bytes
+     * @return true if the scan could be acquired
+     */
+    public synchronized boolean tryAcquire(long length, int maxInFlightScans, long maxInFlightBytes) {
+        final long bytes = Math.max(0, length);
+        if (inFlightScans > 0 && (inFlightScans >= maxInFlightScans || inFlightBytes + bytes > maxInFlightBytes)) {
+            return false;
+        }
+
+        inFlightScans++;
+        inFlightBytes += bytes;
+        return true;
+    }
+
+
+    /**
+     * Register a listener which is notified once with the next release of a scan, e.g. to retry a
+     * {@link #tryAcquire(long, int, long)} without polling. The listener must not block.
+     *
+     * @param listener the listener
+     */
+    public void notifyOnRelease(Runnable listener) {
+        releaseListeners.add(listener);
+    }
+
+
+    /**
+     * Release a scan
+     *
+     * @param length the length of the resource, a negative length is not counted
+     */
+    public void release(long length) {
+        synchronized (this) {
+            inFlightScans--;
+            inFlightBytes -= Math.max(0, length);
+        }
+
+        // a listener which registers again while it's notified waits for the following release
+        for (int i = releaseListeners.size(); i > 0; i--) {
+            final Runnable listener = releaseListeners.poll();
+            if (listener == null) {
+                return;
+            }
+            listener.run();
+        }
+    }
+
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "ICAPInFlightCounter [inFlightScans=" + getInFlightScans() + ", inFlightBytes=" + getInFlightBytes() + "]";
+    }
+}
@@ -0,0 +1,598 @@
+/*
+ * ICAPScanPublisher.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.util;
+
+import com.github.toolarium.icap.client.dto.ICAPBatchInformation;
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPScanResult;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+
+/**
+ * Publishes the scan results of the resources of an upstream publisher. The resources are requested from the upstream only if
+ * the subscriber has demand for further results and the limits of the in-flight scans and in-flight bytes are not reached,
+ * e.g. a slow subscriber or a slow ICAP server slows down the upstream. The in-flight scans and bytes are counted by an
+ * {@link ICAPInFlightCounter}: the publishers of the same service share it, e.g. the limits apply per service and not only
+ * per batch. The publisher supports one subscriber.
+ *
+ * @author patrick
+ */
+public class ICAPScanPublisher implements Flow.Publisher<ICAPScanResult> {
+    private final Flow.Publisher<? extends ICAPResource> resources;
+    private final Function<ICAPResource, CompletableFuture<ICAPHeaderInformation>> scanner;
+    private final ICAPBatchInformation batchInformation;
+    private final ICAPInFlightCounter inFlightCounter;
+    private final AtomicBoolean subscribed;
+
+
+    /**
+     * Constructor for ICAPScanPublisher, the in-flight scans and bytes are only counted by this publisher
+     *
+     * @param resources the publisher of the resources
+     * @param scanner the scanner which validates one resource asynchronously
+     * @param batchInformation the batch information
+     */
+    public ICAPScanPublisher(Flow.Publisher<? extends ICAPResource> resources,
+                             Function<ICAPResource, CompletableFuture<ICAPHeaderInformation>> scanner,
+                             ICAPBatchInformation batchInformation) {
+        this(resources, scanner, batchInformation, new ICAPInFlightCounter());
+    }
+
+
+    /**
+     * Constructor for ICAPScanPublisher
+     *
+     * @param resources the publisher of the resources
+     * @param scanner the scanner which validates one resource asynchronously
+     * @param batchInformation the batch information
+     * @param inFlightCounter the counter of the in-flight scans and bytes of the service
+     */
+    public ICAPScanPublisher(Flow.Publisher<? extends ICAPResource> resources,
+                             Function<ICAPResource, CompletableFuture<ICAPHeaderInformation>> scanner,
+                             ICAPBatchInformation batchInformation,
+                             ICAPInFlightCounter inFlightCounter) {
+        this.resources = resources;
+        this.scanner = scanner;
+        this.batchInformation = (batchInformation != null) ? batchInformation : new ICAPBatchInformation();
+        this.inFlightCounter = (inFlightCounter != null) ? inFlightCounter : new ICAPInFlightCounter();
+        this.subscribed = new AtomicBoolean(false);
+    }
+
+
+    /**
+     * Constructor for ICAPScanPublisher, the in-flight scans and bytes are only counted by this publisher
+     *
+     * @param resources the resources, the iterator is consumed by the demand of the subscriber
+     * @param scanner the scanner which validates one resource asynchronously
+     * @param batchInformation the batch information
+     */
+    public ICAPScanPublisher(Iterator<? extends ICAPResource> resources,
+                             Function<ICAPResource, CompletableFuture<ICAPHeaderInformation>> scanner,
+                             ICAPBatchInformation batchInformation) {
+        this(new IteratorPublisher(resources), scanner, batchInformation);
+    }
+
+
+    /**
+     * Create a publisher of the resources of an iterator, the iterator is only accessed on request
+     *
+     * @param resources the resources
+     * @return the publisher of the resources
+     */
+    public static Flow.Publisher<ICAPResource> publisher(Iterator<? extends ICAPResource> resources) {
+        return new IteratorPublisher(resources);
+    }
+
+
+    /**
+     * Subscribe and wait until all resources are validated
+     *
+     * @return the scan results in the order of the resources
+     * @throws IOException In case the thread is interrupted or the resources could not be read
+     */
+    public List<ICAPScanResult> collect() throws IOException {
+        return collect(this);
+    }
+
+
+    /**
+     * Subscribe to a publisher of scan results and wait until all resources are validated
+     *
+     * @param publisher the publisher of the scan results
+     * @return the scan results in the order of the resources
+     * @throws IOException In case the thread is interrupted or the resources could not be read
+     */
+    public static List<ICAPScanResult> collect(Flow.Publisher<ICAPScanResult> publisher) throws IOException {
+        final CompletableFuture<List<ICAPScanResult>> future = new CompletableFuture<List<ICAPScanResult>>();
+        final List<ICAPScanResult> results = new ArrayList<ICAPScanResult>();
+        final Flow.Subscription[] subscription = new Flow.Subscription[1];
+        publisher.subscribe(new Flow.Subscriber<ICAPScanResult>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription[0] = s;
+                s.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ICAPScanResult result) {
+                results.add(result);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                future.complete(results);
+            }
+        });
+
+        try {
+            List<ICAPScanResult> list = future.get();
+            list.sort(Comparator.comparingLong(ICAPScanResult::getIndex));
+            return list;
+        } catch (InterruptedException e) {
+            subscription[0].cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while validating the resources!");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException("Could not read the resources: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+
+    /**
+     * @see java.util.concurrent.Flow.Publisher#subscribe(java.util.concurrent.Flow.Subscriber)
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super ICAPScanResult> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Invalid subscriber!");
+        }
+
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    // NOP
+                }
+
+                @Override
+                public void cancel() {
+                    // NOP
+                }
+            });
+            subscriber.onError(new IllegalStateException("The scan publisher supports only one subscriber!"));
+            return;
+        }
+
+        ScanSubscription subscription = new ScanSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        resources.subscribe(subscription);
+    }
+
+
+    /**
+     * Publishes the elements of an iterator, the iterator is only accessed on request
+     */
+    private static final class IteratorPublisher implements Flow.Publisher<ICAPResource> {
+        private final Iterator<? extends ICAPResource> iterator;
+
+
+        /**
+         * Constructor for IteratorPublisher
+         *
+         * @param iterator the iterator
+         */
+        IteratorPublisher(Iterator<? extends ICAPResource> iterator) {
+            this.iterator = iterator;
+        }
+
+
+        /**
+         * @see java.util.concurrent.Flow.Publisher#subscribe(java.util.concurrent.Flow.Subscriber)
+         */
+        @Override
+        public void subscribe(Flow.Subscriber<? super ICAPResource> subscriber) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                private boolean done;
+
+                @Override
+                public void request(long n) {
+                    for (long i = 0; i < n; i++) {
+                        final ICAPResource resource;
+                        final boolean last;
+                        synchronized (this) {
+                            if (done) {
+                                return;
+                            }
+
+                            try {
+                                resource = iterator.hasNext() ? iterator.next() : null;
+                                last = (resource == null) || !iterator.hasNext();
+                            } catch (RuntimeException e) {
+                                done = true;
+                                subscriber.onError(e);
+                                return;
+                            }
+                            done = last;
+                        }
+
+                        if (resource != null) {
+                            subscriber.onNext(resource);
+                        }
+                        if (last) {
+                            subscriber.onComplete();
+                            return;
+                        }
+                    }
+                }
+
+                @Override
+                public synchronized void cancel() {
+                    done = true;
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Connects the upstream of the resources with the downstream of the results. The state is guarded by the lock, the signals
+     * to the downstream are serialized by the drain loop.
+     */
+    private final class ScanSubscription implements Flow.Subscription, Flow.Subscriber<ICAPResource> {
+        private final Flow.Subscriber<? super ICAPScanResult> downstream;
+        private final AtomicInteger wip;
+        private final AtomicBoolean waitingForRelease;
+        private final Object lock;
+        private final ArrayDeque<ICAPScanResult> completed;
+        private final Map<Long, ICAPScanResult> completedOutOfOrder;
+        private Flow.Subscription upstream;
+        private ICAPResource pending;
+        private long demand;
+        private long nextIndex;
+        private long nextDeliveryIndex;
+        private int inFlightScans;
+        private long inFlightBytes;
+        private boolean upstreamRequested;
+        private boolean upstreamDone;
+        private Throwable upstreamError;
+        private Throwable invalidRequest;
+        private boolean cancelled;
+        private boolean terminated;
+
+
+        /**
+         * Constructor for ScanSubscription
+         *
+         * @param downstream the subscriber of the results
+         */
+        ScanSubscription(Flow.Subscriber<? super ICAPScanResult> downstream) {
+            this.downstream = downstream;
+            this.wip = new AtomicInteger();
+            this.waitingForRelease = new AtomicBoolean(false);
+            this.lock = new Object();
+            this.completed = new ArrayDeque<ICAPScanResult>();
+            this.completedOutOfOrder = new HashMap<Long, ICAPScanResult>();
+        }
+
+
+        /**
+         * @see java.util.concurrent.Flow.Subscription#request(long)
+         */
+        @Override
+        public void request(long n) {
+            synchronized (lock) {
+                if (n <= 0) {
+                    invalidRequest = new IllegalArgumentException("Invalid request of " + n + " results!");
+                } else {
+                    demand += n;
+                    if (demand < 0) {
+                        demand = Long.MAX_VALUE;
+                    }
+                }
+            }
+            drain();
+        }
+
+
+        /**
+         * @see java.util.concurrent.Flow.Subscription#cancel()
+         */
+        @Override
+        public void cancel() {
+            Flow.Subscription subscription;
+            synchronized (lock) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                subscription = upstream;
+                pending = null;
+                completed.clear();
+                completedOutOfOrder.clear();
+            }
+
+            if (subscription != null) {
+                subscription.cancel();
+            }
+        }
+
+
+        /**
+         * @see java.util.concurrent.Flow.Subscriber#onSubscribe(java.util.concurrent.Flow.Subscription)
+         */
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            boolean cancel;
+            synchronized (lock) {
+                cancel = cancelled || upstream != null;
+                if (!cancel) {
+                    upstream = subscription;
+                }
+            }
+
+            if (cancel) {
+                subscription.cancel();
+                return;
+            }
+            drain();
+        }
+
+
+        /**
+         * @see java.util.concurrent.Flow.Subscriber#onNext(java.lang.Object)
+         */
+        @Override
+        public void onNext(ICAPResource resource) {
+            synchronized (lock) {
+                upstreamRequested = false;
+                if (cancelled) {
+                    return;
+                }
+                pending = resource;
+            }
+            drain();
+        }
+
+
+        /**
+         * @see java.util.concurrent.Flow.Subscriber#onError(java.lang.Throwable)
+         */
+        @Override
+        public void onError(Throwable throwable) {
+            synchronized (lock) {
+                upstreamDone = true;
+                upstreamError = throwable;
+            }
+            drain();
+        }
+
+
+        /**
+         * @see java.util.concurrent.Flow.Subscriber#onComplete()
+         */
+        @Override
+        public void onComplete() {
+            synchronized (lock) {
+                upstreamDone = true;
+            }
+            drain();
+        }
+
+
+        /**
+         * Deliver the completed results, start the pending scan and request the next resource. Only one thread drains at the
+         * same time, the other threads leave their work to it.
+         */
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+            do {
+                if (!deliver()) {
+                    return;
+                }
+
+                startPendingScan();
+                requestNextResource();
+
+                if (!deliver()) {
+                    return;
+                }
+
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+
+        /**
+         * Deliver the completed results and terminate the downstream if all results are delivered
+         *
+         * @return false if the subscription is terminated
+         */
+        private boolean deliver() {
+            while (true) {
+                ICAPScanResult result = null;
+                Throwable error = null;
+                boolean complete = false;
+                boolean invalid = false;
+                synchronized (lock) {
+                    if (terminated || cancelled) {
+                        return false;
+                    }
+
+                    if (invalidRequest != null) {
+                        terminated = true;
+                        invalid = true;
+                        error = invalidRequest;
+                    } else if (demand > 0 && (result = pollCompleted()) != null) {
+                        demand--;
+                    } else if (upstreamDone && pending == null && inFlightScans == 0 && completed.isEmpty() && completedOutOfOrder.isEmpty()) {
+                        terminated = true;
+                        error = upstreamError;
+                        complete = (error == null);
+                    } else {
+                        return true;
+                    }
+                }
+
+                if (result != null) {
+                    downstream.onNext(result);
+                } else if (complete) {
+                    downstream.onComplete();
+                    return false;
+                } else {
+                    if (invalid) {
+                        cancel();
+                    }
+                    downstream.onError(error);
+                    return false;
+                }
+            }
+        }
+
+
+        /**
+         * Start the pending scan if the limits of the service allow it. A resource which exceeds the byte limit alone is started 
+         * as soon as no other scan of the service is in flight. Otherwise the scan is retried with the next release of the service.
+         */
+        private void startPendingScan() {
+            final ICAPResource resource;
+            final long index;
+            final long length;
+            synchronized (lock) {
+                if (pending == null || cancelled) {
+                    return;
+                }
+
+                length = Math.max(0, pending.getResourceLength());
+                if (!inFlightCounter.tryAcquire(length, batchInformation.getMaxInFlightScans(), batchInformation.getMaxInFlightBytes())) {
+                    if (waitingForRelease.compareAndSet(false, true)) {
+                        inFlightCounter.notifyOnRelease(() -> {
+                            waitingForRelease.set(false);
+                            drain();
+                        });
+
+                        // a release before the registration is not missed, the drain loop tries once more
+                        wip.incrementAndGet();
+                    }
+                    return;
+                }
+
+                resource = pending;
+                pending = null;
+                index = nextIndex++;
+                inFlightScans++;
+                inFlightBytes += length;
+            }
+
+            CompletableFuture<ICAPHeaderInformation> future;
+            try {
+                future = scanner.apply(resource);
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+
+            future.whenComplete((headerInformation, e) -> {
+                Throwable error = e;
+                if (error instanceof CompletionException && error.getCause() != null) {
+                    error = error.getCause();
+                }
+
+                ICAPScanResult result = new ICAPScanResult(index, resource, (error == null) ? headerInformation : null, error);
+                synchronized (lock) {
+                    inFlightScans--;
+                    inFlightBytes -= length;
+                    if (!cancelled) {
+                        if (batchInformation.isOrdered()) {
+                            completedOutOfOrder.put(index, result);
+                        } else {
+                            completed.add(result);
+                        }
+                    }
+                }
+                
+                // the release notifies the waiting publishers of the service, e.g. this one
+                inFlightCounter.release(length);
+                drain();
+            });
+        }
+
+
+        /**
+         * Request the next resource from the upstream. Only one resource is requested at a time and only if the downstream has
+         * demand for more results than are already in flight or completed.
+         */
+        private void requestNextResource() {
+            final Flow.Subscription subscription;
+            synchronized (lock) {
+                if (upstream == null || upstreamRequested || upstreamDone || cancelled || pending != null) {
+                    return;
+                }
+
+                if (inFlightScans >= batchInformation.getMaxInFlightScans() || inFlightBytes >= batchInformation.getMaxInFlightBytes()) {
+                    return;
+                }
+
+                if (inFlightScans + completed.size() + completedOutOfOrder.size() >= demand) {
+                    return;
+                }
+
+                // an ordered batch keeps at most as many results behind a slow scan as scans are allowed in flight
+                if (completedOutOfOrder.size() >= batchInformation.getMaxInFlightScans()) {
+                    return;
+                }
+
+                upstreamRequested = true;
+                subscription = upstream;
+            }
+            subscription.request(1);
+        }
+
+
+        /**
+         * Poll the next deliverable result
+         *
+         * @return the result or null
+         */
+        private ICAPScanResult pollCompleted() {
+            if (!batchInformation.isOrdered()) {
+                return completed.poll();
+            }
+
+            ICAPScanResult result = completedOutOfOrder.remove(nextDeliveryIndex);
+            if (result != null) {
+                nextDeliveryIndex++;
+            }
+            return result;
+        }
+    }
+}
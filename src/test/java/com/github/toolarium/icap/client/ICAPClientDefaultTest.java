@@ -0,0 +1,177 @@
+/*
+ * ICAPClientDefaultTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRemoteServiceConfiguration;
+import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
+import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPScanResult;
+import com.github.toolarium.icap.client.util.ICAPFingerprint;
+import com.github.toolarium.icap.client.util.ICAPScanPublisher;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the default methods of the {@link ICAPClient}, e.g. a client which only implements the blocking requests.
+ *
+ * @author patrick
+ */
+public class ICAPClientDefaultTest {
+
+    /**
+     * Test the asynchronous requests of a blocking client
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testAsync() throws Exception {
+        BlockingClient client = new BlockingClient();
+        assertSame(client, client.executor(Runnable::run));
+        assertSame(client, client.fingerprint(ICAPFingerprint.XXH64, 0.5));
+        assertSame(client.headerInformation, client.validateResourceAsync(ICAPMode.REQMOD, new ICAPRequestInformation(), new ICAPResource("test.txt", new byte[1])).get());
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> client.optionsAsync(new ICAPRequestInformation()).get());
+        assertTrue(e.getCause() instanceof IOException);
+    }
+
+
+    /**
+     * Test the validation of the resources of a publisher by a blocking client
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testPublisher() throws Exception {
+        BlockingClient client = new BlockingClient();
+        SubmissionPublisher<ICAPResource> resources = new SubmissionPublisher<ICAPResource>();
+
+        // the submission publisher drops the resources which are submitted before the subscription
+        CountDownLatch subscribed = new CountDownLatch(1);
+        Flow.Publisher<ICAPResource> publisher = subscriber -> {
+            resources.subscribe(subscriber);
+            subscribed.countDown();
+        };
+        
+        Flow.Publisher<ICAPScanResult> results = client.validateResources(ICAPMode.REQMOD, new ICAPRequestInformation(), publisher, null);
+        assertTrue(results instanceof ICAPScanPublisher);
+        
+        Thread producer = new Thread(() -> {
+            try {
+                subscribed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            
+            for (String name : Arrays.asList("test.txt", "error.txt", "test.txt")) {
+                resources.submit(new ICAPResource(name, new byte[1]));
+            }
+            resources.close();
+        });
+        producer.start();
+        
+        List<ICAPScanResult> list = ((ICAPScanPublisher)results).collect();
+        producer.join();
+        assertEquals(3, list.size());
+        assertTrue(list.get(0).isValid());
+        assertFalse(list.get(1).isValid());
+        assertTrue(list.get(1).getError() instanceof IOException);
+        assertTrue(list.get(2).isValid());
+    }
+
+
+    /**
+     * Test the validation of a collection and a stream of resources by a blocking client
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testBatch() throws Exception {
+        BlockingClient client = new BlockingClient();
+        List<ICAPResource> resources = Arrays.asList(new ICAPResource("error.txt", new byte[1]), new ICAPResource("test.txt", new byte[1]));
+        
+        for (List<ICAPScanResult> list : Arrays.asList(client.validateResources(ICAPMode.REQMOD, new ICAPRequestInformation(), resources, null), 
+                                                       client.validateResources(ICAPMode.REQMOD, new ICAPRequestInformation(), resources.stream(), null))) {
+            assertEquals(2, list.size());
+            assertSame(resources.get(0), list.get(0).getResource());
+            assertFalse(list.get(0).isValid());
+            assertSame(client.headerInformation, list.get(1).getHeaderInformation());
+        }
+        
+        assertThrows(IOException.class, () -> client.validateResources(ICAPMode.REQMOD, new ICAPRequestInformation(), (List<ICAPResource>)null, null));
+    }
+
+
+    /**
+     * A client which only implements the blocking requests
+     */
+    static class BlockingClient implements ICAPClient {
+        final ICAPHeaderInformation headerInformation = new ICAPHeaderInformation();
+
+
+        /**
+         * @see com.github.toolarium.icap.client.ICAPClient#options()
+         */
+        @Override
+        public ICAPRemoteServiceConfiguration options() throws IOException {
+            return options(new ICAPRequestInformation());
+        }
+
+
+        /**
+         * @see com.github.toolarium.icap.client.ICAPClient#options(com.github.toolarium.icap.client.dto.ICAPRequestInformation)
+         */
+        @Override
+        public ICAPRemoteServiceConfiguration options(ICAPRequestInformation requestInformation) throws IOException {
+            throw new IOException("Not available!");
+        }
+
+
+        /**
+         * @see com.github.toolarium.icap.client.ICAPClient#validateResource(com.github.toolarium.icap.client.dto.ICAPMode, com.github.toolarium.icap.client.dto.ICAPResource)
+         */
+        @Override
+        public ICAPHeaderInformation validateResource(ICAPMode mode, ICAPResource resource) throws IOException {
+            return validateResource(mode, new ICAPRequestInformation(), resource);
+        }
+
+
+        /**
+         * @see com.github.toolarium.icap.client.ICAPClient#validateResource(com.github.toolarium.icap.client.dto.ICAPMode, com.github.toolarium.icap.client.dto.ICAPRequestInformation, com.github.toolarium.icap.client.dto.ICAPResource)
+         */
+        @Override
+        public ICAPHeaderInformation validateResource(ICAPMode mode, ICAPRequestInformation requestInformation, ICAPResource resource) throws IOException {
+            if ("error.txt".equals(resource.getResourceName())) {
+                throw new IOException("Invalid resource!");
+            }
+            return headerInformation;
+        }
+
+
+        /**
+         * @see com.github.toolarium.icap.client.ICAPClient#supportCompareVerifyIdenticalContent(boolean)
+         */
+        @Override
+        public ICAPClient supportCompareVerifyIdenticalContent(boolean supportCompareVerifyIdenticalContent) {
+            return this;
+        }
+    }
+}
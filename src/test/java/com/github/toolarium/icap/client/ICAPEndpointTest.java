@@ -0,0 +1,92 @@
+/*
+ * ICAPEndpointTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
+import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.impl.ICAPRemoteServiceConfigurationCache;
+import java.io.ByteArrayInputStream;
+import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the {@link ICAPEndpoint}.
+ *
+ * @author patrick
+ */
+public class ICAPEndpointTest {
+
+    /**
+     * Test the parsing of the endpoint
+     *
+     * @throws MalformedURLException In case of an invalid url
+     */
+    @Test
+    public void testEndpoint() throws MalformedURLException {
+        ICAPEndpoint endpoint = ICAPClientFactory.getInstance().getICAPEndpoint("icaps://myhost:11344/srv_clamav");
+        assertEquals("icaps://myhost:11344/srv_clamav", endpoint.getServiceKey());
+        assertEquals("myhost", endpoint.getServiceInformation().getHostName());
+        assertEquals(11344, endpoint.getServiceInformation().getServicePort());
+        assertEquals(true, endpoint.getServiceInformation().isSecureConnection());
+        assertEquals("REQMOD icap://myhost:11344/srv_clamav ICAP/", new String(endpoint.getRequestLine(ICAPMode.REQMOD), StandardCharsets.UTF_8));
+        assertEquals("OPTIONS icap://myhost:11344/srv_clamav ICAP/", new String(endpoint.getOptionsRequestLine(), StandardCharsets.UTF_8));
+        assertEquals("Host: myhost\r\n", new String(endpoint.getHostHeader(), StandardCharsets.UTF_8));
+        assertSame(endpoint, ICAPClientFactory.getInstance().getICAPEndpoint(" ICAPS://myhost:11344/srv_clamav"));
+        assertEquals(1344, ICAPClientFactory.getInstance().getICAPEndpoint("icap://myhost/srv_clamav").getServiceInformation().getServicePort());
+        assertThrows(MalformedURLException.class, () -> ICAPClientFactory.getInstance().getICAPEndpoint("http://myhost/srv_clamav"));
+    }
+
+
+    /**
+     * Test that the endpoints are bounded by the service cache size
+     *
+     * @throws MalformedURLException In case of an invalid url
+     */
+    @Test
+    public void testEndpointEviction() throws MalformedURLException {
+        ICAPClientFactory.getInstance().setServiceCacheSize(2);
+        try {
+            ICAPEndpoint endpoint = ICAPClientFactory.getInstance().getICAPEndpoint("icap://evicted:1344/srv_clamav");
+            assertSame(endpoint, ICAPClientFactory.getInstance().getICAPEndpoint("icap://evicted:1344/srv_clamav"));
+            ICAPClientFactory.getInstance().getICAPEndpoint("icap://other1:1344/srv_clamav");
+            ICAPClientFactory.getInstance().getICAPEndpoint("icap://other2:1344/srv_clamav");
+            assertNotSame(endpoint, ICAPClientFactory.getInstance().getICAPEndpoint("icap://evicted:1344/srv_clamav"));
+        } finally {
+            ICAPClientFactory.getInstance().setServiceCacheSize(ICAPRemoteServiceConfigurationCache.DEFAULT_MAX_SIZE);
+        }
+    }
+
+
+    /**
+     * Test the client of the endpoint
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testClient() throws Exception {
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            ICAPEndpoint endpoint = ICAPClientFactory.getInstance().getICAPEndpoint("icap://localhost:" + server.getPort() + "/srv_test");
+            ICAPClient client = endpoint.getICAPClient();
+            assertSame(client, endpoint.getICAPClient());
+            assertSame(client, ICAPClientFactory.getInstance().getICAPClient("localhost", server.getPort(), "srv_test"));
+
+            byte[] content = "test content".getBytes();
+            ICAPHeaderInformation icapHeaderInformation = endpoint.getICAPClient().validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation("user", "test"),
+                                                                                                   new ICAPResource("test.txt", new ByteArrayInputStream(content), content.length));
+            assertEquals(204, icapHeaderInformation.getStatus());
+            assertEquals(2, server.getRequests());
+        }
+    }
+}
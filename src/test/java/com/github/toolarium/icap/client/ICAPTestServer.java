@@ -0,0 +1,367 @@
+/*
+ * ICAPTestServer.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Simple ICAP test server which supports keep-alive connections. By default it answers OPTIONS requests and
+ * answers all other requests with a 204.
+ *
+ * @author patrick
+ */
+public class ICAPTestServer implements AutoCloseable {
+    /** The default OPTIONS response */
+    public static final String OPTIONS_RESPONSE = "ICAP/1.0 200 OK\r\n"
+                                                  + "Methods: RESPMOD, REQMOD\r\n"
+                                                  + "Preview: 1024\r\n"
+                                                  + "Allow: 204\r\n"
+                                                  + "ISTag: \"TEST-0001\"\r\n"
+                                                  + "Encapsulated: null-body=0\r\n\r\n";
+
+    /** The default unmodified response */
+    public static final String UNMODIFIED_RESPONSE = "ICAP/1.0 204 Unmodified\r\n"
+                                                     + "Server: ICAPTestServer\r\n"
+                                                     + "Connection: keep-alive\r\n"
+                                                     + "ISTag: \"TEST-0001\"\r\n\r\n";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ICAPTestServer.class);
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final AtomicInteger acceptedConnections;
+    private final AtomicInteger requests;
+    private final AtomicInteger activeConnections;
+    private final AtomicInteger maxActiveConnections;
+    private final List<String> sessionIds;
+    private volatile ResponseHandler responseHandler;
+
+
+    /**
+     * Defines the response handler
+     */
+    public interface ResponseHandler {
+
+        /**
+         * Create the response
+         *
+         * @param method the ICAP method
+         * @param header the request header
+         * @param body the decoded request body
+         * @return the raw response
+         * @throws IOException In case of an I/O error
+         */
+        String respond(String method, String header, byte[] body) throws IOException;
+    }
+
+
+    /**
+     * Constructor for ICAPTestServer
+     *
+     * @throws IOException In case of an I/O error
+     */
+    public ICAPTestServer() throws IOException {
+        this(null);
+    }
+
+
+    /**
+     * Constructor for ICAPTestServer
+     *
+     * @param sslContext the SSL context of a secure server or null
+     * @throws IOException In case of an I/O error
+     */
+    public ICAPTestServer(SSLContext sslContext) throws IOException {
+        if (sslContext != null) {
+            serverSocket = sslContext.getServerSocketFactory().createServerSocket(0);
+        } else {
+            serverSocket = new ServerSocket(0);
+        }
+        sessionIds = new CopyOnWriteArrayList<String>();
+        executor = Executors.newCachedThreadPool();
+        acceptedConnections = new AtomicInteger();
+        requests = new AtomicInteger();
+        activeConnections = new AtomicInteger();
+        maxActiveConnections = new AtomicInteger();
+        responseHandler = (method, header, body) -> "OPTIONS".equals(method) ? OPTIONS_RESPONSE : UNMODIFIED_RESPONSE;
+        executor.submit(this::accept);
+    }
+
+
+    /**
+     * Get the port
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+
+    /**
+     * Set the response handler
+     *
+     * @param responseHandler the response handler
+     * @return this
+     */
+    public ICAPTestServer setResponseHandler(ResponseHandler responseHandler) {
+        this.responseHandler = responseHandler;
+        return this;
+    }
+
+
+    /**
+     * Get the number of accepted connections
+     *
+     * @return the number of accepted connections
+     */
+    public int getAcceptedConnections() {
+        return acceptedConnections.get();
+    }
+
+
+    /**
+     * Get the number of requests
+     *
+     * @return the number of requests
+     */
+    public int getRequests() {
+        return requests.get();
+    }
+
+
+    /**
+     * Get the max number of concurrent connections
+     *
+     * @return the max number of concurrent connections
+     */
+    public int getMaxActiveConnections() {
+        return maxActiveConnections.get();
+    }
+
+
+    /**
+     * Get the TLS session ids of the accepted connections of a secure server
+     *
+     * @return the session ids
+     */
+    public List<String> getSessionIds() {
+        return sessionIds;
+    }
+
+
+    /**
+     * @see java.lang.AutoCloseable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+
+    /**
+     * Response handler which echoes the body as modified content
+     *
+     * @param method the ICAP method
+     * @param header the request header
+     * @param body the decoded request body
+     * @return the raw response
+     */
+    public static String echo(String method, String header, byte[] body) {
+        if ("OPTIONS".equals(method)) {
+            return OPTIONS_RESPONSE;
+        }
+
+        String httpHeader = "HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n";
+        return "ICAP/1.0 200 OK\r\nISTag: \"TEST-0001\"\r\nX-Length: " + body.length + "\r\nEncapsulated: res-hdr=0, res-body=" + httpHeader.length() + "\r\n\r\n" 
+               + httpHeader + Integer.toHexString(body.length) + "\r\n" + new String(body, StandardCharsets.US_ASCII) + "\r\n0\r\n\r\n";
+    }
+
+
+    /**
+     * Create a content of printable characters
+     *
+     * @param length the length
+     * @return the content
+     */
+    public static byte[] createContent(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte)('a' + (i % 26));
+        }
+        return content;
+    }
+
+
+    /**
+     * Accept connections
+     */
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                acceptedConnections.incrementAndGet();
+                executor.submit(() -> handle(socket));
+            } catch (IOException e) {
+                // NOP
+            }
+        }
+    }
+
+
+    /**
+     * Handle a connection
+     *
+     * @param socket the socket
+     */
+    private void handle(Socket socket) {
+        maxActiveConnections.accumulateAndGet(activeConnections.incrementAndGet(), Math::max);
+        try (Socket s = socket) {
+            if (s instanceof SSLSocket) {
+                StringBuilder sessionId = new StringBuilder();
+                for (byte b : ((SSLSocket)s).getSession().getId()) {
+                    sessionId.append(String.format("%02x", b));
+                }
+                sessionIds.add(sessionId.toString());
+            }
+
+            InputStream is = new BufferedInputStream(s.getInputStream());
+            OutputStream os = s.getOutputStream();
+            String header;
+            while ((header = readHeader(is)) != null) {
+                requests.incrementAndGet();
+                String method = header.substring(0, header.indexOf(' '));
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                int bodyOffset = getBodyOffset(header);
+                if (bodyOffset >= 0) {
+                    is.readNBytes(bodyOffset);
+                    boolean eof = readChunks(is, body);
+                    if (!eof && header.contains("Preview:")) {
+                        os.write("ICAP/1.0 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                        os.flush();
+                        readChunks(is, body);
+                    }
+                }
+
+                String response = responseHandler.respond(method, header, body.toByteArray());
+                os.write(response.getBytes(StandardCharsets.UTF_8));
+                os.flush();
+                if (header.contains("Connection: close")) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("Test server connection closed: " + e.getMessage());
+        } finally {
+            activeConnections.decrementAndGet();
+        }
+    }
+
+
+    /**
+     * Read the request header
+     *
+     * @param is the input stream
+     * @return the header or null at the end of stream
+     * @throws IOException In case of an I/O error
+     */
+    private String readHeader(InputStream is) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        int b;
+        while ((b = is.read()) != -1) {
+            buffer.write(b);
+            String content = buffer.toString(StandardCharsets.UTF_8);
+            if (content.endsWith("\r\n\r\n")) {
+                return content;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Read chunks until the last chunk
+     *
+     * @param is the input stream
+     * @param body the body
+     * @return true if the chunk was terminated by an ieof
+     * @throws IOException In case of an I/O error
+     */
+    private boolean readChunks(InputStream is, ByteArrayOutputStream body) throws IOException {
+        while (true) {
+            String line = readLine(is);
+            boolean eof = line.contains("ieof");
+            int idx = line.indexOf(';');
+            int size = Integer.parseInt((idx >= 0 ? line.substring(0, idx) : line).trim(), 16);
+            if (size == 0) {
+                readLine(is);
+                return eof;
+            }
+            body.write(is.readNBytes(size));
+            readLine(is);
+        }
+    }
+
+
+    /**
+     * Read a line
+     *
+     * @param is the input stream
+     * @return the line
+     * @throws IOException In case of an I/O error
+     */
+    private String readLine(InputStream is) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        int b;
+        while ((b = is.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("Unexpected end of stream");
+            }
+            if (b != '\r') {
+                buffer.write(b);
+            }
+        }
+        return buffer.toString(StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Get the body offset
+     *
+     * @param header the header
+     * @return the body offset or -1
+     */
+    private int getBodyOffset(String header) {
+        for (String line : header.split("\r\n")) {
+            if (line.startsWith("Encapsulated:")) {
+                for (String entry : line.substring(13).split(",")) {
+                    String[] keyValue = entry.trim().split("=");
+                    if (keyValue[0].endsWith("-body") && !keyValue[0].equals("null-body")) {
+                        return Integer.parseInt(keyValue[1].trim());
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+}
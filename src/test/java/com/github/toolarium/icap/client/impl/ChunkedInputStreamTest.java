@@ -0,0 +1,192 @@
+/*
+ * ChunkedInputStreamTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.toolarium.icap.client.ICAPClient;
+import com.github.toolarium.icap.client.ICAPTestServer;
+import com.github.toolarium.icap.client.dto.ICAPConstants;
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
+import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the {@link ChunkedInputStream}.
+ *
+ * @author patrick
+ */
+public class ChunkedInputStreamTest {
+    private static final String HTTP_HEADER = "HTTP/1.1 200 OK\r\nContent-Length: 11\r\n\r\n";
+
+
+    /**
+     * Test the header and a chunked body with extensions and trailers
+     *
+     * @throws IOException In case of an I/O error
+     */
+    @Test
+    public void testChunkedBody() throws IOException {
+        String message = "ICAP/1.0 200 OK\r\nISTag: \"TEST\"\r\nEncapsulated: res-hdr=0, res-body=" + HTTP_HEADER.length() + "\r\n\r\n"
+                         + HTTP_HEADER + "5;name=value\r\nhello\r\n6 \r\n world\r\n0; ieof\r\nX-Trailer: 1\r\n\r\n";
+        ChunkedInputStream is = new ChunkedInputStream("", new ByteArrayInputStream(message.getBytes(StandardCharsets.US_ASCII)));
+        Map<String, List<String>> header = is.readHeader();
+        assertEquals("ICAP/1.0 200 OK", header.get(ICAPConstants.HEADER_KEY_X_ICAP_STATUSLINE).get(0));
+        assertEquals("\"TEST\"", header.get("ISTag").get(0));
+
+        is.startEncapsulatedMessage(HTTP_HEADER.length(), true);
+        assertEquals("hello world", read(is, 3));
+        assertTrue(is.isMessageComplete());
+        assertFalse(is.hasPendingInput());
+        assertEquals(11, is.getBodyLength());
+    }
+
+
+    /**
+     * Test line separators without carriage return and a large chunk which is read directly
+     *
+     * @throws IOException In case of an I/O error
+     */
+    @Test
+    public void testLargeChunk() throws IOException {
+        byte[] content = new byte[200000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte)('a' + (i % 26));
+        }
+
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        message.write("ICAP/1.0 200 OK\nEncapsulated: res-body=0\n\n".getBytes(StandardCharsets.US_ASCII));
+        message.write((Integer.toHexString(content.length) + "\n").getBytes(StandardCharsets.US_ASCII));
+        message.write(content);
+        message.write("\n0\n\n".getBytes(StandardCharsets.US_ASCII));
+
+        ChunkedInputStream is = new ChunkedInputStream("", new ByteArrayInputStream(message.toByteArray()));
+        assertEquals("res-body=0", is.readHeader().get(ICAPConstants.HEADER_KEY_ENCAPSULATED).get(0));
+        is.startEncapsulatedMessage(0, true);
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int length;
+        while ((length = is.read(buffer)) >= 0) {
+            result.write(buffer, 0, length);
+        }
+
+        assertArrayEquals(content, result.toByteArray());
+        assertTrue(is.isMessageComplete());
+    }
+
+
+    /**
+     * Test drain of a message
+     *
+     * @throws IOException In case of an I/O error
+     */
+    @Test
+    public void testDrain() throws IOException {
+        String message = "ICAP/1.0 200 OK\r\n\r\n" + HTTP_HEADER + "b\r\nhello world\r\n0\r\n\r\nICAP/1.0 204 Unmodified\r\n\r\n";
+        ChunkedInputStream is = new ChunkedInputStream("", new ByteArrayInputStream(message.getBytes(StandardCharsets.US_ASCII)));
+        is.readHeader();
+        is.startEncapsulatedMessage(HTTP_HEADER.length(), true);
+        assertTrue(is.drain(1024));
+        assertTrue(is.isMessageComplete());
+        assertEquals("ICAP/1.0 204 Unmodified", is.readHeader().get(ICAPConstants.HEADER_KEY_X_ICAP_STATUSLINE).get(0));
+
+        is = new ChunkedInputStream("", new ByteArrayInputStream(message.getBytes(StandardCharsets.US_ASCII)));
+        is.readHeader();
+        is.startEncapsulatedMessage(HTTP_HEADER.length(), true);
+        assertFalse(is.drain(5));
+    }
+
+
+    /**
+     * Test invalid chunks
+     *
+     * @throws IOException In case of an I/O error
+     */
+    @Test
+    public void testInvalidChunk() throws IOException {
+        ChunkedInputStream is = new ChunkedInputStream("", new ByteArrayInputStream("ICAP/1.0 200 OK\r\n\r\nxyz\r\n".getBytes(StandardCharsets.US_ASCII)));
+        is.readHeader();
+        is.startEncapsulatedMessage(0, true);
+        assertThrows(IOException.class, () -> is.read(new byte[10]));
+        assertFalse(is.drain(1024));
+
+        ChunkedInputStream truncated = new ChunkedInputStream("", new ByteArrayInputStream("ICAP/1.0 200 OK\r\n\r\na\r\nhello".getBytes(StandardCharsets.US_ASCII)));
+        truncated.readHeader();
+        truncated.startEncapsulatedMessage(0, true);
+        assertThrows(IOException.class, () -> read(truncated, 1024));
+    }
+
+
+    /**
+     * Test that the connection is reused after a modified response was read
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testReuseAfterModifiedResponse() throws Exception {
+        ICAPPooledConnectionManagerImpl connectionManager = new ICAPPooledConnectionManagerImpl();
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            server.setResponseHandler((method, header, body) -> {
+                if ("OPTIONS".equals(method)) {
+                    return ICAPTestServer.OPTIONS_RESPONSE;
+                }
+
+                String content = new String(body, StandardCharsets.US_ASCII);
+                String httpHeader = "HTTP/1.1 200 OK\r\nContent-Length: " + content.length() + "\r\n\r\n";
+                return "ICAP/1.0 200 OK\r\nISTag: \"TEST-0001\"\r\nEncapsulated: res-hdr=0, res-body=" + httpHeader.length() + "\r\n\r\n" + httpHeader
+                       + "3;ext\r\n" + content.substring(0, 3) + "\r\n" + Integer.toHexString(content.length() - 3) + "\r\n" + content.substring(3) + "\r\n0\r\n\r\n";
+            });
+
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null).supportCompareVerifyIdenticalContent(true);
+            for (int i = 0; i < 3; i++) {
+                byte[] content = ("modified test content " + i).getBytes(StandardCharsets.US_ASCII);
+                ICAPHeaderInformation icapHeaderInformation = client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation("user", "test"),
+                                                                                      new ICAPResource("test.txt", new ByteArrayInputStream(content), content.length));
+                assertEquals(200, icapHeaderInformation.getStatus());
+                assertEquals("true", icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_IDENTICAL_CONTENT).get(0));
+            }
+
+            assertEquals(1, server.getAcceptedConnections());
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+
+
+    /**
+     * Read the stream
+     *
+     * @param is the stream
+     * @param bufferSize the buffer size
+     * @return the content
+     * @throws IOException In case of an I/O error
+     */
+    private static String read(ChunkedInputStream is, int bufferSize) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[bufferSize];
+        int length;
+        while ((length = is.read(buffer)) >= 0) {
+            result.write(buffer, 0, length);
+        }
+        return result.toString(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * ICAPClientImplTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.toolarium.icap.client.ICAPClient;
+import com.github.toolarium.icap.client.ICAPClientFactory;
+import com.github.toolarium.icap.client.ICAPTestServer;
+import com.github.toolarium.icap.client.dto.ICAPConstants;
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
+import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import com.github.toolarium.icap.client.util.ICAPFingerprint;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the {@link ICAPClientImpl}.
+ *
+ * @author patrick
+ */
+public class ICAPClientImplTest {
+
+    /**
+     * Test that one client per service is shared between threads
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testSharedClient() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            ICAPClient client = ICAPClientFactory.getInstance().getICAPClient("localhost", server.getPort(), "srv_test");
+            assertSame(client, ICAPClientFactory.getInstance().getICAPClient("icap://localhost:" + server.getPort() + "/srv_test"));
+            
+            ICAPClient verifyClient = client.supportCompareVerifyIdenticalContent(true);
+            assertNotSame(client, verifyClient);
+            assertSame(verifyClient, verifyClient.supportCompareVerifyIdenticalContent(true));
+            assertSame(client.options(), verifyClient.options());
+
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                final int id = i;
+                futures.add(executor.submit(() -> {
+                    byte[] content = ("test content " + id).getBytes();
+                    ICAPRequestInformation requestInformation = new ICAPRequestInformation("user", "test").addCustomHeader("X-Request", "" + (id % 2));
+                    return client.validateResource(ICAPMode.REQMOD, requestInformation, new ICAPResource("test.txt", new ByteArrayInputStream(content), content.length));
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            // one OPTIONS request and the validations
+            assertEquals(33, server.getRequests());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Test the asynchronous requests
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testAsync() throws Exception {
+        AtomicInteger executions = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(new ICAPConnectionManagerImpl(), serviceInformation, null);
+            assertEquals(1024, client.optionsAsync(new ICAPRequestInformation()).get().getServerPreviewSize());
+
+            ICAPClient executorClient = client.executor(r -> {
+                executions.incrementAndGet();
+                executor.execute(r);
+            });
+            assertNotSame(client, executorClient);
+            
+            byte[] content = "test content".getBytes();
+            CompletableFuture<ICAPHeaderInformation> future = executorClient.validateResourceAsync(ICAPMode.RESPMOD, new ICAPRequestInformation(), 
+                                                                                                   new ICAPResource("test.txt", content));
+            assertEquals(204, future.get().getStatus());
+            assertEquals(1, executions.get());
+            
+            // the errors complete the future exceptionally
+            server.setResponseHandler((method, header, body) -> "ICAP/1.0 500 Server Error\r\n\r\n");
+            ExecutionException e = assertThrows(ExecutionException.class, 
+                                                 () -> executorClient.validateResourceAsync(ICAPMode.RESPMOD, new ICAPRequestInformation(), new ICAPResource("test.txt", content)).get());
+            assertTrue(e.getCause() instanceof IOException);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Test the fingerprints and the sampled verification of an identical content
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testFingerprint() throws Exception {
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            server.setResponseHandler((method, header, body) -> {
+                if ("OPTIONS".equals(method)) {
+                    return ICAPTestServer.OPTIONS_RESPONSE;
+                }
+                
+                final String httpHeader = "HTTP/1.1 200 OK\r\n\r\n";
+                return "ICAP/1.0 200 OK\r\nISTag: \"TEST-0001\"\r\nEncapsulated: res-hdr=0, res-body=" + httpHeader.length() + "\r\n\r\n" + httpHeader 
+                       + Integer.toHexString(body.length) + "\r\n" + new String(body, StandardCharsets.ISO_8859_1) + "\r\n0\r\n\r\n";
+            });
+
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(new ICAPConnectionManagerImpl(), serviceInformation, null).supportCompareVerifyIdenticalContent(true);
+            byte[] content = "test content".getBytes(StandardCharsets.US_ASCII);
+
+            ICAPClient xxhClient = client.fingerprint(ICAPFingerprint.XXH64, 1.0);
+            assertNotSame(client, xxhClient);
+            for (ICAPResource resource : new ICAPResource[] {new ICAPResource("test.txt", content), new ICAPResource("test.txt", new ByteArrayInputStream(content))}) {
+                ICAPHeaderInformation icapHeaderInformation = xxhClient.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), resource);
+                assertEquals(200, icapHeaderInformation.getStatus());
+                assertTrue(icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_REQUEST_MESSAGE_DIGEST).get(0).startsWith("{XXH64}"));
+                assertEquals(icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_REQUEST_MESSAGE_DIGEST), 
+                             icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_RESPONSE_MESSAGE_DIGEST));
+                assertEquals("true", icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_IDENTICAL_CONTENT).get(0));
+            }
+            
+            // the requests which are not sampled are not fingerprinted
+            for (ICAPClient unsampledClient : new ICAPClient[] {client.fingerprint(ICAPFingerprint.XXH64, 0), client.fingerprint(ICAPFingerprint.NONE, 1.0)}) {
+                ICAPHeaderInformation icapHeaderInformation = unsampledClient.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), 
+                                                                                               new ICAPResource("test.txt", new ByteArrayInputStream(content)));
+                assertEquals(200, icapHeaderInformation.getStatus());
+                assertFalse(icapHeaderInformation.containsHeader(ICAPConstants.HEADER_KEY_X_REQUEST_MESSAGE_DIGEST));
+                assertFalse(icapHeaderInformation.containsHeader(ICAPConstants.HEADER_KEY_X_IDENTICAL_CONTENT));
+            }
+
+            assertThrows(IllegalArgumentException.class, () -> client.fingerprint(ICAPFingerprint.XXH64, 1.5));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * ICAPConnectionLimiterTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.toolarium.icap.client.ICAPTestServer;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRemoteServiceConfiguration;
+import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
+import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the {@link ICAPConnectionLimiter}.
+ *
+ * @author patrick
+ */
+public class ICAPConnectionLimiterTest {
+    private static final String OPTIONS_RESPONSE = "ICAP/1.0 200 OK\r\n"
+                                                   + "Methods: RESPMOD, REQMOD\r\n"
+                                                   + "Preview: 1024\r\n"
+                                                   + "Allow: 204\r\n"
+                                                   + "Max-Connections: 2\r\n"
+                                                   + "Options-TTL: 60\r\n"
+                                                   + "Encapsulated: null-body=0\r\n\r\n";
+
+
+    /**
+     * Test resize of the limiter
+     */
+    @Test
+    public void testResize() {
+        ICAPConnectionLimiter connectionLimiter = new ICAPConnectionLimiter();
+        assertEquals(ICAPConnectionLimiter.UNLIMITED, connectionLimiter.getMaxConnections());
+
+        connectionLimiter.setMaxConnections(2);
+        assertTrue(connectionLimiter.tryAcquire());
+        assertTrue(connectionLimiter.tryAcquire());
+        assertEquals(false, connectionLimiter.tryAcquire());
+
+        connectionLimiter.setMaxConnections(3);
+        assertTrue(connectionLimiter.tryAcquire());
+        connectionLimiter.setMaxConnections(1);
+        connectionLimiter.release();
+        connectionLimiter.release();
+        assertEquals(false, connectionLimiter.tryAcquire());
+        connectionLimiter.release();
+        assertTrue(connectionLimiter.tryAcquire());
+
+        connectionLimiter.setMaxConnections(null);
+        assertEquals(ICAPConnectionLimiter.UNLIMITED - 1, connectionLimiter.getAvailableConnections());
+    }
+
+
+    /**
+     * Test that a release listener is notified once with the next release
+     */
+    @Test
+    public void testReleaseListener() {
+        ICAPConnectionLimiter connectionLimiter = new ICAPConnectionLimiter();
+        connectionLimiter.setMaxConnections(1);
+        assertTrue(connectionLimiter.tryAcquire());
+        assertEquals(false, connectionLimiter.tryAcquire());
+
+        AtomicInteger notifications = new AtomicInteger();
+        connectionLimiter.notifyOnRelease(notifications::incrementAndGet);
+        assertEquals(0, notifications.get());
+        connectionLimiter.release();
+        assertEquals(1, notifications.get());
+        assertTrue(connectionLimiter.tryAcquire());
+        connectionLimiter.release();
+        assertEquals(1, notifications.get());
+
+        connectionLimiter.notifyOnRelease(notifications::incrementAndGet);
+        connectionLimiter.setMaxConnections(2);
+        assertEquals(2, notifications.get());
+    }
+
+
+    /**
+     * Test that the max connections of the options are respected
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testMaxConnections() throws Exception {
+        ICAPPooledConnectionManagerImpl connectionManager = new ICAPPooledConnectionManagerImpl();
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            server.setResponseHandler((method, header, body) -> {
+                if ("OPTIONS".equals(method)) {
+                    return OPTIONS_RESPONSE;
+                }
+
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return ICAPTestServer.UNMODIFIED_RESPONSE;
+            });
+
+            ICAPConnectionLimiter connectionLimiter = new ICAPConnectionLimiter();
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClientImpl client = new ICAPClientImpl(connectionManager, serviceInformation, null, connectionLimiter);
+            ICAPRemoteServiceConfiguration remoteServiceConfiguration = client.options();
+            assertEquals(Integer.valueOf(2), remoteServiceConfiguration.getMaxConnections());
+            assertEquals(Integer.valueOf(60), remoteServiceConfiguration.getOptionsTTL());
+            assertEquals(2, connectionLimiter.getMaxConnections());
+
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                futures.add(executor.submit(() -> {
+                    byte[] content = "test content".getBytes();
+                    return client.validateResource(ICAPMode.REQMOD, new ICAPRequestInformation(), new ICAPResource("test.txt", new ByteArrayInputStream(content), content.length));
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            assertTrue(server.getMaxActiveConnections() <= 2);
+            assertEquals(2, connectionLimiter.getAvailableConnections());
+
+            // reject in case the wait time is elapsed
+            connectionLimiter.acquire("test", null);
+            connectionLimiter.acquire("test", null);
+            assertThrows(IOException.class, () -> client.validateResource(ICAPMode.REQMOD, new ICAPRequestInformation().maxConnectionTimeout(10),
+                                                                          new ICAPResource("test.txt", new ByteArrayInputStream(new byte[] {1}), 1)));
+        } finally {
+            executor.shutdownNow();
+            connectionManager.shutdown();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * ICAPHashFilterTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.toolarium.icap.client.ICAPClient;
+import com.github.toolarium.icap.client.ICAPTestServer;
+import com.github.toolarium.icap.client.dto.ICAPConstants;
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
+import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import com.github.toolarium.icap.client.exception.ContentBlockedException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the {@link ICAPHashFilter}.
+ *
+ * @author patrick
+ */
+public class ICAPHashFilterTest {
+
+    /**
+     * Test the import of several runs with duplicates and the lookup
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testImport() throws Exception {
+        Path file = Files.createTempFile("icap-hashes", ".filter");
+        try {
+            StringBuilder list = new StringBuilder("\"SHA-1\",\"MD5\",\"FileName\"\n# comment\n\n");
+            for (int i = 0; i < 10000; i++) {
+                list.append('"').append(hex(digest("SHA-1", "content" + (i % 5000)))).append("\",\"00\",\"file").append(i).append(".txt\"\n");
+            }
+
+            try (ICAPHashFilterImporter importer = new ICAPHashFilterImporter("SHA-1", 777, null)) {
+                assertEquals(10000, importer.add(new StringReader(list.toString())));
+                assertEquals(5000, importer.write(file));
+            }
+
+            try (ICAPHashFilter filter = ICAPHashFilter.open(file)) {
+                assertEquals("SHA-1", filter.getAlgorithm());
+                assertEquals(5000, filter.size());
+                for (int i = 0; i < 5000; i++) {
+                    assertTrue(filter.contains(digest("SHA-1", "content" + i)));
+                }
+
+                int bloomHits = 0;
+                for (int i = 5000; i < 15000; i++) {
+                    byte[] digest = digest("SHA-1", "content" + i);
+                    assertFalse(filter.contains(digest));
+                    if (filter.mightContain(digest)) {
+                        bloomHits++;
+                    }
+                }
+
+                // about 1% false positives of the Bloom filter, they are rejected by the sorted digests
+                assertTrue(bloomHits < 300, "" + bloomHits);
+                assertFalse(filter.contains(digest("SHA-256", "content1")));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+
+    /**
+     * Test that a known content is answered without a scan
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testValidateResource() throws Exception {
+        ICAPPooledConnectionManagerImpl connectionManager = new ICAPPooledConnectionManagerImpl();
+        Path knownGood = Files.createTempFile("icap-known-good", ".filter");
+        Path knownBad = Files.createTempFile("icap-known-bad", ".filter");
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            try (ICAPHashFilterImporter importer = new ICAPHashFilterImporter("SHA-256")) {
+                importer.add(digest("SHA-256", "GOOD"));
+                importer.write(knownGood);
+            }
+            try (ICAPHashFilterImporter importer = new ICAPHashFilterImporter("MD5")) {
+                importer.add(hex(digest("MD5", "BAD")));
+                importer.write(knownBad);
+            }
+            ICAPKnownHashes.getInstance().setKnownGood(ICAPHashFilter.open(knownGood));
+            ICAPKnownHashes.getInstance().setKnownBad(ICAPHashFilter.open(knownBad));
+
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null);
+            client.options(new ICAPRequestInformation());
+            int requests = server.getRequests();
+
+            ICAPHeaderInformation headerInformation = client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), resource("GOOD"));
+            assertEquals(204, headerInformation.getStatus());
+            assertEquals("good; SHA-256", headerInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_KNOWN_HASH).get(0));
+
+            ContentBlockedException e = assertThrows(ContentBlockedException.class, () -> client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), resource("BAD")));
+            assertTrue(e.getICAPHeaderInformation().containsHeader(ICAPConstants.HEADER_KEY_X_INFECTION_FOUND));
+            assertEquals(requests, server.getRequests());
+
+            assertEquals(204, client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), resource("UNKNOWN")).getStatus());
+            assertEquals(requests + 1, server.getRequests());
+        } finally {
+            ICAPKnownHashes.getInstance().setKnownGood(null);
+            ICAPKnownHashes.getInstance().setKnownBad(null);
+            connectionManager.shutdown();
+            Files.deleteIfExists(knownGood);
+            Files.deleteIfExists(knownBad);
+        }
+    }
+
+
+    /**
+     * Create a resource
+     *
+     * @param content the content
+     * @return the resource
+     */
+    private ICAPResource resource(String content) {
+        return new ICAPResource(content.toLowerCase() + ".txt", content.getBytes(StandardCharsets.US_ASCII));
+    }
+
+
+    /**
+     * Calculate a digest
+     *
+     * @param algorithm the algorithm
+     * @param content the content
+     * @return the digest
+     * @throws Exception In case of an error
+     */
+    private byte[] digest(String algorithm, String content) throws Exception {
+        return MessageDigest.getInstance(algorithm).digest(content.getBytes(StandardCharsets.US_ASCII));
+    }
+
+
+    /**
+     * Encode a digest as hex
+     *
+     * @param digest the digest
+     * @return the hex encoded digest
+     */
+    private String hex(byte[] digest) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : digest) {
+            result.append(String.format("%02X", b));
+        }
+        return result.toString();
+    }
+}
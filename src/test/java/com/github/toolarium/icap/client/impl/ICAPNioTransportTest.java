@@ -0,0 +1,317 @@
+/*
+ * ICAPNioTransportTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.toolarium.icap.client.ICAPClient;
+import com.github.toolarium.icap.client.ICAPTestServer;
+import com.github.toolarium.icap.client.dto.ICAPByteBufferSource;
+import com.github.toolarium.icap.client.dto.ICAPConstants;
+import com.github.toolarium.icap.client.dto.ICAPFileSource;
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
+import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import com.github.toolarium.icap.client.exception.ContentBlockedException;
+import java.io.ByteArrayOutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the {@link ICAPNioTransport} and the {@link ICAPResponseDecoder}.
+ *
+ * @author patrick
+ */
+public class ICAPNioTransportTest {
+
+    /**
+     * Test the decoder, the response is pushed byte by byte
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testDecoder() throws Exception {
+        String httpHeader = "HTTP/1.1 200 OK\r\n\r\n";
+        String response = "ICAP/1.0 100 Continue\r\n\r\n"
+                          + "ICAP/1.0 200 OK\r\nISTag: \"TEST-0001\"\r\nEncapsulated: res-hdr=0, res-body=" + httpHeader.length() + "\r\n\r\n"
+                          + httpHeader + "5; ext=1\r\nhello\r\n6\r\n world\r\n0\r\n\r\n"
+                          + "ICAP/1.0 204 Unmodified\r\n";
+        byte[] bytes = response.getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        ICAPResponseDecoder decoder = new ICAPResponseDecoder();
+        ByteBuffer input = ByteBuffer.allocate(1);
+        int position = 0;
+        int messages = 0;
+        while (messages < 2) {
+            input.clear();
+            input.put(bytes[position++]).flip();
+            if (decoder.decode(input)) {
+                messages++;
+                if (messages == 1) {
+                    assertEquals(100, decoder.getHeaderInformation().getStatus());
+                    decoder.reset(body);
+                }
+            }
+        }
+
+        assertEquals(200, decoder.getHeaderInformation().getStatus());
+        assertTrue(decoder.isReusable());
+        assertEquals(11, decoder.getBodyLength());
+        assertEquals("hello world", body.toString(StandardCharsets.US_ASCII));
+        assertEquals("ICAP/1.0 204 Unmodified\r\n", response.substring(position));
+    }
+
+
+    /**
+     * Test many concurrent scans on few event loops
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testConcurrentScans() throws Exception {
+        ICAPNioConnectionManagerImpl connectionManager = new ICAPNioConnectionManagerImpl(2);
+        CountDownLatch pending = new CountDownLatch(3);
+        CountDownLatch release = new CountDownLatch(1);
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            // the first scans are answered only after three scans are pending at the same time
+            server.setResponseHandler((method, header, body) -> {
+                if ("OPTIONS".equals(method)) {
+                    return ICAPTestServer.OPTIONS_RESPONSE;
+                }
+
+                pending.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return ICAPTestServer.UNMODIFIED_RESPONSE;
+            });
+
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null);
+            byte[] content = ICAPTestServer.createContent(5000);
+
+            List<CompletableFuture<ICAPHeaderInformation>> futures = new ArrayList<CompletableFuture<ICAPHeaderInformation>>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(client.validateResourceAsync(ICAPMode.RESPMOD, new ICAPRequestInformation(), new ICAPResource("test" + i + ".txt", new ICAPByteBufferSource(content))));
+            }
+
+            assertTrue(pending.await(10, TimeUnit.SECONDS));
+            release.countDown();
+            for (CompletableFuture<ICAPHeaderInformation> future : futures) {
+                assertEquals(204, future.get().getStatus());
+            }
+            assertEquals(2, connectionManager.getTransport().getEventLoops());
+            assertTrue(server.getMaxActiveConnections() > 2);
+            assertTrue(connectionManager.getTransport().getIdleConnections() > 0);
+        } finally {
+            release.countDown();
+            connectionManager.shutdown();
+        }
+    }
+
+
+    /**
+     * Test that the waiting scans are started as soon as a connection of the service is released
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testMaxConnections() throws Exception {
+        ICAPNioConnectionManagerImpl connectionManager = new ICAPNioConnectionManagerImpl(1);
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            server.setResponseHandler((method, header, body) -> "OPTIONS".equals(method)
+                    ? ICAPTestServer.OPTIONS_RESPONSE.replace("Allow: 204\r\n", "Allow: 204\r\nMax-Connections: 1\r\n") : ICAPTestServer.UNMODIFIED_RESPONSE);
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null);
+            client.options();
+
+            List<CompletableFuture<ICAPHeaderInformation>> futures = new ArrayList<CompletableFuture<ICAPHeaderInformation>>();
+            for (int i = 0; i < 50; i++) {
+                futures.add(client.validateResourceAsync(ICAPMode.RESPMOD, new ICAPRequestInformation(),
+                                                         new ICAPResource("test" + i + ".txt", new ICAPByteBufferSource(ICAPTestServer.createContent(100)))));
+            }
+            for (CompletableFuture<ICAPHeaderInformation> future : futures) {
+                assertEquals(204, future.get(10, TimeUnit.SECONDS).getStatus());
+            }
+
+            // the OPTIONS request uses a blocking connection, all scans share one connection
+            assertEquals(2, server.getAcceptedConnections());
+            assertEquals(51, server.getRequests());
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+
+
+    /**
+     * Test that the response content is identical, the connections are reused
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testIdenticalContent() throws Exception {
+        ICAPNioConnectionManagerImpl connectionManager = new ICAPNioConnectionManagerImpl(1);
+        Path file = Files.createTempFile("icap-nio-test", ".txt");
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            server.setResponseHandler(ICAPTestServer::echo);
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null).supportCompareVerifyIdenticalContent(true);
+
+            for (int length : new int[] {100, 1024, 1025, 300000}) {
+                byte[] content = ICAPTestServer.createContent(length);
+                ICAPHeaderInformation icapHeaderInformation = client.validateResourceAsync(ICAPMode.RESPMOD, new ICAPRequestInformation(),
+                                                                                           new ICAPResource("test.txt", new ICAPByteBufferSource(content))).get();
+                assertEquals(200, icapHeaderInformation.getStatus());
+                assertEquals("" + length, icapHeaderInformation.getHeaderValues("X-Length").get(0));
+                assertEquals("true", icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_IDENTICAL_CONTENT).get(0));
+                assertNotNull(icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_REQUEST_MESSAGE_DIGEST));
+                assertFalse(icapHeaderInformation.containsHeader(ICAPConstants.HEADER_KEY_X_ICAP_STATUSLINE));
+            }
+
+            Files.write(file, ICAPTestServer.createContent(70000));
+            ICAPHeaderInformation icapHeaderInformation = client.validateResourceAsync(ICAPMode.RESPMOD, new ICAPRequestInformation(),
+                                                                                       new ICAPResource("test.txt", new ICAPFileSource(file))).get();
+            assertEquals("true", icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_IDENTICAL_CONTENT).get(0));
+
+            // the options request and the sequential scans share the connections
+            assertTrue(server.getAcceptedConnections() <= 2);
+        } finally {
+            connectionManager.shutdown();
+            Files.delete(file);
+        }
+    }
+
+
+    /**
+     * Test the read timeout
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testReadTimeout() throws Exception {
+        ICAPNioConnectionManagerImpl connectionManager = new ICAPNioConnectionManagerImpl(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            // the server stalls until the test is finished
+            server.setResponseHandler((method, header, body) -> {
+                if ("OPTIONS".equals(method)) {
+                    return ICAPTestServer.OPTIONS_RESPONSE;
+                }
+
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return ICAPTestServer.UNMODIFIED_RESPONSE;
+            });
+
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null);
+            ExecutionException e = assertThrows(ExecutionException.class,
+                                                () -> client.validateResourceAsync(ICAPMode.RESPMOD, new ICAPRequestInformation().maxReadTimeout(200),
+                                                                                   new ICAPResource("test.txt", new ICAPByteBufferSource(ICAPTestServer.createContent(100)))).get());
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        } finally {
+            release.countDown();
+            connectionManager.shutdown();
+        }
+    }
+
+
+    /**
+     * Test that a failed event loop fails its exchanges and is replaced
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testEventLoopFailure() throws Exception {
+        ICAPNioConnectionManagerImpl connectionManager = new ICAPNioConnectionManagerImpl(1);
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null);
+            ICAPResource resource = new ICAPResource("test.txt", new ICAPByteBufferSource(ICAPTestServer.createContent(100)));
+            assertEquals(204, client.validateResourceAsync(ICAPMode.RESPMOD, new ICAPRequestInformation(), resource).get().getStatus());
+
+            // the selector fails, the event loop stops
+            ICAPNioTransport transport = connectionManager.getTransport();
+            ICAPNioTransport.EventLoop eventLoop = transport.getEventLoop(0);
+            eventLoop.getSelector().close();
+            final long end = System.currentTimeMillis() + 10000;
+            while (!eventLoop.isClosed() && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            assertTrue(eventLoop.isClosed());
+            assertEquals(0, transport.getIdleConnections());
+
+            assertEquals(204, client.validateResourceAsync(ICAPMode.RESPMOD, new ICAPRequestInformation(), resource).get().getStatus());
+            assertNotSame(eventLoop, transport.getEventLoop(0));
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+
+
+    /**
+     * Test that a content with a signature after the preview is blocked while it's sent
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testSignature() throws Exception {
+        ICAPNioConnectionManagerImpl connectionManager = new ICAPNioConnectionManagerImpl(1);
+        Path file = Files.createTempFile("icap-eicar", ".txt");
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            Map<String, byte[]> signatures = new LinkedHashMap<String, byte[]>();
+            signatures.put("Test-Signature", "test-signature".getBytes(StandardCharsets.US_ASCII));
+            ICAPSignaturePrefilter.getInstance().setSignatures(signatures);
+
+            byte[] content = ICAPTestServer.createContent(5000);
+            byte[] signature = "test-signature".getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(signature, 0, content, 4000, signature.length);
+            Files.write(file, content);
+
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null);
+            ExecutionException e = assertThrows(ExecutionException.class, 
+                                                () -> client.validateResourceAsync(ICAPMode.RESPMOD, new ICAPRequestInformation(), new ICAPResource("test.txt", new ICAPByteBufferSource(content))).get());
+            assertTrue(e.getCause() instanceof ContentBlockedException);
+            e = assertThrows(ExecutionException.class, 
+                             () -> client.validateResourceAsync(ICAPMode.RESPMOD, new ICAPRequestInformation(), new ICAPResource("test.txt", new ICAPFileSource(file))).get());
+            assertTrue(e.getCause() instanceof ContentBlockedException);
+
+            // the aborted connections are not reused
+            ICAPResource resource = new ICAPResource("test.txt", new ICAPByteBufferSource(ICAPTestServer.createContent(5000)));
+            assertEquals(204, client.validateResourceAsync(ICAPMode.RESPMOD, new ICAPRequestInformation(), resource).get().getStatus());
+        } finally {
+            ICAPSignaturePrefilter.getInstance().setSignatures(null);
+            Files.deleteIfExists(file);
+            connectionManager.shutdown();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * ICAPPooledConnectionManagerTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.toolarium.icap.client.ICAPTestServer;
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
+import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import com.github.toolarium.icap.client.exception.ContentBlockedException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the {@link ICAPPooledConnectionManagerImpl}.
+ *
+ * @author patrick
+ */
+public class ICAPPooledConnectionManagerTest {
+
+    /**
+     * Test that a connection is reused
+     *
+     * @throws IOException In case of an I/O error
+     * @throws ContentBlockedException In case the content is blocked
+     */
+    @Test
+    public void testReuseConnection() throws IOException, ContentBlockedException {
+        ICAPPooledConnectionManagerImpl connectionManager = new ICAPPooledConnectionManagerImpl();
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClientImpl client = new ICAPClientImpl(connectionManager, serviceInformation, null);
+            client.options();
+
+            for (int i = 0; i < 5; i++) {
+                byte[] content = ("test content " + i).getBytes();
+                ICAPHeaderInformation icapHeaderInformation = client.validateResource(ICAPMode.REQMOD, new ICAPRequestInformation("user", "test"),
+                                                                                      new ICAPResource("test.txt", new ByteArrayInputStream(content), content.length));
+                assertEquals(204, icapHeaderInformation.getStatus());
+            }
+
+            assertEquals(6, server.getRequests());
+            assertEquals(1, server.getAcceptedConnections());
+            assertEquals(1, connectionManager.getIdleConnections());
+            assertEquals(0, connectionManager.getLeasedConnections());
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+
+
+    /**
+     * Test max requests per connection
+     *
+     * @throws IOException In case of an I/O error
+     */
+    @Test
+    public void testMaxRequestsPerConnection() throws IOException {
+        ICAPPooledConnectionManagerImpl connectionManager = new ICAPPooledConnectionManagerImpl();
+        connectionManager.setMaxRequestsPerConnection(2);
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            for (int i = 0; i < 4; i++) {
+                new ICAPClientImpl(connectionManager, serviceInformation, null).options();
+            }
+
+            assertEquals(4, server.getRequests());
+            assertEquals(2, server.getAcceptedConnections());
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+
+
+    /**
+     * Test eviction of idle connections
+     *
+     * @throws IOException In case of an I/O error
+     */
+    @Test
+    public void testEvictIdleConnections() throws IOException {
+        ICAPPooledConnectionManagerImpl connectionManager = new ICAPPooledConnectionManagerImpl();
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            new ICAPClientImpl(connectionManager, serviceInformation, null).options();
+            assertEquals(1, connectionManager.getIdleConnections());
+
+            connectionManager.setMaxIdleTime(-1);
+            connectionManager.evictIdleConnections();
+            assertEquals(0, connectionManager.getIdleConnections());
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+
+
+    /**
+     * Test that the idle connections are limited by the max connections of the host
+     *
+     * @throws IOException In case of an I/O error
+     */
+    @Test
+    public void testIdleConnectionsLimitedByMaxConnections() throws IOException {
+        ICAPPooledConnectionManagerImpl connectionManager = new ICAPPooledConnectionManagerImpl();
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            connectionManager.setMaxConnections("localhost", server.getPort(), false, 2);
+            Socket[] sockets = new Socket[4];
+            for (int i = 0; i < sockets.length; i++) {
+                sockets[i] = connectionManager.createSocket("localhost", server.getPort(), false, null, null);
+            }
+            for (Socket socket : sockets) {
+                connectionManager.releaseSocket(socket, true);
+            }
+            assertEquals(2, connectionManager.getIdleConnections());
+
+            connectionManager.setMaxConnections("localhost", server.getPort(), false, 1);
+            assertEquals(1, connectionManager.getIdleConnections());
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+
+
+    /**
+     * Test the connection manager without keep alive
+     *
+     * @throws IOException In case of an I/O error
+     */
+    @Test
+    public void testNoKeepAlive() throws IOException {
+        ICAPConnectionManagerImpl connectionManager = new ICAPConnectionManagerImpl();
+        assertFalse(connectionManager.isKeepAlive());
+        assertTrue(new ICAPPooledConnectionManagerImpl().isKeepAlive());
+
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            new ICAPClientImpl(connectionManager, serviceInformation, null).options();
+            new ICAPClientImpl(connectionManager, serviceInformation, null).options();
+            assertEquals(2, server.getAcceptedConnections());
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * ICAPRemoteServiceConfigurationCacheTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRemoteServiceConfiguration;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import com.github.toolarium.icap.client.impl.dto.ICAPRemoteServiceConfigurationImpl;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+/**
+ * Test the {@link ICAPRemoteServiceConfigurationCache}.
+ *
+ * @author patrick
+ */
+public class ICAPRemoteServiceConfigurationCacheTest {
+
+    /**
+     * Test that a stale configuration is served while one background refresh runs
+     *
+     * @throws IOException In case of an I/O error
+     */
+    @Test
+    public void testRefreshAhead() throws IOException {
+        List<Runnable> refreshTasks = new ArrayList<>();
+        ICAPRemoteServiceConfigurationCache cache = new ICAPRemoteServiceConfigurationCache(refreshTasks::add);
+        ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", 1344, false, "srv_test", 60);
+        AtomicInteger loads = new AtomicInteger();
+
+        ICAPRemoteServiceConfiguration stale = createConfiguration(Instant.now().minusSeconds(55));
+        assertSame(stale, cache.get(serviceInformation, () -> {
+            loads.incrementAndGet();
+            return stale;
+        }));
+        assertEquals(1, loads.get());
+
+        ICAPRemoteServiceConfiguration fresh = createConfiguration(Instant.now());
+        for (int i = 0; i < 3; i++) {
+            assertSame(stale, cache.get(serviceInformation, () -> {
+                loads.incrementAndGet();
+                return fresh;
+            }));
+        }
+        assertEquals(1, refreshTasks.size());
+
+        refreshTasks.get(0).run();
+        assertEquals(2, loads.get());
+        assertSame(fresh, cache.get(serviceInformation, () -> {
+            throw new IOException("Unexpected load");
+        }));
+        assertEquals(1, refreshTasks.size());
+    }
+
+
+    /**
+     * Test that an expired configuration is not served after the grace period
+     *
+     * @throws IOException In case of an I/O error
+     */
+    @Test
+    public void testExpired() throws IOException {
+        List<Runnable> refreshTasks = new ArrayList<>();
+        ICAPRemoteServiceConfigurationCache cache = new ICAPRemoteServiceConfigurationCache(refreshTasks::add);
+        ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", 1344, false, "srv_test", 60);
+
+        ICAPRemoteServiceConfiguration expired = createConfiguration(Instant.now().minusSeconds(600));
+        assertSame(expired, cache.get(serviceInformation, () -> expired));
+        assertThrows(IOException.class, () -> cache.get(serviceInformation, () -> {
+            throw new IOException("Unreachable");
+        }));
+
+        ICAPRemoteServiceConfiguration fresh = createConfiguration(Instant.now());
+        assertSame(fresh, cache.get(serviceInformation, () -> fresh));
+        assertEquals(0, refreshTasks.size());
+    }
+
+
+    /**
+     * Test that concurrent callers share the same OPTIONS request
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testSingleFlight() throws Exception {
+        ICAPRemoteServiceConfigurationCache cache = new ICAPRemoteServiceConfigurationCache(Runnable::run);
+        ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", 1344, false, "srv_test", 60);
+        AtomicInteger loads = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<ICAPRemoteServiceConfiguration>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> cache.get(serviceInformation, () -> {
+                    loads.incrementAndGet();
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return createConfiguration(Instant.now());
+                })));
+            }
+
+            ICAPRemoteServiceConfiguration remoteServiceConfiguration = futures.get(0).get();
+            for (Future<ICAPRemoteServiceConfiguration> future : futures) {
+                assertSame(remoteServiceConfiguration, future.get());
+            }
+            assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Test the eviction
+     *
+     * @throws IOException In case of an I/O error
+     */
+    @Test
+    public void testEviction() throws IOException {
+        ICAPRemoteServiceConfigurationCache cache = new ICAPRemoteServiceConfigurationCache(Runnable::run);
+        cache.setMaxSize(2);
+        for (int i = 0; i < 3; i++) {
+            cache.get(new ICAPServiceInformation("localhost", 1344 + i, false, "srv_test", 60), () -> createConfiguration(Instant.now()));
+        }
+        assertEquals(2, cache.size());
+    }
+
+
+    /**
+     * Test the snapshot
+     *
+     * @param snapshotDirectory the snapshot directory
+     * @throws IOException In case of an I/O error
+     */
+    @Test
+    public void testSnapshot(@TempDir Path snapshotDirectory) throws IOException {
+        ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", 1344, false, "srv_test", 60);
+        ICAPRemoteServiceConfiguration remoteServiceConfiguration = createConfiguration(Instant.ofEpochSecond(Instant.now().getEpochSecond()));
+
+        ICAPRemoteServiceConfigurationCache cache = new ICAPRemoteServiceConfigurationCache(Runnable::run);
+        cache.setSnapshotDirectory(snapshotDirectory);
+        cache.get(serviceInformation, () -> remoteServiceConfiguration);
+
+        // simulate a restart, the remote server is not reachable
+        List<Runnable> refreshTasks = new ArrayList<>();
+        cache = new ICAPRemoteServiceConfigurationCache(refreshTasks::add);
+        cache.setSnapshotDirectory(snapshotDirectory);
+        assertEquals(remoteServiceConfiguration, cache.get(serviceInformation, () -> {
+            throw new IOException("Unreachable");
+        }));
+        assertEquals(0, refreshTasks.size());
+    }
+
+
+    /**
+     * Create a remote service configuration
+     *
+     * @param timestamp the timestamp
+     * @return the remote service configuration
+     */
+    private ICAPRemoteServiceConfiguration createConfiguration(Instant timestamp) {
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+        headers.put("Methods", Arrays.asList("RESPMOD", "REQMOD"));
+        headers.put("ISTag", Arrays.asList("\"TEST-0001\""));
+        return new ICAPRemoteServiceConfigurationImpl(timestamp, new ICAPMode[] {ICAPMode.RESPMOD, ICAPMode.REQMOD}, 1024, true, 4, 60, headers);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * ICAPRequestTemplateTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.github.toolarium.icap.client.ICAPEndpoint;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the {@link ICAPRequestTemplate}.
+ *
+ * @author patrick
+ */
+public class ICAPRequestTemplateTest {
+    private static final String NEWLINE = "\r\n";
+    private static final String HEADERS = "Connection: keep-alive" + NEWLINE + "User-Agent: test" + NEWLINE + "Allow: 204" + NEWLINE;
+    private ICAPEndpoint endpoint = new ICAPEndpoint(new ICAPServiceInformation("localhost", 1344, false, "srv_clamav", 60));
+
+
+    /**
+     * Test the template against the string based request
+     */
+    @Test
+    public void testTemplate() {
+        for (ICAPMode mode : new ICAPMode[] {ICAPMode.REQMOD, ICAPMode.RESPMOD}) {
+            for (String name : new String[] {"test.txt", " my file.txt ", "a/b (1)+\u00e4.pdf"}) {
+                ICAPRequestTemplate template = new ICAPRequestTemplate(endpoint, mode, "1.0", HEADERS);
+                ICAPRequestBuffer buffer = template.write(new ICAPRequestBuffer(16), name, "source", 123456L, 1024);
+                assertEquals(createRequest(mode, name, "source", 123456L, 1024), buffer.toString());
+
+                // unknown length
+                buffer = template.write(new ICAPRequestBuffer(16), name, "source", -1L, 1024);
+                assertEquals(createRequest(mode, name, "source", -1L, 1024), buffer.toString());
+            }
+        }
+    }
+
+
+    /**
+     * Test that the encapsulated offsets are byte lengths
+     */
+    @Test
+    public void testByteOffsets() {
+        ICAPRequestTemplate template = new ICAPRequestTemplate(endpoint, ICAPMode.RESPMOD, "1.0", HEADERS);
+        String request = template.write(new ICAPRequestBuffer(16), "test.txt", "h\u00f4st-\u20ac", 10L, 10).toString();
+        String httpRequest = "GET /test.txt HTTP/1.1" + NEWLINE + "Host: h\u00f4st-\u20ac" + NEWLINE + NEWLINE;
+        String httpResponse = "HTTP/1.1 200 OK" + NEWLINE + "Transfer-Encoding: chunked" + NEWLINE + "Content-Length: 10" + NEWLINE + NEWLINE;
+        int httpRequestLength = httpRequest.getBytes(StandardCharsets.UTF_8).length;
+        assertEquals(true, request.contains("Encapsulated: req-hdr=0, res-hdr=" + httpRequestLength + ", res-body=" + (httpRequestLength + httpResponse.length()) + NEWLINE));
+        assertEquals(true, request.endsWith(httpRequest + httpResponse + "a" + NEWLINE));
+    }
+
+
+    /**
+     * Test the buffer number formats
+     */
+    @Test
+    public void testBuffer() {
+        ICAPRequestBuffer buffer = new ICAPRequestBuffer(1);
+        buffer.appendDecimal(0).append((byte)' ').appendDecimal(9876543210L).append((byte)' ').appendHex(0).append((byte)' ').appendHex(0x7fffffff).append((byte)' ').appendHex(4096);
+        assertEquals("0 9876543210 0 7fffffff 1000", buffer.toString());
+        assertEquals("\u00e4b", buffer.reset().append("\u00e4b").toString());
+    }
+
+
+    /**
+     * Create the request as it was created by string concatenation
+     *
+     * @param mode the mode
+     * @param name the name
+     * @param source the source
+     * @param length the length
+     * @param previewSize the preview size
+     * @return the request
+     */
+    private String createRequest(ICAPMode mode, String name, String source, long length, int previewSize) {
+        String header = "GET /" + URLEncoder.encode(name.trim(), StandardCharsets.UTF_8) + " HTTP/1.1" + NEWLINE + "Host: " + source + NEWLINE + NEWLINE;
+        String body = header + "HTTP/1.1 200 OK" + NEWLINE + "Transfer-Encoding: chunked" + NEWLINE + (length >= 0 ? "Content-Length: " + length + NEWLINE : "") + NEWLINE;
+        String bodyHdr = ICAPMode.RESPMOD.equals(mode) ? mode.getTag() + "-hdr=" + header.length() + ", " : "";
+        return mode.name() + " icap://localhost:1344/srv_clamav ICAP/1.0" + NEWLINE + "Host: localhost" + NEWLINE + HEADERS
+               + "Preview: " + previewSize + NEWLINE
+               + "Encapsulated: req-hdr=0, " + bodyHdr + mode.getTag() + "-body=" + body.length() + NEWLINE + NEWLINE
+               + body + Integer.toHexString(previewSize) + NEWLINE;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * ICAPRescanJournalTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.toolarium.icap.client.ICAPClient;
+import com.github.toolarium.icap.client.ICAPTestServer;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the {@link ICAPRescanJournal}.
+ *
+ * @author patrick
+ */
+public class ICAPRescanJournalTest {
+
+    /**
+     * Test the rescan of the cleared resources after a change of the ISTag and the checkpoint
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testRescan() throws Exception {
+        ICAPPooledConnectionManagerImpl connectionManager = new ICAPPooledConnectionManagerImpl();
+        Path directory = Files.createTempDirectory("icap-rescan");
+        AtomicReference<String> isTag = new AtomicReference<String>("\"TEST-0001\"");
+        AtomicInteger scans = new AtomicInteger();
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            server.setResponseHandler((method, header, body) -> {
+                final String currentISTag = isTag.get();
+                if ("OPTIONS".equals(method)) {
+                    return ICAPTestServer.OPTIONS_RESPONSE.replace("\"TEST-0001\"", currentISTag);
+                }
+
+                scans.incrementAndGet();
+                if (currentISTag.contains("0002") && new String(body, StandardCharsets.US_ASCII).contains("bad")) {
+                    final String httpHeader = "HTTP/1.1 403 Forbidden\r\n\r\n";
+                    return "ICAP/1.0 200 OK\r\nISTag: " + currentISTag + "\r\nX-Infection-Found: Type=0; Resolution=2; Threat=Test;\r\n"
+                           + "Encapsulated: res-hdr=0, res-body=" + httpHeader.length() + "\r\n\r\n" + httpHeader + "7\r\nblocked\r\n0\r\n\r\n";
+                }
+                return ICAPTestServer.UNMODIFIED_RESPONSE.replace("\"TEST-0001\"", currentISTag);
+            });
+
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null);
+            client.options();
+
+            Path journalFile = directory.resolve("rescan.journal");
+            Path good = Files.write(directory.resolve("good.txt"), "good content".getBytes(StandardCharsets.US_ASCII));
+            Path bad = Files.write(directory.resolve("bad.txt"), "bad content".getBytes(StandardCharsets.US_ASCII));
+            List<String> blocked = new CopyOnWriteArrayList<String>();
+            try (ICAPRescanJournal journal = new ICAPRescanJournal(journalFile, serviceInformation, () -> client, null)) {
+                journal.listener((locator, digest, e) -> blocked.add(locator)).pollInterval(Duration.ofMillis(10)).rate(1000);
+                journal.add(ICAPMode.RESPMOD, good.toString(), "{SHA-256}01");
+                journal.add(ICAPMode.RESPMOD, bad.toString(), "{SHA-256}02");
+                journal.add(ICAPMode.RESPMOD, good.toString(), "{SHA-256}01");
+                journal.add(ICAPMode.RESPMOD, directory.resolve("deleted.txt").toString(), null);
+                journal.start();
+
+                // the entries were cleared by the current ISTag
+                final long size = Files.size(journalFile);
+                waitFor(() -> journal.getOffset() == size);
+                assertEquals(0, scans.get());
+
+                // a new ISTag of the OPTIONS triggers the rescan
+                isTag.set("\"TEST-0002\"");
+                new ICAPClientImpl(connectionManager, serviceInformation, null).options();
+                waitFor(() -> "\"TEST-0002\"".equals(journal.getRoundISTag()) && journal.getOffset() == size);
+                assertEquals(2, journal.getRescans());
+                assertEquals(1, journal.getBlocked());
+                assertEquals(Arrays.asList(bad.toString()), blocked);
+                assertEquals(2, scans.get());
+            }
+
+            // the checkpoint survives a restart
+            try (ICAPRescanJournal journal = new ICAPRescanJournal(journalFile, serviceInformation, () -> client, null)) {
+                assertEquals("\"TEST-0002\"", journal.getRoundISTag());
+                assertEquals(Files.size(journalFile), journal.getOffset());
+                journal.pollInterval(Duration.ofMillis(10)).start();
+                waitFor(() -> journal.getIdlePolls() > 0);
+                assertEquals(0, journal.getRescans());
+                assertEquals(2, scans.get());
+            }
+        } finally {
+            connectionManager.shutdown();
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>)files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+
+    /**
+     * Test that the rescan only uses free connections
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testFreeConnections() throws Exception {
+        Path directory = Files.createTempDirectory("icap-rescan");
+        Path journalFile = directory.resolve("rescan.journal");
+        ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", 1, false, "srv_rescan", 3600);
+        ICAPConnectionLimiter connectionLimiter = new ICAPConnectionLimiter();
+        connectionLimiter.setMaxConnections(2);
+        AtomicInteger resolved = new AtomicInteger();
+        try {
+            ICAPVerdictCache.getInstance().updateISTag(serviceInformation, "\"A\"");
+            try (ICAPRescanJournal journal = new ICAPRescanJournal(journalFile, serviceInformation, () -> null, connectionLimiter, locator -> {
+                resolved.incrementAndGet();
+                return null;
+            })) {
+                journal.add(ICAPMode.REQMOD, "resource", null);
+                ICAPVerdictCache.getInstance().updateISTag(serviceInformation, "\"B\"");
+
+                // an interactive scan uses one of two connections
+                assertTrue(connectionLimiter.tryAcquire());
+                journal.pollInterval(Duration.ofMillis(10)).start();
+                waitFor(() -> journal.getIdlePolls() > 0);
+                assertEquals(0, resolved.get());
+
+                connectionLimiter.release();
+                waitFor(() -> resolved.get() == 1);
+            }
+        } finally {
+            Files.deleteIfExists(journalFile);
+            Files.deleteIfExists(directory.resolve("rescan.journal.checkpoint"));
+            Files.delete(directory);
+        }
+    }
+
+
+    /**
+     * Wait for a condition
+     *
+     * @param condition the condition
+     * @throws InterruptedException In case of an interrupt
+     */
+    private void waitFor(BooleanSupplier condition) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * ICAPResourceSourceTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.toolarium.icap.client.ICAPClient;
+import com.github.toolarium.icap.client.ICAPTestServer;
+import com.github.toolarium.icap.client.dto.ICAPByteBufferSource;
+import com.github.toolarium.icap.client.dto.ICAPChannelSource;
+import com.github.toolarium.icap.client.dto.ICAPCompositeSource;
+import com.github.toolarium.icap.client.dto.ICAPConstants;
+import com.github.toolarium.icap.client.dto.ICAPFileSource;
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
+import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPResourceSource;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the {@link ICAPResourceSource} implementations.
+ *
+ * @author patrick
+ */
+public class ICAPResourceSourceTest {
+
+    /**
+     * Test the sources, the server echoes the content and the digests must be identical
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testSources() throws Exception {
+        byte[] content = ICAPTestServer.createContent(200000);
+        ByteBuffer directBuffer = ByteBuffer.allocateDirect(content.length);
+        directBuffer.put(content).flip();
+        
+        Path file = Files.createTempFile("icap-source-test", ".txt");
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            Files.write(file, Arrays.copyOfRange(content, 0, 60000));
+            server.setResponseHandler(ICAPTestServer::echo);
+
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(new ICAPConnectionManagerImpl(), serviceInformation, null).supportCompareVerifyIdenticalContent(true);
+            assertIdentical(client, new ICAPByteBufferSource(content));
+            assertIdentical(client, new ICAPByteBufferSource(directBuffer));
+            assertIdentical(client, new ICAPChannelSource(Channels.newChannel(new ByteArrayInputStream(content)), content.length));
+            assertIdentical(client, new ICAPCompositeSource(new ICAPFileSource(file),
+                                                            new ICAPByteBufferSource(content, 60000, 40000),
+                                                            new ICAPByteBufferSource(directBuffer.duplicate().position(100000))));
+            
+            try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                fileChannel.position(1000);
+                ICAPChannelSource channelSource = new ICAPChannelSource(fileChannel);
+                assertTrue(channelSource.isRereadable());
+                assertEquals(59000, channelSource.getLength());
+                assertIdentical(client, channelSource);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+
+    /**
+     * Test a stream with unknown length, it's read in small pieces
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testUnknownLength() throws Exception {
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            server.setResponseHandler(ICAPTestServer::echo);
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(new ICAPConnectionManagerImpl(), serviceInformation, null).supportCompareVerifyIdenticalContent(true);
+            
+            for (int length : new int[] {100, 1024, 50000}) {
+                byte[] content = ICAPTestServer.createContent(length);
+                ICAPHeaderInformation icapHeaderInformation = client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation("user", "test"), 
+                                                                                      new ICAPResource("test.txt", new SlowInputStream(content)));
+                assertEquals(200, icapHeaderInformation.getStatus());
+                assertEquals("" + length, icapHeaderInformation.getHeaderValues("X-Length").get(0));
+                assertEquals("" + length, icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_RESOURCE_LENGTH).get(0));
+                assertEquals("true", icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_IDENTICAL_CONTENT).get(0));
+            }
+
+            // an empty stream is not sent
+            ICAPHeaderInformation icapHeaderInformation = client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation("user", "test"), 
+                                                                                  new ICAPResource("test.txt", new SlowInputStream(new byte[0])));
+            assertEquals(0, icapHeaderInformation.getStatus());
+            assertEquals("0", icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_RESOURCE_LENGTH).get(0));
+        }
+    }
+
+
+    /**
+     * Test the re-readable flag
+     *
+     * @throws IOException In case of an I/O error
+     */
+    @Test
+    public void testRereadable() throws IOException {
+        byte[] content = ICAPTestServer.createContent(100);
+        ICAPChannelSource channelSource = new ICAPChannelSource(Channels.newChannel(new ByteArrayInputStream(content)), content.length);
+        assertFalse(channelSource.isRereadable());
+        assertFalse(new ICAPCompositeSource(new ICAPByteBufferSource(content), channelSource).isRereadable());
+        
+        try (ReadableByteChannel channel = channelSource.openChannel()) {
+            assertEquals(100, channel.read(ByteBuffer.allocate(200)));
+        }
+        assertThrows(IOException.class, () -> channelSource.openChannel());
+        
+        ICAPCompositeSource compositeSource = new ICAPCompositeSource(new ICAPByteBufferSource(content), new ICAPByteBufferSource(content));
+        assertTrue(compositeSource.isRereadable());
+        assertEquals(200, compositeSource.getLength());
+        for (int i = 0; i < 2; i++) {
+            ByteBuffer buffer = ByteBuffer.allocate(300);
+            try (ReadableByteChannel channel = compositeSource.openChannel()) {
+                while (channel.read(buffer) >= 0) {
+                    // NOP
+                }
+            }
+            assertEquals(200, buffer.position());
+        }
+    }
+
+
+    /**
+     * Validate a source and check that the response is identical
+     *
+     * @param client the client
+     * @param resourceSource the resource source
+     * @throws Exception In case of an error
+     */
+    private static void assertIdentical(ICAPClient client, ICAPResourceSource resourceSource) throws Exception {
+        ICAPHeaderInformation icapHeaderInformation = client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation("user", "test"), 
+                                                                              new ICAPResource("test.txt", resourceSource));
+        assertEquals(200, icapHeaderInformation.getStatus());
+        assertEquals("true", icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_IDENTICAL_CONTENT).get(0));
+    }
+
+
+
+
+    /**
+     * Input stream which returns at most 7 bytes per read, like a slow upload
+     */
+    private static class SlowInputStream extends ByteArrayInputStream {
+
+        /**
+         * Constructor for SlowInputStream
+         *
+         * @param content the content
+         */
+        SlowInputStream(byte[] content) {
+            super(content);
+        }
+
+
+        /**
+         * @see java.io.ByteArrayInputStream#read(byte[], int, int)
+         */
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(7, len));
+        }
+    }
+}
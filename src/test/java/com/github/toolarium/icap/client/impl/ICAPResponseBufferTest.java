@@ -0,0 +1,159 @@
+/*
+ * ICAPResponseBufferTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.toolarium.icap.client.util.ICAPClientUtil;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the {@link ICAPResponseBuffer}.
+ *
+ * @author patrick
+ */
+public class ICAPResponseBufferTest {
+
+    /**
+     * Test a response which is kept in memory
+     *
+     * @throws IOException In case of an I/O error
+     */
+    @Test
+    public void testInMemory() throws IOException {
+        Path directory = Files.createTempDirectory("icap-response-test");
+        try (ICAPResponseBuffer buffer = new ICAPResponseBuffer(100000, directory)) {
+            byte[] content = createContent(50000);
+            buffer.write(content, 0, 20000);
+            buffer.write(content, 20000, 30000);
+            assertEquals(50000, buffer.length());
+            assertFalse(buffer.isSpilled());
+            assertArrayEquals(content, buffer.toByteArray());
+            assertArrayEquals(content, ICAPClientUtil.getInstance().readResourceAndClose(buffer.getInputStream()));
+            assertEquals(0, countFiles(directory));
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+
+    /**
+     * Test a response which is spilled to a file
+     *
+     * @throws IOException In case of an I/O error
+     */
+    @Test
+    public void testSpill() throws IOException {
+        Path directory = Files.createTempDirectory("icap-response-test");
+        try {
+            byte[] content = createContent(300000);
+            try (ICAPResponseBuffer buffer = new ICAPResponseBuffer(40000, directory)) {
+                buffer.write(content, 0, 30000);
+                assertFalse(buffer.isSpilled());
+                buffer.write(content, 30000, 100000);
+                buffer.write(content, 130000, 170000);
+                assertTrue(buffer.isSpilled());
+                assertEquals(1, countFiles(directory));
+                assertEquals(content.length, buffer.length());
+                assertArrayEquals(content, buffer.toByteArray());
+                assertArrayEquals(content, ICAPClientUtil.getInstance().readResourceAndClose(buffer.getInputStream()));
+            }
+
+            assertEquals(0, countFiles(directory));
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+
+    /**
+     * Test a response which is spilled by an executor, the writer doesn't touch the file system
+     *
+     * @throws IOException In case of an I/O error
+     */
+    @Test
+    public void testSpillExecutor() throws IOException {
+        Path directory = Files.createTempDirectory("icap-response-test");
+        try {
+            final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+            final AtomicBoolean released = new AtomicBoolean(false);
+            final Executor executor = task -> {
+                if (released.get()) {
+                    task.run();
+                } else {
+                    tasks.add(task);
+                }
+            };
+            
+            byte[] content = createContent(300000);
+            try (ICAPResponseBuffer buffer = new ICAPResponseBuffer(40000, directory, executor)) {
+                buffer.write(content, 0, 30000);
+                assertFalse(buffer.isSpilled());
+                buffer.write(content, 30000, 100000);
+                buffer.write(content, 130000, 170000);
+                assertTrue(buffer.isSpilled());
+                assertEquals(0, countFiles(directory));
+                assertFalse(tasks.isEmpty());
+
+                released.set(true);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                
+                assertEquals(1, countFiles(directory));
+                assertEquals(content.length, buffer.length());
+                assertArrayEquals(content, buffer.toByteArray());
+                assertArrayEquals(content, ICAPClientUtil.getInstance().readResourceAndClose(buffer.getInputStream()));
+            }
+
+            assertEquals(0, countFiles(directory));
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+
+    /**
+     * Create content
+     *
+     * @param length the length
+     * @return the content
+     */
+    private static byte[] createContent(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte)(i % 251);
+        }
+        return content;
+    }
+
+
+    /**
+     * Count the files of a directory
+     *
+     * @param directory the directory
+     * @return the number of files
+     * @throws IOException In case of an I/O error
+     */
+    private static long countFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}
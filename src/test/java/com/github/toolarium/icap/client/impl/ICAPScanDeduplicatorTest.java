@@ -0,0 +1,234 @@
+/*
+ * ICAPScanDeduplicatorTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.toolarium.icap.client.ICAPClient;
+import com.github.toolarium.icap.client.ICAPTestServer;
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
+import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import com.github.toolarium.icap.client.exception.ContentBlockedException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the {@link ICAPScanDeduplicator}.
+ *
+ * @author patrick
+ */
+public class ICAPScanDeduplicatorTest {
+    private static final int CALLERS = 8;
+
+
+    /**
+     * Test that concurrent scans of the same content share one scan
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testConcurrentScans() throws Exception {
+        ICAPPooledConnectionManagerImpl connectionManager = new ICAPPooledConnectionManagerImpl();
+        ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+        CountDownLatch releaseClean = new CountDownLatch(1);
+        CountDownLatch releaseVirus = new CountDownLatch(1);
+        ICAPScanDeduplicator.getInstance().setEnabled(true);
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            server.setResponseHandler((method, header, body) -> {
+                if ("OPTIONS".equals(method)) {
+                    return ICAPTestServer.OPTIONS_RESPONSE;
+                }
+
+                boolean virus = new String(body, StandardCharsets.US_ASCII).startsWith("VIRUS");
+                try {
+                    (virus ? releaseVirus : releaseClean).await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                if (!virus) {
+                    return ICAPTestServer.UNMODIFIED_RESPONSE;
+                }
+
+                String httpHeader = "HTTP/1.1 403 Forbidden\r\n\r\n";
+                return "ICAP/1.0 200 OK\r\nISTag: \"TEST-0001\"\r\nX-Infection-Found: Type=0; Resolution=2; Threat=Test;\r\n"
+                       + "Encapsulated: res-hdr=0, res-body=" + httpHeader.length() + "\r\n\r\n" + httpHeader + "7\r\nblocked\r\n0\r\n\r\n";
+            });
+
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null);
+            client.options(new ICAPRequestInformation());
+            int requests = server.getRequests();
+
+            // valid content
+            long sharedScans = ICAPScanDeduplicator.getInstance().getSharedScans();
+            List<CompletableFuture<Object>> results = scan(executor, client, "CLEAN");
+            awaitSharedScans(sharedScans + CALLERS - 1);
+            releaseClean.countDown();
+
+            Object first = results.get(0).get(30, TimeUnit.SECONDS);
+            assertTrue(first instanceof ICAPHeaderInformation);
+            assertEquals(204, ((ICAPHeaderInformation)first).getStatus());
+            // each caller gets its own copy
+            Set<Object> copies = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+            for (CompletableFuture<Object> result : results) {
+                Object headerInformation = result.get(30, TimeUnit.SECONDS);
+                assertTrue(headerInformation instanceof ICAPHeaderInformation);
+                assertEquals(204, ((ICAPHeaderInformation)headerInformation).getStatus());
+                copies.add(headerInformation);
+            }
+            assertEquals(CALLERS, copies.size());
+            assertEquals(requests + 1, server.getRequests());
+            assertEquals(0, ICAPScanDeduplicator.getInstance().size());
+
+            // blocked content
+            sharedScans = ICAPScanDeduplicator.getInstance().getSharedScans();
+            results = scan(executor, client, "VIRUS");
+            awaitSharedScans(sharedScans + CALLERS - 1);
+            releaseVirus.countDown();
+
+            first = results.get(0).get(30, TimeUnit.SECONDS);
+            assertTrue(first instanceof ContentBlockedException);
+            assertEquals("blocked", ((ContentBlockedException)first).getContent());
+            copies.clear();
+            for (CompletableFuture<Object> result : results) {
+                Object e = result.get(30, TimeUnit.SECONDS);
+                assertTrue(e instanceof ContentBlockedException);
+                assertEquals("blocked", ((ContentBlockedException)e).getContent());
+                copies.add(e);
+                copies.add(((ContentBlockedException)e).getICAPHeaderInformation());
+            }
+            assertEquals(2 * CALLERS, copies.size());
+            assertEquals(requests + 2, server.getRequests());
+        } finally {
+            releaseClean.countDown();
+            releaseVirus.countDown();
+            ICAPScanDeduplicator.getInstance().setEnabled(false);
+            executor.shutdownNow();
+            connectionManager.shutdown();
+        }
+    }
+
+
+    /**
+     * Test that a caller waits for a running scan at most its read timeout
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testWaitTimeout() throws Exception {
+        ICAPPooledConnectionManagerImpl connectionManager = new ICAPPooledConnectionManagerImpl();
+        ICAPNioConnectionManagerImpl nioConnectionManager = new ICAPNioConnectionManagerImpl(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ICAPScanDeduplicator.getInstance().setEnabled(true);
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            server.setResponseHandler((method, header, body) -> {
+                if ("OPTIONS".equals(method)) {
+                    return ICAPTestServer.OPTIONS_RESPONSE;
+                }
+
+                try {
+                    release.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return ICAPTestServer.UNMODIFIED_RESPONSE;
+            });
+
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null);
+            client.options(new ICAPRequestInformation());
+
+            long sharedScans = ICAPScanDeduplicator.getInstance().getSharedScans();
+            CompletableFuture<ICAPHeaderInformation> runningScan = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), new ICAPResource("test.txt", "SLOW".getBytes(StandardCharsets.US_ASCII)));
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            });
+            
+            while (ICAPScanDeduplicator.getInstance().size() == 0 && !runningScan.isDone()) {
+                Thread.sleep(10);
+            }
+
+            ICAPResource resource = new ICAPResource("test.txt", "SLOW".getBytes(StandardCharsets.US_ASCII));
+            assertThrows(SocketTimeoutException.class, () -> client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation().maxReadTimeout(200), resource));
+            ICAPClient nioClient = new ICAPClientImpl(nioConnectionManager, serviceInformation, null);
+            ExecutionException e = assertThrows(ExecutionException.class, 
+                                                () -> nioClient.validateResourceAsync(ICAPMode.RESPMOD, new ICAPRequestInformation().maxReadTimeout(200), resource).get(30, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+            assertEquals(sharedScans + 2, ICAPScanDeduplicator.getInstance().getSharedScans());
+
+            // the running scan is not affected
+            release.countDown();
+            assertEquals(204, runningScan.get(30, TimeUnit.SECONDS).getStatus());
+        } finally {
+            release.countDown();
+            ICAPScanDeduplicator.getInstance().setEnabled(false);
+            nioConnectionManager.shutdown();
+            connectionManager.shutdown();
+        }
+    }
+
+
+    /**
+     * Scan the same content by concurrent callers
+     *
+     * @param executor the executor
+     * @param client the client
+     * @param content the content
+     * @return the results, the header information or the exception
+     */
+    private List<CompletableFuture<Object>> scan(ExecutorService executor, ICAPClient client, String content) {
+        List<CompletableFuture<Object>> results = new ArrayList<CompletableFuture<Object>>();
+        for (int i = 0; i < CALLERS; i++) {
+            ICAPResource resource = new ICAPResource("test" + i + ".txt", content.getBytes(StandardCharsets.US_ASCII));
+            results.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), resource);
+                } catch (Exception e) {
+                    return e;
+                }
+            }, executor));
+        }
+        return results;
+    }
+
+
+    /**
+     * Wait until the callers joined the running scan
+     *
+     * @param sharedScans the expected number of shared scans
+     * @throws InterruptedException In case of an interrupt
+     */
+    private void awaitSharedScans(long sharedScans) throws InterruptedException {
+        long end = System.currentTimeMillis() + 30000;
+        while (ICAPScanDeduplicator.getInstance().getSharedScans() < sharedScans && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(sharedScans, ICAPScanDeduplicator.getInstance().getSharedScans());
+    }
+}
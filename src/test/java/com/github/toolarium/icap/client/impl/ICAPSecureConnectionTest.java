@@ -0,0 +1,123 @@
+/*
+ * ICAPSecureConnectionTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.toolarium.icap.client.ICAPClient;
+import com.github.toolarium.icap.client.ICAPTestServer;
+import com.github.toolarium.icap.client.dto.ICAPByteBufferSource;
+import com.github.toolarium.icap.client.dto.ICAPConstants;
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
+import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the secure connections of the blocking and the non-blocking transport.
+ *
+ * @author patrick
+ */
+public class ICAPSecureConnectionTest {
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+
+    /**
+     * Test the scans over secure connections
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testSecureScans() throws Exception {
+        ICAPNioConnectionManagerImpl connectionManager = new ICAPNioConnectionManagerImpl(1);
+        connectionManager.setSSLContext(createSSLContext(false));
+        try (ICAPTestServer server = new ICAPTestServer(createSSLContext(true))) {
+            server.setResponseHandler(ICAPTestServer::echo);
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), true, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null).supportCompareVerifyIdenticalContent(true);
+
+            for (int length : new int[] {100, 1025, 16372, 300000}) {
+                ICAPResource resource = new ICAPResource("test.txt", new ICAPByteBufferSource(ICAPTestServer.createContent(length)));
+                ICAPHeaderInformation icapHeaderInformation = client.validateResourceAsync(ICAPMode.RESPMOD, new ICAPRequestInformation(), resource).get();
+                assertEquals("" + length, icapHeaderInformation.getHeaderValues("X-Length").get(0));
+                assertEquals("true", icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_IDENTICAL_CONTENT).get(0));
+            }
+
+            // the blocking transport uses the same SSL context
+            ICAPHeaderInformation icapHeaderInformation = client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(),
+                                                                                  new ICAPResource("test.txt", new ICAPByteBufferSource(ICAPTestServer.createContent(5000))));
+            assertEquals("true", icapHeaderInformation.getHeaderValues(ICAPConstants.HEADER_KEY_X_IDENTICAL_CONTENT).get(0));
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+
+
+    /**
+     * Test that a new connection resumes the TLS session of the previous connection
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testSessionResumption() throws Exception {
+        ICAPNioConnectionManagerImpl connectionManager = new ICAPNioConnectionManagerImpl(1);
+        connectionManager.setSSLContext(createSSLContext(false));
+        connectionManager.setEnabledProtocols("TLSv1.2");
+        connectionManager.setMaxIdleConnectionsPerRoute(0);
+        try (ICAPTestServer server = new ICAPTestServer(createSSLContext(true))) {
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), true, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null);
+            for (int i = 0; i < 3; i++) {
+                ICAPResource resource = new ICAPResource("test.txt", new ICAPByteBufferSource(ICAPTestServer.createContent(2000)));
+                assertEquals(204, client.validateResourceAsync(ICAPMode.RESPMOD, new ICAPRequestInformation(), resource).get().getStatus());
+            }
+
+            // the connections are not kept, each scan resumes the session of the first connection
+            assertTrue(server.getSessionIds().size() >= 3);
+            assertEquals(1, server.getSessionIds().stream().distinct().count());
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+
+
+    /**
+     * Create the SSL context of the test certificate
+     *
+     * @param server true for the server context; otherwise the context trusts the test certificate
+     * @return the SSL context
+     * @throws Exception In case of an error
+     */
+    private static SSLContext createSSLContext(boolean server) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream is = Files.newInputStream(Paths.get("src/test/resources/icap-test.p12"))) {
+            keyStore.load(is, PASSWORD);
+        }
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        if (server) {
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, PASSWORD);
+            sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+        } else {
+            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init(keyStore);
+            sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        }
+        return sslContext;
+    }
+}
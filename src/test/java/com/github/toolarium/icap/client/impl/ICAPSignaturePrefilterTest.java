@@ -0,0 +1,193 @@
+/*
+ * ICAPSignaturePrefilterTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.toolarium.icap.client.ICAPClient;
+import com.github.toolarium.icap.client.ICAPTestServer;
+import com.github.toolarium.icap.client.dto.ICAPConstants;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
+import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import com.github.toolarium.icap.client.exception.ContentBlockedException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the {@link ICAPSignaturePrefilter}.
+ *
+ * @author patrick
+ */
+public class ICAPSignaturePrefilterTest {
+    private static final String EICAR = "X5O!P%@AP[4\\PZX54(P^)7CC)7}$EICAR-STANDARD-ANTIVIRUS-TEST-FILE!$H+H*";
+
+
+    /**
+     * Test the automaton with overlapping signatures and across buffer boundaries
+     */
+    @Test
+    public void testScanner() {
+        Map<String, byte[]> signatures = new LinkedHashMap<String, byte[]>();
+        signatures.put("he", bytes("he"));
+        signatures.put("she", bytes("she"));
+        signatures.put("hers", bytes("hers"));
+        signatures.put("binary", new byte[] {(byte)0xFF, 0x00, (byte)0x80});
+
+        ICAPSignaturePrefilter prefilter = new ICAPSignaturePrefilter();
+        assertFalse(prefilter.isEnabled());
+        assertNull(prefilter.createScanner());
+        prefilter.setSignatures(signatures);
+        assertTrue(prefilter.isEnabled());
+
+        assertEquals(null, scan(prefilter, "ushrs hr"));
+        assertEquals("she", scan(prefilter, "ushers"));
+        assertEquals("he", scan(prefilter, "ahex"));
+        assertEquals(null, scan(prefilter, "ers"));
+
+        ICAPSignaturePrefilter.Scanner scanner = prefilter.createScanner();
+        assertFalse(scanner.update(new byte[] {0x01, (byte)0xFF}, 0, 2));
+        assertFalse(scanner.update(new byte[] {0x00}, 0, 1));
+        assertTrue(scanner.update(new byte[] {(byte)0x80, 0x01}, 0, 2));
+        assertEquals("binary", scanner.getMatch());
+    }
+
+
+    /**
+     * Test the signature file
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testLoad() throws Exception {
+        Path file = Files.createTempFile("icap-signatures", ".txt");
+        try {
+            ICAPSignaturePrefilter prefilter = new ICAPSignaturePrefilter();
+            Files.write(file, Arrays.asList("# name;hex", "", "Test;74 65 73 74"));
+            prefilter.load(file);
+            assertEquals("Test", scan(prefilter, "a test"));
+
+            Files.write(file, Arrays.asList("Test;74 65 73 74", "Invalid;7"));
+            assertThrows(IOException.class, () -> prefilter.load(file));
+
+            prefilter.load(null);
+            assertFalse(prefilter.isEnabled());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+
+    /**
+     * Test that a content with a signature is blocked without a scan
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testValidateResource() throws Exception {
+        ICAPPooledConnectionManagerImpl connectionManager = new ICAPPooledConnectionManagerImpl();
+        AtomicInteger scans = new AtomicInteger();
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            server.setResponseHandler((method, header, body) -> {
+                if (!"OPTIONS".equals(method)) {
+                    scans.incrementAndGet();
+                }
+                return "OPTIONS".equals(method) ? ICAPTestServer.OPTIONS_RESPONSE : ICAPTestServer.UNMODIFIED_RESPONSE;
+            });
+
+            Map<String, byte[]> signatures = new LinkedHashMap<String, byte[]>();
+            signatures.put("EICAR-Test-File", bytes(EICAR));
+            ICAPSignaturePrefilter.getInstance().setSignatures(signatures);
+
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null);
+            client.options(new ICAPRequestInformation());
+
+            byte[] content = content(5000, EICAR);
+            ContentBlockedException e = assertThrows(ContentBlockedException.class, () -> client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), new ICAPResource("eicar.txt", content)));
+            assertEquals("Type=0; Resolution=2; Threat=EICAR-Test-File;", e.getICAPHeaderInformation().getHeaderValues(ICAPConstants.HEADER_KEY_X_INFECTION_FOUND).get(0));
+            assertEquals(200, e.getICAPHeaderInformation().getStatus());
+
+            // a file is scanned while it's sent, it's blocked before the terminator
+            Path file = Files.createTempFile("icap-eicar", ".txt");
+            try {
+                Files.write(file, content);
+                assertThrows(ContentBlockedException.class, () -> client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), new ICAPResource(file)));
+            } finally {
+                Files.deleteIfExists(file);
+            }
+
+            // a stream is blocked in the preview and after the preview
+            assertThrows(ContentBlockedException.class, () -> client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), new ICAPResource("eicar.txt", new ByteArrayInputStream(content(10, EICAR)))));
+            assertThrows(ContentBlockedException.class, () -> client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), new ICAPResource("eicar.txt", new ByteArrayInputStream(content))));
+            assertEquals(0, scans.get());
+
+            assertEquals(204, client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), new ICAPResource("clean.txt", content(5000, ""))).getStatus());
+            assertEquals(204, client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), new ICAPResource("clean.txt", new ByteArrayInputStream(content(5000, "")))).getStatus());
+            assertEquals(2, scans.get());
+        } finally {
+            ICAPSignaturePrefilter.getInstance().setSignatures(null);
+            connectionManager.shutdown();
+        }
+    }
+
+
+    /**
+     * Scan a text
+     *
+     * @param prefilter the prefilter
+     * @param text the text
+     * @return the matched signature or null
+     */
+    private String scan(ICAPSignaturePrefilter prefilter, String text) {
+        ICAPSignaturePrefilter.Scanner scanner = prefilter.createScanner();
+        byte[] content = bytes(text);
+        for (int i = 0; i < content.length; i++) {
+            scanner.update(content, i, 1);
+        }
+        return scanner.getMatch();
+    }
+
+
+    /**
+     * Create a content with a text at a position
+     *
+     * @param position the position of the text
+     * @param text the text
+     * @return the content
+     */
+    private byte[] content(int position, String text) {
+        byte[] content = new byte[position + text.length() + 100];
+        Arrays.fill(content, (byte)'a');
+        System.arraycopy(bytes(text), 0, content, position, text.length());
+        return content;
+    }
+
+
+    /**
+     * Get the bytes of a text
+     *
+     * @param text the text
+     * @return the bytes
+     */
+    private byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * ICAPSocketWriteTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.toolarium.icap.client.ICAPTestServer;
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
+import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the write path of the {@link ICAPSocket}.
+ *
+ * @author patrick
+ */
+public class ICAPSocketWriteTest {
+
+    /**
+     * Test that the writes are gathered and sent at the protocol boundaries
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testGatheringWrites() throws Exception {
+        AtomicInteger writes = new AtomicInteger();
+        CountingConnectionManager connectionManager = new CountingConnectionManager(writes);
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClientImpl client = new ICAPClientImpl(connectionManager, serviceInformation, null);
+            client.options();
+            assertEquals(1, writes.getAndSet(0));
+
+            // header, preview and ieof are sent together
+            byte[] content = "small test content".getBytes();
+            client.validateResource(ICAPMode.REQMOD, new ICAPRequestInformation(), new ICAPResource("test.txt", new ByteArrayInputStream(content), content.length));
+            assertEquals(1, writes.getAndSet(0));
+
+            // header with preview and the remaining content after the 100 continue
+            content = new byte[5000];
+            client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), new ICAPResource("test.txt", new ByteArrayInputStream(content), content.length));
+            assertEquals(2, writes.getAndSet(0));
+            assertTrue(connectionManager.tcpNoDelay);
+        }
+    }
+
+
+    /**
+     * Test the chunk encoding
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testWriteChunk() throws Exception {
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            server.setResponseHandler((method, header, body) -> {
+                return "OPTIONS".equals(method) ? ICAPTestServer.OPTIONS_RESPONSE : "ICAP/1.0 204 Unmodified\r\nX-Length: " + body.length + "\r\n\r\n";
+            });
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClientImpl client = new ICAPClientImpl(new ICAPConnectionManagerImpl(), serviceInformation, null);
+            byte[] content = new byte[100000];
+            assertEquals("100000", client.validateResource(ICAPMode.REQMOD, new ICAPRequestInformation(), new ICAPResource("test.txt", new ByteArrayInputStream(content), content.length))
+                                           .getHeaderValues("X-Length").get(0));
+        }
+    }
+
+
+    /**
+     * Test the transfer of a file resource, once by the socket channel and once by the mapped file
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testWriteFile() throws Exception {
+        byte[] content = new byte[3 * 1024 * 1024 + 17];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte)(i % 251);
+        }
+        
+        Path file = Files.createTempFile("icap-file-test", ".bin");
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            Files.write(file, content);
+            server.setResponseHandler((method, header, body) -> {
+                return "OPTIONS".equals(method) ? ICAPTestServer.OPTIONS_RESPONSE 
+                        : "ICAP/1.0 204 Unmodified\r\nX-Length: " + body.length + "\r\nX-Hash: " + Arrays.hashCode(body) + "\r\n\r\n";
+            });
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            
+            ICAPClientImpl client = new ICAPClientImpl(new ICAPConnectionManagerImpl(), serviceInformation, null);
+            ICAPHeaderInformation headerInformation = client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), new ICAPResource(file));
+            assertEquals("" + content.length, headerInformation.getHeaderValues("X-Length").get(0));
+            assertEquals("" + Arrays.hashCode(content), headerInformation.getHeaderValues("X-Hash").get(0));
+
+            // the socket has no channel, the file is mapped
+            client = new ICAPClientImpl(new CountingConnectionManager(new AtomicInteger()), serviceInformation, null);
+            headerInformation = client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), new ICAPResource(file));
+            assertEquals("" + content.length, headerInformation.getHeaderValues("X-Length").get(0));
+            assertEquals("" + Arrays.hashCode(content), headerInformation.getHeaderValues("X-Hash").get(0));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+
+    /**
+     * Connection manager which counts the writes to the socket
+     */
+    private static class CountingConnectionManager extends ICAPConnectionManagerImpl {
+        private final AtomicInteger writes;
+        private volatile boolean tcpNoDelay;
+
+
+        /**
+         * Constructor for CountingConnectionManager
+         *
+         * @param writes the writes
+         */
+        CountingConnectionManager(AtomicInteger writes) {
+            this.writes = writes;
+        }
+
+
+        /**
+         * @see com.github.toolarium.icap.client.impl.ICAPConnectionManagerImpl#createUnsecureSocket(java.lang.String, int, java.lang.Integer, java.lang.Integer)
+         */
+        @Override
+        protected Socket createUnsecureSocket(String hostname, int port, Integer maxConnectionTimeout, Integer maxReadTimeout) throws UnknownHostException, IOException {
+            Socket socket = new Socket() {
+                /**
+                 * @see java.net.Socket#getOutputStream()
+                 */
+                @Override
+                public OutputStream getOutputStream() throws IOException {
+                    return new FilterOutputStream(super.getOutputStream()) {
+                        /**
+                         * @see java.io.FilterOutputStream#write(byte[], int, int)
+                         */
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            writes.incrementAndGet();
+                            out.write(b, off, len);
+                        }
+                    };
+                }
+            };
+            configureSocket(socket);
+            socket.connect(new InetSocketAddress(hostname, port));
+            tcpNoDelay = socket.getTcpNoDelay();
+            return socket;
+        }
+    }
+}
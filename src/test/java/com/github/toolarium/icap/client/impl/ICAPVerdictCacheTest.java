@@ -0,0 +1,162 @@
+/*
+ * ICAPVerdictCacheTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.toolarium.icap.client.ICAPClient;
+import com.github.toolarium.icap.client.ICAPTestServer;
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
+import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import com.github.toolarium.icap.client.exception.ContentBlockedException;
+import com.github.toolarium.icap.client.util.ICAPFingerprint;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the {@link ICAPVerdictCache}.
+ *
+ * @author patrick
+ */
+public class ICAPVerdictCacheTest {
+
+    /**
+     * Test that a frequently requested verdict survives a scan of one-time verdicts
+     */
+    @Test
+    public void testEviction() {
+        ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", 1344, false, "srv_test", 3600);
+        ICAPVerdictCache verdictCache = new ICAPVerdictCache();
+        verdictCache.setMaxSize(100);
+        verdictCache.updateISTag(serviceInformation, "\"TEST-0001\"");
+
+        ICAPVerdictCache.VerdictKey hotKey = new ICAPVerdictCache.VerdictKey("hot", serviceInformation, ICAPMode.RESPMOD, false, "\"TEST-0001\"");
+        verdictCache.put(hotKey, ICAPVerdictCache.Verdict.valid(new ICAPHeaderInformation()));
+        for (int i = 0; i < 5000; i++) {
+            if (i % 10 == 0) {
+                assertNotNull(verdictCache.get(hotKey));
+            }
+            verdictCache.put(new ICAPVerdictCache.VerdictKey("cold" + i, serviceInformation, ICAPMode.RESPMOD, false, "\"TEST-0001\""),
+                             ICAPVerdictCache.Verdict.valid(new ICAPHeaderInformation()));
+            assertTrue(verdictCache.size() <= 100);
+        }
+        assertNotNull(verdictCache.get(hotKey));
+
+        // a verdict of an outdated ISTag is not admitted
+        ICAPVerdictCache.VerdictKey outdatedKey = new ICAPVerdictCache.VerdictKey("outdated", serviceInformation, ICAPMode.RESPMOD, false, "\"TEST-0000\"");
+        verdictCache.put(outdatedKey, ICAPVerdictCache.Verdict.valid(new ICAPHeaderInformation()));
+        assertNull(verdictCache.get(outdatedKey));
+
+        verdictCache.updateISTag(serviceInformation, "\"TEST-0002\"");
+        assertEquals(0, verdictCache.size());
+
+        // a resize clears the verdicts but keeps the ISTags
+        verdictCache.put(new ICAPVerdictCache.VerdictKey("resized", serviceInformation, ICAPMode.RESPMOD, false, "\"TEST-0002\""),
+                         ICAPVerdictCache.Verdict.valid(new ICAPHeaderInformation()));
+        assertEquals(1, verdictCache.size());
+        verdictCache.setMaxSize(50);
+        assertEquals(0, verdictCache.size());
+        assertEquals("\"TEST-0002\"", verdictCache.getISTag(serviceInformation));
+    }
+
+
+    /**
+     * Test that a rescan of the same content is answered by the cache until the ISTag changes
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testValidateResource() throws Exception {
+        ICAPPooledConnectionManagerImpl connectionManager = new ICAPPooledConnectionManagerImpl();
+        AtomicReference<String> isTag = new AtomicReference<String>("\"TEST-0001\"");
+        ICAPVerdictCache.getInstance().setMaxSize(100);
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            server.setResponseHandler((method, header, body) -> {
+                if ("OPTIONS".equals(method)) {
+                    return ICAPTestServer.OPTIONS_RESPONSE;
+                }
+                if (!new String(body, StandardCharsets.US_ASCII).startsWith("VIRUS")) {
+                    return ICAPTestServer.UNMODIFIED_RESPONSE.replace("\"TEST-0001\"", isTag.get());
+                }
+
+                String httpHeader = "HTTP/1.1 403 Forbidden\r\n\r\n";
+                return "ICAP/1.0 200 OK\r\nISTag: " + isTag.get() + "\r\nX-Infection-Found: Type=0; Resolution=2; Threat=Test;\r\n"
+                       + "Encapsulated: res-hdr=0, res-body=" + httpHeader.length() + "\r\n\r\n" + httpHeader + "7\r\nblocked\r\n0\r\n\r\n";
+            });
+
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null);
+            client.options(new ICAPRequestInformation());
+            int requests = server.getRequests();
+
+            ICAPResource clean = new ICAPResource("clean.txt", "CLEAN".getBytes(StandardCharsets.US_ASCII));
+            assertEquals(204, client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), clean).getStatus());
+            assertEquals(204, client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), clean).getStatus());
+            assertEquals(204, client.validateResourceAsync(ICAPMode.RESPMOD, new ICAPRequestInformation(), clean).get().getStatus());
+            assertEquals(requests + 1, server.getRequests());
+
+            ICAPResource virus = new ICAPResource("virus.txt", "VIRUS".getBytes(StandardCharsets.US_ASCII));
+            assertThrows(ContentBlockedException.class, () -> client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), virus));
+            ContentBlockedException e = assertThrows(ContentBlockedException.class, () -> client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), virus));
+            assertEquals("blocked", e.getContent());
+            assertEquals(requests + 2, server.getRequests());
+
+            // a changed ISTag of a scan response invalidates the verdicts
+            isTag.set("\"TEST-0002\"");
+            client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), new ICAPResource("other.txt", "OTHER".getBytes(StandardCharsets.US_ASCII)));
+            assertEquals(requests + 3, server.getRequests());
+            client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), clean);
+            assertEquals(requests + 4, server.getRequests());
+            client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), clean);
+            assertEquals(requests + 4, server.getRequests());
+        } finally {
+            ICAPVerdictCache.getInstance().setMaxSize(0);
+            connectionManager.shutdown();
+        }
+    }
+
+
+    /**
+     * Test that a verdict of a request which was not sampled is not returned to a request which verifies the identical content
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testSampledVerification() throws Exception {
+        ICAPPooledConnectionManagerImpl connectionManager = new ICAPPooledConnectionManagerImpl();
+        ICAPVerdictCache.getInstance().setMaxSize(100);
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null);
+            ICAPClient unsampledClient = client.supportCompareVerifyIdenticalContent(true).fingerprint(ICAPFingerprint.XXH64, 0);
+            ICAPClient sampledClient = client.supportCompareVerifyIdenticalContent(true).fingerprint(ICAPFingerprint.XXH64, 1);
+            client.options(new ICAPRequestInformation());
+            int requests = server.getRequests();
+
+            ICAPResource clean = new ICAPResource("clean.txt", "CLEAN".getBytes(StandardCharsets.US_ASCII));
+            assertEquals(204, unsampledClient.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), clean).getStatus());
+            assertEquals(204, client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), clean).getStatus());
+            assertEquals(requests + 1, server.getRequests());
+
+            // the verified verdict is kept apart
+            assertEquals(204, sampledClient.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), clean).getStatus());
+            assertEquals(204, sampledClient.validateResourceAsync(ICAPMode.RESPMOD, new ICAPRequestInformation(), clean).get().getStatus());
+            assertEquals(requests + 2, server.getRequests());
+        } finally {
+            ICAPVerdictCache.getInstance().setMaxSize(0);
+            connectionManager.shutdown();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * ICAPVerdictStoreTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.toolarium.icap.client.ICAPClient;
+import com.github.toolarium.icap.client.ICAPTestServer;
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
+import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import com.github.toolarium.icap.client.exception.ContentBlockedException;
+import com.github.toolarium.icap.client.impl.parser.ICAPHeaderMap;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the {@link ICAPVerdictStore}.
+ *
+ * @author patrick
+ */
+public class ICAPVerdictStoreTest {
+    private static final String ISTAG = "\"TEST-0001\"";
+
+
+    /**
+     * Test that the verdicts survive the close of the store and are read by another instance
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testPersistence() throws Exception {
+        ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", 1344, false, "srv_test", 3600);
+        Path file = Files.createTempFile("icap-verdicts", ".dat");
+        Files.delete(file);
+        try {
+            ICAPVerdictStore store = new ICAPVerdictStore();
+            store.open(file, 1024);
+
+            ICAPHeaderMap headers = new ICAPHeaderMap();
+            headers.put("ISTag", Arrays.asList(ISTAG));
+            headers.put("X-Infection-Found", Arrays.asList("Type=0; Resolution=2; Threat=Test;"));
+            ICAPHeaderInformation blockedHeader = new ICAPHeaderInformation().setProtocol("ICAP").setVersion("1.0").setStatus(200).setMessage("OK").setHeaders(headers);
+            store.put(key(serviceInformation, "clean", ISTAG), ICAPVerdictCache.Verdict.valid(new ICAPHeaderInformation().setProtocol("ICAP").setVersion("1.0").setStatus(204).setMessage("Unmodified")));
+            store.put(key(serviceInformation, "virus", ISTAG), ICAPVerdictCache.Verdict.blocked(new ContentBlockedException("Threat found", blockedHeader, "blocked")));
+            store.close();
+            assertFalse(store.isEnabled());
+
+            // another instance, e.g. another process
+            ICAPVerdictStore otherStore = new ICAPVerdictStore();
+            otherStore.open(file, 16);
+            assertEquals(1024, otherStore.getCapacity());
+            assertEquals(204, otherStore.get(key(serviceInformation, "clean", ISTAG)).resolve().getStatus());
+            assertNull(otherStore.get(key(serviceInformation, "clean", "\"TEST-0002\"")));
+            assertNull(otherStore.get(key(serviceInformation, "unknown", ISTAG)));
+
+            // a long ISTag is compared completely
+            String longISTag = "\"TEST-SCANNER-ENGINE-1.0.0-SIGNATURES-2024-01-01-0001\"";
+            otherStore.put(key(serviceInformation, "long", longISTag), ICAPVerdictCache.Verdict.valid(new ICAPHeaderInformation().setStatus(204)));
+            assertNotNull(otherStore.get(key(serviceInformation, "long", longISTag)));
+            assertNull(otherStore.get(key(serviceInformation, "long", longISTag.replace("0001", "0002"))));
+
+            ICAPVerdictCache.Verdict verdict = otherStore.get(key(serviceInformation, "virus", ISTAG));
+            assertTrue(verdict.isBlocked());
+            ContentBlockedException e = assertThrows(ContentBlockedException.class, () -> verdict.resolve());
+            assertEquals("Threat found", e.getMessage());
+            assertEquals("blocked", e.getContent());
+            assertEquals(200, e.getICAPHeaderInformation().getStatus());
+            assertEquals("Type=0; Resolution=2; Threat=Test;", e.getICAPHeaderInformation().getHeaderValues("x-infection-found").get(0));
+
+            // a full probe window replaces the oldest record
+            for (int i = 0; i < 5000; i++) {
+                otherStore.put(key(serviceInformation, "content" + i, ISTAG), ICAPVerdictCache.Verdict.valid(new ICAPHeaderInformation().setStatus(204)));
+            }
+            assertNotNull(otherStore.get(key(serviceInformation, "content4999", ISTAG)));
+            otherStore.close();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+
+    /**
+     * Test the concurrent lookups and updates of the store
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", 1344, false, "srv_test", 3600);
+        Path file = Files.createTempFile("icap-verdicts", ".dat");
+        Files.delete(file);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            ICAPVerdictStore store = new ICAPVerdictStore();
+            store.open(file, 1024);
+
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < 8; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        ICAPVerdictCache.VerdictKey key = key(serviceInformation, "content" + thread + "-" + i, ISTAG);
+                        store.put(key, ICAPVerdictCache.Verdict.valid(new ICAPHeaderInformation().setStatus(204)));
+                        assertNotNull(store.get(key));
+                    }
+                }));
+            }
+            
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+            store.close();
+        } finally {
+            executor.shutdownNow();
+            Files.deleteIfExists(file);
+        }
+    }
+
+
+    /**
+     * Test that a client uses the verdict of the store instead of a scan
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testValidateResource() throws Exception {
+        ICAPPooledConnectionManagerImpl connectionManager = new ICAPPooledConnectionManagerImpl();
+        Path file = Files.createTempFile("icap-verdicts", ".dat");
+        Files.delete(file);
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            ICAPVerdictStore.getInstance().open(file, 1024);
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null);
+            client.options(new ICAPRequestInformation());
+            int requests = server.getRequests();
+
+            ICAPResource resource = new ICAPResource("stored.txt", "STORED".getBytes(StandardCharsets.US_ASCII));
+            assertEquals(204, client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), resource).getStatus());
+            assertEquals(requests + 1, server.getRequests());
+
+            // a restart keeps the verdicts
+            ICAPVerdictStore.getInstance().close();
+            ICAPVerdictStore.getInstance().open(file, 1024);
+            assertEquals(204, client.validateResource(ICAPMode.RESPMOD, new ICAPRequestInformation(), resource).getStatus());
+            assertEquals(requests + 1, server.getRequests());
+        } finally {
+            ICAPVerdictStore.getInstance().close();
+            connectionManager.shutdown();
+            Files.deleteIfExists(file);
+        }
+    }
+
+
+    /**
+     * Create a key
+     *
+     * @param serviceInformation the service information
+     * @param digest the digest
+     * @param isTag the ISTag
+     * @return the key
+     */
+    private ICAPVerdictCache.VerdictKey key(ICAPServiceInformation serviceInformation, String digest, String isTag) {
+        return new ICAPVerdictCache.VerdictKey(digest, serviceInformation, ICAPMode.RESPMOD, false, isTag);
+    }
+}
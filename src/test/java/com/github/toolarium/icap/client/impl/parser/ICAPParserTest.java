@@ -0,0 +1,111 @@
+/*
+ * ICAPParserTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.impl.parser;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.toolarium.icap.client.dto.ICAPConstants;
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the {@link ICAPParser} and the {@link ICAPHeaderMap}.
+ *
+ * @author patrick
+ */
+public class ICAPParserTest {
+
+    /**
+     * Test the status line
+     */
+    @Test
+    public void testStatusLine() {
+        ICAPHeaderInformation headerInformation = ICAPParser.getInstance().parseICAPHeaderInformation("ICAP/1.0 204 Unmodified");
+        assertEquals("ICAP", headerInformation.getProtocol());
+        assertEquals("1.0", headerInformation.getVersion());
+        assertEquals(204, headerInformation.getStatus());
+        assertEquals("Unmodified", headerInformation.getMessage());
+
+        headerInformation = ICAPParser.getInstance().parseICAPHeaderInformation("ICAP/1.0 200 OK, with comma");
+        assertEquals(200, headerInformation.getStatus());
+        assertEquals("OK, with comma", headerInformation.getMessage());
+
+        assertEquals(0, ICAPParser.getInstance().parseICAPHeaderInformation("HTTP/1.1 200 OK").getStatus());
+        assertEquals(0, ICAPParser.getInstance().parseICAPHeaderInformation("ICAP/1.0 2x0 OK").getStatus());
+        assertEquals(0, ICAPParser.getInstance().parseICAPHeaderInformation(null).getStatus());
+    }
+
+
+    /**
+     * Test the header parsing
+     */
+    @Test
+    public void testParseHeader() {
+        Map<String, List<String>> headers = ICAPParser.getInstance().parseHeader(Arrays.asList("ICAP/1.0 200 OK",
+                                                                                               "ISTAG: \"CI0001\"",
+                                                                                               "Methods: RESPMOD, REQMOD",
+                                                                                               "Date: Mon, 07 Apr 2025 10:00:00 GMT",
+                                                                                               "X-Infection-Found: Type=0; Resolution=2; Threat=EICAR;",
+                                                                                               "X-Violations-Found: 1",
+                                                                                               "  continued",
+                                                                                               "X-Custom: a,,b,",
+                                                                                               "x-custom: c"));
+        assertEquals(Arrays.asList("ICAP/1.0 200 OK"), headers.get(ICAPConstants.HEADER_KEY_X_ICAP_STATUSLINE));
+        assertEquals(Arrays.asList("\"CI0001\""), headers.get(ICAPConstants.HEADER_KEY_ISTAG));
+        assertEquals(Arrays.asList("RESPMOD", "REQMOD"), headers.get("methods"));
+        assertEquals(Arrays.asList("Mon, 07 Apr 2025 10:00:00 GMT"), headers.get("Date"));
+        assertEquals(Arrays.asList("Type=0", "Resolution=2", "Threat=EICAR"), headers.get(ICAPConstants.HEADER_KEY_X_INFECTION_FOUND));
+        assertEquals(Arrays.asList("1", "continued"), headers.get(ICAPConstants.HEADER_KEY_X_VIOLATIONS_FOUND));
+        assertEquals(Arrays.asList("a", "", "b", "c"), headers.get("X-CUSTOM"));
+        assertEquals(7, headers.size());
+
+        // the well-known keys are interned
+        String key = headers.keySet().iterator().next();
+        assertSame(ICAPConstants.HEADER_KEY_X_ICAP_STATUSLINE, key);
+        assertTrue(headers.keySet().contains(ICAPConstants.HEADER_KEY_ISTAG));
+    }
+
+
+    /**
+     * Test the header map
+     */
+    @Test
+    public void testHeaderMap() {
+        ICAPHeaderMap headers = new ICAPHeaderMap(2);
+        headers.add("Encapsulated", "res-hdr=0, res-body=120");
+        headers.add("Connection", "close");
+        headers.put("X-Test", Arrays.asList("1"));
+        assertTrue(headers.containsKey("ENCAPSULATED"));
+        assertEquals(Arrays.asList("res-hdr=0", "res-body=120"), headers.get("encapsulated"));
+
+        Map<String, List<String>> expected = new LinkedHashMap<String, List<String>>();
+        expected.put("Encapsulated", Arrays.asList("res-hdr=0", "res-body=120"));
+        expected.put("Connection", Arrays.asList("close"));
+        expected.put("X-Test", Arrays.asList("1"));
+        assertEquals(expected, headers);
+        assertEquals(expected.toString(), headers.toString());
+
+        Iterator<Map.Entry<String, List<String>>> it = headers.entrySet().iterator();
+        it.next();
+        it.remove();
+        assertFalse(headers.containsKey("Encapsulated"));
+        assertEquals("Connection", it.next().getKey());
+        assertEquals(Arrays.asList("1"), headers.remove("x-test"));
+        assertNull(headers.get("X-Test"));
+        assertEquals(1, headers.size());
+        assertEquals(new ICAPHeaderMap(headers), headers);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * ICAPFingerprintTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the {@link ICAPFingerprint}.
+ *
+ * @author patrick
+ */
+public class ICAPFingerprintTest {
+
+    /**
+     * Test the xxHash
+     *
+     * @throws IOException In case of an error
+     */
+    @Test
+    public void testXXH64() throws IOException {
+        assertEquals("ef46db3751d8e999", digest(ICAPFingerprint.XXH64, ""));
+        assertEquals("d24ec4f1a98c6e5b", digest(ICAPFingerprint.XXH64, "a"));
+        assertEquals("44bc2cf5ad770999", digest(ICAPFingerprint.XXH64, "abc"));
+        assertChunks(ICAPFingerprint.XXH64);
+    }
+
+
+    /**
+     * Test the CRC32C checksum
+     *
+     * @throws IOException In case of an error
+     */
+    @Test
+    public void testCRC32C() throws IOException {
+        assertEquals("e3069283", digest(ICAPFingerprint.CRC32C, "123456789"));
+        assertChunks(ICAPFingerprint.CRC32C);
+    }
+
+
+    /**
+     * Test the message digest and none
+     *
+     * @throws IOException In case of an error
+     */
+    @Test
+    public void testMessageDigest() throws IOException {
+        ICAPFingerprint fingerprint = ICAPFingerprint.messageDigest("SHA-256");
+        assertTrue(fingerprint.isEnabled());
+        assertEquals("SHA-256", fingerprint.getAlgorithm());
+        assertNotSame(fingerprint.createMessageDigest(), fingerprint.createMessageDigest());
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", digest(fingerprint, "abc"));
+        assertChunks(fingerprint);
+
+        assertFalse(ICAPFingerprint.NONE.isEnabled());
+        assertNull(ICAPFingerprint.NONE.createMessageDigest());
+    }
+
+
+    /**
+     * Assert that a content in chunks has the same fingerprint as the content at once
+     *
+     * @param fingerprint the fingerprint
+     * @throws IOException In case of an error
+     */
+    private void assertChunks(ICAPFingerprint fingerprint) throws IOException {
+        byte[] content = new RandomGenerator().getRandomString(1000).getBytes(StandardCharsets.US_ASCII);
+        MessageDigest messageDigest = fingerprint.createMessageDigest();
+        byte[] expected = messageDigest.digest(content);
+
+        for (int chunkSize : new int[] {1, 3, 31, 32, 33, 100}) {
+            for (int i = 0; i < content.length; i += chunkSize) {
+                messageDigest.update(content, i, Math.min(chunkSize, content.length - i));
+            }
+            assertArrayEquals(expected, messageDigest.digest());
+        }
+    }
+
+
+    /**
+     * Calculate the fingerprint of a text
+     *
+     * @param fingerprint the fingerprint
+     * @param text the text
+     * @return the fingerprint as hex
+     * @throws IOException In case of an error
+     */
+    private String digest(ICAPFingerprint fingerprint, String text) throws IOException {
+        byte[] digest = fingerprint.createMessageDigest().digest(text.getBytes(StandardCharsets.US_ASCII));
+        return String.format("%0" + (digest.length * 2) + "x", new BigInteger(1, digest));
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * ICAPScanPublisherTest.java
+ *
+ * Copyright by toolarium, all rights reserved.
+ */
+package com.github.toolarium.icap.client.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.toolarium.icap.client.ICAPClient;
+import com.github.toolarium.icap.client.ICAPTestServer;
+import com.github.toolarium.icap.client.dto.ICAPBatchInformation;
+import com.github.toolarium.icap.client.dto.ICAPHeaderInformation;
+import com.github.toolarium.icap.client.dto.ICAPMode;
+import com.github.toolarium.icap.client.dto.ICAPRequestInformation;
+import com.github.toolarium.icap.client.dto.ICAPResource;
+import com.github.toolarium.icap.client.dto.ICAPScanResult;
+import com.github.toolarium.icap.client.dto.ICAPServiceInformation;
+import com.github.toolarium.icap.client.impl.ICAPClientImpl;
+import com.github.toolarium.icap.client.impl.ICAPPooledConnectionManagerImpl;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the {@link ICAPScanPublisher}.
+ *
+ * @author patrick
+ */
+public class ICAPScanPublisherTest {
+
+    /**
+     * Test that the upstream is only requested as the downstream demand and the limits allow
+     */
+    @Test
+    public void testBackpressure() {
+        ResourcePublisher resources = new ResourcePublisher(createResources(100, 10));
+        List<CompletableFuture<ICAPHeaderInformation>> scans = new ArrayList<CompletableFuture<ICAPHeaderInformation>>();
+        ICAPScanPublisher publisher = new ICAPScanPublisher(resources, resource -> addScan(scans), new ICAPBatchInformation().maxInFlightScans(3));
+        ResultSubscriber subscriber = new ResultSubscriber();
+        publisher.subscribe(subscriber);
+
+        subscriber.request(5);
+        assertEquals(3, scans.size());
+        assertEquals(3, resources.requested.get());
+
+        scans.get(0).complete(new ICAPHeaderInformation());
+        assertEquals(1, subscriber.results.size());
+        assertEquals(4, scans.size());
+
+        for (int i = 1; i < 4; i++) {
+            scans.get(i).complete(new ICAPHeaderInformation());
+        }
+
+        // the demand of 5 results is exhausted
+        assertEquals(5, scans.size());
+        scans.get(4).complete(new ICAPHeaderInformation());
+        assertEquals(5, subscriber.results.size());
+        assertEquals(5, resources.requested.get());
+        assertFalse(subscriber.completed);
+
+        subscriber.request(Long.MAX_VALUE);
+        while (scans.stream().anyMatch(f -> !f.isDone())) {
+            scans.stream().filter(f -> !f.isDone()).findFirst().get().complete(new ICAPHeaderInformation());
+        }
+        assertEquals(100, subscriber.results.size());
+        assertTrue(subscriber.completed);
+    }
+
+
+    /**
+     * Test the limit of the in-flight bytes
+     */
+    @Test
+    public void testMaxInFlightBytes() {
+        ResourcePublisher resources = new ResourcePublisher(createResources(4, 600));
+        List<CompletableFuture<ICAPHeaderInformation>> scans = new ArrayList<CompletableFuture<ICAPHeaderInformation>>();
+        ICAPScanPublisher publisher = new ICAPScanPublisher(resources, resource -> addScan(scans), new ICAPBatchInformation().maxInFlightBytes(1000));
+        ResultSubscriber subscriber = new ResultSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.request(Long.MAX_VALUE);
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i + 1, scans.size());
+            scans.get(i).complete(new ICAPHeaderInformation());
+        }
+        assertEquals(4, subscriber.results.size());
+        assertTrue(subscriber.completed);
+    }
+
+
+    /**
+     * Test that the publishers of the same service share the limits of the in-flight scans
+     */
+    @Test
+    public void testSharedInFlightCounter() {
+        ICAPInFlightCounter inFlightCounter = new ICAPInFlightCounter();
+        List<CompletableFuture<ICAPHeaderInformation>> scans = new ArrayList<CompletableFuture<ICAPHeaderInformation>>();
+        ICAPScanPublisher publisher = new ICAPScanPublisher(new ResourcePublisher(createResources(5, 10)), resource -> addScan(scans), new ICAPBatchInformation().maxInFlightScans(3), inFlightCounter);
+        ICAPScanPublisher otherPublisher = new ICAPScanPublisher(new ResourcePublisher(createResources(5, 10)), resource -> addScan(scans), new ICAPBatchInformation().maxInFlightScans(3), inFlightCounter);
+        ResultSubscriber subscriber = new ResultSubscriber();
+        ResultSubscriber otherSubscriber = new ResultSubscriber();
+        publisher.subscribe(subscriber);
+        otherPublisher.subscribe(otherSubscriber);
+        subscriber.request(Long.MAX_VALUE);
+        otherSubscriber.request(Long.MAX_VALUE);
+        assertEquals(3, scans.size());
+        assertEquals(3, inFlightCounter.getInFlightScans());
+
+        // a released scan of the service starts a waiting scan of any publisher
+        int completedScans = 0;
+        while (completedScans < scans.size()) {
+            scans.get(completedScans++).complete(new ICAPHeaderInformation());
+            assertTrue(inFlightCounter.getInFlightScans() <= 3);
+        }
+        assertEquals(10, scans.size());
+        assertEquals(0, inFlightCounter.getInFlightScans());
+        assertEquals(0, inFlightCounter.getInFlightBytes());
+        assertTrue(subscriber.completed);
+        assertTrue(otherSubscriber.completed);
+    }
+
+
+    /**
+     * Test the ordered delivery and that a failed scan doesn't fail the batch
+     */
+    @Test
+    public void testOrderedWithFailure() {
+        ResourcePublisher resources = new ResourcePublisher(createResources(5, 10));
+        List<CompletableFuture<ICAPHeaderInformation>> scans = new ArrayList<CompletableFuture<ICAPHeaderInformation>>();
+        ICAPScanPublisher publisher = new ICAPScanPublisher(resources, resource -> addScan(scans), new ICAPBatchInformation().maxInFlightScans(5).ordered(true));
+        ResultSubscriber subscriber = new ResultSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.request(Long.MAX_VALUE);
+
+        assertEquals(5, scans.size());
+        for (int i = 4; i > 0; i--) {
+            scans.get(i).complete(new ICAPHeaderInformation());
+        }
+        assertTrue(subscriber.results.isEmpty());
+        scans.get(0).completeExceptionally(new IOException("Connection refused"));
+
+        assertEquals(5, subscriber.results.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, subscriber.results.get(i).getIndex());
+            assertEquals("test" + i + ".txt", subscriber.results.get(i).getResource().getResourceName());
+        }
+        assertFalse(subscriber.results.get(0).isValid());
+        assertTrue(subscriber.results.get(0).getError() instanceof IOException);
+        assertTrue(subscriber.results.get(1).isValid());
+        assertNull(subscriber.error);
+        assertTrue(subscriber.completed);
+    }
+
+
+    /**
+     * Test the publisher of the client
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testValidateResources() throws Exception {
+        ICAPPooledConnectionManagerImpl connectionManager = new ICAPPooledConnectionManagerImpl();
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null);
+
+            ResultSubscriber subscriber = new ResultSubscriber();
+            client.validateResources(ICAPMode.RESPMOD, new ICAPRequestInformation(), new ResourcePublisher(createResources(50, 2000)),
+                                     new ICAPBatchInformation().maxInFlightScans(4)).subscribe(subscriber);
+            subscriber.request(Long.MAX_VALUE);
+
+            assertTrue(subscriber.done.await(30, TimeUnit.SECONDS));
+            assertEquals(50, subscriber.results.size());
+            assertTrue(subscriber.results.stream().allMatch(r -> r.isValid() && r.getHeaderInformation().getStatus() == 204));
+            assertTrue(server.getMaxActiveConnections() <= 4);
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+
+
+    /**
+     * Test the batch validation, a blocked resource doesn't fail the batch
+     *
+     * @throws Exception In case of an error
+     */
+    @Test
+    public void testValidateResourcesBatch() throws Exception {
+        ICAPPooledConnectionManagerImpl connectionManager = new ICAPPooledConnectionManagerImpl();
+        try (ICAPTestServer server = new ICAPTestServer()) {
+            server.setResponseHandler((method, header, body) -> {
+                if ("OPTIONS".equals(method)) {
+                    return ICAPTestServer.OPTIONS_RESPONSE;
+                }
+                if (!new String(body, StandardCharsets.US_ASCII).startsWith("VIRUS")) {
+                    return ICAPTestServer.UNMODIFIED_RESPONSE;
+                }
+
+                String httpHeader = "HTTP/1.1 403 Forbidden\r\n\r\n";
+                return "ICAP/1.0 200 OK\r\nISTag: \"TEST-0001\"\r\nX-Infection-Found: Type=0; Resolution=2; Threat=Test;\r\n"
+                       + "Encapsulated: res-hdr=0, res-body=" + httpHeader.length() + "\r\n\r\n" + httpHeader + "7\r\nblocked\r\n0\r\n\r\n";
+            });
+
+            ICAPServiceInformation serviceInformation = new ICAPServiceInformation("localhost", server.getPort(), false, "srv_test", 3600);
+            ICAPClient client = new ICAPClientImpl(connectionManager, serviceInformation, null);
+            List<ICAPResource> resources = new ArrayList<ICAPResource>();
+            for (int i = 0; i < 20; i++) {
+                resources.add(new ICAPResource("test" + i + ".txt", ((i % 5 == 0) ? "VIRUS" : "CLEAN").getBytes(StandardCharsets.US_ASCII)));
+            }
+
+            List<ICAPScanResult> results = client.validateResources(ICAPMode.RESPMOD, new ICAPRequestInformation(), resources, new ICAPBatchInformation().maxInFlightScans(3));
+            assertEquals(20, results.size());
+            for (int i = 0; i < 20; i++) {
+                assertEquals(resources.get(i), results.get(i).getResource());
+                assertEquals(i % 5 == 0, results.get(i).isContentBlocked());
+                assertEquals(i % 5 == 0 ? 200 : 204, results.get(i).getHeaderInformation().getStatus());
+            }
+
+            results = client.validateResources(ICAPMode.RESPMOD, new ICAPRequestInformation(), resources.stream().limit(7), null);
+            assertEquals(7, results.size());
+            assertEquals(2, results.stream().filter(ICAPScanResult::isContentBlocked).count());
+
+            // the connections of the pool are reused by the following scans
+            assertTrue(server.getMaxActiveConnections() <= ICAPBatchInformation.DEFAULT_MAX_IN_FLIGHT_SCANS);
+            assertTrue(server.getAcceptedConnections() < 27);
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+
+
+    /**
+     * Add a scan
+     *
+     * @param scans the scans
+     * @return the future of the scan
+     */
+    private static CompletableFuture<ICAPHeaderInformation> addScan(List<CompletableFuture<ICAPHeaderInformation>> scans) {
+        CompletableFuture<ICAPHeaderInformation> future = new CompletableFuture<ICAPHeaderInformation>();
+        scans.add(future);
+        return future;
+    }
+
+
+    /**
+     * Create resources
+     *
+     * @param count the number of resources
+     * @param length the length of the resources
+     * @return the resources
+     */
+    private static List<ICAPResource> createResources(int count, int length) {
+        List<ICAPResource> resources = new ArrayList<ICAPResource>();
+        for (int i = 0; i < count; i++) {
+            resources.add(new ICAPResource("test" + i + ".txt", new byte[length]));
+        }
+        return resources;
+    }
+
+
+    /**
+     * Synchronous publisher of a list of resources which counts the requested resources
+     */
+    private static class ResourcePublisher implements Flow.Publisher<ICAPResource> {
+        private final Iterator<ICAPResource> iterator;
+        private final AtomicInteger requested;
+
+
+        /**
+         * Constructor for ResourcePublisher
+         *
+         * @param resources the resources
+         */
+        ResourcePublisher(List<ICAPResource> resources) {
+            this.iterator = resources.iterator();
+            this.requested = new AtomicInteger();
+        }
+
+
+        /**
+         * @see java.util.concurrent.Flow.Publisher#subscribe(java.util.concurrent.Flow.Subscriber)
+         */
+        @Override
+        public void subscribe(Flow.Subscriber<? super ICAPResource> subscriber) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    for (long i = 0; i < n; i++) {
+                        synchronized (iterator) {
+                            if (!iterator.hasNext()) {
+                                subscriber.onComplete();
+                                return;
+                            }
+                            requested.incrementAndGet();
+                            subscriber.onNext(iterator.next());
+                            if (!iterator.hasNext()) {
+                                subscriber.onComplete();
+                                return;
+                            }
+                        }
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    // NOP
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Subscriber which collects the results
+     */
+    private static class ResultSubscriber implements Flow.Subscriber<ICAPScanResult> {
+        private final List<ICAPScanResult> results = new ArrayList<ICAPScanResult>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Flow.Subscription subscription;
+        private volatile boolean completed;
+        private volatile Throwable error;
+
+
+        /**
+         * Request results
+         *
+         * @param n the number of results
+         */
+        void request(long n) {
+            subscription.request(n);
+        }
+
+
+        /**
+         * @see java.util.concurrent.Flow.Subscriber#onSubscribe(java.util.concurrent.Flow.Subscription)
+         */
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+
+        /**
+         * @see java.util.concurrent.Flow.Subscriber#onNext(java.lang.Object)
+         */
+        @Override
+        public void onNext(ICAPScanResult item) {
+            synchronized (results) {
+                results.add(item);
+            }
+        }
+
+
+        /**
+         * @see java.util.concurrent.Flow.Subscriber#onError(java.lang.Throwable)
+         */
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            done.countDown();
+        }
+
+
+        /**
+         * @see java.util.concurrent.Flow.Subscriber#onComplete()
+         */
+        @Override
+        public void onComplete() {
+            completed = true;
+            done.countDown();
+        }
+    }
+}